@@ -3,6 +3,7 @@
 precision mediump float;
 
 uniform sampler2D Texture;
+uniform float mSaturation;
 
 uniform float mSize;
 uniform float mTrans;
@@ -33,9 +34,15 @@ varying float vTYClipDist;
 #define BlendOverlayf(base, blend)      (base < 0.5 ? (2.0 * base * blend) : (1.0 - 2.0 * (1.0 - base) * (1.0 - blend)))
 #define BlendMultiply(base, blend)      (base * blend)
 
+// the saturation of ColorMatrix.setSaturation(), 1.0 keeps the colors
+vec4 Saturate(vec4 color) {
+    float luma = dot(color.rgb, vec3(0.213, 0.715, 0.072));
+    return vec4(mix(vec3(luma), color.rgb, mSaturation), color.a);
+}
+
 vec4 Theme() {
     vec4 mResultColor;
-    vec4 srcColor = texture2D(Texture, vTextureCoord);
+    vec4 srcColor = Saturate(texture2D(Texture, vTextureCoord));
 
     if(mTheme > 0.0) {
         if(mTheme == 1.0) { //
@@ -3,6 +3,7 @@
 #endif
 
 uniform sampler2D Texture;
+uniform float mSaturation;
 
 uniform mat3 matrix;
 uniform vec2 resolution;
@@ -17,8 +18,14 @@ varying vec2 vTextureCoord;
 varying float vTXClipDist;
 varying float vTYClipDist;
 
+// the saturation of ColorMatrix.setSaturation(), 1.0 keeps the colors
+vec4 Saturate(vec4 color) {
+    float luma = dot(color.rgb, vec3(0.213, 0.715, 0.072));
+    return vec4(mix(vec3(luma), color.rgb, mSaturation), color.a);
+}
+
 void main() {
-    vec4 color = texture2D(Texture, vTextureCoord);
+    vec4 color = Saturate(texture2D(Texture, vTextureCoord));
     if(vCenter.x + mGap[0] < vTXClipDist || vCenter.x - mGap[0] > vTXClipDist ||
         vCenter.y + mGap[1] < vTYClipDist || vCenter.y - mGap[1] > vTYClipDist) {
 
@@ -3,17 +3,33 @@
 precision mediump float;
 
 uniform sampler2D Texture;
+uniform float mSaturation;
 
 uniform mat3 matrix;
 uniform vec2 resolution;
 uniform float mAlpha;
-uniform float mTheme;
-uniform float mString_BK;
 uniform float mString_BKR;
 uniform float mString_BKG;
 uniform float mString_BKB;
-uniform float mSetBound;
 uniform float mBound[2];
+
+// A variant of the shader defines THEME, STRING_BK and SET_BOUND as constants, and the
+// branches on them are compiled away; otherwise they are uniforms.
+#ifdef THEME
+#define mTheme THEME
+#else
+uniform float mTheme;
+#endif
+#ifdef STRING_BK
+#define mString_BK STRING_BK
+#else
+uniform float mString_BK;
+#endif
+#ifdef SET_BOUND
+#define mSetBound SET_BOUND
+#else
+uniform float mSetBound;
+#endif
 uniform vec4 mLeft;
 uniform vec4 mRight;
 
@@ -29,9 +45,15 @@ varying float vTYClipDist;
 #define BlendOverlayf(base, blend)      (base < 0.5 ? (2.0 * base * blend) : (1.0 - 2.0 * (1.0 - base) * (1.0 - blend)))
 #define BlendMultiply(base, blend)      (base * blend)
 
+// the saturation of ColorMatrix.setSaturation(), 1.0 keeps the colors
+vec4 Saturate(vec4 color) {
+    float luma = dot(color.rgb, vec3(0.213, 0.715, 0.072));
+    return vec4(mix(vec3(luma), color.rgb, mSaturation), color.a);
+}
+
 vec4 Theme() {
     vec4 mResultColor;
-    vec4 srcColor = texture2D(Texture, vTextureCoord);
+    vec4 srcColor = Saturate(texture2D(Texture, vTextureCoord));
 
     if(mTheme > 0.0) {
         if(mTheme == 1.0) { //
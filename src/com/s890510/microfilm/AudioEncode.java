@@ -1,19 +1,21 @@
 package com.s890510.microfilm;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.Resources;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 
+import com.s890510.microfilm.util.MD5Util;
+
 public class AudioEncode {
     private static final String TAG="AudioEncode";
 
@@ -25,35 +27,58 @@ public class AudioEncode {
     public static final int NO_TIME_LIMIT = -1;
     
     private MediaExtractor mExtractor;
-    private AssetFileDescriptor mSrcFd;
     private HashMap<Integer, Integer> mIndexMap;
     private int mMusicId;
-    private int mEncodeTime;
+    private long mEncodeTime;
+
+    // music files already checked against their MD5 by this process
+    private static final HashSet<String> sVerifiedFiles = new HashSet<String>();
+    // music file path -> what its extraction and check synchronize on
+    private static final HashMap<String, Object> sPathLocks = new HashMap<String, Object>();
 
-    //public static void doEncode(Context context, String dstMediaPath, MediaFormat videoFormat){
-    public void doEncode(Context context, String dstMediaPath, MediaMuxer muxer){
+    /**
+     * Copies the music samples into the muxer.  Must be called after the muxer was started
+     * with the track added by {@link #setupAudioMuxer}.
+     */
+    public void doEncode(Context context, MovieMuxer muxer) throws IOException {
         try {
-            //cloneMediaUsingMuxer(context, videoFormat, source, dstMediaPath, 1, -1);
-            cloneMediaUsingMuxer(context, muxer, dstMediaPath, 1, -1);
+            cloneMediaUsingMuxer(context, muxer, 1, -1, Long.MAX_VALUE);
+        } finally {
+            release();
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            new File(dstMediaPath).delete();
+    /**
+     * Copies the music samples before timeUs into the muxer, for a muxer that needs the
+     * tracks interleaved.  {@link #doEncode} copies what is left.
+     */
+    public void writeSamplesUntil(Context context, MovieMuxer muxer, long timeUs)
+            throws IOException {
+        if(mExtractor != null)
+            cloneMediaUsingMuxer(context, muxer, 1, -1, timeUs);
+    }
+
+    public void release() {
+        if(mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
         }
     }
 
-    public void setupAudioMuxer(Context context, MediaMuxer muxer, int time){
+    /**
+     * Adds the music tracks to the muxer, trimmed to time (in milliseconds).
+     * Must be called before the muxer is started.
+     */
+    public void setupAudioMuxer(Context context, MovieMuxer muxer, int time) throws IOException {
         // Set up MediaExtractor to read from the source.
-        //mSrcFd = context.getResources().openRawResourceFd(source);
-        
-        mExtractor = new MediaExtractor();
-        try {
-        	mSrcFd = context.getAssets().openFd(MusicManager.getFilePath(mMusicId));
-            mExtractor.setDataSource(mSrcFd.getFileDescriptor(), mSrcFd.getStartOffset(), mSrcFd.getLength());
-        } catch (IOException e) {
-            e.printStackTrace();
+        String filePath = getAudioFilePath(context, mMusicId, MusicManager.getFileName(mMusicId));
+        if(filePath == null) {
+            throw new IOException("music " + mMusicId + " is not available");
         }
 
+        mExtractor = new MediaExtractor();
+        mExtractor.setDataSource(filePath);
+
         int trackCount = mExtractor.getTrackCount();
 
         // Set up the tracks.
@@ -67,15 +92,14 @@ public class AudioEncode {
         
         if(time == NO_TIME_LIMIT)
         	mEncodeTime = time;
-        else mEncodeTime = time * 1000000; // sec to microsecond
+        else mEncodeTime = time * 1000L; // millisecond to microsecond
     }
 
     /**
-     * Using the MediaMuxer to clone a media file.
+     * Using the MediaMuxer to clone a media file, up to untilUs.
      */
-    //private static void cloneMediaUsingMuxer(Context context, MediaFormat videoFormat, int srcMedia, String dstMediaPath,
-    private void cloneMediaUsingMuxer(Context context, MediaMuxer muxer, String dstMediaPath,
-            int expectedTrackCount, int degrees) throws IOException {
+    private void cloneMediaUsingMuxer(Context context, MovieMuxer muxer,
+            int expectedTrackCount, int degrees, long untilUs) throws IOException {
 
         // Copy the samples from MediaExtractor to MediaMuxer.
         boolean sawEOS = false;
@@ -91,6 +115,10 @@ public class AudioEncode {
         }
         //muxer.start();
         while (!sawEOS) {
+            long sampleTime = mExtractor.getSampleTime();
+            if (sampleTime >= untilUs) {
+                break;
+            }
             bufferInfo.offset = offset;
             bufferInfo.size = mExtractor.readSampleData(dstBuf, offset);
 
@@ -129,13 +157,110 @@ public class AudioEncode {
                 }
             }
         }
-        //muxer.stop();
-        //muxer.release();
-        mSrcFd.close();
         return;
     }
     
     public void setAudioSource(Context context, int musicId){
     	mMusicId = musicId;
     }
+
+    /**
+     * Returns the length of the music in milliseconds, rounded down to 100 ms like the
+     * player reports it.
+     */
+    public static int getMusicDuration(Context context, int musicId) throws IOException {
+        String filePath = getAudioFilePath(context, musicId, MusicManager.getFileName(musicId));
+        if(filePath == null) {
+            throw new IOException("music " + musicId + " is not available");
+        }
+
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(filePath);
+            long durationUs = 0;
+            for(int i=0; i<extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                if(format.containsKey(MediaFormat.KEY_DURATION))
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+            }
+            return (int) (durationUs / 1000 / 100) * 100;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    // The music assets are stored compressed, so they are extracted once into the files
+    // dir and checked against their known MD5 before use.  The exports of a batch may ask
+    // for the same file at once; one extracts and checks it while the others wait.
+    private static String getAudioFilePath(Context context, int musicId, String filename) throws IOException{
+        if(filename == null)
+        	return null;
+
+        final File mf = new File(context.getFilesDir(), filename);
+        synchronized(getPathLock(mf.getAbsolutePath())) {
+            // the check reads the whole file; do it once, not for every export of a batch
+            synchronized(sVerifiedFiles) {
+                if(mf.exists() && sVerifiedFiles.contains(mf.getAbsolutePath() + ":" + mf.length()))
+                    return mf.getAbsolutePath();
+            }
+            if (!mf.exists()) {
+                // written under another name, so mf is never a half-written file
+                final File tmp = new File(context.getFilesDir(), filename + ".tmp");
+                FileOutputStream fos = null;
+                InputStream is = null;
+                try {
+                	is = context.getAssets().open(MusicManager.getFilePath(musicId));
+                    fos = new FileOutputStream(tmp);
+                    final byte[] buffer = new byte[1024];
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) > 0) {
+                        fos.write(buffer, 0, bytesRead);
+                    }
+                    fos.flush();
+                    fos.close();
+                    fos = null;
+                    if(!tmp.renameTo(mf))
+                        throw new IOException("rename to " + mf + " failed");
+                } catch(Exception e){
+                	e.printStackTrace();
+                } finally {
+                    if (is != null) {
+                        is.close();
+                    }
+
+                    if (fos != null) {
+                        fos.close();
+                    }
+                    if(tmp.exists())
+                        tmp.delete();
+                }
+            }
+
+            if(mf.exists()){
+            	String correctMD5 = MD5Util.getCorrectMD5(musicId);
+            	String fileMD5 = MD5Util.fileToMD5(mf.getAbsolutePath());
+
+            	if(correctMD5!=null && fileMD5!=null && correctMD5.equals(fileMD5)){
+            		synchronized(sVerifiedFiles) {
+            			sVerifiedFiles.add(mf.getAbsolutePath() + ":" + mf.length());
+            		}
+            		return mf.getAbsolutePath();
+            	}else{
+            		mf.delete();
+            	}
+            }
+            return null;
+        }
+    }
+
+    private static Object getPathLock(String path) {
+        synchronized(sPathLocks) {
+            Object lock = sPathLocks.get(path);
+            if(lock == null) {
+                lock = new Object();
+                sPathLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
 }
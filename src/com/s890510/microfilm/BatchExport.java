@@ -0,0 +1,264 @@
+package com.s890510.microfilm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.ProgressDialog;
+import android.util.Log;
+
+import com.s890510.microfilm.MicroMovieActivity.ISaveCallback;
+import com.s890510.microfilm.gles.EglCore;
+import com.s890510.microfilm.script.Script;
+
+/**
+ * Exports the same media in several themes.
+ * <p>
+ * The themes are encoded back to back in one EGL session: the shader programs are compiled
+ * and the texture names generated once, by the first theme, and the next themes draw with
+ * them.  The decoded photos are the album's, shared by all themes, and the music files are
+ * checked once per process (see {@link AudioEncode}).  When the encoder allows more than
+ * one instance, up to {@link #MAX_SESSIONS} sessions run at once, each taking the next
+ * theme that is left.
+ * <p>
+ * Every theme's wall time is logged next to the time a separate export of it took last.
+ */
+public class BatchExport {
+    private static final String TAG = "BatchExport";
+
+    private static final int MAX_SESSIONS = 2;
+
+    public interface Listener {
+        void onThemeDone(int theme, String saveUri, int frameTime, String posterPath);
+        void onThemeFailed(int theme);
+    }
+
+    /**
+     * An EGL context and the ProcessGL drawing in it, kept from one export to the next.  Only
+     * used on the thread that created it.
+     */
+    static class Session {
+        private EglCore mEglCore;
+        private ProcessGL mProcessGL;
+        private boolean mPrepared = false;
+
+        Session(MicroMovieActivity activity) {
+            mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+            mProcessGL = new ProcessGL(activity, true);
+        }
+
+        EglCore getEglCore() {
+            return mEglCore;
+        }
+
+        ProcessGL getProcessGL() {
+            return mProcessGL;
+        }
+
+        // whether the programs and textures were created in this context
+        boolean isPrepared() {
+            return mPrepared;
+        }
+
+        void setPrepared() {
+            mPrepared = true;
+        }
+
+        void release() {
+            if(mEglCore != null) {
+                mEglCore.release();
+                mEglCore = null;
+            }
+            mProcessGL = null;
+        }
+    }
+
+    private static class Job {
+        int theme;
+        Script script;
+        ArrayList<ElementInfo> fileOrder;
+        int duration;
+        EncodeAndMux encoder;
+    }
+
+    private final MicroMovieActivity mActivity;
+    private final ArrayList<MediaInfo> mFileList;
+    private final ArrayList<Job> mJobs = new ArrayList<Job>();
+    private int mNextJob = 0;
+    private boolean mPause = false;
+    private boolean mCancelled = false;
+
+    /**
+     * Picks the scripts and media order of the themes.  Call on the UI thread, the order of a
+     * theme is kept by the activity.
+     */
+    public BatchExport(MicroMovieActivity activity, ArrayList<MediaInfo> fileList, int[] themes) {
+        mActivity = activity;
+        mFileList = fileList;
+
+        for(int i=0; i<themes.length; i++) {
+            Script script = activity.createScript(themes[i]);
+            if(script == null) {
+                Log.w(TAG, "no theme " + themes[i]);
+                continue;
+            }
+            Job job = new Job();
+            job.theme = themes[i];
+            job.script = script;
+            job.fileOrder = activity.getFileOrder(script, false);
+            mJobs.add(job);
+        }
+    }
+
+    /**
+     * Exports all themes and waits for them.  Interrupting the calling thread cancels the
+     * themes that are still running.
+     *
+     * @param progressDialog its maximum is set to the frames of all themes
+     */
+    public void export(final Listener listener, final ProgressDialog progressDialog)
+            throws InterruptedException {
+        // movies are as long as their music
+        int totalProgress = 0;
+        for(Job job : mJobs) {
+            try {
+                job.duration = AudioEncode.getMusicDuration(mActivity, job.script.getMusicId());
+            } catch(IOException e) {
+                Log.e(TAG, "no music for theme " + job.theme, e);
+            }
+            totalProgress += job.duration * EncodeAndMux.FRAME_RATE / 1000 + 100;
+        }
+        progressDialog.setMax(totalProgress);
+
+        int sessions = Math.min(mJobs.size(), MAX_SESSIONS);
+        List<EncoderSelector.Choice> candidates = new EncoderSelector(mActivity).getCandidates();
+        if(!candidates.isEmpty())
+            sessions = Math.min(sessions, Math.max(1, candidates.get(0).maxInstances));
+        Log.d(TAG, "exporting " + mJobs.size() + " themes in " + sessions + " sessions");
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i<sessions; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runSession(listener, progressDialog);
+                }
+            }, TAG + i));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            for(Thread thread : threads) {
+                thread.join();
+            }
+        } catch(InterruptedException e) {
+            // user cancels encoding
+            synchronized(this) {
+                mCancelled = true;
+            }
+            for(Thread thread : threads) {
+                thread.interrupt();
+            }
+            for(Thread thread : threads) {
+                joinQuietly(thread);
+            }
+            throw e;
+        }
+    }
+
+    private void runSession(Listener listener, ProgressDialog progressDialog) {
+        Session session = new Session(mActivity);
+        try {
+            Job job;
+            while((job = nextJob()) != null) {
+                if(job.duration <= 0) {
+                    listener.onThemeFailed(job.theme);
+                    continue;
+                }
+                exportTheme(session, job, listener, progressDialog);
+            }
+        } finally {
+            session.release();
+        }
+    }
+
+    private void exportTheme(Session session, final Job job, final Listener listener,
+            ProgressDialog progressDialog) {
+        EncodeAndMux encoder = new EncodeAndMux(mActivity, mFileList, job.fileOrder, job.script,
+                job.theme, job.duration, session);
+        synchronized(this) {
+            job.encoder = encoder;
+            if(mPause) encoder.pauseEncode();
+        }
+
+        final boolean[] done = new boolean[1];
+        encoder.testEncodeVideoToMp4(new ISaveCallback() {
+            @Override
+            public void onSaveDone(String saveUri, int frameTime, String posterPath) {
+                done[0] = true;
+                listener.onThemeDone(job.theme, saveUri, frameTime, posterPath);
+            }
+
+            @Override
+            public void onException() {
+                listener.onThemeFailed(job.theme);
+            }
+
+            @Override
+            public void onDDSSave() {
+            }
+
+            @Override
+            public void onInterrupted() {
+                listener.onThemeFailed(job.theme);
+            }
+        }, progressDialog);
+
+        synchronized(this) {
+            job.encoder = null;
+        }
+        if(done[0]) {
+            long separateMs = encoder.getSeparateExportMs();
+            Log.d(TAG, "theme " + job.theme + ": " + encoder.getExportMs() + " ms in batch, " +
+                    (separateMs > 0 ? separateMs + " ms separately" : "no separate export yet"));
+        }
+    }
+
+    private synchronized Job nextJob() {
+        if(mCancelled || mNextJob >= mJobs.size())
+            return null;
+        return mJobs.get(mNextJob++);
+    }
+
+    public synchronized void pauseEncode() {
+        mPause = true;
+        for(Job job : mJobs) {
+            if(job.encoder != null)
+                job.encoder.pauseEncode();
+        }
+    }
+
+    public synchronized void resumeEncode() {
+        mPause = false;
+        for(Job job : mJobs) {
+            if(job.encoder != null)
+                job.encoder.resumeEncode();
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while(true) {
+            try {
+                thread.join();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -123,7 +123,7 @@ public class DoingEncoder {
                 throw new RuntimeException("Failed to create input surface", ise);
             }
         }
-        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
         mInputSurface = new WindowSurface(mEglCore, surface, true);
         mInputSurface.makeCurrent();
         mEncoder.start();
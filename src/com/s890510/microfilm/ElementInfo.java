@@ -1,11 +1,9 @@
 package com.s890510.microfilm;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Random;
 
+import com.s890510.microfilm.draw.GeometryArena;
 import com.s890510.microfilm.script.Timer;
 import com.s890510.microfilm.script.effects.Effect;
 
@@ -13,10 +11,12 @@ public class ElementInfo {
     private static final String TAG = "ElementInfo";
     public int Type = -1;
     public int TextureId;
+    public TextureCache.Entry Texture;  //photo texture while on screen, see ProcessGL
     public int time;
 
     public int Videopart;   //Which part of video in this movie, 0 ,1, 2.....
     public Effect effect;
+    public RenderPlan.Op Op;    //what ProcessGL draws for the effect's shader
     public Timer timer;
     public int InfoId = -1;
     public boolean isVideo = false;
@@ -24,9 +24,13 @@ public class ElementInfo {
     public ArrayList<String> mLocation;
     public ArrayList<long[]> mFaceRect = new ArrayList<long[]>();
 
-    public FloatBuffer mVertices = null;
-    public FloatBuffer mSTextureCoords = null; //square
-    public FloatBuffer mCTextureCoords = null; //circle
+    //where the parts of the geometry start, in floats
+    public static final int GEOMETRY_VERTICES = 0;
+    public static final int GEOMETRY_SQUARE = 12;   //square texture coords
+    public static final int GEOMETRY_CIRCLE = 20;   //circle texture coords
+    private static final int GEOMETRY_SIZE = GEOMETRY_CIRCLE + 3 * 72 * 2;
+
+    private GeometryArena.Region mGeometry = null;
 
     public float scaleW = 1.0f;
     public float scaleH = 1.0f;
@@ -157,25 +161,16 @@ public class ElementInfo {
             textures[stCount++] = (float)(centerY+(textH/2)*Math.cos(angradNext));
         }
 
-        if(mVertices != null)
-            mVertices.clear();
-
-        if(mSTextureCoords != null)
-            mSTextureCoords.clear();
+        float[] data = new float[GEOMETRY_SIZE];
+        System.arraycopy(mVerticesData, 0, data, GEOMETRY_VERTICES, mVerticesData.length);
+        System.arraycopy(mTextCoordsData, 0, data, GEOMETRY_SQUARE, mTextCoordsData.length);
+        System.arraycopy(textures, 0, data, GEOMETRY_CIRCLE, textures.length);
 
-        mVertices = ByteBuffer.allocateDirect(
-                mVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mVertices.put(mVerticesData).position(0);
-
-        mSTextureCoords = ByteBuffer.allocateDirect(
-                mTextCoordsData.length * ProcessGL.FLOAT_SIZE_BYTES)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mSTextureCoords.put(mTextCoordsData).position(0);
+        mGeometry = processGL.getGeometryArena().put(mGeometry, data);
+    }
 
-        mCTextureCoords = ByteBuffer.allocateDirect(
-                textures.length * ProcessGL.FLOAT_SIZE_BYTES)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mCTextureCoords.put(textures).position(0);
+    //points a vertex attribute at a part of the geometry, GEOMETRY_*
+    public void setAttrib(GeometryArena arena, int handle, int size, int part) {
+        arena.setAttrib(handle, size, 0, mGeometry, part);
     }
 }
@@ -23,25 +23,32 @@ import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
 
 import android.app.ProgressDialog;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.net.Uri;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.s890510.microfilm.MicroMovieActivity.SaveCallback;
+import com.s890510.microfilm.MicroMovieActivity.ISaveCallback;
 import com.s890510.microfilm.gles.EglCore;
+import com.s890510.microfilm.gles.FrameBuffer;
 import com.s890510.microfilm.gles.WindowSurface;
 import com.s890510.microfilm.script.Carnival;
 import com.s890510.microfilm.script.City;
@@ -52,6 +59,7 @@ import com.s890510.microfilm.script.Lover;
 import com.s890510.microfilm.script.Memory;
 import com.s890510.microfilm.script.Script;
 import com.s890510.microfilm.script.Sports;
+import com.s890510.microfilm.script.effects.Effect;
 
 /**
  * Generate an MP4 file using OpenGL ES drawing commands.  Demonstrates the use of MediaMuxer
@@ -63,7 +71,8 @@ import com.s890510.microfilm.script.Sports;
  * (This was derived from bits and pieces of CTS tests, and is packaged as such, but is not
  * currently part of CTS.)
  */
-public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
+public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener,
+        EncodeDrainThread.SampleListener {
     private static final String TAG = "EncodeAndMuxTest";
     private static final boolean VERBOSE = false;           // lots of logging
 
@@ -72,9 +81,7 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     public static final String OUTPUT_DIR = Environment.getExternalStorageDirectory().toString()+"/Gallery/MicroFilm/";
 
     // parameters for the encoder
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 50;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;          // 1 second between I-frames
+    static final int FRAME_RATE = 50;                       // 30fps
     //public static final int TOTAL_FRAMES = 900;  //30 seconds stand for 900 frames
     public int TOTAL_FRAMES;
 
@@ -83,41 +90,144 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     private int mHeight = -1;
     // bit rate, in bits per second
     private int mBitRate = -1;
+    // seconds between regular I-frames; cuts may get extra ones, see EncodePlan
+    private int mIFrameInterval = 5;
+    private EncodePlan mEncodePlan;
+    // HEVC needs less bitrate than AVC for the same picture
+    private static final float HEVC_BIT_RATE_FACTOR = 0.7f;
+
+    // encoders to try, best first, and the one in use
+    private EncoderSelector mEncoderSelector;
+    private List<EncoderSelector.Choice> mEncoderCandidates;
+    private EncoderSelector.Choice mEncoderChoice;
 
     // encoder / muxer state
     private MediaCodec mEncoder;
     private EglCore mEglCore;
     private WindowSurface mInputSurface;
-    private MediaMuxer mMuxer;
+    private MovieMuxer mMuxer;
     private int mVideoTrackIndex;
     private boolean mMuxerStarted;
 
     // allocate one of these up front so we don't need to do it every time
     private MediaCodec.BufferInfo mBufferInfo;
 
+    // drain the encoder on its own thread instead of between frames
+    private boolean mAsyncDrain = true;
+    private EncodeDrainThread mDrainThread;
+
+    // skip drawing frames that look like the previous one; needs an offscreen frame to
+    // show again, since the surface's back buffer is gone after swapBuffers()
+    private boolean mElideStaticFrames = true;
+    private FrameBuffer mFrameBuffer;
+    private long mLastSignature = ProcessGL.SIGNATURE_NONE;
+    private int mElidedFrames = 0;
+
+    // variable frame rate: frames are sent only when the scene changed, at least
+    // mMinFrameIntervalNs and at most mMaxFrameIntervalNs apart
+    private boolean mVariableFrameRate = false;
+    private long mMinFrameIntervalNs = 1000000000L / FRAME_RATE;
+    private long mMaxFrameIntervalNs = 250000000L;
+    private long mLastSendTime = 0;
+    private int mDroppedFrames = 0;
+
+    // back off when the device heats up or frames slow down; see ExportScheduler
+    private boolean mThrottle = true;
+    private ExportScheduler mScheduler;
+    // the offscreen frame drawn last, and the half-size one drawn into when throttled
+    private FrameBuffer mLastFrame;
+    private FrameBuffer mReducedFrameBuffer;
+    private boolean mFrameBufferFailed = false;
+
     private ProcessGL mProcessGL;
     private Context mContext;
     private MicroMovieActivity mActivity;
     private String mOutputPath;
-    private String mVideoPath;
+    private AudioEncode mAudioEncode;
+    private int mDuration;
     private MediaFormat mVideoFormat;
     private ArrayList<MediaInfo> mFilesList;
     private ArrayList<ElementInfo> mFileOrder = new ArrayList<ElementInfo>();
     private Script mScript;
     private int mScriptSelect;
     
+    // the theme's poster, captured while encoding
+    private PosterFrame mPosterFrame;
+    private int mPosterTimeUs;
+
     private boolean mPause = false;
     private Object mLock = new Object();
     private boolean mIsCancel = false;
 
+    // effects replayed, without being encoded, before a segment's first effect; enough to
+    // refill the five-entry texture window in ProcessGL
+    static final int WARMUP_EFFECTS = 5;
+
+    // split the export into segments encoded in parallel, when the device allows it
+    private boolean mParallelSegments = true;
+    private SegmentedExport mSegmentedExport;
+
+    // write a fragmented MP4 that can be played while the export runs
+    private boolean mFragmentedOutput = false;
+
+    // keep finished segments of a long export, so an interrupted one can continue
+    private boolean mResumable = false;
+    private static final String CHECKPOINT_DIR = ".checkpoint";
+    // an export is checkpointed once an attempt of the same plan lost this much work
+    private static final int CHECKPOINT_AFTER_SECONDS = 10;
+    // where a serial export records how far it got, when it is resumable
+    private ExportJournal mProgressJournal;
+
+    // keep encoded segments, so exporting again after a small edit reuses the unchanged ones
+    private boolean mSegmentCacheEnabled = true;
+    private static final String SEGMENT_CACHE_DIR = "segments";
+    private static final long SEGMENT_CACHE_BYTES = 200L * 1024 * 1024;
+    // points of an effect's animation that go into its cache key
+    private static final int EFFECT_SAMPLES = 4;
+
+    // extra sizes encoded from the same rendered frames
+    private ArrayList<OutputProfile> mOutputProfiles = new ArrayList<OutputProfile>();
+    private ArrayList<SecondaryOutput> mSecondaryOutputs = new ArrayList<SecondaryOutput>();
+
+    // set when this export runs in a BatchExport's EGL session, with its ProcessGL
+    private BatchExport.Session mSession;
+    // per-frame timings, shared with the segments; dumped to STATS_DIR after the export
+    private EncodeStats mStats;
+    private static final String STATS_DIR = "encode-stats";
+
+    // wall time of the export, for comparing batch and separate runs
+    private long mExportMs;
+    private static final String EXPORT_TIME_PREFIX = "export-ms-";
+
+    // segment state, only used by the instances SegmentedExport creates
+    private int mFirstEffect = 0;
+    private int mLastEffect = Integer.MAX_VALUE;
+    private long mSegmentStartUs = 0;
+    private float[][] mCropCenters;
+
     public EncodeAndMux(MicroMovieActivity activity, ArrayList<MediaInfo> fileList,
             ArrayList<ElementInfo> fileOrder, Script script, int scriptSelect) {
+        this(activity, fileList, fileOrder, script, scriptSelect, activity.getDuration(), null);
+    }
+
+    /**
+     * Creates an export of a theme that isn't the one playing, in a {@link BatchExport}
+     * session.
+     *
+     * @param duration movie length in milliseconds, the length of the theme's music
+     * @param session EGL session the export draws in, or null for one of its own
+     */
+    EncodeAndMux(MicroMovieActivity activity, ArrayList<MediaInfo> fileList,
+            ArrayList<ElementInfo> fileOrder, Script script, int scriptSelect, int duration,
+            BatchExport.Session session) {
         mContext = activity.getApplicationContext();
         mActivity = activity;
         
-        TOTAL_FRAMES = mActivity.getDuration() * FRAME_RATE / 1000;
+        mDuration = duration;
+        TOTAL_FRAMES = mDuration * FRAME_RATE / 1000;
         
-        mProcessGL = new ProcessGL(mActivity, true);
+        mSession = session;
+        mProcessGL = session != null ? session.getProcessGL() : new ProcessGL(mActivity, true);
         
         mFilesList = fileList;
         mProcessGL.setMediaInfo(fileList);
@@ -126,16 +236,157 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         mScriptSelect = scriptSelect;
     } 
 
+    /**
+     * Creates an encoder for effects first..last of parent's movie.  The segment is written,
+     * without audio, to outputPath.
+     */
+    EncodeAndMux(EncodeAndMux parent, int first, int last, String outputPath,
+            float[][] cropCenters) {
+        mContext = parent.mContext;
+        mActivity = parent.mActivity;
+
+        mDuration = parent.mDuration;
+        TOTAL_FRAMES = parent.TOTAL_FRAMES;
+        mWidth = parent.mWidth;
+        mHeight = parent.mHeight;
+        mBitRate = parent.mBitRate;
+        mIFrameInterval = parent.mIFrameInterval;
+        mEncodePlan = parent.mEncodePlan;
+        mEncoderSelector = parent.mEncoderSelector;
+        mEncoderCandidates = parent.mEncoderCandidates;
+        mPosterFrame = parent.mPosterFrame;
+        mStats = parent.mStats;
+        mAsyncDrain = parent.mAsyncDrain;
+        mElideStaticFrames = parent.mElideStaticFrames;
+        mThrottle = parent.mThrottle;
+        mVariableFrameRate = parent.mVariableFrameRate;
+        mMinFrameIntervalNs = parent.mMinFrameIntervalNs;
+        mMaxFrameIntervalNs = parent.mMaxFrameIntervalNs;
+
+        mProcessGL = new ProcessGL(mActivity, true);
+
+        mFilesList = parent.mFilesList;
+        mProcessGL.setMediaInfo(mFilesList);
+        mFileOrder = parent.mFileOrder;
+        mScript = parent.mScript;
+        mScriptSelect = parent.mScriptSelect;
+
+        mFirstEffect = first;
+        mLastEffect = last;
+        mOutputPath = outputPath;
+        mCropCenters = cropCenters;
+    }
+
+    /**
+     * Selects whether long movies are split at effect boundaries and encoded by several
+     * encoder instances at once.  Falls back to a serial export when the device has a
+     * single encoder instance or the movie is too short to be worth it.
+     */
+    public void setParallelSegments(boolean parallel) {
+        mParallelSegments = parallel;
+    }
+
+    /**
+     * Selects whether the movie is written as a fragmented MP4, one fragment per GOP, that
+     * can be played and shared while the export is still running.  Fragmented exports are
+     * H.264 and not split into parallel segments, whose output only exists at the end.
+     */
+    public void setFragmentedOutput(boolean fragmented) {
+        mFragmentedOutput = fragmented;
+    }
+
+    /**
+     * Selects whether a long export can be resumed.  Segments cost an encoder restart and a
+     * forced IDR frame each, so a resumable export runs as usual, and a serial one records
+     * how far it got.  Once an attempt of the same theme and media was interrupted after
+     * {@link #CHECKPOINT_AFTER_SECONDS}, the next one is encoded as checkpointed segments; if
+     * that is interrupted too, the one after only encodes the segments that are missing.
+     * Fragmented exports and exports with extra outputs are never checkpointed.
+     */
+    public void setResumableExport(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    /**
+     * Selects whether encoded segments are kept in the app's cache.  Exporting again after
+     * removing or replacing a photo then only renders the parts of the movie that changed,
+     * and copies the rest from the earlier export.  Only applies to exports that are split
+     * into segments.
+     */
+    public void setSegmentCache(boolean enable) {
+        mSegmentCacheEnabled = enable;
+    }
+
+    /**
+     * Adds another copy of the movie, e.g. a small one for sharing, written next to the
+     * main output.  The movie is still rendered once; every frame is scaled into each
+     * output's encoder.  Exports with extra outputs are not split into parallel segments.
+     */
+    public void addOutput(OutputProfile profile) {
+        mOutputProfiles.add(profile);
+    }
+
+    /**
+     * Selects whether frames identical to the previous one are re-submitted instead of being
+     * drawn again.
+     */
+    public void setElideStaticFrames(boolean elide) {
+        mElideStaticFrames = elide;
+    }
+
+    /**
+     * Selects variable frame rate output.  Frames still follow the script timeline at
+     * FRAME_RATE, but one is only sent when the scene changed and at least minIntervalMs
+     * passed since the last one, or when maxIntervalMs passed regardless.
+     */
+    public void setVariableFrameRate(boolean enable, int minIntervalMs, int maxIntervalMs) {
+        mVariableFrameRate = enable;
+        mMinFrameIntervalNs = Math.max(minIntervalMs, 1000 / FRAME_RATE) * 1000000L;
+        mMaxFrameIntervalNs = Math.max(maxIntervalMs, minIntervalMs) * 1000000L;
+    }
+
+    /**
+     * Returns how many frames variable frame rate mode did not send.
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns how many frames were re-submitted without drawing.
+     */
+    public int getElidedFrames() {
+        return mElidedFrames;
+    }
+
+    /**
+     * Selects how encoder output is collected.  When async, a dedicated thread feeds the
+     * muxer while the render loop keeps drawing; otherwise the output is drained inline
+     * after every frame, as before.
+     */
+    public void setAsyncDrain(boolean async) {
+        mAsyncDrain = async;
+    }
+
+    /**
+     * Selects whether the export backs off when the device throttles: it then elides static
+     * frames, draws at a lower resolution and finally paces its frames, to keep a steady
+     * frame rate instead of collapsing.
+     */
+    public void setThermalThrottling(boolean throttle) {
+        mThrottle = throttle;
+    }
+
     /**
      * Tests encoding of AVC video from a Surface.  The output is saved as an MP4 file.
      */
-    public void testEncodeVideoToMp4(SaveCallback callback, final ProgressDialog progressDialog) {
+    public void testEncodeVideoToMp4(ISaveCallback callback, final ProgressDialog progressDialog) {
         // QVGA at 2Mbps
         mWidth = MicroMovieActivity.mVisioWidth;
         mHeight = MicroMovieActivity.mVisioHeight;
         //mBitRate = 7741440; // 1280 * 720 * 30 * 4(high motion, low motion(5fps):1) * 0.07
         //mBitRate = (int)(mWidth * mHeight * 30 * 4 * 0.15);
-        mBitRate = 20000000;
+        mBitRate = 20000000; // upper bound, planEncode() usually picks less
         
         //callback.onSaveDone("file://"+Environment.getExternalStorageDirectory().toString()+"/test.mp4");
         //return;
@@ -149,98 +400,39 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         }
         
         boolean isException = false;
+        long exportStart = System.nanoTime();
 
-        try {          
-            prepareEncoder();
-            Log.e(TAG, "prepareEncoder");
-            OpenglPrepare();
-            Log.e(TAG, "OpenglPrepare");
-            
-            long timer = 0;
-            //long interval = (NUM_FRAMES/FRAME_RATE)*1000;
-            
-            ElementInfo eInfo;
-            int totalFrame = 0;
-            
-            int processNum = mScript.geteffectsize();
-            
-
-            for(int i=0; i< processNum && totalFrame < TOTAL_FRAMES && !Thread.currentThread().isInterrupted(); i++) {  
-            	int numFrame;
-            	long interval;
-               
+        try {
+            prepareOutputPath();
+            mPosterTimeUs = getFrameTimeByScript(mScriptSelect);
+            mPosterFrame = new PosterFrame(mPosterTimeUs, FRAME_RATE,
+                    PosterFrame.getPosterPath(mOutputPath));
+            planEncode();
+            mStats = new EncodeStats(TOTAL_FRAMES);
+            mEncoderSelector = new EncoderSelector(mContext);
+            mEncoderCandidates = getEncoderCandidates();
 
-            	eInfo = mFileOrder.get(i);
-                
-                if(eInfo.Type == MediaInfo.MEDIA_TYPE_IMAGE) {
-                	mProcessGL.changeBitmap(eInfo, true);
+            boolean done = false;
+            // segments have EGL sessions of their own, a batch keeps its one
+            boolean canSplit = !mFragmentedOutput && mOutputProfiles.isEmpty() && mSession == null;
+            if(mResumable && canSplit) {
+                ExportJournal journal = openJournal();
+                if(journal.getProgressFrames() >= CHECKPOINT_AFTER_SECONDS * FRAME_RATE ||
+                        !journal.getRanges().isEmpty()) {
+                    done = encodeSegmented(progressDialog, journal);
+                    if(!done) progressDialog.setProgress(0);
                 }
-
-         		if(eInfo.time == 0) // special case: sleep time = 0
-         			mProcessGL.setSleepZero(eInfo.effect.getDuration());
-         		
-         		if(i == processNum - 1){ //slogan
-         			numFrame = TOTAL_FRAMES - totalFrame;
-         		}else{
-	            	numFrame = eInfo.time*FRAME_RATE/1000;
-	            	if(totalFrame+numFrame > TOTAL_FRAMES){
-	            		numFrame = TOTAL_FRAMES - totalFrame;
-	            	}
-            	}
-
-            	totalFrame+=numFrame;
-            	
-            	interval = (numFrame*1000)/FRAME_RATE;
-
-            	int increment = 0;
-                for(int j=0; j<numFrame && !Thread.currentThread().isInterrupted(); j++){  
-                	
-                	// Wait when cancel dialog appears
-                	synchronized(mLock){
-	                	if(mPause){
-	                		try{
-	                			mLock.wait();
-	                		}catch(InterruptedException e){
-	                			if(mPause) // user cancels encoding
-	                				throw e;
-	                		}
-	                	}
-                	}
-                	if(j % 30 == 0 && j != 0){
-                		progressDialog.incrementProgressBy(30);
-                		increment += 30;
-                	}
-
-                    // Generate a new frame of input.
-                    generateSurfaceFrame(j);
-
-                    // Feed any pending encoder output into the muxer.
-                    if(j + 1 < numFrame) drainEncoder(false);
-                	
-                    long elapseTime = computePresentationTimeMsec(j);                 	
-                    
-                    if(elapseTime <= interval){
-                    	long presentationTime = timer + elapseTime*1000000;
-	                    //mInputSurface.setPresentationTime(computePresentationTimeNsec(frameNum));
-                    	mInputSurface.setPresentationTime(presentationTime);
-                    	mProcessGL.setTimerForFilter(presentationTime);
-
-	                    mInputSurface.swapBuffers();
-                    }else{
-                    	break;
-                    }
-                    
-                    //frameNum++;
+                if(!done) {
+                    mProgressJournal = journal;
                 }
-                
-                progressDialog.incrementProgressBy(numFrame - increment);
-                
-                //timer = computePresentationTimeNsec(frameNum);
-                timer = timer + (interval*1000000);              
             }
-            
-            // send end-of-stream to encoder, and drain remaining output
-            drainEncoder(true);
+            if(!done && mParallelSegments && canSplit) {
+                done = encodeSegmented(progressDialog, null);
+                if(!done) progressDialog.setProgress(0);
+            }
+            if(!done) {
+                encodeSerial(progressDialog);
+            }
         } catch(Exception e){
         	if(e instanceof InterruptedException){ // user cancels encoding
         		mIsCancel = true;
@@ -252,40 +444,23 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         } finally {
             // release encoder, muxer, and input Surface
             releaseEncoder();
+            saveStats(isException ? "failed" :
+                    (mIsCancel || Thread.currentThread().isInterrupted() ? "cancelled" : "done"));
             
             if(Thread.currentThread().isInterrupted() || isException || mIsCancel){
             	File file = new File(mOutputPath);
             	if(file!=null && file.exists()){
             		file.delete();
             	}
+            	if(mPosterFrame != null)
+            		mPosterFrame.delete();
+            	for(SecondaryOutput output : mSecondaryOutputs)
+            		output.delete();
             	if(isException)
             		callback.onException();
             	else callback.onInterrupted();
             	return;
             }else{
-            	boolean result = true;
-
-            	AudioMux mMux = null;
-    			try{				
-    				mMux = new AudioMux(OUTPUT_DIR, progressDialog);
-    				
-    				//Here need to give audio file path to EncodeMux
-    				mMux.setAudio(mContext, mScript.getMusicId(), MusicManager.getFileName(mScript.getMusicId()));
-    				mMux.setVideo(mVideoPath);
-    				mMux.doExport(mOutputPath);
-    			} catch(Exception e) {
-    				result = false;
-    			} finally {
-    				if(mMux != null)
-    					mMux.release();
-    				result = true;
-    			}
-                
-                File oldfile = new File(mVideoPath);
-                if(oldfile.exists()) {
-                    oldfile.delete();
-                }
-                
             	// Wait when cancel dialog appears
             	synchronized(mLock){
                 	if(mPause){
@@ -303,14 +478,23 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
                     if(outputfile.exists()) {
                     	outputfile.delete();
                     }
+                    mPosterFrame.delete();
+                    for(SecondaryOutput output : mSecondaryOutputs)
+                    	output.delete();
                     callback.onInterrupted();
                 }else{
-	                if(result){
-		                exportToGallery(mOutputPath);
-		                callback.onSaveDone("file://"+ mOutputPath, getFrameTimeByScript(mScriptSelect));
-	                }else{
-	                	callback.onException();
+	                exportToGallery(mOutputPath);
+	                for(SecondaryOutput output : mSecondaryOutputs)
+	                	exportToGallery(output.getPath());
+	                String posterPath = mPosterFrame.getPath();
+	                if(!mPosterFrame.await()) {
+	                	Log.w(TAG, "no poster frame at " + mPosterTimeUs + " us");
+	                	posterPath = null;
 	                }
+	                mExportMs = (System.nanoTime() - exportStart) / 1000000;
+	                if(mSession == null)
+	                	rememberExportTime();
+	                callback.onSaveDone("file://"+ mOutputPath, mPosterTimeUs, posterPath);
                 }
             }
             clearUselessOutputFiles();
@@ -321,6 +505,651 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         // and examine the output with glReadPixels.
     }
     
+    /**
+     * Renders the whole script on this thread and muxes it, with the music, into mOutputPath.
+     */
+    private void encodeSerial(ProgressDialog progressDialog) throws Exception {
+        prepareEncoder();
+        Log.e(TAG, "prepareEncoder");
+        OpenglPrepare();
+        Log.e(TAG, "OpenglPrepare");
+        prepareFrameBuffer();
+        prepareScheduler();
+        prepareSecondaryOutputs();
+
+        // the music is muxed into the same file; its track is added with the video's
+        mAudioEncode = new AudioEncode();
+        mAudioEncode.setAudioSource(mContext, mScript.getMusicId());
+
+        if(mAsyncDrain) {
+            mDrainThread = new EncodeDrainThread(mEncoder, this);
+            mDrainThread.setStats(mStats);
+            mDrainThread.start();
+        }
+
+        long encodeStart = System.nanoTime();
+
+        int totalFrame = encodeRange(0, Integer.MAX_VALUE, progressDialog);
+        finishEncoder();
+        if(mProgressJournal != null) mProgressJournal.clear();
+
+        // video is complete, copy the music (trimmed to the movie length) behind it
+        mAudioEncode.doEncode(mContext, mMuxer);
+        for(SecondaryOutput output : mSecondaryOutputs)
+            output.finish();
+        progressDialog.incrementProgressBy(100);
+
+        long encodeMsec = (System.nanoTime() - encodeStart) / 1000000;
+        Log.d(TAG, "encoded " + totalFrame + " frames in " + encodeMsec + " ms (" +
+                (encodeMsec > 0 ? totalFrame * 1000 / encodeMsec : 0) + " fps), drain: " +
+                (mAsyncDrain ? "async" : "inline") + ", elided " + mElidedFrames + ", dropped " +
+                mDroppedFrames + " frames");
+    }
+
+    /**
+     * Renders the script as parallel segments and stitches them, with the music, into
+     * mOutputPath.
+     *
+     * @param journal records the segments as they finish, or null for a one-off export
+     * @return false if the movie can't be split, or the segments can't be concatenated; the
+     *     caller should fall back to {@link #encodeSerial}
+     */
+    private boolean encodeSegmented(ProgressDialog progressDialog, ExportJournal journal)
+            throws Exception {
+        if(mEncoderCandidates.isEmpty()) {
+            return false;
+        }
+        SegmentedExport export = new SegmentedExport(this, mEncoderCandidates.get(0).maxInstances,
+                journal, openSegmentCache());
+        if(!export.plan(getFramePlan(), FRAME_RATE)) {
+            return false;
+        }
+
+        synchronized(mLock) {
+            mSegmentedExport = export;
+        }
+        try {
+            long encodeStart = System.nanoTime();
+            export.encode(progressDialog);
+
+            MediaFormat format = export.getVideoFormat();
+            if(format == null) {
+                Log.w(TAG, "segments differ in codec config, exporting serially");
+                if(journal != null) journal.clear();
+                return false;
+            }
+
+            mMuxer = createMuxer();
+            mAudioEncode = new AudioEncode();
+            mAudioEncode.setAudioSource(mContext, mScript.getMusicId());
+
+            // same path as a serial export from here on
+            onOutputFormatChanged(format);
+            export.writeSamples(this);
+
+            mAudioEncode.doEncode(mContext, mMuxer);
+            progressDialog.incrementProgressBy(100);
+            if(journal != null) journal.clear();
+
+            mElidedFrames = export.getElidedFrames();
+            mDroppedFrames = export.getDroppedFrames();
+            Log.d(TAG, "encoded " + export.getSegmentCount() + " segments in " +
+                    (System.nanoTime() - encodeStart) / 1000000 + " ms, elided " +
+                    mElidedFrames + ", dropped " + mDroppedFrames + " frames");
+            return true;
+        } finally {
+            synchronized(mLock) {
+                mSegmentedExport = null;
+            }
+            export.release();
+        }
+    }
+
+    private ExportJournal openJournal() {
+        ExportJournal journal = new ExportJournal(new File(OUTPUT_DIR, CHECKPOINT_DIR));
+        journal.open(ExportJournal.hashPlan(describeRenderPlan()));
+        return journal;
+    }
+
+    // everything the encoded segments depend on; a journal only resumes the same plan
+    private String describeRenderPlan() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mScriptSelect).append(',').append(mWidth).append('x').append(mHeight);
+        sb.append(',').append(mBitRate).append(',').append(mIFrameInterval);
+        sb.append(',').append(FRAME_RATE).append(',').append(TOTAL_FRAMES);
+        sb.append(',').append(mElideStaticFrames).append(',').append(mVariableFrameRate);
+        sb.append(',').append(mMinFrameIntervalNs).append(',').append(mMaxFrameIntervalNs);
+        if(!mEncoderCandidates.isEmpty())
+            sb.append(',').append(mEncoderCandidates.get(0));
+        int[] framePlan = getFramePlan();
+        for(int i=0; i<framePlan.length; i++)
+            sb.append(',').append(framePlan[i]);
+        for(ElementInfo eInfo : mFileOrder) {
+            sb.append(';').append(eInfo.Type).append(',').append(eInfo.InfoId);
+            sb.append(',').append(eInfo.time);
+            if(eInfo.InfoId >= 0 && eInfo.InfoId < mFilesList.size())
+                sb.append(',').append(mFilesList.get(eInfo.InfoId).getPath());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the timings of the running or last export, or null before the first one.
+     * {@link EncodeStats#getFps} and {@link EncodeStats#getEtaMs} can be polled while the
+     * export runs.
+     */
+    public EncodeStats getStats() {
+        return mStats;
+    }
+
+    // dumps the timings next to the app's files, named after the output
+    private void saveStats(String result) {
+        if(mStats == null) return;
+        mStats.finish();
+        mStats.put("result", result);
+        mStats.put("device", Build.MODEL);
+        mStats.put("build", Build.FINGERPRINT);
+        mStats.put("sdk", Build.VERSION.SDK_INT);
+        mStats.put("theme", mScriptSelect);
+        mStats.put("size", mWidth + "x" + mHeight);
+        mStats.put("bitRate", mBitRate);
+        // a split export's encoders were picked by its segments, from the same candidates
+        EncoderSelector.Choice encoder = mEncoderChoice;
+        if(encoder == null && mEncoderCandidates != null && !mEncoderCandidates.isEmpty())
+            encoder = mEncoderCandidates.get(0);
+        mStats.put("encoder", String.valueOf(encoder));
+        mStats.put("asyncDrain", mAsyncDrain);
+        mStats.put("elidedFrames", mElidedFrames);
+        mStats.put("droppedFrames", mDroppedFrames);
+        TextureCache textures = mProcessGL.getTextureCache();
+        mStats.put("textureHits", textures.getHits());
+        mStats.put("textureMisses", textures.getMisses());
+        mStats.put("textureUploads", textures.getUploads());
+        mStats.put("textureEvictions", textures.getEvictions());
+
+        File dir = mContext.getExternalFilesDir(STATS_DIR);
+        if(dir == null) dir = new File(mContext.getFilesDir(), STATS_DIR);
+        String name = mOutputPath != null ? new File(mOutputPath).getName() : "export.mp4";
+        mStats.save(new File(dir, name + ".json"));
+    }
+
+    /**
+     * Returns how long the export took, in milliseconds, or 0 if it didn't finish.
+     */
+    long getExportMs() {
+        return mExportMs;
+    }
+
+    /**
+     * Returns how long the last export of this theme at this length and size took on its
+     * own, in milliseconds, or 0 if there was none.
+     */
+    long getSeparateExportMs() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return prefs.getLong(getExportTimeKey(), 0);
+    }
+
+    private void rememberExportTime() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putLong(getExportTimeKey(), mExportMs).apply();
+    }
+
+    private String getExportTimeKey() {
+        return EXPORT_TIME_PREFIX + mScriptSelect + "-" + TOTAL_FRAMES + "-" + mWidth + "x" + mHeight;
+    }
+
+    private SegmentCache openSegmentCache() {
+        if(!mSegmentCacheEnabled) return null;
+        File dir = mContext.getExternalCacheDir();
+        if(dir == null) dir = mContext.getCacheDir();
+        return new SegmentCache(new File(dir, SEGMENT_CACHE_DIR), SEGMENT_CACHE_BYTES);
+    }
+
+    // everything an encoded segment depends on besides its effects
+    String describeSegmentSettings() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mScriptSelect).append(',').append(mScript.getFilterId());
+        sb.append(',').append(mWidth).append('x').append(mHeight);
+        sb.append(',').append(mBitRate).append(',').append(mIFrameInterval);
+        sb.append(',').append(FRAME_RATE);
+        sb.append(',').append(mElideStaticFrames).append(',').append(mVariableFrameRate);
+        sb.append(',').append(mMinFrameIntervalNs).append(',').append(mMaxFrameIntervalNs);
+        if(!mEncoderCandidates.isEmpty())
+            sb.append(',').append(mEncoderCandidates.get(0));
+        return sb.toString();
+    }
+
+    /**
+     * Describes what every effect of the script draws: its animation, sampled at a few
+     * points, and the media and text it shows.  Crop centers are not included, they are
+     * only known once a segment picked them.
+     */
+    String[] describeEffects(int[] framePlan) {
+        String[] result = new String[framePlan.length];
+        for(int i=0; i<framePlan.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(framePlan[i]);
+            Effect effect = mScript.getEffect(i);
+            if(effect != null) {
+                sb.append(',').append(effect.getClass().getName());
+                sb.append(',').append(effect.getEffectType());
+                sb.append(',').append(effect.getDuration()).append(',').append(effect.getSleep());
+                sb.append(',').append(effect.getShader()).append(',').append(effect.getString());
+                for(int k=0; k<=EFFECT_SAMPLES; k++) {
+                    long elapse = (long) effect.getDuration() * k / EFFECT_SAMPLES;
+                    sb.append(',').append(Arrays.toString(effect.getMVPMatrixByElapse(elapse)));
+                    sb.append(',').append(effect.getAlpha(elapse));
+                    sb.append(',').append(effect.getMaskType(elapse));
+                }
+            }
+            if(i < mFileOrder.size()) {
+                ElementInfo eInfo = mFileOrder.get(i);
+                sb.append(';').append(eInfo.Type).append(',').append(eInfo.time);
+                sb.append(',').append(getMediaPath(i));
+                sb.append(',').append(eInfo.mDate).append(',').append(eInfo.mLocation);
+            }
+            result[i] = sb.toString();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the file shown by effect i, or null.
+     */
+    String getMediaPath(int i) {
+        if(i >= mFileOrder.size()) return null;
+        int infoId = mFileOrder.get(i).InfoId;
+        for(MediaInfo info : mFilesList) {
+            if(info.CountId == infoId) return info.getPath();
+        }
+        return null;
+    }
+
+    boolean isImageEffect(int i) {
+        return i < mFileOrder.size() && mFileOrder.get(i).Type == MediaInfo.MEDIA_TYPE_IMAGE;
+    }
+
+    /**
+     * Returns the presentation time, in microseconds, effect i starts at; the same time
+     * {@link #getSegmentStartUs} reports for a segment starting there.
+     */
+    static long getEffectStartUs(int[] framePlan, int i) {
+        long startUs = 0;
+        for(int j=0; j<i && j<framePlan.length; j++)
+            startUs += (framePlan[j] * 1000L / FRAME_RATE) * 1000;
+        return startUs;
+    }
+
+    /**
+     * Returns whether the poster is captured between startUs and endUs.
+     */
+    boolean hasPosterIn(long startUs, long endUs) {
+        return mPosterTimeUs >= startUs && mPosterTimeUs < endUs;
+    }
+
+    /**
+     * Encodes effects mFirstEffect..mLastEffect, video only, into mOutputPath.  Called by
+     * {@link SegmentedExport} on its worker thread, which owns the EGL context and encoder.
+     */
+    void encodeSegment(ProgressDialog progressDialog) throws Exception {
+        try {
+            prepareEncoder();
+            OpenglPrepare();
+            prepareFrameBuffer();
+            prepareScheduler();
+
+            if(mAsyncDrain) {
+                mDrainThread = new EncodeDrainThread(mEncoder, this);
+                mDrainThread.setStats(mStats);
+                mDrainThread.start();
+            }
+
+            encodeRange(mFirstEffect, mLastEffect, progressDialog);
+            finishEncoder();
+        } finally {
+            releaseEncoder();
+        }
+    }
+
+    /**
+     * Returns the presentation time, in microseconds, of the first frame this segment encoded.
+     */
+    long getSegmentStartUs() {
+        return mSegmentStartUs;
+    }
+
+    /**
+     * Returns the number of frames each effect of the script is shown for.
+     */
+    int[] getFramePlan() {
+        int processNum = mScript.geteffectsize();
+        int[] plan = new int[processNum];
+        int totalFrame = 0;
+        for(int i=0; i<processNum && totalFrame < TOTAL_FRAMES; i++) {
+            plan[i] = getEffectFrames(i, processNum, totalFrame);
+            totalFrame += plan[i];
+        }
+        return plan;
+    }
+
+    // the timeline of the export, with the effects lasting their whole frames, as in encodeRange
+    private FrameTimeline compileTimeline() {
+        int[] plan = getFramePlan();
+        int[] lengthMs = new int[plan.length];
+        for(int i=0; i<plan.length; i++)
+            lengthMs[i] = (plan[i]*1000)/FRAME_RATE;
+        return FrameTimeline.compile(mFileOrder, lengthMs);
+    }
+
+    // frames for effect i, given the frames used so far; the last one (slogan) takes the rest
+    private int getEffectFrames(int i, int processNum, int totalFrame) {
+        if(i == processNum - 1){ //slogan
+            return TOTAL_FRAMES - totalFrame;
+        }
+
+        int numFrame = mFileOrder.get(i).time*FRAME_RATE/1000;
+        if(totalFrame+numFrame > TOTAL_FRAMES){
+            numFrame = TOTAL_FRAMES - totalFrame;
+        }
+        return numFrame;
+    }
+
+    /**
+     * Renders and submits the frames of effects first..last.  The effects just before first
+     * are replayed without being submitted, so the texture window in ProcessGL ends up as it
+     * would be in a serial export.
+     *
+     * @return the number of frames submitted
+     */
+    private int encodeRange(int first, int last, ProgressDialog progressDialog)
+            throws InterruptedException {
+        long timer = 0;
+        //long interval = (NUM_FRAMES/FRAME_RATE)*1000;
+        
+        ElementInfo eInfo;
+        int totalFrame = 0;
+        int encodedFrame = 0;
+        
+        int processNum = mScript.geteffectsize();
+        mProcessGL.setTimeline(compileTimeline());
+
+        for(int i=0; i< processNum && i <= last && totalFrame < TOTAL_FRAMES && !Thread.currentThread().isInterrupted(); i++) {  
+        	int numFrame;
+        	long interval;
+
+        	eInfo = mFileOrder.get(i);
+        	numFrame = getEffectFrames(i, processNum, totalFrame);
+        	totalFrame+=numFrame;
+        	
+        	interval = (numFrame*1000)/FRAME_RATE;
+
+        	if(i < first - WARMUP_EFFECTS) {
+        		timer = timer + (interval*1000000);
+        		continue;
+        	}
+            
+            if(eInfo.Type == MediaInfo.MEDIA_TYPE_IMAGE) {
+            	mProcessGL.changeBitmap(eInfo, true);
+            }
+
+     		mProcessGL.setTimelineStep(i);
+
+     		if(i < first) {
+     			// warm-up: the first frame of an effect uploads its textures
+     			if(numFrame > 0) {
+     				mProcessGL.doDraw(0);
+     				mProcessGL.setTimerForFilter(timer);
+     			}
+     			timer = timer + (interval*1000000);
+     			continue;
+     		}
+     		if(i == first) {
+     			mSegmentStartUs = timer / 1000;
+     		}
+
+        	int increment = 0;
+            for(int j=0; j<numFrame && !Thread.currentThread().isInterrupted(); j++){  
+            	
+            	// Wait when cancel dialog appears
+            	synchronized(mLock){
+                	if(mPause){
+                		try{
+                			mLock.wait();
+                		}catch(InterruptedException e){
+                			if(mPause) // user cancels encoding
+                				throw e;
+                		}
+                	}
+            	}
+            	if(j % 30 == 0 && j != 0){
+            		progressDialog.incrementProgressBy(30);
+            		increment += 30;
+            	}
+
+                long elapseTime = computePresentationTimeMsec(j);
+                if(elapseTime > interval){
+                	break;
+                }
+                long presentationTime = timer + elapseTime*1000000;
+
+                // Generate a new frame of input.  The last frame of the range is always sent,
+                // it decides where the segment ends.
+                boolean isLastFrame = j == numFrame - 1 &&
+                        (i == last || i == processNum - 1 || totalFrame >= TOTAL_FRAMES);
+                boolean isPoster = mPosterFrame != null && mPosterFrame.claim(presentationTime);
+                if(mScheduler != null){
+                	long delayNs = mScheduler.getDelayNs();
+                	if(delayNs > 0)
+                		Thread.sleep(delayNs / 1000000, (int) (delayNs % 1000000));
+                }
+                long frameStart = System.nanoTime();
+                if(!renderFrame(j, presentationTime, isLastFrame || isPoster)){
+                	continue;
+                }
+                if(isPoster){
+                	mPosterFrame.capture(mWidth, mHeight);
+                }
+
+                // Feed any pending encoder output into the muxer.
+                if(mDrainThread != null) mDrainThread.checkError();
+                else if(j + 1 < numFrame) drainEncoder(false);
+
+                // a hard cut starts a new GOP; a segment's first frame is one anyway
+                if(j == 0 && i != first && mEncodePlan != null && mEncodePlan.isSyncAt(i)){
+                	requestSyncFrame();
+                }
+
+                //mInputSurface.setPresentationTime(computePresentationTimeNsec(frameNum));
+            	mInputSurface.setPresentationTime(presentationTime);
+            	mProcessGL.setTimerForFilter(presentationTime);
+
+                long swapStart = System.nanoTime();
+                // a failed swap is how a dead drain thread shows up here
+                if(!mInputSurface.swapBuffers() && mDrainThread != null) mDrainThread.checkError();
+                if(mStats != null) mStats.onFrameSubmitted(System.nanoTime() - swapStart);
+                drawSecondaryOutputs(presentationTime);
+                if(mScheduler != null) mScheduler.onFrame(System.nanoTime() - frameStart);
+                
+                //frameNum++;
+            }
+            
+            progressDialog.incrementProgressBy(numFrame - increment);
+            encodedFrame += numFrame;
+            if(mProgressJournal != null) mProgressJournal.markProgress(encodedFrame);
+            
+            //timer = computePresentationTimeNsec(frameNum);
+            timer = timer + (interval*1000000);              
+        }
+        return encodedFrame;
+    }
+
+    /**
+     * Draws frame j of the current effect into the encoder surface.  With an offscreen frame,
+     * an unchanged scene isn't drawn again, and in variable frame rate mode it isn't sent at
+     * all until mMaxFrameIntervalNs has passed.
+     *
+     * @return false if the frame should not be sent to the encoder
+     */
+    private boolean renderFrame(int j, long presentationTime, boolean mustSend) {
+        int strategy = mScheduler != null ? mScheduler.getStrategy() :
+                ExportScheduler.STRATEGY_FULL;
+        if(mFrameBuffer == null && strategy >= ExportScheduler.STRATEGY_ELIDE &&
+                !mFrameBufferFailed) {
+            createFrameBuffer();
+        }
+        if(mFrameBuffer == null) {
+            generateSurfaceFrame(j);
+            return true;
+        }
+        FrameBuffer target = mFrameBuffer;
+        if(strategy >= ExportScheduler.STRATEGY_REDUCED) {
+            target = getReducedFrameBuffer();
+        }
+
+        long signature = j == 0 ? ProcessGL.SIGNATURE_NONE :
+                mProcessGL.getSceneSignature(computePresentationTimeMsec(j));
+        boolean changed = signature == ProcessGL.SIGNATURE_NONE || signature != mLastSignature ||
+                target != mLastFrame;
+
+        // the first frame of an effect is always drawn
+        if(mVariableFrameRate && j != 0 && !mustSend) {
+            long sinceLast = presentationTime - mLastSendTime;
+            if(sinceLast < (changed ? mMinFrameIntervalNs : mMaxFrameIntervalNs)) {
+                mDroppedFrames++;
+                return false;
+            }
+        }
+
+        if(changed) {
+            target.bind();
+            if(target != mFrameBuffer)
+                GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+            generateSurfaceFrame(j);
+            target.unbind();
+            if(target != mFrameBuffer)
+                GLES20.glViewport(0, 0, mWidth, mHeight);
+            mLastFrame = target;
+        } else {
+            // nothing moved since the last frame, submit it again
+            mElidedFrames++;
+        }
+        mLastSignature = signature;
+        mLastFrame.blit();
+        mLastSendTime = presentationTime;
+        return true;
+    }
+
+    private void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
+
+    private void prepareFrameBuffer() {
+        if(!mElideStaticFrames && !mVariableFrameRate && mOutputProfiles.isEmpty())
+            return;
+
+        createFrameBuffer();
+    }
+
+    private void createFrameBuffer() {
+        try {
+            mFrameBuffer = new FrameBuffer(mWidth, mHeight, mProcessGL.getGLState());
+        } catch(RuntimeException e) {
+            Log.w(TAG, "no offscreen frame, drawing every frame", e);
+            mFrameBuffer = null;
+            mFrameBufferFailed = true;
+        }
+    }
+
+    // half the size, same aspect ratio, so the projection ProcessGL set up still fits
+    private FrameBuffer getReducedFrameBuffer() {
+        if(mReducedFrameBuffer == null && !mFrameBufferFailed) {
+            try {
+                mReducedFrameBuffer = new FrameBuffer((mWidth / 2) & ~1, (mHeight / 2) & ~1,
+                        mProcessGL.getGLState());
+            } catch(RuntimeException e) {
+                Log.w(TAG, "no reduced offscreen frame, drawing at full size", e);
+                mFrameBufferFailed = true;
+            }
+        }
+        return mReducedFrameBuffer != null ? mReducedFrameBuffer : mFrameBuffer;
+    }
+
+    private void prepareScheduler() {
+        if(!mThrottle)
+            return;
+        mScheduler = new ExportScheduler(new ExportScheduler.SystemClock(),
+                new ExportScheduler.DeviceThermalSource(mContext));
+    }
+
+    /**
+     * Starts an encoder for every extra output profile.  They are fed from mFrameBuffer, so
+     * without one there are no extra outputs.
+     */
+    private void prepareSecondaryOutputs() throws IOException {
+        if(mOutputProfiles.isEmpty())
+            return;
+        if(mFrameBuffer == null) {
+            Log.w(TAG, "no offscreen frame, skipping " + mOutputProfiles.size() + " extra outputs");
+            return;
+        }
+
+        for(OutputProfile profile : mOutputProfiles) {
+            MediaFormat format = createVideoFormat(mEncoderChoice, profile.width, profile.height,
+                    profile.getBitRate(mBitRate, mWidth, mHeight));
+            SecondaryOutput output = new SecondaryOutput(mContext, profile,
+                    profile.getPath(mOutputPath), mScript.getMusicId(), mDuration);
+            mSecondaryOutputs.add(output);
+            output.prepare(mEglCore, mEncoderChoice.codecName, format);
+        }
+    }
+
+    /**
+     * Sends the frame just submitted to the main encoder to the extra outputs too.
+     */
+    private void drawSecondaryOutputs(long presentationTime) {
+        if(mSecondaryOutputs.isEmpty())
+            return;
+
+        for(SecondaryOutput output : mSecondaryOutputs) {
+            output.drawFrame(mLastFrame != null ? mLastFrame : mFrameBuffer, presentationTime);
+        }
+        mInputSurface.makeCurrent();
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Sends end-of-stream to the encoder, and drains the remaining output.
+     */
+    private void finishEncoder() throws InterruptedException {
+        if(mDrainThread != null) {
+            mDrainThread.finish();
+            mDrainThread = null;
+        } else {
+            drainEncoder(true);
+        }
+    }
+
+    /**
+     * Picks the bitrate and keyframes for this movie from its effects.  Uses a script of its
+     * own, built without a GL context; OpenglPrepare() builds the one that draws.
+     */
+    private void planEncode() {
+        mProcessGL.setScreenRatio(mWidth, mHeight);
+        regenerateScript(mScriptSelect);
+
+        try {
+            mEncodePlan = EncodePlan.create(mScript, getFramePlan(), FRAME_RATE, mWidth, mHeight);
+            mBitRate = mEncodePlan.getBitRate();
+            mIFrameInterval = mEncodePlan.getIFrameInterval();
+        } catch(RuntimeException e) {
+            // keep the fixed defaults
+            Log.e(TAG, "encode planning failed", e);
+            mEncodePlan = null;
+        }
+    }
+
     // return micro-second
     private int getFrameTimeByScript(int scriptSelect){
         switch(scriptSelect){
@@ -349,6 +1178,8 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     public void pauseEncode(){
     	synchronized(mLock){
     		mPause = true;
+    		if(mSegmentedExport != null)
+    			mSegmentedExport.pauseEncode();
     	}
     }
     
@@ -356,6 +1187,8 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     	synchronized(mLock){
 	    	mPause = false;
 	    	mLock.notify();
+    		if(mSegmentedExport != null)
+    			mSegmentedExport.resumeEncode();
     	}
     }
     
@@ -366,9 +1199,30 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         mFileOrder = mScript.setElementInfoTime(mFileOrder);
         
         //Calc. Bitmap TriangleVertices
-        for(int i=0; i<mFileOrder.size(); i++) {
-            if(mFileOrder.get(i).Type == MediaInfo.MEDIA_TYPE_IMAGE) {
-                mFileOrder.get(i).CalcTriangleVertices(mProcessGL);
+        if(mCropCenters == null) {
+            for(int i=0; i<mFileOrder.size(); i++) {
+                if(mFileOrder.get(i).Type == MediaInfo.MEDIA_TYPE_IMAGE) {
+                    mFileOrder.get(i).CalcTriangleVertices(mProcessGL);
+                }
+            }
+            return;
+        }
+
+        // Segments share one set of crop centers: the face picked for a photo is random, and
+        // a photo can be drawn by two segments (once as warm-up).  Whichever segment gets here
+        // first picks, the others restore its choice.
+        synchronized(mCropCenters) {
+            for(int i=0; i<mFileOrder.size() && i<mCropCenters.length; i++) {
+                ElementInfo eInfo = mFileOrder.get(i);
+                if(eInfo.Type != MediaInfo.MEDIA_TYPE_IMAGE) continue;
+
+                if(mCropCenters[i] != null) {
+                    eInfo.centerX = mCropCenters[i][0];
+                    eInfo.centerY = mCropCenters[i][1];
+                    eInfo.mIsRestore = true;
+                }
+                eInfo.CalcTriangleVertices(mProcessGL);
+                mCropCenters[i] = new float[]{eInfo.centerX, eInfo.centerY};
             }
         }
     }
@@ -423,17 +1277,6 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     private void prepareEncoder() {
         mBufferInfo = new MediaCodec.BufferInfo();
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "format: " + format);
-
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         //
@@ -441,42 +1284,140 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         // you will likely want to defer instantiation of CodecInputSurface until after the
         // "display" EGL context is created, then modify the eglCreateContext call to
         // take eglGetCurrentContext() as the share_context argument.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+        configureEncoder();
+        mEglCore = mSession != null ? mSession.getEglCore() :
+                new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
         mInputSurface = new WindowSurface(mEglCore, mEncoder.createInputSurface(), true);
         mInputSurface.makeCurrent();
         mEncoder.start();
 
-        
-		DateFormat formatter = new SimpleDateFormat("yyyyMMdd");
-		Calendar calendar = Calendar.getInstance();
-		String dateString =  formatter.format(calendar.getTime());
-		
-        // Output filename.  Ideally this would use Context.getFilesDir() rather than a
-        // hard-coded output directory.
-        String prefix = OUTPUT_DIR + "MicroFilm" + dateString;
-        //mOutputPath = prefix + ".mp4";
-        mOutputPath = getOutputPath(prefix) + ".mp4";
-        
-        mVideoPath = mOutputPath.replace("/MicroFilm"+dateString, "/.MicroFilm"+dateString);
-
-
-
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
         // obtained from the encoder after it has started processing data.
         //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
+        // The music track is added next to the video track once that happens, so the
+        // muxer writes the finished movie directly; there is no second export pass.
+        mMuxer = createMuxer();
+
+        mVideoTrackIndex = -1;
+        mMuxerStarted = false;
+    }
+
+    private MovieMuxer createMuxer() {
         try {
-            mMuxer = new MediaMuxer(mVideoPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if(mFragmentedOutput)
+                return new FragmentedMp4Muxer(mOutputPath);
+            return new MovieMuxer.Mp4(mOutputPath);
         } catch (IOException ioe) {
             throw new RuntimeException("MediaMuxer creation failed", ioe);
         }
+    }
 
-        mVideoTrackIndex = -1;
-        mMuxerStarted = false;
+    /**
+     * Creates and configures mEncoder with the first candidate that accepts our format.  A
+     * remembered encoder that stopped working is forgotten and the device probed again.
+     */
+    private void configureEncoder() {
+        if(mEncoderCandidates == null) {
+            mEncoderSelector = new EncoderSelector(mContext);
+            mEncoderCandidates = getEncoderCandidates();
+        }
+        if(tryCandidates(mEncoderCandidates))
+            return;
+
+        if(mEncoderSelector.getRemembered() != null) {
+            Log.w(TAG, "remembered encoder failed, probing again");
+            mEncoderSelector.forget();
+            mEncoderCandidates = getEncoderCandidates();
+            if(tryCandidates(mEncoderCandidates))
+                return;
+        }
+
+        // last resort, what this class always did
+        Log.w(TAG, "no encoder candidate worked, using the default AVC encoder");
+        mEncoderChoice = new EncoderSelector.Choice(null, EncoderSelector.MIME_AVC, 0, 1, false);
+        mEncoder = MediaCodec.createEncoderByType(EncoderSelector.MIME_AVC);
+        mEncoder.configure(createVideoFormat(mEncoderChoice), null, null,
+                MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    private List<EncoderSelector.Choice> getEncoderCandidates() {
+        if(mFragmentedOutput)
+            return mEncoderSelector.getCandidates(EncoderSelector.MIME_AVC);
+        return mEncoderSelector.getCandidates();
+    }
+
+    private boolean tryCandidates(List<EncoderSelector.Choice> candidates) {
+        for(EncoderSelector.Choice choice : candidates) {
+            MediaFormat format = createVideoFormat(choice);
+            MediaCodec codec = null;
+            try {
+                codec = MediaCodec.createByCodecName(choice.codecName);
+                codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch(Exception e) {
+                Log.w(TAG, "encoder " + choice + " failed: " + e);
+                if(codec != null)
+                    codec.release();
+                continue;
+            }
+            Log.d(TAG, "using encoder " + choice);
+            mEncoder = codec;
+            mEncoderChoice = choice;
+            // a fragmented export only tries H.264, that isn't the device's best choice
+            if(!mFragmentedOutput)
+                mEncoderSelector.remember(choice);
+            return true;
+        }
+        return false;
+    }
+
+    private MediaFormat createVideoFormat(EncoderSelector.Choice choice) {
+        return createVideoFormat(choice, mWidth, mHeight, mBitRate);
+    }
+
+    private MediaFormat createVideoFormat(EncoderSelector.Choice choice, int width, int height,
+            int bitRate) {
+        MediaFormat format = MediaFormat.createVideoFormat(choice.mimeType, width, height);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        if(EncoderSelector.MIME_HEVC.equals(choice.mimeType))
+            bitRate = (int) (bitRate * HEVC_BIT_RATE_FACTOR);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+        // MediaFormat.KEY_PROFILE, KEY_LEVEL and KEY_BITRATE_MODE are newer than our SDK.
+        // Before Q a profile without its level fails configure(), so both or neither.
+        if(choice.profile != 0 && choice.level != 0) {
+            format.setInteger("profile", choice.profile);
+            format.setInteger("level", choice.level);
+        }
+        if(choice.useVbr)
+            format.setInteger("bitrate-mode", EncoderSelector.BITRATE_MODE_VBR);
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+        return format;
+    }
+
+    private void prepareOutputPath() {
+		DateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+		Calendar calendar = Calendar.getInstance();
+		String dateString =  formatter.format(calendar.getTime());
+		
+        // Output filename.  Ideally this would use Context.getFilesDir() rather than a
+        // hard-coded output directory.
+        String prefix = OUTPUT_DIR + "MicroFilm" + dateString;
+        //mOutputPath = prefix + ".mp4";
+        // the exports of a batch run at the same time; claim the name before the next one looks
+        synchronized(EncodeAndMux.class) {
+            mOutputPath = getOutputPath(prefix) + ".mp4";
+            try {
+                new File(mOutputPath).createNewFile();
+            } catch(IOException e) {
+                Log.w(TAG, "can't create " + mOutputPath, e);
+            }
+        }
     }
 
     private String getOutputPath(String prefix){
@@ -498,17 +1439,48 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
      */
     private void releaseEncoder() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        boolean encoderStopped = false;
+        if (mDrainThread != null) {
+            mDrainThread.quit();
+            encoderStopped = mDrainThread.isEncoderStopped();
+            mDrainThread = null;
+        }
+        if (mAudioEncode != null) {
+            mAudioEncode.release();
+            mAudioEncode = null;
+        }
         if (mEncoder != null) {
-            mEncoder.stop();
+            if (!encoderStopped) mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
         }
+        // a session's textures stay for its next export, which likely shows the same photos
+        if (mEglCore != null && mSession == null) {
+            mProcessGL.releaseTextures();
+        }
+        if (mFrameBuffer != null) {
+            mFrameBuffer.release();
+            mFrameBuffer = null;
+        }
+        if (mReducedFrameBuffer != null) {
+            mReducedFrameBuffer.release();
+            mReducedFrameBuffer = null;
+        }
+        mLastFrame = null;
+        for (SecondaryOutput output : mSecondaryOutputs) {
+            output.release();
+        }
         if (mInputSurface != null) {
             mInputSurface.release();
             mInputSurface = null;
         }
         if (mEglCore != null) {
-            mEglCore.release();
+            // a session's context, and the programs in it, stay for its next export
+            if (mSession != null) {
+                mEglCore.makeNothingCurrent();
+            } else {
+                mEglCore.release();
+            }
             mEglCore = null;
         }
         if (mMuxer != null) {
@@ -542,7 +1514,9 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
 
         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true  && !Thread.currentThread().isInterrupted()) {
+            long dequeueStart = System.nanoTime();
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (mStats != null) mStats.onDequeue(System.nanoTime() - dequeueStart);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!endOfStream) {
@@ -558,15 +1532,7 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
                 if (mMuxerStarted) {
                     throw new RuntimeException("format changed twice");
                 }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                mVideoFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mVideoTrackIndex = mMuxer.addTrack(newFormat);
-
-                mMuxer.start();
-                mMuxerStarted = true;
+                onOutputFormatChanged(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -593,8 +1559,8 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                    mMuxer.writeSampleData(mVideoTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
+                    onEncodedSample(encodedData, mBufferInfo);
+                    if (mStats != null) mStats.onSample(mBufferInfo.size);
                 }
 
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
@@ -611,8 +1577,50 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
         }
     }
 
+    @Override
+    public void onOutputFormatChanged(MediaFormat newFormat) {
+        mVideoFormat = newFormat;
+        Log.d(TAG, "encoder output format changed: " + newFormat);
+
+        // now that we have the Magic Goodies, start the muxer
+        mVideoTrackIndex = mMuxer.addTrack(newFormat);
+
+        // all tracks have to be known before start(); segments are video only
+        if(mAudioEncode != null) {
+            try {
+                mAudioEncode.setupAudioMuxer(mContext, mMuxer, mDuration);
+            } catch (IOException ioe) {
+                throw new RuntimeException("audio track setup failed", ioe);
+            }
+        }
+
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    @Override
+    public void onEncodedSample(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        // a fragment holds a GOP and its music, which has to be there before the sync
+        // frame that closes it
+        if(mFragmentedOutput && mAudioEncode != null &&
+                (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            try {
+                mAudioEncode.writeSamplesUntil(mContext, mMuxer, info.presentationTimeUs);
+            } catch (IOException ioe) {
+                throw new RuntimeException("audio copy failed", ioe);
+            }
+        }
+        mMuxer.writeSampleData(mVideoTrackIndex, encodedData, info);
+        if (VERBOSE) Log.d(TAG, "sent " + info.size + " bytes to muxer");
+    }
+
     public void OpenglPrepare() {
-        mProcessGL.prepareOpenGL();
+        if(mSession == null || !mSession.isPrepared()) {
+            mProcessGL.prepareOpenGL();
+            if(mSession != null) mSession.setPrepared();
+        } else {
+            mProcessGL.resetForNextMovie();
+        }
 
         mProcessGL.setView(mWidth, mHeight);
         mProcessGL.setEye();
@@ -630,34 +1638,40 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     }
     
     private void regenerateScript(int scriptSelect){
+        Script script = createScript(scriptSelect, true, mActivity, mProcessGL);
+        if(script == null) {
+            Toast.makeText(mContext, "This theme is not ready", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mScript = script;
+    }
+
+    /**
+     * Creates the script of a theme, for the player or for encoding.
+     *
+     * @return null if there is no such theme
+     */
+    static Script createScript(int scriptSelect, boolean isEncode, MicroMovieActivity activity,
+            ProcessGL processGL) {
         switch(scriptSelect){
             case ThemeAdapter.TYPE_KIDS:
-                mScript = new Kids(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Kids(true, activity, processGL) : new Kids(activity, processGL);
             case ThemeAdapter.TYPE_CARNIVAL:
-                mScript = new Carnival(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Carnival(true, activity, processGL) : new Carnival(activity, processGL);
             case ThemeAdapter.TYPE_LIFE:
-                mScript = new Life(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Life(true, activity, processGL) : new Life(activity, processGL);
             case ThemeAdapter.TYPE_MEMORY:
-                mScript = new Memory(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Memory(true, activity, processGL) : new Memory(activity, processGL);
             case ThemeAdapter.TYPE_ROMANCE:
-                mScript = new Lover(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Lover(true, activity, processGL) : new Lover(activity, processGL);
             case ThemeAdapter.TYPE_SPORTS:
-                mScript = new Sports(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Sports(true, activity, processGL) : new Sports(activity, processGL);
             case ThemeAdapter.TYPE_VINTAGE:
-                mScript = new Country(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new Country(true, activity, processGL) : new Country(activity, processGL);
             case ThemeAdapter.TYPE_CITY:
-                mScript = new City(true, mActivity, mProcessGL);
-                break;
+                return isEncode ? new City(true, activity, processGL) : new City(activity, processGL);
             default:
-                Toast.makeText(mContext, "This theme is not ready", Toast.LENGTH_SHORT).show();
-                return;
+                return null;
         }
     }
 
@@ -667,7 +1681,9 @@ public class EncodeAndMux implements SurfaceTexture.OnFrameAvailableListener {
     }
 
     private void generateSurfaceFrame(int frameNumber) {
+        long drawStart = System.nanoTime();
         mProcessGL.doDraw(computePresentationTimeMsec(frameNumber));
+        if(mStats != null) mStats.onDraw(System.nanoTime() - drawStart);
     }
 
     /**
@@ -0,0 +1,205 @@
+package com.s890510.microfilm;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Drains a Surface-input encoder on its own thread.
+ * <p>
+ * The render loop only has to draw and swapBuffers(); this thread keeps the encoder's
+ * output queue empty and hands every encoded sample to a {@link SampleListener} (normally
+ * the muxer).  The render thread therefore only blocks when the encoder stops taking new
+ * frames from its input Surface, which is the backpressure we actually want.
+ * <p>
+ * The encoder must already be started.  All listener callbacks are made on this thread.
+ * <p>
+ * If draining fails, the encoder is stopped right away.  Nothing would free its input
+ * buffers after that, so the render thread would otherwise wait in swapBuffers() forever;
+ * with the encoder stopped, the swap fails and the render thread picks up the stored
+ * failure from {@link #checkError()}.
+ */
+public class EncodeDrainThread extends Thread {
+    private static final String TAG = "EncodeDrainThread";
+    private static final boolean VERBOSE = false;
+    private static final int TIMEOUT_USEC = 10000;
+    // finish() gives up when no sample comes out for this long after end-of-stream
+    private static final long FINISH_TIMEOUT_MS = 5000;
+
+    public interface SampleListener {
+        /**
+         * Called once, before the first sample, with the encoder's real output format.
+         */
+        void onOutputFormatChanged(MediaFormat format);
+
+        /**
+         * Called for every encoded sample.  The buffer is only valid during the call.
+         */
+        void onEncodedSample(ByteBuffer encodedData, MediaCodec.BufferInfo info);
+    }
+
+    private final MediaCodec mEncoder;
+    private final SampleListener mListener;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private volatile boolean mQuit = false;
+    private volatile Throwable mError = null;
+    private volatile boolean mEncoderStopped = false;
+    private boolean mFormatChanged = false;
+    private volatile int mSampleCount = 0;
+    private EncodeStats mStats;
+
+    public EncodeDrainThread(MediaCodec encoder, SampleListener listener) {
+        super(TAG);
+        mEncoder = encoder;
+        mListener = listener;
+    }
+
+    /**
+     * Reports dequeue waits and samples to stats.  Call before start().
+     */
+    public void setStats(EncodeStats stats) {
+        mStats = stats;
+    }
+
+    @Override
+    public void run() {
+        try {
+            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+            while (!mQuit) {
+                long dequeueStart = System.nanoTime();
+                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                if (mStats != null) mStats.onDequeue(System.nanoTime() - dequeueStart);
+                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    // no output available yet
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    // not expected for an encoder
+                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // should happen before receiving buffers, and should only happen once
+                    if (mFormatChanged) {
+                        throw new RuntimeException("format changed twice");
+                    }
+                    mFormatChanged = true;
+                    mListener.onOutputFormatChanged(mEncoder.getOutputFormat());
+                } else if (encoderStatus < 0) {
+                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
+                            encoderStatus);
+                    // let's ignore it
+                } else {
+                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                    if (encodedData == null) {
+                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
+                                " was null");
+                    }
+
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        // The codec config data is part of the output format.  Ignore it.
+                        if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                        mBufferInfo.size = 0;
+                    }
+
+                    if (mBufferInfo.size != 0) {
+                        if (!mFormatChanged) {
+                            throw new RuntimeException("sample before output format");
+                        }
+
+                        encodedData.position(mBufferInfo.offset);
+                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                        mListener.onEncodedSample(encodedData, mBufferInfo);
+                        mSampleCount++;
+                        if (mStats != null) mStats.onSample(mBufferInfo.size);
+                        if (VERBOSE) Log.d(TAG, "drained " + mBufferInfo.size + " bytes");
+                    }
+
+                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        if (VERBOSE) Log.d(TAG, "end of stream reached");
+                        break;
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "drain failed", t);
+            mError = t;
+            stopEncoder();
+        }
+    }
+
+    // Abandons the input Surface, so a swapBuffers() waiting on it returns.
+    private void stopEncoder() {
+        try {
+            mEncoder.stop();
+        } catch (RuntimeException e) {
+            // the codec itself may be what failed; it's stopped as far as we can tell
+            Log.w(TAG, "stopping encoder after failure", e);
+        }
+        mEncoderStopped = true;
+    }
+
+    /**
+     * Sends end-of-stream to the encoder and waits until everything queued so far has been
+     * handed to the listener.  Call from the thread that renders into the input Surface.
+     * Throws if the encoder stops producing output before end-of-stream.
+     */
+    public void finish() throws InterruptedException {
+        checkError();
+        mEncoder.signalEndOfInputStream();
+        int sampleCount = -1;
+        while (isAlive() && sampleCount != mSampleCount) {
+            sampleCount = mSampleCount;
+            join(FINISH_TIMEOUT_MS);
+        }
+        checkError();
+        if (isAlive()) {
+            mQuit = true;
+            throw new RuntimeException("encoder drain stalled after " + sampleCount +
+                    " samples");
+        }
+    }
+
+    /**
+     * Stops draining without waiting for end-of-stream.  Used when the export is abandoned.
+     * Returns only once the thread is done with the encoder, even if the caller is
+     * interrupted, so the encoder can be stopped right after.
+     */
+    public void quit() {
+        mQuit = true;
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // a cancelled export; keep waiting, stopping the encoder under us would throw
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns true if the drain thread stopped the encoder after a failure; it must not be
+     * stopped again.
+     */
+    public boolean isEncoderStopped() {
+        return mEncoderStopped;
+    }
+
+    /**
+     * Rethrows a failure from the drain thread on the calling thread.
+     */
+    public void checkError() {
+        if (mError != null) {
+            throw new RuntimeException("encoder drain failed", mError);
+        }
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+}
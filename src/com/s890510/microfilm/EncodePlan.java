@@ -0,0 +1,179 @@
+package com.s890510.microfilm;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+import com.s890510.microfilm.script.Script;
+import com.s890510.microfilm.script.effects.Effect;
+import com.s890510.microfilm.shader.Shader;
+
+/**
+ * Bitrate and keyframe placement for one export, worked out from the script's effects
+ * before anything is encoded.
+ * <p>
+ * Every effect is sampled over its duration for how far and how fast its picture moves
+ * and scales, whether it fades or runs a transition, and whether it carries text.  Quiet
+ * scripts get a lower bitrate; motion, dense transitions and text push it up.  Hard cuts,
+ * where a new picture replaces the old one with no overlap and no fade, get a sync frame so
+ * the encoder doesn't have to predict across them.
+ */
+public class EncodePlan {
+    private static final String TAG = "EncodePlan";
+    private static final boolean VERBOSE = false;
+
+    // bits per pixel per frame for a still picture, and what motion, transitions and text add
+    private static final float BASE_BPP = 0.10f;
+    private static final float MOTION_BPP = 0.10f;
+    private static final float TRANSITION_BPP = 0.05f;
+    private static final float TEXT_BPP = 0.02f;
+
+    private static final int MIN_BIT_RATE = 4000000;
+    private static final int MAX_BIT_RATE = 20000000;
+
+    // regular keyframe interval, longer when some cut gets its own sync frame
+    private static final int IFRAME_INTERVAL = 5;
+    private static final int IFRAME_INTERVAL_WITH_CUTS = 10;
+    // sync frames closer than this to the previous one aren't worth their size
+    private static final int MIN_SYNC_DISTANCE_MS = 1000;
+
+    private static final int SAMPLES_PER_EFFECT = 8;
+
+    private int mBitRate;
+    private int mIFrameInterval;
+    private boolean[] mSyncAtEffect;
+
+    private EncodePlan(int bitRate, int iFrameInterval, boolean[] syncAtEffect) {
+        mBitRate = bitRate;
+        mIFrameInterval = iFrameInterval;
+        mSyncAtEffect = syncAtEffect;
+    }
+
+    /**
+     * Plans an export of script.
+     *
+     * @param framePlan number of frames every effect is shown for
+     */
+    public static EncodePlan create(Script script, int[] framePlan, int frameRate, int width,
+            int height) {
+        int count = Math.min(script.geteffectsize(), framePlan.length);
+        float[] matrix = new float[16];
+
+        float motion = 0;       // frame weighted, in screen heights per second
+        int transitionFrames = 0;
+        int textFrames = 0;
+        int totalFrames = 0;
+        ArrayList<Integer> cuts = new ArrayList<Integer>();
+
+        for(int i=0; i<count; i++) {
+            Effect effect = script.getEffect(i);
+            int frames = framePlan[i];
+            totalFrames += frames;
+            if(frames == 0) continue;
+
+            int duration = Math.max(effect.getDuration(), 1);
+            float travel = 0;
+            boolean transition = false;
+            boolean hasMatrix = false;
+            float[] last = null;
+            for(int s=0; s<=SAMPLES_PER_EFFECT; s++) {
+                long elapse = (long) duration * s / SAMPLES_PER_EFFECT;
+                float[] mvp = effect.getMVPMatrixByElapse(elapse);
+                if(mvp != null) {
+                    System.arraycopy(mvp, 0, matrix, 0, 16);
+                    if(last != null) {
+                        // translation plus the change in scale, both in GL units
+                        travel += Math.abs(matrix[12] - last[12]) + Math.abs(matrix[13] - last[13]) +
+                                Math.abs(matrix[0] - last[0]) + Math.abs(matrix[5] - last[5]);
+                    } else {
+                        last = new float[16];
+                    }
+                    System.arraycopy(matrix, 0, last, 0, 16);
+                    hasMatrix = true;
+                }
+                float alpha = effect.getAlpha(elapse);
+                if(effect.getTransition(elapse) || (alpha > 0.01f && alpha < 0.99f)) {
+                    transition = true;
+                }
+            }
+
+            // GL units span two screen heights
+            if(hasMatrix)
+                motion += travel / 2 / (duration / 1000f) * frames;
+            if(transition)
+                transitionFrames += frames;
+            if(hasText(effect))
+                textFrames += frames;
+            if(i > 0 && isCut(script.getEffect(i-1), effect))
+                cuts.add(i);
+        }
+
+        if(totalFrames == 0)
+            return new EncodePlan(MAX_BIT_RATE, IFRAME_INTERVAL, new boolean[count]);
+
+        motion /= totalFrames;
+        float transitions = (float) transitionFrames / totalFrames;
+        float text = (float) textFrames / totalFrames;
+
+        float bpp = BASE_BPP + MOTION_BPP * Math.min(1.0f, motion) +
+                TRANSITION_BPP * transitions + TEXT_BPP * Math.min(1.0f, text * 5);
+        int bitRate = (int) Math.min(MAX_BIT_RATE,
+                Math.max(MIN_BIT_RATE, (long) (width * height * frameRate * bpp)));
+
+        boolean[] syncAtEffect = new boolean[count];
+        int syncs = 0;
+        int lastSyncFrame = 0;
+        int frame = 0;
+        for(int i=0; i<count; i++) {
+            if(cuts.contains(i) && (frame - lastSyncFrame) * 1000 / frameRate >= MIN_SYNC_DISTANCE_MS) {
+                syncAtEffect[i] = true;
+                syncs++;
+                lastSyncFrame = frame;
+            }
+            frame += framePlan[i];
+        }
+
+        // cuts too close together all lose their sync frames; then nothing fills the gap
+        int iFrameInterval = syncs == 0 ? IFRAME_INTERVAL : IFRAME_INTERVAL_WITH_CUTS;
+
+        Log.d(TAG, "motion " + motion + ", transitions " + transitions + ", text " + text +
+                " -> " + bitRate + " bps, " + cuts.size() + " cuts, " + syncs + " synced, I-frame every " +
+                iFrameInterval + " s");
+        return new EncodePlan(bitRate, iFrameInterval, syncAtEffect);
+    }
+
+    // the previous picture is gone when next starts, and next doesn't fade or transition in
+    private static boolean isCut(Effect previous, Effect next) {
+        if(previous.getDuration() > previous.getSleep())
+            return false;
+        if(next.getTransition(0) || next.getAlpha(0) < 0.99f)
+            return false;
+        return next.getMVPMatrixByElapse(0) != null;
+    }
+
+    private static boolean hasText(Effect effect) {
+        if(effect.getString() != null && !effect.getString().isEmpty())
+            return true;
+        String shader = effect.getShader();
+        return shader.equals(Shader.String) || shader.equals(Shader.String_Line) ||
+                shader.equals(Shader.Cover_String_Left) ||
+                shader.equals(Shader.Lattice_Blue_Bar_String);
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    /**
+     * Returns true if the first frame of effect i should be a sync frame.
+     */
+    public boolean isSyncAt(int i) {
+        boolean sync = i >= 0 && i < mSyncAtEffect.length && mSyncAtEffect[i];
+        if (VERBOSE && sync) Log.d(TAG, "sync frame at effect " + i);
+        return sync;
+    }
+}
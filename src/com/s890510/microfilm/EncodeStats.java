@@ -0,0 +1,231 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Timings of an export, frame by frame.
+ * <p>
+ * The render thread reports how long every {@code doDraw} and {@code swapBuffers} took;
+ * whichever thread drains the encoder reports how long it waited in
+ * {@code dequeueOutputBuffer} and the size of every sample.  Frames submitted but not
+ * drained yet are the encoder's queue depth.  The last {@link #FPS_WINDOW} submissions give
+ * a rolling frame rate, and with it an ETA.
+ * <p>
+ * All segments of a split export report into the same instance, so the frame rate is the
+ * whole export's.  At the end, {@link #toJson} / {@link #save} give everything, with
+ * per-frame values, for comparing devices and builds.
+ */
+public class EncodeStats {
+    private static final String TAG = "EncodeStats";
+
+    // submissions the rolling frame rate is computed over
+    private static final int FPS_WINDOW = 50;
+    private static final long LOG_INTERVAL_NS = 2000000000L;
+
+    private final int mTotalFrames;
+    private final long mStartNs;
+    private final JSONObject mProperties = new JSONObject();
+
+    private final Series mDrawUs = new Series();
+    private final Series mSwapUs = new Series();
+    private final Series mQueueDepth = new Series();
+    private final Series mDequeueUs = new Series();
+    private final Series mSampleBytes = new Series();
+
+    private int mSubmitted = 0;
+    private int mDrained = 0;
+    private long mBytes = 0;
+    private long[] mSubmitTimes = new long[FPS_WINDOW];
+    private long mLastLogNs;
+    private long mEndNs = 0;
+
+    // a growable list of ints
+    private static class Series {
+        int[] data = new int[1024];
+        int size = 0;
+
+        void add(long value) {
+            if(size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = (int) Math.min(value, Integer.MAX_VALUE);
+        }
+
+        JSONObject summarize() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", size);
+            if(size == 0) return json;
+
+            int[] sorted = Arrays.copyOf(data, size);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for(int i=0; i<size; i++)
+                sum += sorted[i];
+            json.put("mean", sum / size);
+            json.put("p50", sorted[size / 2]);
+            json.put("p95", sorted[Math.min(size - 1, size * 95 / 100)]);
+            json.put("max", sorted[size - 1]);
+            return json;
+        }
+
+        JSONArray toJson() {
+            JSONArray json = new JSONArray();
+            for(int i=0; i<size; i++)
+                json.put(data[i]);
+            return json;
+        }
+    }
+
+    /**
+     * @param totalFrames frames the export will submit, for the ETA
+     */
+    public EncodeStats(int totalFrames) {
+        mTotalFrames = totalFrames;
+        mStartNs = System.nanoTime();
+        mLastLogNs = mStartNs;
+    }
+
+    /**
+     * Adds a value, e.g. the encoder or the output size, to the JSON dump.
+     */
+    public synchronized void put(String key, Object value) {
+        try {
+            mProperties.put(key, value);
+        } catch(JSONException e) {
+            Log.w(TAG, "can't record " + key, e);
+        }
+    }
+
+    public synchronized void onDraw(long ns) {
+        mDrawUs.add(ns / 1000);
+    }
+
+    /**
+     * Called after a frame was submitted with swapBuffers, which took ns.
+     */
+    public synchronized void onFrameSubmitted(long ns) {
+        long now = System.nanoTime();
+        mSwapUs.add(ns / 1000);
+        mSubmitTimes[mSubmitted % FPS_WINDOW] = now;
+        mSubmitted++;
+        mQueueDepth.add(Math.max(0, mSubmitted - mDrained));
+
+        if(now - mLastLogNs >= LOG_INTERVAL_NS) {
+            mLastLogNs = now;
+            Log.d(TAG, mSubmitted + "/" + mTotalFrames + " frames, " +
+                    String.format("%.1f", getFps()) + " fps, eta " + getEtaMs() + " ms, queue " +
+                    (mSubmitted - mDrained));
+        }
+    }
+
+    /**
+     * Called after every dequeueOutputBuffer, which waited ns.
+     */
+    public synchronized void onDequeue(long ns) {
+        mDequeueUs.add(ns / 1000);
+    }
+
+    /**
+     * Called for every encoded sample drained from the encoder.
+     */
+    public synchronized void onSample(int bytes) {
+        mSampleBytes.add(bytes);
+        mBytes += bytes;
+        mDrained++;
+    }
+
+    /**
+     * Returns the frames per second over the last {@link #FPS_WINDOW} submissions.
+     */
+    public synchronized float getFps() {
+        int count = Math.min(mSubmitted, FPS_WINDOW);
+        if(count < 2) return 0;
+        long newest = mSubmitTimes[(mSubmitted - 1) % FPS_WINDOW];
+        long oldest = mSubmitTimes[(mSubmitted - count) % FPS_WINDOW];
+        if(newest <= oldest) return 0;
+        return (count - 1) * 1000000000f / (newest - oldest);
+    }
+
+    /**
+     * Returns the time left at the current frame rate, in milliseconds, or -1 if unknown.
+     */
+    public synchronized long getEtaMs() {
+        float fps = getFps();
+        if(fps <= 0) return -1;
+        return (long) (Math.max(0, mTotalFrames - mSubmitted) * 1000 / fps);
+    }
+
+    public synchronized int getSubmittedFrames() {
+        return mSubmitted;
+    }
+
+    /**
+     * Stops the export's clock.
+     */
+    public synchronized void finish() {
+        if(mEndNs == 0)
+            mEndNs = System.nanoTime();
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        long wallNs = (mEndNs != 0 ? mEndNs : System.nanoTime()) - mStartNs;
+
+        JSONObject json = new JSONObject(mProperties.toString());
+        json.put("wallMs", wallNs / 1000000);
+        json.put("totalFrames", mTotalFrames);
+        json.put("frames", mSubmitted);
+        json.put("samples", mDrained);
+        json.put("bytes", mBytes);
+        json.put("fps", wallNs > 0 ? mSubmitted * 1000000000.0 / wallNs : 0);
+
+        JSONObject summary = new JSONObject();
+        summary.put("drawUs", mDrawUs.summarize());
+        summary.put("swapUs", mSwapUs.summarize());
+        summary.put("dequeueUs", mDequeueUs.summarize());
+        summary.put("sampleBytes", mSampleBytes.summarize());
+        summary.put("queueDepth", mQueueDepth.summarize());
+        json.put("summary", summary);
+
+        JSONObject perFrame = new JSONObject();
+        perFrame.put("drawUs", mDrawUs.toJson());
+        perFrame.put("swapUs", mSwapUs.toJson());
+        perFrame.put("queueDepth", mQueueDepth.toJson());
+        json.put("perFrame", perFrame);
+
+        JSONObject perSample = new JSONObject();
+        perSample.put("dequeueUs", mDequeueUs.toJson());
+        perSample.put("bytes", mSampleBytes.toJson());
+        json.put("perSample", perSample);
+        return json;
+    }
+
+    /**
+     * Writes {@link #toJson} to file.
+     */
+    public void save(File file) {
+        try {
+            String json = toJson().toString();
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(json.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            Log.d(TAG, "saved to " + file);
+        } catch(JSONException e) {
+            Log.w(TAG, "saving " + file + " failed", e);
+        } catch(IOException e) {
+            Log.w(TAG, "saving " + file + " failed", e);
+        }
+    }
+}
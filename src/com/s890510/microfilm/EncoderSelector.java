@@ -0,0 +1,327 @@
+package com.s890510.microfilm;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Chooses the video encoder for an export.
+ * <p>
+ * Candidates are ranked HEVC Main (where MediaMuxer can write it), then AVC High, then AVC
+ * Baseline, hardware codecs before software ones.  The caller configures them in that order
+ * and keeps the first one that works, which is remembered for this device build so the next
+ * export skips the probe.
+ * <p>
+ * The ranking only looks at {@link CodecDescription}s, so it can be fed any codec list, not
+ * just the device's.
+ */
+public class EncoderSelector {
+    private static final String TAG = "EncoderSelector";
+    private static final boolean VERBOSE = false;
+
+    public static final String MIME_HEVC = "video/hevc";
+    public static final String MIME_AVC = "video/avc";
+
+    // MediaMuxer writes HEVC from Android N on
+    private static final int HEVC_MUXER_SDK = 24;
+    // used when the codec can't tell how many instances it can run (before API 23)
+    private static final int DEFAULT_MAX_INSTANCES = 2;
+
+    // CodecProfileLevel.HEVCProfileMain, not in the API 19 SDK
+    static final int HEVC_PROFILE_MAIN = 0x01;
+    // EncoderCapabilities.BITRATE_MODE_VBR, API 21
+    static final int BITRATE_MODE_VBR = 1;
+
+    private static final String KEY_ENCODER_CHOICE = "encoder-choice-";
+
+    /**
+     * What an export needs to know about one encoder for one mime type.
+     */
+    public static class CodecDescription {
+        public final String name;
+        public final String mimeType;
+        public final int[] profiles;
+        // the level each of profiles goes with
+        public final int[] levels;
+        public final int maxInstances;
+        public final boolean supportsVbr;
+
+        public CodecDescription(String name, String mimeType, int[] profiles, int[] levels,
+                int maxInstances, boolean supportsVbr) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.maxInstances = maxInstances;
+            this.supportsVbr = supportsVbr;
+        }
+
+        /**
+         * Returns the highest level the codec has for profile, or 0 if it doesn't have the
+         * profile.
+         */
+        int getLevel(int profile) {
+            int level = 0;
+            for (int i = 0; i < profiles.length; i++) {
+                if (profiles[i] == profile) level = Math.max(level, levels[i]);
+            }
+            return level;
+        }
+
+        boolean isSoftware() {
+            return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+        }
+    }
+
+    /**
+     * Lists the video encoders available.
+     */
+    public interface CodecSource {
+        List<CodecDescription> getEncoders();
+    }
+
+    /**
+     * An encoder to try, and how to configure it.  A profile of 0 leaves the choice to the
+     * codec; a profile always comes with its level, which releases before Q require.
+     */
+    public static class Choice {
+        public final String codecName;
+        public final String mimeType;
+        public final int profile;
+        public final int level;
+        public final int maxInstances;
+        public final boolean useVbr;
+
+        public Choice(String codecName, String mimeType, int profile, int level,
+                int maxInstances, boolean useVbr) {
+            this.codecName = codecName;
+            this.mimeType = mimeType;
+            this.profile = profile;
+            this.level = level;
+            this.maxInstances = maxInstances;
+            this.useVbr = useVbr;
+        }
+
+        String flatten() {
+            return codecName + "|" + mimeType + "|" + profile + "|" + level + "|" +
+                    maxInstances + "|" + useVbr;
+        }
+
+        // choices saved without a level are dropped, they may be a fallback to profile 0
+        // after a configure that failed for want of one
+        static Choice unflatten(String value) {
+            if (value == null) return null;
+            String[] parts = value.split("\\|");
+            if (parts.length != 6) return null;
+            try {
+                return new Choice(parts[0], parts[1], Integer.parseInt(parts[2]),
+                        Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                        Boolean.parseBoolean(parts[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return codecName + " (" + mimeType + ", profile " + profile + ", level " + level +
+                    ")";
+        }
+    }
+
+    private final CodecSource mSource;
+    private final SharedPreferences mPrefs;
+    private final String mPrefKey;
+    private final int mSdkInt;
+
+    public EncoderSelector(Context context) {
+        this(new MediaCodecListSource(), PreferenceManager.getDefaultSharedPreferences(context),
+                Build.FINGERPRINT, Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * @param prefs where the working choice is remembered, may be null
+     * @param device identifies the device build the choice is valid for
+     */
+    public EncoderSelector(CodecSource source, SharedPreferences prefs, String device,
+            int sdkInt) {
+        mSource = source;
+        mPrefs = prefs;
+        mPrefKey = KEY_ENCODER_CHOICE + device;
+        mSdkInt = sdkInt;
+    }
+
+    /**
+     * Returns the choice that worked last time on this device, or null.
+     */
+    public Choice getRemembered() {
+        if (mPrefs == null) return null;
+        return Choice.unflatten(mPrefs.getString(mPrefKey, null));
+    }
+
+    public void remember(Choice choice) {
+        if (mPrefs == null) return;
+        mPrefs.edit().putString(mPrefKey, choice.flatten()).commit();
+    }
+
+    public void forget() {
+        if (mPrefs == null) return;
+        mPrefs.edit().remove(mPrefKey).commit();
+    }
+
+    /**
+     * Returns the encoders to try, best first.  The remembered choice, if any, is the only
+     * one; call {@link #forget} and ask again if it stopped working.
+     */
+    public List<Choice> getCandidates() {
+        Choice remembered = getRemembered();
+        if (remembered != null) {
+            ArrayList<Choice> list = new ArrayList<Choice>();
+            list.add(remembered);
+            return list;
+        }
+        return rank(mSource.getEncoders(), mSdkInt);
+    }
+
+    /**
+     * Like {@link #getCandidates()}, limited to encoders of mimeType.  A remembered choice of
+     * another type is ignored, not forgotten.
+     */
+    public List<Choice> getCandidates(String mimeType) {
+        Choice remembered = getRemembered();
+        List<Choice> all = remembered != null && mimeType.equals(remembered.mimeType) ?
+                getCandidates() : rank(mSource.getEncoders(), mSdkInt);
+        ArrayList<Choice> list = new ArrayList<Choice>();
+        for (Choice choice : all) {
+            if (mimeType.equals(choice.mimeType)) list.add(choice);
+        }
+        return list;
+    }
+
+    /**
+     * Orders encoders: HEVC Main (only where the muxer takes it), AVC High, AVC Baseline.
+     * Within each tier hardware codecs come first, in list order.
+     */
+    public static List<Choice> rank(List<CodecDescription> encoders, int sdkInt) {
+        ArrayList<Choice> hardware = new ArrayList<Choice>();
+        ArrayList<Choice> software = new ArrayList<Choice>();
+        ArrayList<Choice> result = new ArrayList<Choice>();
+
+        if (sdkInt >= HEVC_MUXER_SDK) {
+            for (CodecDescription codec : encoders) {
+                if (MIME_HEVC.equalsIgnoreCase(codec.mimeType) &&
+                        codec.getLevel(HEVC_PROFILE_MAIN) != 0) {
+                    addChoice(codec, HEVC_PROFILE_MAIN, hardware, software);
+                }
+            }
+            result.addAll(hardware);
+            result.addAll(software);
+            hardware.clear();
+            software.clear();
+        }
+
+        for (CodecDescription codec : encoders) {
+            if (MIME_AVC.equalsIgnoreCase(codec.mimeType) &&
+                    codec.getLevel(CodecProfileLevel.AVCProfileHigh) != 0) {
+                addChoice(codec, CodecProfileLevel.AVCProfileHigh, hardware, software);
+            }
+        }
+        result.addAll(hardware);
+        result.addAll(software);
+        hardware.clear();
+        software.clear();
+
+        // Baseline is what every AVC encoder does when not asked for anything else
+        for (CodecDescription codec : encoders) {
+            if (MIME_AVC.equalsIgnoreCase(codec.mimeType)) {
+                addChoice(codec, 0, hardware, software);
+            }
+        }
+        result.addAll(hardware);
+        result.addAll(software);
+
+        if (VERBOSE) Log.d(TAG, "candidates: " + result);
+        return result;
+    }
+
+    private static void addChoice(CodecDescription codec, int profile,
+            ArrayList<Choice> hardware, ArrayList<Choice> software) {
+        int level = profile != 0 ? codec.getLevel(profile) : 0;
+        Choice choice = new Choice(codec.name, codec.mimeType, profile, level,
+                codec.maxInstances, codec.supportsVbr);
+        if (codec.isSoftware()) {
+            software.add(choice);
+        } else {
+            hardware.add(choice);
+        }
+    }
+
+    /**
+     * Reads the device's encoders from MediaCodecList.
+     */
+    public static class MediaCodecListSource implements CodecSource {
+        @Override
+        public List<CodecDescription> getEncoders() {
+            ArrayList<CodecDescription> list = new ArrayList<CodecDescription>();
+            for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+                MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+                if (!info.isEncoder()) continue;
+
+                for (String type : info.getSupportedTypes()) {
+                    if (!type.equalsIgnoreCase(MIME_AVC) && !type.equalsIgnoreCase(MIME_HEVC))
+                        continue;
+
+                    MediaCodecInfo.CodecCapabilities caps;
+                    try {
+                        caps = info.getCapabilitiesForType(type);
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, info.getName() + " has no capabilities for " + type);
+                        continue;
+                    }
+                    int[] profiles = new int[caps.profileLevels.length];
+                    int[] levels = new int[caps.profileLevels.length];
+                    for (int j = 0; j < profiles.length; j++) {
+                        profiles[j] = caps.profileLevels[j].profile;
+                        levels[j] = caps.profileLevels[j].level;
+                    }
+                    list.add(new CodecDescription(info.getName(), type, profiles, levels,
+                            getMaxInstances(caps), supportsVbr(caps)));
+                }
+            }
+            return list;
+        }
+
+        // getMaxSupportedInstances() only exists from API 23
+        private static int getMaxInstances(MediaCodecInfo.CodecCapabilities caps) {
+            try {
+                Method method = caps.getClass().getMethod("getMaxSupportedInstances");
+                return (Integer) method.invoke(caps);
+            } catch (Exception e) {
+                return DEFAULT_MAX_INSTANCES;
+            }
+        }
+
+        // getEncoderCapabilities().isBitrateModeSupported() only exists from API 21
+        private static boolean supportsVbr(MediaCodecInfo.CodecCapabilities caps) {
+            try {
+                Object encoderCaps = caps.getClass().getMethod("getEncoderCapabilities")
+                        .invoke(caps);
+                if (encoderCaps == null) return false;
+                Method method = encoderCaps.getClass().getMethod("isBitrateModeSupported",
+                        int.class);
+                return (Boolean) method.invoke(encoderCaps, BITRATE_MODE_VBR);
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+}
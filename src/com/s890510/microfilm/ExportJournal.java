@@ -0,0 +1,290 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Remembers the finished segments of a {@link SegmentedExport}, so an export that was
+ * interrupted or killed can continue where it stopped.
+ * <p>
+ * The journal lives in a directory of its own, next to the segment files.  It holds a hash
+ * of the render plan, the effect range of every segment, which segments are complete and
+ * where in the movie they start, and the crop centers the segments picked.  A journal is
+ * only picked up again by an export with the same plan hash; anything else starts over.
+ * <p>
+ * An export that isn't segmented only records how many frames it encoded, so the next
+ * attempt can tell whether checkpoints are worth their cost.
+ */
+public class ExportJournal {
+    private static final String TAG = "ExportJournal";
+    private static final boolean VERBOSE = false;
+
+    private static final String JOURNAL_NAME = "journal.json";
+    private static final String SEGMENT_PREFIX = "segment";
+
+    private final File mDir;
+    private String mPlanHash;
+    private ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private float[][] mCropCenters;
+    private int mProgressFrames;
+
+    private static class Entry {
+        int first;
+        int last;
+        boolean done;
+        long startUs;
+    }
+
+    public ExportJournal(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns a hash of the description of a render plan.
+     */
+    public static String hashPlan(String description) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(description.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for(int i=0; i<hash.length; i++) {
+                sb.append(Integer.toString((hash[i] & 0xff) + 0x100, 16).substring(1));
+            }
+            return sb.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads the journal of an earlier export of planHash.
+     *
+     * @return false if there is none; the directory is then emptied for a new one
+     */
+    public synchronized boolean open(String planHash) {
+        mPlanHash = planHash;
+        mEntries.clear();
+        mCropCenters = null;
+        mProgressFrames = 0;
+
+        File file = new File(mDir, JOURNAL_NAME);
+        if(file.exists()) {
+            try {
+                JSONObject json = new JSONObject(readFile(file));
+                if(planHash.equals(json.getString("plan"))) {
+                    JSONArray segments = json.getJSONArray("segments");
+                    for(int i=0; i<segments.length(); i++) {
+                        JSONObject segment = segments.getJSONObject(i);
+                        Entry entry = new Entry();
+                        entry.first = segment.getInt("first");
+                        entry.last = segment.getInt("last");
+                        entry.done = segment.getBoolean("done") &&
+                                new File(getSegmentPath(i)).length() > 0;
+                        entry.startUs = segment.getLong("start");
+                        mEntries.add(entry);
+                    }
+                    if(json.has("crop")) {
+                        JSONArray crop = json.getJSONArray("crop");
+                        mCropCenters = new float[crop.length()][];
+                        for(int i=0; i<crop.length(); i++) {
+                            JSONArray center = crop.optJSONArray(i);
+                            if(center != null) {
+                                mCropCenters[i] = new float[]{(float) center.getDouble(0),
+                                        (float) center.getDouble(1)};
+                            }
+                        }
+                    }
+                    mProgressFrames = json.optInt("progress", 0);
+                    Log.d(TAG, "resuming export, " + getDoneCount() + " of " + mEntries.size() +
+                            " segments done, " + mProgressFrames + " frames before");
+                    return true;
+                }
+            } catch(Exception e) {
+                Log.w(TAG, "journal unreadable, starting over", e);
+                mEntries.clear();
+                mCropCenters = null;
+                mProgressFrames = 0;
+            }
+        }
+        clear();
+        return false;
+    }
+
+    /**
+     * Starts a new journal for segments cut at ranges ({first, last} effects each).
+     */
+    public synchronized void start(ArrayList<int[]> ranges) {
+        mEntries.clear();
+        mProgressFrames = 0;
+        for(int[] range : ranges) {
+            Entry entry = new Entry();
+            entry.first = range[0];
+            entry.last = range[1];
+            mEntries.add(entry);
+        }
+        save();
+    }
+
+    /**
+     * Returns the segment ranges of a loaded journal.
+     */
+    public synchronized ArrayList<int[]> getRanges() {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        for(Entry entry : mEntries) {
+            ranges.add(new int[]{entry.first, entry.last});
+        }
+        return ranges;
+    }
+
+    public synchronized boolean isDone(int segment) {
+        return mEntries.get(segment).done;
+    }
+
+    /**
+     * Returns where a finished segment starts in the movie, in microseconds.
+     */
+    public synchronized long getStartUs(int segment) {
+        return mEntries.get(segment).startUs;
+    }
+
+    public synchronized float[][] getCropCenters() {
+        return mCropCenters;
+    }
+
+    /**
+     * Records a finished segment, with the crop centers picked so far.
+     */
+    public synchronized void markDone(int segment, long startUs, float[][] cropCenters) {
+        Entry entry = mEntries.get(segment);
+        entry.done = true;
+        entry.startUs = startUs;
+        mCropCenters = cropCenters;
+        save();
+    }
+
+    /**
+     * Records how many frames an export that isn't segmented has encoded.
+     */
+    public synchronized void markProgress(int frames) {
+        mProgressFrames = frames;
+        save();
+    }
+
+    /**
+     * Returns how many frames the last attempt of this plan encoded without segments.
+     */
+    public synchronized int getProgressFrames() {
+        return mProgressFrames;
+    }
+
+    public String getSegmentPath(int segment) {
+        return new File(mDir, SEGMENT_PREFIX + segment + ".mp4").getPath();
+    }
+
+    /**
+     * Deletes the journal and all segments.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mCropCenters = null;
+        mProgressFrames = 0;
+        File[] files = mDir.listFiles();
+        if(files != null) {
+            for(int i=0; i<files.length; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private int getDoneCount() {
+        int count = 0;
+        for(Entry entry : mEntries) {
+            if(entry.done) count++;
+        }
+        return count;
+    }
+
+    private void save() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("plan", mPlanHash);
+            JSONArray segments = new JSONArray();
+            for(Entry entry : mEntries) {
+                JSONObject segment = new JSONObject();
+                segment.put("first", entry.first);
+                segment.put("last", entry.last);
+                segment.put("done", entry.done);
+                segment.put("start", entry.startUs);
+                segments.put(segment);
+            }
+            json.put("segments", segments);
+            if(mProgressFrames > 0)
+                json.put("progress", mProgressFrames);
+            if(mCropCenters != null) {
+                JSONArray crop = new JSONArray();
+                synchronized(mCropCenters) {
+                    for(int i=0; i<mCropCenters.length; i++) {
+                        if(mCropCenters[i] == null) {
+                            crop.put(JSONObject.NULL);
+                        } else {
+                            JSONArray center = new JSONArray();
+                            center.put((double) mCropCenters[i][0]);
+                            center.put((double) mCropCenters[i][1]);
+                            crop.put(center);
+                        }
+                    }
+                }
+                json.put("crop", crop);
+            }
+
+            // write and rename, a journal is either the old one or the new one
+            mDir.mkdirs();
+            File tmp = new File(mDir, JOURNAL_NAME + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(json.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(new File(mDir, JOURNAL_NAME))) {
+                throw new IOException("rename failed");
+            }
+            if (VERBOSE) Log.d(TAG, "saved " + json);
+        } catch(JSONException e) {
+            Log.e(TAG, "saving journal failed", e);
+        } catch(IOException e) {
+            Log.e(TAG, "saving journal failed", e);
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while(read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if(count < 0) break;
+                read += count;
+            }
+            return new String(data, 0, read, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.s890510.microfilm;
+
+import java.lang.reflect.Method;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Decides how hard an export should push, from its frame times and the device's thermal
+ * status.
+ * <p>
+ * The first {@link #BASELINE_FRAMES} frames give the cool-device frame time.  When the
+ * device reports heat, or frames get much slower than that baseline, the scheduler steps
+ * up one strategy at a time, each cheaper to render than the last:
+ * <ol>
+ * <li>{@link #STRATEGY_ELIDE}: draw into an offscreen frame and re-submit unchanged frames
+ *     instead of drawing them,
+ * <li>{@link #STRATEGY_REDUCED}: draw at half the resolution and scale up,
+ * <li>{@link #STRATEGY_PACED}: on top of that, submit frames no faster than
+ *     {@link #PACE_FACTOR} times the baseline frame time, so the SoC can cool down.
+ * </ol>
+ * It steps back down once the device is cool again.  A step up waits until the device has
+ * been hot or slow for {@link #ESCALATE_NS}, and as long after the last change; a step down
+ * waits {@link #RELAX_NS} the same way, so a single slow frame changes nothing.
+ * <p>
+ * The clock and the thermal source are injected; {@link SystemClock} and
+ * {@link DeviceThermalSource} are the real ones.
+ */
+public class ExportScheduler {
+    private static final String TAG = "ExportScheduler";
+    private static final boolean VERBOSE = false;
+
+    public static final int STRATEGY_FULL = 0;
+    public static final int STRATEGY_ELIDE = 1;
+    public static final int STRATEGY_REDUCED = 2;
+    public static final int STRATEGY_PACED = 3;
+
+    // thermal status, from cool to hot; the first four of PowerManager's THERMAL_STATUS_*
+    public static final int THERMAL_UNKNOWN = -1;
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_LIGHT = 1;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+
+    static final int BASELINE_FRAMES = 50;
+    // frames this much slower than the baseline count as throttled ...
+    static final float SLOW_FACTOR = 1.5f;
+    // ... and this much as recovered
+    static final float RECOVERED_FACTOR = 1.15f;
+    static final float PACE_FACTOR = 1.5f;
+    static final long ESCALATE_NS = 2000000000L;
+    static final long RELAX_NS = 10000000000L;
+    static final long THERMAL_POLL_NS = 1000000000L;
+    // weight of the newest frame in the average frame time
+    private static final float AVERAGE_WEIGHT = 0.1f;
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public interface ThermalSource {
+        /**
+         * Returns one of the THERMAL_* values.
+         */
+        int getThermalStatus();
+    }
+
+    public static class SystemClock implements Clock {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    }
+
+    /**
+     * Reads PowerManager's thermal status where there is one (API 29), the battery
+     * temperature elsewhere.
+     */
+    public static class DeviceThermalSource implements ThermalSource {
+        // battery temperatures, in tenths of a degree, of LIGHT, MODERATE and SEVERE
+        private static final int[] BATTERY_LEVELS = {390, 420, 450};
+
+        private final Context mContext;
+        private Method mGetThermalStatus;
+
+        public DeviceThermalSource(Context context) {
+            mContext = context.getApplicationContext();
+            if(Build.VERSION.SDK_INT >= 29) {
+                try {
+                    mGetThermalStatus = PowerManager.class.getMethod("getCurrentThermalStatus");
+                } catch(NoSuchMethodException e) {
+                    mGetThermalStatus = null;
+                }
+            }
+        }
+
+        @Override
+        public int getThermalStatus() {
+            if(mGetThermalStatus != null) {
+                try {
+                    PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+                    int status = (Integer) mGetThermalStatus.invoke(pm);
+                    return Math.min(status, THERMAL_SEVERE);
+                } catch(Exception e) {
+                    Log.w(TAG, "no thermal status", e);
+                    mGetThermalStatus = null;
+                }
+            }
+
+            Intent battery = mContext.registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if(battery == null || !battery.hasExtra(BatteryManager.EXTRA_TEMPERATURE))
+                return THERMAL_UNKNOWN;
+            int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+            int status = THERMAL_NONE;
+            for(int i=0; i<BATTERY_LEVELS.length; i++) {
+                if(temperature >= BATTERY_LEVELS[i])
+                    status = i + 1;
+            }
+            return status;
+        }
+    }
+
+    private final Clock mClock;
+    private final ThermalSource mThermalSource;
+
+    private int mStrategy = STRATEGY_FULL;
+    private int mFrames = 0;
+    private float mAverageNs = 0;
+    private float mBaselineNs = 0;
+    private int mThermalStatus = THERMAL_UNKNOWN;
+    private long mLastThermalPoll;
+    private long mLastChange;
+    private long mLastSubmit;
+    // the last frame with no reason to step up, and the last with a reason not to step down
+    private long mLastUnpressured;
+    private long mLastUncool;
+
+    public ExportScheduler(Clock clock, ThermalSource thermalSource) {
+        mClock = clock;
+        mThermalSource = thermalSource;
+        mLastChange = clock.nanoTime();
+        mLastThermalPoll = mLastChange - THERMAL_POLL_NS;
+        mLastSubmit = mLastChange;
+        mLastUnpressured = mLastChange;
+        mLastUncool = mLastChange;
+    }
+
+    public int getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * Returns how long to wait before submitting the next frame, in nanoseconds.
+     */
+    public long getDelayNs() {
+        if(mStrategy < STRATEGY_PACED || mBaselineNs <= 0)
+            return 0;
+        long next = mLastSubmit + (long) (mBaselineNs * PACE_FACTOR);
+        return Math.max(0, next - mClock.nanoTime());
+    }
+
+    /**
+     * Reports a submitted frame that took frameNs to draw and submit, not counting a pacing
+     * delay.
+     *
+     * @return the strategy for the next frame
+     */
+    public int onFrame(long frameNs) {
+        long now = mClock.nanoTime();
+        mLastSubmit = now;
+        mFrames++;
+        if(mFrames == 1) {
+            mAverageNs = frameNs;
+        } else {
+            mAverageNs += (frameNs - mAverageNs) * AVERAGE_WEIGHT;
+        }
+
+        if(mFrames <= BASELINE_FRAMES) {
+            if(mFrames == BASELINE_FRAMES) mBaselineNs = mAverageNs;
+        } else if(mStrategy == STRATEGY_FULL && mAverageNs < mBaselineNs) {
+            // faster than at the start, e.g. the effects got simpler
+            mBaselineNs = mAverageNs;
+        }
+
+        if(now - mLastThermalPoll >= THERMAL_POLL_NS) {
+            mLastThermalPoll = now;
+            mThermalStatus = mThermalSource.getThermalStatus();
+        }
+
+        int next = decide(now);
+        if(next != mStrategy) {
+            Log.d(TAG, "strategy " + mStrategy + " -> " + next + ", thermal " + mThermalStatus +
+                    ", frame " + (long) mAverageNs / 1000 + " us, baseline " +
+                    (long) mBaselineNs / 1000 + " us");
+            mStrategy = next;
+            mLastChange = now;
+        }
+        return mStrategy;
+    }
+
+    private int decide(long now) {
+        // cheaper strategies only make frames faster, so still being slow is throttling too;
+        // being fast again under one only says the device is cool when nothing else does
+        boolean slow = mBaselineNs > 0 && mAverageNs > mBaselineNs * SLOW_FACTOR;
+        boolean hot = mThermalStatus >= THERMAL_MODERATE;
+        boolean cool = mThermalStatus == THERMAL_UNKNOWN ?
+                mAverageNs < mBaselineNs * RECOVERED_FACTOR : mThermalStatus <= THERMAL_LIGHT;
+
+        if(!hot && !slow) mLastUnpressured = now;
+        if(hot || slow || !cool) mLastUncool = now;
+
+        if(mThermalStatus >= THERMAL_SEVERE) {
+            return STRATEGY_PACED;
+        }
+
+        long sinceChange = now - mLastChange;
+        if(mStrategy < STRATEGY_PACED &&
+                Math.min(sinceChange, now - mLastUnpressured) >= ESCALATE_NS) {
+            return mStrategy + 1;
+        }
+        if(mStrategy > STRATEGY_FULL &&
+                Math.min(sinceChange, now - mLastUncool) >= RELAX_NS) {
+            return mStrategy - 1;
+        }
+        if (VERBOSE) Log.d(TAG, "frame " + (long) mAverageNs / 1000 + " us, thermal " + mThermalStatus);
+        return mStrategy;
+    }
+}
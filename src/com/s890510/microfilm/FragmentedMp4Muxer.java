@@ -0,0 +1,791 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Writes a fragmented MP4 as the samples come in, so the file can be played while the
+ * export is still running.
+ * <p>
+ * The header (ftyp, moov without samples, mvex) is written by {@link #start}.  Every
+ * video sync frame closes the fragment before it: one moof/mdat per GOP, carrying the GOP
+ * and the audio samples up to where the next GOP starts.  The caller therefore has to
+ * write the audio of a GOP before that GOP's closing sync frame.  {@link #stop} writes the
+ * last fragment and the mfra random access index.
+ * <p>
+ * The moof of a fragment can only be written once its samples are known, so the video of
+ * the open fragment goes to a spill file next to the output until then, and is copied from
+ * there behind the moof with {@link FileChannel#transferTo}.  The heap holds the sample
+ * times and sizes and the audio of the fragment, not the GOP.
+ * <p>
+ * Supports H.264 video, as MediaCodec emits it (Annex B, with SPS/PPS in csd-0/csd-1),
+ * and AAC audio, as MediaExtractor reads it.
+ */
+public class FragmentedMp4Muxer implements MovieMuxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+    private static final boolean VERBOSE = false;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final String SPILL_SUFFIX = ".gop";
+
+    // sample_depends_on=2 (I frame), and sample_depends_on=1 plus sample_is_non_sync_sample
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int[] UNITY_MATRIX = {
+        0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+    };
+
+    private static class Sample {
+        long timeUs;
+        boolean sync;
+        int offset;
+        int size;
+    }
+
+    private static class Track {
+        int id;
+        boolean video;
+        MediaFormat format;
+        int timescale;
+        ArrayList<Sample> pending = new ArrayList<Sample>();
+        // the audio of the open fragment
+        Boxes data = new Boxes();
+        // the video of the open fragment, which always goes out whole
+        File spillFile;
+        RandomAccessFile spill;
+        long lastDurationUs;
+        // tfra entries: {decode time, moof offset, traf number}
+        ArrayList<long[]> index = new ArrayList<long[]>();
+    }
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final String mPath;
+    private long mFileOffset = 0;
+    private ArrayList<Track> mTracks = new ArrayList<Track>();
+    private Track mVideoTrack;
+    private int mSequence = 0;
+    private boolean mStarted = false;
+    private boolean mStopped = false;
+
+    public FragmentedMp4Muxer(String path) throws IOException {
+        mStream = new FileOutputStream(path);
+        mChannel = mStream.getChannel();
+        mPath = path;
+    }
+
+    @Override
+    public synchronized int addTrack(MediaFormat format) {
+        if(mStarted) {
+            throw new IllegalStateException("muxer already started");
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        Track track = new Track();
+        track.id = mTracks.size() + 1;
+        track.format = format;
+        if("video/avc".equals(mime)) {
+            track.video = true;
+            track.timescale = VIDEO_TIMESCALE;
+            track.spillFile = new File(mPath + SPILL_SUFFIX + track.id);
+            try {
+                track.spill = new RandomAccessFile(track.spillFile, "rw");
+                track.spill.setLength(0);
+            } catch(IOException e) {
+                throw new RuntimeException("creating " + track.spillFile + " failed", e);
+            }
+            if(mVideoTrack == null) mVideoTrack = track;
+        } else if("audio/mp4a-latm".equals(mime)) {
+            track.timescale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        } else {
+            throw new IllegalArgumentException("unsupported track " + mime);
+        }
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        // the movie is always rendered upright
+    }
+
+    @Override
+    public synchronized void start() {
+        Boxes header = new Boxes();
+        header.open("ftyp");
+        header.putFourCC("isom");
+        header.putInt(0x200);
+        header.putFourCC("isom");
+        header.putFourCC("iso6");
+        header.putFourCC("avc1");
+        header.putFourCC("mp41");
+        header.close();
+        writeMoov(header);
+        write(header);
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo bufferInfo) {
+        if(!mStarted || mStopped) {
+            throw new IllegalStateException("muxer not started");
+        }
+        Track track = mTracks.get(trackIndex);
+        boolean sync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        // a new GOP closes the fragment before it
+        if(track == mVideoTrack && sync && !track.pending.isEmpty()) {
+            writeFragment(bufferInfo.presentationTimeUs);
+        }
+
+        Sample sample = new Sample();
+        sample.timeUs = bufferInfo.presentationTimeUs;
+        sample.sync = sync || !track.video;
+        ByteBuffer src = byteBuf.duplicate();
+        src.limit(bufferInfo.offset + bufferInfo.size);
+        src.position(bufferInfo.offset);
+        if(track.video) {
+            sample.size = spillLengthPrefixed(track.spill.getChannel(), src);
+        } else {
+            sample.offset = track.data.size();
+            track.data.putBuffer(src);
+            sample.size = track.data.size() - sample.offset;
+        }
+        track.pending.add(sample);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if(!mStarted || mStopped) {
+            throw new IllegalStateException("muxer not started");
+        }
+        writeFragment(Long.MAX_VALUE);
+        writeMfra();
+        mStopped = true;
+        close();
+        Log.d(TAG, "wrote " + mSequence + " fragments, " + mFileOffset + " bytes");
+    }
+
+    @Override
+    public synchronized void release() {
+        close();
+    }
+
+    private void close() {
+        try {
+            mStream.close();
+        } catch(IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+        for(Track track : mTracks) {
+            if(track.spill == null) continue;
+            try {
+                track.spill.close();
+            } catch(IOException e) {
+                Log.w(TAG, "close failed", e);
+            }
+            track.spillFile.delete();
+        }
+    }
+
+    /**
+     * Writes all pending video, and the pending audio before endUs, as one fragment.
+     */
+    private void writeFragment(long endUs) {
+        ArrayList<Track> tracks = new ArrayList<Track>();
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+        for(Track track : mTracks) {
+            int count = 0;
+            while(count < track.pending.size() &&
+                    (track.video || track.pending.get(count).timeUs < endUs)) {
+                count++;
+            }
+            if(count > 0) {
+                tracks.add(track);
+                counts.add(count);
+            }
+        }
+        if(tracks.isEmpty()) return;
+
+        mSequence++;
+        long moofOffset = mFileOffset;
+        Boxes moof = new Boxes();
+        moof.open("moof");
+        moof.openFull("mfhd", 0, 0);
+        moof.putInt(mSequence);
+        moof.close();
+
+        int[] dataOffsetPos = new int[tracks.size()];
+        int[] dataSizes = new int[tracks.size()];
+        for(int t=0; t<tracks.size(); t++) {
+            Track track = tracks.get(t);
+            int count = counts.get(t);
+            Sample next = count < track.pending.size() ? track.pending.get(count) : null;
+            long nextUs = track.video ? endUs : (next != null ? next.timeUs : Long.MAX_VALUE);
+
+            // samples are in decode order; decode times are the sorted presentation times
+            long[] decodeUs = new long[count];
+            for(int i=0; i<count; i++)
+                decodeUs[i] = track.pending.get(i).timeUs;
+            Arrays.sort(decodeUs);
+
+            long baseTime = toTimescale(decodeUs[0], track.timescale);
+            if(track.video || track.index.isEmpty())
+                track.index.add(new long[]{baseTime, moofOffset, t + 1});
+
+            moof.open("traf");
+            moof.openFull("tfhd", 0, 0x020000);     // default-base-is-moof
+            moof.putInt(track.id);
+            moof.close();
+            moof.openFull("tfdt", 1, 0);
+            moof.putLong(baseTime);
+            moof.close();
+            // data offset, duration, size, flags and composition offset for every sample
+            moof.openFull("trun", 1, 0x000001 | 0x000100 | 0x000200 | 0x000400 | 0x000800);
+            moof.putInt(count);
+            dataOffsetPos[t] = moof.size();
+            moof.putInt(0);
+            for(int i=0; i<count; i++) {
+                Sample sample = track.pending.get(i);
+                long durationUs;
+                if(i + 1 < count) {
+                    durationUs = decodeUs[i + 1] - decodeUs[i];
+                } else if(nextUs != Long.MAX_VALUE) {
+                    durationUs = nextUs - decodeUs[i];
+                } else if(track.lastDurationUs > 0) {
+                    durationUs = track.lastDurationUs;
+                } else {
+                    durationUs = track.video ? 1000000L / 30 :
+                            AAC_FRAME_SAMPLES * 1000000L / track.timescale;
+                }
+                track.lastDurationUs = durationUs;
+
+                moof.putInt((int) toTimescale(durationUs, track.timescale));
+                moof.putInt(sample.size);
+                moof.putInt(sample.sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                moof.putInt((int) (toTimescale(sample.timeUs, track.timescale) -
+                        toTimescale(decodeUs[i], track.timescale)));
+                dataSizes[t] += sample.size;
+            }
+            moof.close();
+            moof.close();
+        }
+        moof.close();
+
+        // trun data offsets count from the start of the moof
+        int offset = moof.size() + 8;
+        for(int t=0; t<tracks.size(); t++) {
+            moof.patchInt(dataOffsetPos[t], offset);
+            offset += dataSizes[t];
+        }
+
+        Boxes mdatHeader = new Boxes();
+        mdatHeader.putInt(offset - moof.size());
+        mdatHeader.putFourCC("mdat");
+
+        write(moof);
+        write(mdatHeader);
+        for(int t=0; t<tracks.size(); t++) {
+            Track track = tracks.get(t);
+            int count = counts.get(t);
+            if(track.video) {
+                // all of it
+                transferSpill(track, dataSizes[t]);
+                track.pending.clear();
+                continue;
+            }
+            Sample first = track.pending.get(0);
+            write(track.data.toBuffer(first.offset, dataSizes[t]));
+
+            // keep what didn't go into this fragment
+            Boxes rest = new Boxes();
+            int restStart = first.offset + dataSizes[t];
+            ArrayList<Sample> remaining = new ArrayList<Sample>(
+                    track.pending.subList(count, track.pending.size()));
+            rest.putBuffer(track.data.toBuffer(restStart, track.data.size() - restStart));
+            for(Sample sample : remaining)
+                sample.offset -= restStart;
+            track.data = rest;
+            track.pending = remaining;
+        }
+        if (VERBOSE) Log.d(TAG, "fragment " + mSequence + " at " + moofOffset + ", " + offset + " bytes");
+    }
+
+    private void writeMoov(Boxes b) {
+        b.open("moov");
+        b.openFull("mvhd", 0, 0);
+        b.putInt(0);                    // creation time
+        b.putInt(0);                    // modification time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);                    // duration, unknown until the end
+        b.putInt(0x00010000);           // rate 1.0
+        b.putShort(0x0100);             // volume 1.0
+        b.putShort(0);
+        b.putInt(0);
+        b.putInt(0);
+        for(int i=0; i<UNITY_MATRIX.length; i++)
+            b.putInt(UNITY_MATRIX[i]);
+        for(int i=0; i<6; i++)
+            b.putInt(0);
+        b.putInt(mTracks.size() + 1);   // next track id
+        b.close();
+
+        for(Track track : mTracks) {
+            writeTrak(b, track);
+        }
+
+        b.open("mvex");
+        for(Track track : mTracks) {
+            b.openFull("trex", 0, 0);
+            b.putInt(track.id);
+            b.putInt(1);                // sample description index
+            b.putInt(0);
+            b.putInt(0);
+            b.putInt(0);
+            b.close();
+        }
+        b.close();
+        b.close();
+    }
+
+    private void writeTrak(Boxes b, Track track) {
+        int width = 0;
+        int height = 0;
+        if(track.video) {
+            width = track.format.getInteger(MediaFormat.KEY_WIDTH);
+            height = track.format.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+
+        b.open("trak");
+        b.openFull("tkhd", 0, 0x000003);    // enabled, in movie
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.id);
+        b.putInt(0);
+        b.putInt(0);                        // duration
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort(0);                      // layer
+        b.putShort(0);                      // alternate group
+        b.putShort(track.video ? 0 : 0x0100);
+        b.putShort(0);
+        for(int i=0; i<UNITY_MATRIX.length; i++)
+            b.putInt(UNITY_MATRIX[i]);
+        b.putInt(width << 16);
+        b.putInt(height << 16);
+        b.close();
+
+        b.open("mdia");
+        b.openFull("mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.timescale);
+        b.putInt(0);
+        b.putShort(0x55c4);                 // "und"
+        b.putShort(0);
+        b.close();
+
+        b.openFull("hdlr", 0, 0);
+        b.putInt(0);
+        b.putFourCC(track.video ? "vide" : "soun");
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putString(track.video ? "VideoHandle" : "SoundHandle");
+        b.close();
+
+        b.open("minf");
+        if(track.video) {
+            b.openFull("vmhd", 0, 1);
+            b.putShort(0);
+            b.putShort(0);
+            b.putShort(0);
+            b.putShort(0);
+        } else {
+            b.openFull("smhd", 0, 0);
+            b.putShort(0);
+            b.putShort(0);
+        }
+        b.close();
+        b.open("dinf");
+        b.openFull("dref", 0, 0);
+        b.putInt(1);
+        b.openFull("url ", 0, 1);           // media is in this file
+        b.close();
+        b.close();
+        b.close();
+
+        b.open("stbl");
+        b.openFull("stsd", 0, 0);
+        b.putInt(1);
+        if(track.video) {
+            writeAvc1(b, track.format, width, height);
+        } else {
+            writeMp4a(b, track.format);
+        }
+        b.close();
+        // samples are all in the fragments
+        b.openFull("stts", 0, 0);
+        b.putInt(0);
+        b.close();
+        b.openFull("stsc", 0, 0);
+        b.putInt(0);
+        b.close();
+        b.openFull("stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.close();
+        b.openFull("stco", 0, 0);
+        b.putInt(0);
+        b.close();
+        b.close();
+        b.close();
+        b.close();
+        b.close();
+    }
+
+    private static void writeAvc1(Boxes b, MediaFormat format, int width, int height) {
+        ArrayList<byte[]> sps = new ArrayList<byte[]>();
+        ArrayList<byte[]> pps = new ArrayList<byte[]>();
+        for(String key : new String[]{"csd-0", "csd-1"}) {
+            if(!format.containsKey(key)) continue;
+            for(byte[] nal : splitNals(format.getByteBuffer(key))) {
+                if(nal.length == 0) continue;
+                int type = nal[0] & 0x1f;
+                if(type == 7) sps.add(nal);
+                else if(type == 8) pps.add(nal);
+            }
+        }
+        if(sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("no SPS/PPS in " + format);
+        }
+
+        b.open("avc1");
+        b.putInt(0);
+        b.putShort(0);
+        b.putShort(1);                      // data reference index
+        b.putShort(0);
+        b.putShort(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort(width);
+        b.putShort(height);
+        b.putInt(0x00480000);               // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort(1);                      // frame count
+        for(int i=0; i<32; i++)
+            b.putByte(0);                   // compressor name
+        b.putShort(0x0018);                 // depth
+        b.putShort(0xffff);
+
+        byte[] first = sps.get(0);
+        b.open("avcC");
+        b.putByte(1);
+        b.putByte(first[1]);                // profile
+        b.putByte(first[2]);                // constraint flags
+        b.putByte(first[3]);                // level
+        b.putByte(0xff);                    // 4 byte NAL lengths
+        b.putByte(0xe0 | sps.size());
+        for(byte[] nal : sps) {
+            b.putShort(nal.length);
+            b.putBytes(nal);
+        }
+        b.putByte(pps.size());
+        for(byte[] nal : pps) {
+            b.putShort(nal.length);
+            b.putBytes(nal);
+        }
+        b.close();
+        b.close();
+    }
+
+    private static void writeMp4a(Boxes b, MediaFormat format) {
+        ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+        byte[] config = new byte[csd.remaining()];
+        csd.get(config);
+
+        b.open("mp4a");
+        b.putInt(0);
+        b.putShort(0);
+        b.putShort(1);                      // data reference index
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        b.putShort(16);                     // sample size
+        b.putShort(0);
+        b.putShort(0);
+        b.putInt(format.getInteger(MediaFormat.KEY_SAMPLE_RATE) << 16);
+
+        int decoderConfigSize = 13 + 2 + config.length;
+        b.openFull("esds", 0, 0);
+        b.putByte(0x03);                    // ES_Descriptor
+        b.putByte(3 + 2 + decoderConfigSize + 3);
+        b.putShort(0);
+        b.putByte(0);
+        b.putByte(0x04);                    // DecoderConfigDescriptor
+        b.putByte(decoderConfigSize);
+        b.putByte(0x40);                    // AAC
+        b.putByte(0x15);                    // audio stream
+        b.putByte(0);                       // buffer size
+        b.putShort(0);
+        b.putInt(0);                        // max bitrate
+        b.putInt(0);                        // average bitrate
+        b.putByte(0x05);                    // DecoderSpecificInfo
+        b.putByte(config.length);
+        b.putBytes(config);
+        b.putByte(0x06);                    // SLConfigDescriptor
+        b.putByte(1);
+        b.putByte(0x02);
+        b.close();
+        b.close();
+    }
+
+    private void writeMfra() {
+        Boxes b = new Boxes();
+        b.open("mfra");
+        for(Track track : mTracks) {
+            b.openFull("tfra", 1, 0);
+            b.putInt(track.id);
+            b.putInt(0);                    // one byte traf, trun and sample numbers
+            b.putInt(track.index.size());
+            for(long[] entry : track.index) {
+                b.putLong(entry[0]);
+                b.putLong(entry[1]);
+                b.putByte((int) entry[2]);
+                b.putByte(1);
+                b.putByte(1);
+            }
+            b.close();
+        }
+        b.openFull("mfro", 0, 0);
+        b.putInt(b.size() + 4);
+        b.close();
+        b.close();
+        write(b);
+    }
+
+    private void write(Boxes boxes) {
+        write(boxes.toBuffer(0, boxes.size()));
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while(buffer.hasRemaining()) {
+                mFileOffset += mChannel.write(buffer);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("writing fragment failed", e);
+        }
+    }
+
+    // copies the spilled video of a fragment to the output, and empties the spill file
+    private void transferSpill(Track track, long size) {
+        try {
+            FileChannel spill = track.spill.getChannel();
+            long done = 0;
+            while(done < size) {
+                long count = spill.transferTo(done, size - done, mChannel);
+                if(count <= 0) {
+                    throw new IOException("spill file ends at " + done + " of " + size);
+                }
+                done += count;
+            }
+            mFileOffset += size;
+            spill.truncate(0);
+            spill.position(0);
+        } catch(IOException e) {
+            throw new RuntimeException("writing fragment failed", e);
+        }
+    }
+
+    private static long toTimescale(long timeUs, int timescale) {
+        return timeUs * timescale / 1000000L;
+    }
+
+    /**
+     * Appends the NAL units of an Annex B sample to out, each behind a 4 byte length,
+     * straight from the sample's buffer.
+     *
+     * @return the bytes written
+     */
+    private static int spillLengthPrefixed(FileChannel out, ByteBuffer sample) {
+        ArrayList<int[]> nals = findNals(sample);
+        ByteBuffer[] parts = new ByteBuffer[nals.size() * 2];
+        ByteBuffer lengths = ByteBuffer.allocate(nals.size() * 4);
+        int size = 0;
+        for(int i=0; i<nals.size(); i++) {
+            int[] nal = nals.get(i);
+            lengths.putInt(nal[1] - nal[0]);
+            ByteBuffer length = lengths.duplicate();
+            length.limit(i * 4 + 4);
+            length.position(i * 4);
+            parts[i * 2] = length;
+            ByteBuffer data = sample.duplicate();
+            data.limit(nal[1]);
+            data.position(nal[0]);
+            parts[i * 2 + 1] = data;
+            size += 4 + nal[1] - nal[0];
+        }
+        try {
+            long written = 0;
+            while(written < size) {
+                written += out.write(parts);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("spilling sample failed", e);
+        }
+        return size;
+    }
+
+    /**
+     * Splits Annex B data at its start codes.  Data without start codes is one NAL unit.
+     */
+    private static ArrayList<byte[]> splitNals(ByteBuffer buffer) {
+        ArrayList<byte[]> nals = new ArrayList<byte[]>();
+        for(int[] range : findNals(buffer)) {
+            ByteBuffer nal = buffer.duplicate();
+            nal.limit(range[1]);
+            nal.position(range[0]);
+            byte[] data = new byte[nal.remaining()];
+            nal.get(data);
+            nals.add(data);
+        }
+        return nals;
+    }
+
+    /**
+     * Returns the {start, end} positions in buffer of the NAL units of Annex B data.
+     */
+    private static ArrayList<int[]> findNals(ByteBuffer buffer) {
+        ArrayList<int[]> nals = new ArrayList<int[]>();
+        int limit = buffer.limit();
+        int start = -1;
+        int i = buffer.position();
+        while(i + 2 < limit) {
+            if(buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                if(start >= 0) {
+                    int end = i;
+                    // the zero of a 4 byte start code belongs to the next one
+                    if(end > start && buffer.get(end - 1) == 0) end--;
+                    nals.add(new int[]{start, end});
+                }
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if(start < 0) {
+            nals.add(new int[]{buffer.position(), limit});
+        } else if(start < limit) {
+            nals.add(new int[]{start, limit});
+        }
+        return nals;
+    }
+
+    /**
+     * A growable big-endian buffer that can nest boxes and fill in their sizes.
+     */
+    private static class Boxes {
+        private byte[] mData = new byte[256];
+        private int mSize = 0;
+        private int[] mOpen = new int[16];
+        private int mDepth = 0;
+
+        void open(String type) {
+            mOpen[mDepth++] = mSize;
+            putInt(0);
+            putFourCC(type);
+        }
+
+        void openFull(String type, int version, int flags) {
+            open(type);
+            putInt((version << 24) | flags);
+        }
+
+        void close() {
+            int start = mOpen[--mDepth];
+            patchInt(start, mSize - start);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            mData[mSize++] = (byte) value;
+        }
+
+        void putShort(int value) {
+            putByte(value >> 8);
+            putByte(value);
+        }
+
+        void putInt(int value) {
+            putShort(value >> 16);
+            putShort(value);
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >> 32));
+            putInt((int) value);
+        }
+
+        void putFourCC(String type) {
+            for(int i=0; i<4; i++)
+                putByte(type.charAt(i));
+        }
+
+        void putString(String value) {
+            for(int i=0; i<value.length(); i++)
+                putByte(value.charAt(i));
+            putByte(0);
+        }
+
+        void putBytes(byte[] data) {
+            ensure(data.length);
+            System.arraycopy(data, 0, mData, mSize, data.length);
+            mSize += data.length;
+        }
+
+        void putBuffer(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            ensure(length);
+            buffer.duplicate().get(mData, mSize, length);
+            mSize += length;
+        }
+
+        void patchInt(int position, int value) {
+            mData[position] = (byte) (value >> 24);
+            mData[position + 1] = (byte) (value >> 16);
+            mData[position + 2] = (byte) (value >> 8);
+            mData[position + 3] = (byte) value;
+        }
+
+        ByteBuffer toBuffer(int offset, int length) {
+            return ByteBuffer.wrap(mData, offset, length);
+        }
+
+        private void ensure(int length) {
+            if(mSize + length > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + length));
+            }
+        }
+    }
+}
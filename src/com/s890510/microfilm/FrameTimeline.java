@@ -0,0 +1,185 @@
+package com.s890510.microfilm;
+
+import java.util.ArrayList;
+
+/**
+ * Which elements are on screen at any time of a movie, and at what elapse time of their
+ * own, worked out once for the whole script instead of frame by frame.
+ * <p>
+ * The movie is a run of steps, one per effect of the script; a step starts when its element
+ * comes in and lasts the element's sleep.  Each step lists its {@link Layer}s, the elements
+ * still on screen, oldest first.  {@link #compile} follows the rules the encoder always drew
+ * by: only the last {@link #WINDOW} photos can be on screen, an element shows for its
+ * effect's duration, nothing is drawn past the sleep of the newest element, and an element
+ * with no sleep starts together with the next one.
+ * <p>
+ * A FrameTimeline doesn't change once compiled.  {@link #find} looks a time up in
+ * O(log steps).
+ */
+public class FrameTimeline {
+    private static final String TAG = "FrameTimeline";
+
+    // the photos that can be on screen together, as in ProcessGL
+    public static final int WINDOW = 5;
+
+    /**
+     * An element on screen during a step.
+     */
+    public static class Layer {
+        public final ElementInfo info;
+        // the element's slot in ProcessGL's window, WINDOW - 1 being the newest
+        public final int slot;
+        // the element's elapse time when the step starts
+        public final int offset;
+        // the last elapse time of the step the element is drawn at
+        public final int limit;
+
+        Layer(ElementInfo info, int slot, int offset, int limit) {
+            this.info = info;
+            this.slot = slot;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        /**
+         * Returns the element's elapse time stepElapse into the step, or -1 if it isn't
+         * drawn then.
+         */
+        public long getElapse(long stepElapse) {
+            if(stepElapse > limit)
+                return -1;
+            return offset + stepElapse;
+        }
+    }
+
+    public static class Step {
+        public final int index;
+        public final long startMs;
+        public final long lengthMs;
+        public final Layer[] layers;
+
+        Step(int index, long startMs, long lengthMs, Layer[] layers) {
+            this.index = index;
+            this.startMs = startMs;
+            this.lengthMs = lengthMs;
+            this.layers = layers;
+        }
+    }
+
+    private final ArrayList<ElementInfo> mOrder;
+    private final Step[] mSteps;
+    // the steps that last, by start time, for find()
+    private final Step[] mShown;
+    private final long mDurationMs;
+
+    private FrameTimeline(ArrayList<ElementInfo> order, Step[] steps, Step[] shown, long durationMs) {
+        mOrder = order;
+        mSteps = steps;
+        mShown = shown;
+        mDurationMs = durationMs;
+    }
+
+    /**
+     * Compiles the timeline of the elements of order, which take their effects from the
+     * script, with step i lasting lengthMs[i].  Steps of length 0 show nothing.
+     */
+    public static FrameTimeline compile(ArrayList<ElementInfo> order, int[] lengthMs) {
+        Step[] steps = new Step[lengthMs.length];
+        ArrayList<Step> shown = new ArrayList<Step>();
+        ElementInfo[] window = new ElementInfo[WINDOW];
+        int[] remain = new int[WINDOW];
+        // -1 marks an element with no sleep, which starts with the next step
+        int[] start = new int[WINDOW];
+        int last = WINDOW - 1;
+        int preSleep = 0;
+        long time = 0;
+
+        for(int k=0; k<lengthMs.length; k++) {
+            ElementInfo info = order.get(k % order.size());
+            // only photos go through ProcessGL's window
+            if(info.Type == MediaInfo.MEDIA_TYPE_IMAGE) {
+                System.arraycopy(window, 1, window, 0, last);
+                window[last] = info;
+            }
+            if(info.time == 0) {
+                System.arraycopy(remain, 1, remain, 0, last);
+                System.arraycopy(start, 1, start, 0, last);
+                remain[last] = info.effect.getDuration();
+                start[last] = -1;
+            }
+
+            Layer[] layers = new Layer[0];
+            ElementInfo newest = window[last];
+            if(lengthMs[k] > 0 && newest != null) {
+                // what is left of every element's duration and how far in it is, after the
+                // sleep of the step before
+                for(int j=0; j<last; j++) {
+                    remain[j] = start[j+1] == -1 ? remain[j+1] : Math.max(0, remain[j+1] - preSleep);
+                }
+                remain[last] = newest.effect.getDuration();
+                for(int j=0; j<last; j++) {
+                    start[j] = start[j+1] == -1 ? 0 : start[j+1] + preSleep;
+                }
+                start[last] = 0;
+                preSleep = newest.effect.getSleep();
+
+                ArrayList<Layer> list = new ArrayList<Layer>();
+                for(int j=0; j<WINDOW; j++) {
+                    if(window[j] == null || (j < last && remain[j] == 0))
+                        continue;
+                    list.add(new Layer(window[j], j, start[j], Math.min(remain[j], preSleep)));
+                }
+                layers = list.toArray(layers);
+            }
+
+            steps[k] = new Step(k, time, lengthMs[k], layers);
+            if(lengthMs[k] > 0)
+                shown.add(steps[k]);
+            time += lengthMs[k];
+        }
+        return new FrameTimeline(order, steps, shown.toArray(new Step[shown.size()]), time);
+    }
+
+    /**
+     * Returns whether this is the timeline of order.
+     */
+    public boolean isFor(ArrayList<ElementInfo> order) {
+        return mOrder == order;
+    }
+
+    public int getStepCount() {
+        return mSteps.length;
+    }
+
+    /**
+     * Returns step index, or null if there is no such step.
+     */
+    public Step getStep(int index) {
+        if(index < 0 || index >= mSteps.length)
+            return null;
+        return mSteps[index];
+    }
+
+    /**
+     * Returns the step shown at timeMs, the last one at the very end of the movie, or null if
+     * timeMs is outside the movie.
+     */
+    public Step find(long timeMs) {
+        if(timeMs < 0 || timeMs > mDurationMs || mShown.length == 0)
+            return null;
+        int low = 0;
+        int high = mShown.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(mShown[mid].startMs <= timeMs)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return mShown[low];
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+}
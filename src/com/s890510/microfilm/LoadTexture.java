@@ -8,7 +8,6 @@ import android.opengl.GLES20;
 
 public class LoadTexture {
     private String TAG = "LoadTexture";
-    private int[] textureHandle = null;
 
     public void BindTexture(int target, int texture) {
         // Bind to the texture in OpenGL
@@ -22,17 +21,19 @@ public class LoadTexture {
         GLES20.glTexParameteri(target, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
     }
 
-    public int GenTexture(String Method, int Id) {
-        if(textureHandle == null) {
-            textureHandle = new int[8]; //0: unuse, 1-5:bitmap, 6:slogan
-            for(int i=0; i<textureHandle.length; i++)
-                textureHandle[i] = i;
-        }
+    // called from the GL thread and the texture uploader's, so no shared scratch array
+    public int GenTexture() {
+        final int[] textureHandle = new int[1];
 
-        if(Method == "Video" || Method == "Bitmap" || Method == "Special")
-            return textureHandle[Id];
+        GLES20.glGenTextures(1, textureHandle, 0);
+        return textureHandle[0];
+    }
+
+    public void DeleteTexture(int texture) {
+        final int[] textureHandle = new int[1];
 
-        return 0;
+        textureHandle[0] = texture;
+        GLES20.glDeleteTextures(1, textureHandle, 0);
     }
 
     private Bitmap BitmapScale(Bitmap mBitmap, int width, int height) {
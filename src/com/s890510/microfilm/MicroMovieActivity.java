@@ -28,15 +28,7 @@ import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
-import com.s890510.microfilm.script.Carnival;
-import com.s890510.microfilm.script.City;
-import com.s890510.microfilm.script.Country;
-import com.s890510.microfilm.script.Kids;
-import com.s890510.microfilm.script.Life;
-import com.s890510.microfilm.script.Lover;
-import com.s890510.microfilm.script.Memory;
 import com.s890510.microfilm.script.Script;
-import com.s890510.microfilm.script.Sports;
 import com.s890510.microfilm.util.AsusThemeUtility;
 import com.s890510.microfilm.util.Util;
 
@@ -100,8 +92,16 @@ public class MicroMovieActivity extends Activity {
     public static final int mVisioWidth = 1280;
     public static final int mVisioHeight = 720;
 
+    // the poster JPEG EncodeAndMux saved next to the video, in the result of a finished export
+    public static final String EXTRA_POSTER_PATH = "poster_path";
+    public static final String EXTRA_FRAME_TIME = "frame_time";
+
     interface ISaveCallback{
-        void onSaveDone(String saveUri, int frameTime);
+        /**
+         * @param frameTime where the poster is in the movie, in microseconds
+         * @param posterPath the poster as a JPEG, or null if it couldn't be saved
+         */
+        void onSaveDone(String saveUri, int frameTime, String posterPath);
         void onException();
         void onDDSSave();
         void onInterrupted();
@@ -156,7 +156,7 @@ public class MicroMovieActivity extends Activity {
     public class SaveCallback implements ISaveCallback{
 
         @Override
-        public void onSaveDone(final String saveUri, final int frameTime) {
+        public void onSaveDone(final String saveUri, final int frameTime, final String posterPath) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -177,6 +177,7 @@ public class MicroMovieActivity extends Activity {
 
                     intent.putExtra(CompleteAndShareActivity.EXTRA_DIRECTOR, Owner_Name);
                     intent.putExtra(CompleteAndShareActivity.EXTRA_FRAME_TIME, frameTime);
+                    intent.putExtra(CompleteAndShareActivity.EXTRA_POSTER_PATH, posterPath);
 
                     SimpleDateFormat formatter = new SimpleDateFormat("MM.dd.yyyy");
                     String now = formatter.format(new Date());
@@ -190,6 +191,13 @@ public class MicroMovieActivity extends Activity {
 
                     startActivity(intent);
                     */
+                    // the poster is already a JPEG, whoever shows the movie needn't decode it
+                    Intent result = new Intent();
+                    result.setData(Uri.parse(saveUri));
+                    result.putExtra(EXTRA_FRAME_TIME, frameTime);
+                    if(posterPath != null)
+                        result.putExtra(EXTRA_POSTER_PATH, posterPath);
+                    setResult(RESULT_OK, result);
                     finish();
 
                 }
@@ -624,38 +632,10 @@ public class MicroMovieActivity extends Activity {
     }
 
     public void switchTheme() {
-        switch(mThemeAdapter.getThemePosition()){
-
-            case ThemeAdapter.TYPE_KIDS:
-                mScript = new Kids(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_MEMORY:
-                mScript = new Memory(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_VINTAGE:
-                mScript = new Country(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_ROMANCE:
-                mScript = new Lover(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_CARNIVAL:
-                mScript = new Carnival(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_LIFE:
-                mScript = new Life(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_SPORTS:
-                mScript = new Sports(this, mMicroView.getProcessGL());
-                break;
-            case ThemeAdapter.TYPE_CITY:
-                mScript = new City(this, mMicroView.getProcessGL());
-                break;
-            default:
-                Toast.makeText(MicroMovieActivity.this, "This theme is not ready", Toast.LENGTH_SHORT).show();
-                return;
-        }
-
+        mScript = EncodeAndMux.createScript(mThemeAdapter.getThemePosition(), false, this,
+                mMicroView.getProcessGL());
         if(mScript == null) {
+            Toast.makeText(MicroMovieActivity.this, "This theme is not ready", Toast.LENGTH_SHORT).show();
             return;
         }
 
@@ -673,12 +653,31 @@ public class MicroMovieActivity extends Activity {
     }
 
     private void setMovieOrder(boolean IsShuffle) {
-        if(mMicroMovieOrder.IsOrder(mScript.GetScriptId()) && !IsShuffle) {
-            mFileOrder = mMicroMovieOrder.getOrderInfo(mScript.GetScriptId());
+        mFileOrder = getFileOrder(mScript, IsShuffle);
+
+        if(mMicroView != null)
+            mMicroView.setFileOrder(mFileOrder);
+    }
+
+    /**
+     * Returns the script of a theme, as if it was selected, without selecting it.
+     */
+    Script createScript(int theme) {
+        return EncodeAndMux.createScript(theme, false, this, mMicroView.getProcessGL());
+    }
+
+    /**
+     * Returns the order a theme shows the media in; the one it was last played with, or a
+     * new one.
+     */
+    ArrayList<ElementInfo> getFileOrder(Script script, boolean IsShuffle) {
+        ArrayList<ElementInfo> fileOrder;
+        if(mMicroMovieOrder.IsOrder(script.GetScriptId()) && !IsShuffle) {
+            fileOrder = mMicroMovieOrder.getOrderInfo(script.GetScriptId());
         } else {
             ProcessGL processGL = mMicroView.getProcessGL();
-            mFileOrder = mMicroMovieOrder.gettimeandorder(processGL, mFileList, mScript, IsShuffle);
-            mFileOrder = mScript.setElementInfoTime(mFileOrder);
+            fileOrder = mMicroMovieOrder.gettimeandorder(processGL, mFileList, script, IsShuffle);
+            fileOrder = script.setElementInfoTime(fileOrder);
 
             /*/--------------------------------------------
             for(int i=0; i<mFileOrder.size(); i++) {
@@ -689,18 +688,15 @@ public class MicroMovieActivity extends Activity {
             //--------------------------------------------*/
 
             //Calc. Bitmap TriangleVertices
-            for(int i=0; i<mFileOrder.size(); i++) {
-                if(mFileOrder.get(i).Type == MediaInfo.MEDIA_TYPE_IMAGE) {
-                    mFileOrder.get(i).CalcTriangleVertices(processGL);
+            for(int i=0; i<fileOrder.size(); i++) {
+                if(fileOrder.get(i).Type == MediaInfo.MEDIA_TYPE_IMAGE) {
+                    fileOrder.get(i).CalcTriangleVertices(processGL);
                 }
             }
 
-            mMicroMovieOrder.setOrderInfo(mScript.GetScriptId(), mFileOrder);
+            mMicroMovieOrder.setOrderInfo(script.GetScriptId(), fileOrder);
         }
 
-        if(mMicroView != null)
-            mMicroView.setFileOrder(mFileOrder);
-
         /*/--------------------------------------------
         for(int i=0; i<mFileOrder.size(); i++) {
             Log.e(TAG, "i:" + i + ", Type:" + mFileOrder.get(i).Type +
@@ -709,6 +705,8 @@ public class MicroMovieActivity extends Activity {
                     ",faceXx:" + mFileOrder.get(i).faceX + ",faceYy:" + mFileOrder.get(i).faceY);
         }
         //--------------------------------------------*/
+
+        return fileOrder;
     }
     
     /*
@@ -13,6 +13,7 @@ import android.os.Message;
 import android.util.AttributeSet;
 import android.util.Log;
 
+import com.s890510.microfilm.gles.ContextFactory;
 import com.s890510.microfilm.script.Script;
 import com.s890510.microfilm.script.Timer;
 
@@ -54,7 +55,10 @@ class MicroMovieSurfaceView extends GLSurfaceView implements GLSurfaceView.Rende
         super(activity.getApplicationContext(), attrs);
         mContext = activity.getApplicationContext();
         mActivity = activity;
-        setEGLContextClientVersion(2);
+        // GLES 3 where there is one, which ProgramCache needs, GLES 2 elsewhere
+        ContextFactory factory = new ContextFactory();
+        setEGLConfigChooser(factory);
+        setEGLContextFactory(factory);
 
         mHandler = new Handler() {
             @Override
@@ -195,6 +199,10 @@ class MicroMovieSurfaceView extends GLSurfaceView implements GLSurfaceView.Rende
         mProcessGL.changeBitmap(eInfo, resetTimer);
     }
 
+    public void prefetch(ArrayList<ElementInfo> FOrder, int next, int end) {
+        mProcessGL.prefetch(FOrder, next, end);
+    }
+
     public void onDestroy() {
         if(mPlayControl!=null && mPlayControl.isAlive()) {
             mPlayControl.terminate();
@@ -203,6 +211,7 @@ class MicroMovieSurfaceView extends GLSurfaceView implements GLSurfaceView.Rende
             mPlayControl = null;
         }
         mPlayBackMusic.destroy();
+        mProcessGL.stopUploader();
 
         mIsDone = true;
         GLES20.glFinish();
@@ -0,0 +1,68 @@
+package com.s890510.microfilm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+/**
+ * The part of {@link MediaMuxer} the export uses, so the movie can also be written by
+ * {@link FragmentedMp4Muxer}.
+ */
+public interface MovieMuxer {
+    int addTrack(MediaFormat format);
+
+    void setOrientationHint(int degrees);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+
+    /**
+     * A MovieMuxer writing a regular MP4 with {@link MediaMuxer}.
+     */
+    public static class Mp4 implements MovieMuxer {
+        private final MediaMuxer mMuxer;
+
+        public Mp4(String path) throws IOException {
+            mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+            mMuxer.setOrientationHint(degrees);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+                MediaCodec.BufferInfo bufferInfo) {
+            mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMuxer.release();
+        }
+    }
+}
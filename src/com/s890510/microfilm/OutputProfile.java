@@ -0,0 +1,38 @@
+package com.s890510.microfilm;
+
+/**
+ * Size and bitrate of an extra copy of the movie, encoded from the same rendered frames as
+ * the main output.  See {@link EncodeAndMux#addOutput}.
+ */
+public class OutputProfile {
+    public final int width;
+    public final int height;
+    // 0 scales the main output's bitrate by the number of pixels
+    public final int bitRate;
+    // appended to the main output's file name
+    public final String suffix;
+
+    public OutputProfile(int width, int height, int bitRate, String suffix) {
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Returns the file this copy of the movie at mainPath is written to.
+     */
+    public String getPath(String mainPath) {
+        int dot = mainPath.lastIndexOf('.');
+        if(dot < 0) return mainPath + "_" + suffix;
+        return mainPath.substring(0, dot) + "_" + suffix + mainPath.substring(dot);
+    }
+
+    /**
+     * Returns the bitrate for this copy, given the main output's.
+     */
+    public int getBitRate(int mainBitRate, int mainWidth, int mainHeight) {
+        if(bitRate > 0) return bitRate;
+        return (int) ((long) mainBitRate * width * height / ((long) mainWidth * mainHeight));
+    }
+}
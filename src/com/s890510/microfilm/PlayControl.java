@@ -142,6 +142,7 @@ public class PlayControl {
                             if(eInfo.Type == MediaInfo.MEDIA_TYPE_IMAGE) {
                                 mSurfaceView.changeBitmap(eInfo, true);
                             }
+                            mSurfaceView.prefetch(mFileOrder, playIndex, effectsize);
 
                             //here we need to check again for mSetProgress
                             if(!mSetProgress && !mSurfaceView.checkPause()) {
@@ -0,0 +1,174 @@
+package com.s890510.microfilm;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.s890510.microfilm.gles.GlUtil;
+
+/**
+ * Captures the theme's poster frame while the movie is encoded, so nothing has to decode
+ * the MP4 again to get it.
+ * <p>
+ * The frame whose display interval contains the poster time is read back on the GL thread
+ * right before it is swapped to the encoder, and compressed to a JPEG next to the video on
+ * a thread of its own.  The JPEG is hidden (see {@link #getPosterPath}) so it doesn't show
+ * up in the gallery as a photo.
+ */
+public class PosterFrame {
+    private static final String TAG = "PosterFrame";
+    private static final boolean VERBOSE = false;
+
+    private static final int JPEG_QUALITY = 90;
+
+    private final long mPosterTimeNs;
+    private final long mFrameIntervalNs;
+    private final String mPath;
+
+    private boolean mClaimed = false;
+    private Thread mCompressThread;
+    private volatile boolean mSaved = false;
+
+    /**
+     * @param posterTimeUs where the poster is in the movie, in microseconds
+     * @param frameRate frames per second of the export
+     * @param path where the JPEG goes
+     */
+    public PosterFrame(long posterTimeUs, int frameRate, String path) {
+        mPosterTimeNs = posterTimeUs * 1000;
+        mFrameIntervalNs = 1000000000L / frameRate;
+        mPath = path;
+    }
+
+    /**
+     * Returns where the poster of the video at videoPath is stored.
+     */
+    public static String getPosterPath(String videoPath) {
+        File video = new File(videoPath);
+        return new File(video.getParentFile(), "." + video.getName() + ".jpg").getPath();
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns true, once, for the frame shown at the poster time.  Several encoders may ask,
+     * only the first one gets it.
+     */
+    public synchronized boolean claim(long presentationTimeNs) {
+        if(mClaimed) return false;
+        if(mPosterTimeNs < presentationTimeNs ||
+                mPosterTimeNs >= presentationTimeNs + mFrameIntervalNs) {
+            return false;
+        }
+        mClaimed = true;
+        return true;
+    }
+
+    /**
+     * Reads the current frame from the bound surface and starts compressing it.  Must be
+     * called on the GL thread, after the frame is drawn and before it is swapped.
+     */
+    public void capture(int width, int height) {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+        GlUtil.checkGlError("glReadPixels");
+        buf.rewind();
+
+        final int w = width;
+        final int h = height;
+        synchronized(this) {
+            mCompressThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    save(buf, w, h);
+                }
+            }, TAG);
+            mCompressThread.start();
+        }
+    }
+
+    private void save(ByteBuffer buf, int width, int height) {
+        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bmp.copyPixelsFromBuffer(buf);
+
+        // GL rows start at the bottom
+        Matrix flip = new Matrix();
+        flip.preScale(1, -1);
+        Bitmap poster = Bitmap.createBitmap(bmp, 0, 0, width, height, flip, false);
+        bmp.recycle();
+
+        File tmp = new File(mPath + ".tmp");
+        BufferedOutputStream bos = null;
+        try {
+            bos = new BufferedOutputStream(new FileOutputStream(tmp));
+            poster.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, bos);
+            bos.close();
+            bos = null;
+            if(!tmp.renameTo(new File(mPath))) {
+                throw new IOException("rename to " + mPath + " failed");
+            }
+            mSaved = true;
+            if (VERBOSE) Log.d(TAG, "saved " + width + "x" + height + " poster as " + mPath);
+        } catch(IOException e) {
+            Log.e(TAG, "saving poster failed", e);
+            tmp.delete();
+        } finally {
+            if(bos != null) {
+                try {
+                    bos.close();
+                } catch(IOException e) {
+                    // already failed
+                }
+            }
+            poster.recycle();
+        }
+    }
+
+    /**
+     * Waits for the JPEG to be written.
+     *
+     * @return true if the poster was saved
+     */
+    public boolean await() {
+        Thread thread;
+        synchronized(this) {
+            thread = mCompressThread;
+        }
+        if(thread != null) {
+            boolean interrupted = false;
+            while(true) {
+                try {
+                    thread.join();
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+        return mSaved;
+    }
+
+    /**
+     * Deletes the poster, once it is written, for an export that didn't finish.
+     */
+    public void delete() {
+        await();
+        File file = new File(mPath);
+        if(file.exists()) {
+            file.delete();
+        }
+    }
+}
@@ -3,24 +3,24 @@ package com.s890510.microfilm;
 import java.util.ArrayList;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.draw.Slogan;
 import com.s890510.microfilm.draw.StringLoader;
 import com.s890510.microfilm.filter.Filter;
 import com.s890510.microfilm.filter.FilterChooser;
-import com.s890510.microfilm.mask.Mask;
 import com.s890510.microfilm.mask.ShowMask;
 import com.s890510.microfilm.script.BasicScript;
 import com.s890510.microfilm.script.Script;
 import com.s890510.microfilm.script.Timer;
+import com.s890510.microfilm.script.effects.Effect;
 import com.s890510.microfilm.shader.BackgroundShader;
 import com.s890510.microfilm.shader.Shader;
 import com.s890510.microfilm.shader.SingleShader;
@@ -40,18 +40,30 @@ public class ProcessGL {
     private float[] mProjectionMatrix = new float[16];
 
     private ArrayList<MediaInfo> mMediaList = new ArrayList<MediaInfo>();
-    private ArrayList<Integer> BitmapTexture = new ArrayList<Integer>();
-    private ArrayList<int[]> BitmapTextureConvert = new ArrayList<int[]>();
-    private ArrayList<int[]> WaitBitmapTexture = new ArrayList<int[]>();
+    private ArrayList<ElementInfo> WaitBitmapTexture = new ArrayList<ElementInfo>();
+    // photos the uploader stopped or failed before uploading, for the drawing thread
+    private final ArrayList<ElementInfo> mReturnedUploads = new ArrayList<ElementInfo>();
 
     private BackgroundShader mBackground;
     private SingleShader mSingleShader;
     private ShowMask mShowMask;
 
     private int mVideoTextureID;
-    private int[] mBitmapTextureID = new int[5];
-    private int[] mBitmapTextureCount = new int[5];
     private int mSpecialTextureID;
+
+    // effect color conversions, see getSaturation
+    public static final int CONVERT_SATURATION = 1;
+
+    // photo textures, shared by the elements on screen and kept for when a photo comes back
+    public static final long TEXTURE_BUDGET_BYTES = 48 * 1024 * 1024;
+    private TextureCache mTextureCache = new TextureCache(new LoadTexture(), TEXTURE_BUDGET_BYTES);
+    // the preview uploads textures for the next slides this many slides ahead
+    public static final int TEXTURE_LOOKAHEAD = 2;
+    private volatile TextureUploader mUploader;
+    // the vertex data of the elements, shaders and masks, cleared when the screen size changes
+    private GeometryArena mGeometry = new GeometryArena();
+    // what the shaders and masks last set, so they don't set it again
+    private GLState mGLState = new GLState();
     public int mSpecialHash = 0;
 
     public StringLoader mStringLoader;
@@ -71,15 +83,23 @@ public class ProcessGL {
     private Filter mFilter;
 
     private boolean mShouldResetOpenGL = false;
-    private int mTextureNum = 1;
-    private int[] mStartTime = {0, 0, 0, 0, 0};
-    private boolean mNeedAgain = false;
-    private int mPreSleep = 0;
+    // the script changed; its programs are compiled before the next frame
+    private volatile boolean mShouldWarmUp = false;
+    // what the export draws, and the step of it drawn now
+    private FrameTimeline mTimeline;
+    private int mTimelineStep = -1;
+    // the preview's, for seeking
+    private FrameTimeline mPreviewTimeline;
 
     private Slogan mSlogan;
 
     private boolean mIsEncode = false;
-    private int[] mRemainTime = {0, 0, 0, 0, 0};
+
+    // scene signature for skipping unchanged export frames
+    public static final long SIGNATURE_NONE = 0;
+    private boolean mSignatureOnly = false;
+    private boolean mSignatureStatic;
+    private long mSignature;
 
     public ProcessGL(MicroMovieActivity activity, boolean isEncode) {
         mActivity = activity;
@@ -124,6 +144,7 @@ public class ProcessGL {
         mScript = script;
 
         mShouldResetOpenGL = true;
+        mShouldWarmUp = true;
     }
 
     public void setSpecialHash(int hash) {
@@ -133,12 +154,32 @@ public class ProcessGL {
     public void clearProcessData() {
         synchronized (mProcessData) {
             for(int i=0; i<mProcessData.length; i++) {
+                if(mProcessData[i] != null)
+                    mProcessData[i].Texture = null;
                 mProcessData[i] = null;
-                mBitmapTextureCount[i] = 0;
             }
-            BitmapTexture.clear();
+            mTextureCache.releaseAll();
             WaitBitmapTexture.clear();
         }
+        synchronized(mReturnedUploads) {
+            mReturnedUploads.clear();
+        }
+    }
+
+    public TextureCache getTextureCache() {
+        return mTextureCache;
+    }
+
+    public void setTextureBudget(long budgetBytes) {
+        mTextureCache.setBudget(budgetBytes);
+    }
+
+    public GeometryArena getGeometryArena() {
+        return mGeometry;
+    }
+
+    public GLState getGLState() {
+        return mGLState;
     }
 
     public Script getScript(){
@@ -149,6 +190,7 @@ public class ProcessGL {
         ScreenScale = scale;
         ScreenHeight = height;
         ScreenWidth = width;
+        mGeometry.clear();
         mSlogan.setScreen(width, height);
         mSingleShader.init();
         mShowMask.CalcVertices();
@@ -158,75 +200,132 @@ public class ProcessGL {
     }
 
     public void playprepare() {
-        //we need to find which Texture is not in use
+        //upload the textures that aren't on the GPU yet
         for(int i=0; i<WaitBitmapTexture.size(); i++) {
-            int[] Id = WaitBitmapTexture.get(i);
-            if(mMediaList.get(Id[1]).getType() == MediaInfo.MEDIA_TYPE_IMAGE) {
-                Log.e(TAG, "[0]:" + Id[0] + ", [1]:" + Id[1] + ", type:" + mMediaList.get(Id[1]).getType());
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mBitmapTextureID[Id[0]]);
-                mActivity.mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, mBitmapTextureID[Id[0]]);
-
-                if(Id[2] != 0) {
-                    Bitmap bmp = null;
-                    try {
-                        Paint mPaint = new Paint();
-                        ColorMatrix cMatrix = new ColorMatrix();
-                        bmp = Bitmap.createBitmap(mMediaList.get(Id[1]).getImage().getWidth(), mMediaList.get(Id[1]).getImage().getHeight(), Bitmap.Config.ARGB_8888);
-                        Canvas mCanvas = new Canvas(bmp);
-
-                        if(Id[2] == 1) {//Saturation
-                            cMatrix.setSaturation((float) (Id[3]/100.0));
-                        }
-                        mPaint.setColorFilter(new ColorMatrixColorFilter(cMatrix));
-                        mCanvas.drawBitmap(mMediaList.get(Id[1]).getImage(), 0, 0, mPaint);
-                        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bmp, 0);
-
-                        bmp.recycle();
-                    } catch(Exception e) {
-                        e.printStackTrace();
-
-                        if(bmp != null) {
-                            bmp.recycle();
-                            bmp = null;
-                        }
-
-                        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mMediaList.get(Id[1]).getImage(), 0);
-                    }
-                } else {
-                    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mMediaList.get(Id[1]).getImage(), 0);
-                }
-            }
+            ElementInfo eInfo = WaitBitmapTexture.get(i);
+            if(eInfo.Texture != null)
+                uploadTexture(eInfo.Texture, eInfo);
         }
         WaitBitmapTexture.clear();
-        Log.e(TAG, "BitmapTexture:"+ BitmapTexture.size());
+        Log.e(TAG, mTextureCache.toString());
     }
 
-    private void setBitmapUpdateInfo(ElementInfo eInfo) {
-        int[] Id = new int[4];
-
-        //find which one is empty
-        for(int i=0; i<mBitmapTextureCount.length; i++) {
-            if(mBitmapTextureCount[i] == 0) {
-                eInfo.TextureId = i;
-                Id[0] = i;
-                Id[1] = eInfo.InfoId;
-                Id[2] = eInfo.effect.getConvertType();
-                Id[3] = eInfo.effect.getConvertSize();
-                mBitmapTextureCount[i]++;
-                break;
+    // in the current context, which is the drawing one or the uploader's
+    void uploadTexture(TextureCache.Entry entry, ElementInfo eInfo) {
+        if(entry.isUploaded())
+            return;
+
+        MediaInfo info = mMediaList.get(eInfo.InfoId);
+        if(info.getType() == MediaInfo.MEDIA_TYPE_IMAGE) {
+            Log.e(TAG, "media:" + eInfo.InfoId + ", type:" + info.getType());
+            mTextureCache.upload(entry, info.getImage());
+        }
+    }
+
+    /**
+     * Returns the saturation the shaders apply to texture, drawn for info: its effect's
+     * conversion if texture is the element's photo, 1.0 for the strings and masks.
+     */
+    public float getSaturation(int texture, ElementInfo info) {
+        if(texture == 0 || info.Texture == null || info.Texture.getName() != texture)
+            return 1.0f;
+        if(info.effect.getConvertType() == CONVERT_SATURATION)
+            return info.effect.getConvertSize() / 100.0f;
+        return 1.0f;
+    }
+
+    private void acquireTexture(ElementInfo eInfo) {
+        //reuse the texture of the same photo and conversion if there is one
+        MediaInfo info = mMediaList.get(eInfo.InfoId);
+        Bitmap image = info.getImage();
+        String media = info.getPath() != null ? info.getPath() : "#" + eInfo.InfoId;
+        if(eInfo.Texture != null)
+            mTextureCache.release(eInfo.Texture);
+        eInfo.Texture = mTextureCache.acquire(media,
+                image != null ? image.getWidth() : 0, image != null ? image.getHeight() : 0);
+        if(!eInfo.Texture.isUploaded()) {
+            //if not we prepare to add it, on the uploader if it still takes work
+            TextureUploader uploader = mUploader;
+            if(uploader == null || !uploader.upload(eInfo.Texture, eInfo))
+                setBitmapUpdateInfo(eInfo);
+        }
+    }
+
+    /**
+     * Hands a photo the uploader didn't upload back to the drawing thread, which uploads it
+     * before the next frame if it is still on screen.  Called on the uploader's thread.
+     */
+    void returnUpload(ElementInfo eInfo) {
+        synchronized(mReturnedUploads) {
+            mReturnedUploads.add(eInfo);
+        }
+    }
+
+    // moves the photos the uploader handed back to the ones this thread uploads
+    private void takeReturnedUploads() {
+        synchronized(mReturnedUploads) {
+            if(mReturnedUploads.isEmpty())
+                return;
+            synchronized(mProcessData) {
+                for(ElementInfo eInfo : mReturnedUploads) {
+                    if(eInfo.Texture != null && !eInfo.Texture.isUploaded() &&
+                            !WaitBitmapTexture.contains(eInfo))
+                        WaitBitmapTexture.add(eInfo);
+                }
             }
+            mReturnedUploads.clear();
         }
-        WaitBitmapTexture.add(Id);
+    }
 
-        int[] convertData = {Id[2], Id[3]};
-        if(BitmapTexture.size()-1 >= Id[0]) {
-            BitmapTexture.set(Id[0], Id[1]);
-            BitmapTextureConvert.set(Id[0], convertData);
-        } else {
-            BitmapTexture.add(Id[1]);
-            BitmapTextureConvert.add(convertData);
+    /**
+     * Uploads the textures of the next slides ahead of time: the first
+     * {@link #TEXTURE_LOOKAHEAD} photos in fileOrder from index next on, up to end.  Only
+     * with an uploader, i.e. in the preview.
+     */
+    public void prefetch(ArrayList<ElementInfo> fileOrder, int next, int end) {
+        TextureUploader uploader = mUploader;
+        if(uploader == null || !uploader.isRunning() || fileOrder.isEmpty())
+            return;
+
+        ArrayList<TextureCache.Entry> entries = new ArrayList<TextureCache.Entry>();
+        ArrayList<ElementInfo> infos = new ArrayList<ElementInfo>();
+        for(int i=next; i<end && infos.size() < TEXTURE_LOOKAHEAD; i++) {
+            ElementInfo eInfo = fileOrder.get(i % fileOrder.size());
+            if(eInfo.Type != MediaInfo.MEDIA_TYPE_IMAGE || eInfo.InfoId < 0 || eInfo.effect == null)
+                continue;
+            MediaInfo info = mMediaList.get(eInfo.InfoId);
+            Bitmap image = info.getImage();
+            if(image == null)
+                continue;
+            String media = info.getPath() != null ? info.getPath() : "#" + eInfo.InfoId;
+            entries.add(mTextureCache.acquire(media, image.getWidth(), image.getHeight()));
+            infos.add(eInfo);
         }
+        uploader.setLookahead(entries, infos);
+    }
+
+    private void startUploader() {
+        stopUploader();
+        if(mIsEncode)
+            return;
 
+        // the preview's context, which GLSurfaceView made current on this thread
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if(context == null || context.equals(EGL14.EGL_NO_CONTEXT))
+            return;
+        mUploader = new TextureUploader(this, mTextureCache, context);
+        mUploader.start();
+    }
+
+    public void stopUploader() {
+        if(mUploader != null) {
+            mUploader.quit();
+            mUploader = null;
+        }
+    }
+
+    private void setBitmapUpdateInfo(ElementInfo eInfo) {
+        WaitBitmapTexture.add(eInfo);
         mBitmapUpdate = true;
     }
 
@@ -236,26 +335,15 @@ public class ProcessGL {
 
         synchronized(mProcessData) {
             //mProcessData[0] => will be remove
-            if(mProcessData[0] != null && mProcessData[0].InfoId > -1) {
-                mBitmapTextureCount[mProcessData[0].TextureId]--;
+            if(mProcessData[0] != null && mProcessData[0].Texture != null && !isShown(mProcessData[0], 1)) {
+                mTextureCache.release(mProcessData[0].Texture);
+                mProcessData[0].Texture = null;
             }
 
             if(eInfo.InfoId > -1) {
-                //check BitmapTexture contain the eInfo.InfoId
-                if(!BitmapTexture.contains(eInfo.InfoId)) {
-                    //if not we prepare to add it
-                    setBitmapUpdateInfo(eInfo);
-                } else {
-                    //if yes we reuse it
-                    int index = BitmapTexture.indexOf(eInfo.InfoId);
-
-                    if(BitmapTextureConvert.get(index)[0] == eInfo.effect.getConvertType() && BitmapTextureConvert.get(index)[1] == eInfo.effect.getConvertSize()) {
-                        mBitmapTextureCount[index]++;
-                        eInfo.TextureId = index;
-                    } else {
-                        setBitmapUpdateInfo(eInfo);
-                    }
-                }
+                //an element already on screen keeps its texture
+                if(eInfo.Texture == null || !isShown(eInfo, 1))
+                    acquireTexture(eInfo);
             } else {
                 if(!mBitmapUpdate && !mBitmapinit)
                     mBitmapinit = true;
@@ -270,6 +358,15 @@ public class ProcessGL {
         }
     }
 
+    // whether eInfo is in the window from slot first on
+    private boolean isShown(ElementInfo eInfo, int first) {
+        for(int i=first; i<mProcessData.length; i++) {
+            if(mProcessData[i] == eInfo)
+                return true;
+        }
+        return false;
+    }
+
     private float[] CalcXY(int width, int height) {
         float[] XY = new float[2]; //0 => x, 1 => y
 
@@ -334,9 +431,57 @@ public class ProcessGL {
     private void BitmapProgram() {
         mSingleShader.initSingleShader();
         mShowMask.initMask();
+        warmUp();
+    }
+
+    // compiles the programs the script's ops draw with; any other is compiled when it is
+    // first drawn
+    private void warmUp() {
+        mShouldWarmUp = false;
+        ArrayList<RenderPlan.Op> ops = mScript.getOps();
+        for(int i=0; i<ops.size(); i++) {
+            RenderPlan.Op op = ops.get(i);
+            switch(op.code) {
+                case RenderPlan.OP_SHADER:
+                case RenderPlan.OP_STRING:
+                    mSingleShader.prepare(op.program);
+                    break;
+                case RenderPlan.OP_SHADER_MASK:
+                case RenderPlan.OP_MASK_SHADER:
+                    mSingleShader.prepare(op.program);
+                    mShowMask.prepare(op.mask);
+                    break;
+                case RenderPlan.OP_MASK:
+                    mShowMask.prepare(op.mask);
+                    break;
+                case RenderPlan.OP_TRANSITION:
+                    mSingleShader.prepare(op.program);
+                    mSingleShader.prepare(Shader.DefaultShader);
+                    break;
+            }
+        }
+        checkGlError("warmUp");
     }
 
     public void prepareOpenGL(){
+        // a new context, the textures of the last one are gone
+        stopUploader();
+        synchronized(mReturnedUploads) {
+            mReturnedUploads.clear();
+        }
+        synchronized(mProcessData) {
+            mTextureCache.abandon();
+            mGeometry.abandon();
+            mGLState.invalidate();
+            WaitBitmapTexture.clear();
+            for(int i=0; i<mProcessData.length; i++) {
+                if(mProcessData[i] != null && mProcessData[i].InfoId > -1 && !isShown(mProcessData[i], i+1)) {
+                    mProcessData[i].Texture = null;
+                    acquireTexture(mProcessData[i]);
+                }
+            }
+        }
+
         mBackground = new BackgroundShader(mActivity, this);
         mSlogan = new Slogan(mActivity, this);
 
@@ -345,25 +490,30 @@ public class ProcessGL {
         checkGlError("glProgram");
 
         SetTextureID();
+        startUploader();
     }
 
     public void SetTextureID() {
-
-        //For Bitmap
-        for(int i=0; i<mBitmapTextureID.length; i++)
-            mBitmapTextureID[i] = mActivity.mLoadTexture.GenTexture("Bitmap", i+1);
-
-        for(int i=0; i<mBitmapTextureCount.length; i++)
-            mBitmapTextureCount[i] = 0;
-
         //For SpecialTexture
-        mSpecialTextureID = mActivity.mLoadTexture.GenTexture("Special", 6);
+        mSpecialTextureID = mActivity.mLoadTexture.GenTexture();
 
         //print texture id info
         Log.e(TAG, "mSpecialTextureID:" + mSpecialTextureID + ", mVideoTextureID:" + mVideoTextureID);
+    }
 
-        for(int i=0; i<mBitmapTextureID.length; i++)
-            Log.e(TAG, "mBitmapTextureID[" + i + "]:" + mBitmapTextureID[i]);
+    /**
+     * Deletes the textures and the vertex buffer.  Call in the GL context, before it is released.
+     */
+    public void releaseTextures() {
+        Log.d(TAG, mTextureCache.toString());
+        Log.d(TAG, mGLState.toString());
+        Log.d(TAG, ProgramCache.getInstance(mActivity).toString());
+        mTextureCache.clear();
+        mGeometry.release();
+        if(mSpecialTextureID != 0) {
+            mActivity.mLoadTexture.DeleteTexture(mSpecialTextureID);
+            mSpecialTextureID = 0;
+        }
     }
 
     public void changeSlogan() {
@@ -388,9 +538,15 @@ public class ProcessGL {
     }
 
     public void doDraw(long elapseTime){
+        if(mShouldWarmUp) {
+            warmUp();
+        }
+        takeReturnedUploads();
         if(WaitBitmapTexture.size() > 0) {
             playprepare();
         }
+        mGLState.beginFrame();
+        mGeometry.beginFrame();
 
         GLES20.glClearColor(mScript.ColorRed(), mScript.ColorGreen(), mScript.ColorBlue(), 1.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_STENCIL_BUFFER_BIT);
@@ -415,7 +571,7 @@ public class ProcessGL {
             if(mBitmapinit && !mSloganinit) {
             	if(mModelMatrix != null){
 	                Matrix.setIdentityM(mModelMatrix, 0);
-	                drawSingleBitmap(elapseTime, false);
+	                drawSingleBitmap(elapseTime);
             	}
             }
         }
@@ -428,294 +584,116 @@ public class ProcessGL {
         GLES20.glFinish();
     }
 
-    public void setSleepZero(int duration){ // for encode
-        for(int i=0; i < mRemainTime.length - 1; i++){
-            mRemainTime[i] =mRemainTime[i+1];
-        }
-        mRemainTime[mRemainTime.length - 1] = duration;
+    /**
+     * Sets the timeline the export draws; doDraw(elapse) draws elapse into its current step.
+     */
+    public void setTimeline(FrameTimeline timeline) {
+        mTimeline = timeline;
+        mTimelineStep = -1;
+    }
 
-        for(int j=0; j < mStartTime.length - 1; j++){
-            mStartTime[j] = mStartTime[j+1];
-        }
-        mStartTime[mStartTime.length - 1] = -1; // set -1 to specify this is a special case
+    /**
+     * Moves the export to step of its timeline, after its element was passed to changeBitmap.
+     */
+    public void setTimelineStep(int step) {
+        mTimelineStep = step;
     }
 
-    private void drawSingleBitmap(long elapseTime, boolean isSecondTime) { //bitmap
+    private void drawSingleBitmap(long elapseTime) { //bitmap
         ElementInfo mInfo = null;
+        long elementElapse = 0;
+        int slot;
+
+        FrameTimeline.Step step = null;
+        int count = mProcessData.length;
+        if(elapseTime >= 0) { // for making output file
+            step = mTimeline != null ? mTimeline.getStep(mTimelineStep) : null;
+            if(step == null)
+                return;
+            count = step.layers.length;
+        }
 
-        for(int i=0; i<mBitmapTextureID.length; i++) {
+        for(int i=0; i<count; i++) {
             if(mModelMatrix != null)
                 Matrix.setIdentityM(mModelMatrix, 0);
-            if(elapseTime>=0) { // for making output file
-                if(mProcessData[i] == null) continue;
-                mInfo = mProcessData[i];
-
-                if(i >= mBitmapTextureID.length - mTextureNum) {
-
-                } else {
-                    continue;
-                }
+            if(step != null) { // for making output file
+                FrameTimeline.Layer layer = step.layers[i];
+                elementElapse = layer.getElapse(elapseTime);
+                if(elementElapse < 0) continue;
+                mInfo = layer.info;
+                slot = layer.slot;
+
+                if(!mSignatureOnly)
+                    mInfo.timer.setElapseForEncode(elementElapse);
+                mModelMatrix = mInfo.effect.getMVPMatrixByElapse(elementElapse);
             } else { // for preview
                 if(mProcessData[i] == null) continue;
                 if(!mProcessData[i].timer.isAlive()) continue;
                 mInfo = mProcessData[i];
-            }
-
-            if(elapseTime>=0){ // for making output file
-                //mIsEncode = true;
-                if(i==(mBitmapTextureID.length-1)){
-
-                    if(elapseTime == 0 && !isSecondTime){
-                        int sleep = mInfo.effect.getSleep();
-                        int duration = mInfo.effect.getDuration();
-
-                        // Set remain time array. Store duration to check how many texture should be drawn
-                        for(int j=0; j < mRemainTime.length - 1; j++){
-                            if(mStartTime[j+1] == -1)
-                                mRemainTime[j] = mRemainTime[j+1];
-                            else mRemainTime[j] = Math.max(0, mRemainTime[j+1] - mPreSleep);
-                        }
-                        mRemainTime[mRemainTime.length-1] = duration;
-
-                        // Store start time of each texture according to previous sleep time
-                        for(int j=0; j < mStartTime.length - 1; j++){
-                            if(mStartTime[j+1] == -1)
-                                mStartTime[j] = 0;
-                            else mStartTime[j] = mStartTime[j+1] + mPreSleep;
-                        }
-                        mStartTime[mStartTime.length-1] = 0;
-
-                        // set texture number
-                        for(int j=0; j < mRemainTime.length; j++){
-                            if(mRemainTime[j] > 0){
-                                mTextureNum = mRemainTime.length - j;
-                                break;
-                            }
-                        }
-
-                        if(mTextureNum > 1)
-                            mNeedAgain = true;
-
-                        mPreSleep = sleep;
-                    }
-
-                    if(!mNeedAgain) {
-
-                        // if sleep > duration, texture4 should draw duration time instead of duration time
-                        if(elapseTime > Math.min(mRemainTime[i], mPreSleep))
-                            continue;
-
-                        mInfo.timer.setElapseForEncode(elapseTime);
-                        mModelMatrix = mInfo.effect.getMVPMatrixByElapse(elapseTime);
-                    } else {
-                        //Log.d(TAG,"drawSingleBitmap break 1");
-                        break;
-                    }
+                slot = i;
 
-                }else if(i<=(mBitmapTextureID.length-2)) {
-                    if(elapseTime==0 && !isSecondTime){
-                        //Log.d(TAG,"drawSingleBitmap break 2");
-                        continue;
-                    } else {
-                        if(elapseTime > Math.min(mPreSleep, mRemainTime[i]) || mRemainTime[i] == 0) {
-                            //Log.d(TAG,"drawSingleBitmap break 3");
-                            continue;
-                        } else {
-                            mInfo.timer.setElapseForEncode(mStartTime[i]+elapseTime);
-                            mModelMatrix = mInfo.effect.getMVPMatrixByElapse(mStartTime[i]+elapseTime);
-                        }
-                    }
-                }
-            } else { // for preview
-                //mIsEncode = false;
                 mModelMatrix = mInfo.effect.getMVPMatrixByElapse(mInfo.timer.getElapse());
             }
 
-            if(mInfo.TextureId == -1 && mInfo.InfoId > -1) {
+            if(mInfo.Texture == null && mInfo.InfoId > -1) {
+                continue;
+            }
+            //still uploading on the uploader, draw it once it is there
+            if(mInfo.Texture != null && !mTextureCache.isReady(mInfo.Texture)) {
                 continue;
             }
+            int bitmapTexture = mInfo.Texture != null ? mInfo.Texture.getName() : 0;
 
             if(mModelMatrix == null){
                 continue;
             }
 
-            if(mInfo.effect.getShader().equals(Shader.Default)) {
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Default_White)) {
-                mShowMask.DrawRandar(Mask.Filter, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.String)) {
-                if(mStringLoader.BindTexture(mSpecialTextureID, mInfo)) {
-                    mSingleShader.DrawRandar(Shader.DefaultShader, mSpecialTextureID, mInfo,
-                            mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.STRING);
-                }
-            } else if(mInfo.effect.getShader().equals(Shader.String_Line)) {
-                mStringLoader.BindTexture(mSpecialTextureID, mInfo);
-                mSingleShader.DrawRandar(Shader.LineShader, mSpecialTextureID, mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.STRING);
-            } else if(mInfo.effect.getShader().equals(Shader.Scale_Mask)) {
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-                mShowMask.DrawRandar(Mask.Square, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Left)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Right)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.RIGHT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Top)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.TOP);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Bottom)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.BOTTOM);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Half_Left)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.HALF_LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Half_Left_Q)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.HALF_LEFT_Q);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Half_Right)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.HALF_RIGHT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Half_Top)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.HALF_TOP);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Half_Bottom)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.HALF_BOTTOM);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Gfrag_Left)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.GFRAG_LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Empty_Left)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mSpecialTextureID, mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.EMPTY_LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_String_Left)) {
-                mStringLoader.BindTexture(mSpecialTextureID, mInfo);
-                mSingleShader.DrawRandar(Shader.CoverShader, mSpecialTextureID, mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.STRING_LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Center_H)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.CENTER_H);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Percent_L)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.PERCENT_L);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Percent_L_Half)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.PERCENT_L_HALF);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Percent_R)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.PERCENT_R);
-            } else if(mInfo.effect.getShader().equals(Shader.Cover_Percent_B)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.PERCENT_B);
-            } else if(mInfo.effect.getShader().equals(Shader.Scale_Fade)) {
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Scale_Fade_Bar_TRANS_IN)) {
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-                mShowMask.DrawRandar(Mask.Bar, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.TRANS_IN);
-            } else if(mInfo.effect.getShader().equals(Shader.Scale_Fade_Bar_SHOWN)) {
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-                mShowMask.DrawRandar(Mask.Bar, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.SHOWN);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Vertical)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_VERTICAL);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Horizontal)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_HORIZONTAL);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Tilted_Left)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_TILTED_LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Tilted_Left_T)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_TILTED_LEFT_T);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Tilted_Right)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_TILTED_RIGHT);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Tilted_Right_R)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_TILTED_RIGHT_R);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Cross_2)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_CROSS_2);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Cross_4)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_CROSS_4);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Blue_Bar)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_BLUE_BAR);
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Blue_Bar_String)) {
-                if(mStringLoader.BindTexture(mSpecialTextureID, mInfo)) {
-                    mSingleShader.DrawRandar(Shader.LatticeShader, mSpecialTextureID, mInfo,
-                            mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_BLUE_BAR_GONE_STRING);
-                }
-            } else if(mInfo.effect.getShader().equals(Shader.Lattice_Blue_Bar_Mask)) {
-                mSingleShader.DrawRandar(Shader.LatticeShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.LATTICE_BLUE_BAR);
-                mShowMask.DrawRandar(Mask.Circle, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Mirror_Vertical)) {
-                mSingleShader.DrawRandar(Shader.MirrorShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.MIRROR_VERTICAL);
-            } else if(mInfo.effect.getShader().equals(Shader.Mirror_Vertical_TB)) {
-                mSingleShader.DrawRandar(Shader.MirrorShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.MIRROR_VERTICAL_TB);
-            } else if(mInfo.effect.getShader().equals(Shader.Mirror_Tilted_Left)) {
-                mSingleShader.DrawRandar(Shader.MirrorShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.MIRROR_TILTED_LEFT);
-            } else if(mInfo.effect.getShader().equals(Shader.Mirror_Tilted_Mask)) {
-                mSingleShader.DrawRandar(Shader.MirrorShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.MIRROR_TILTED_MASK);
-                mShowMask.DrawRandar(Mask.Square, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Mirror_Tilted)) {
-                if(mInfo.effect.getTransition(mInfo.timer.getElapse())) {
-                    mSingleShader.DrawRandar(Shader.MirrorShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                            mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.MIRROR_TILTED);
-                } else {
-                    mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                            mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-                }
-            } else if(mInfo.effect.getShader().equals(Shader.Circle_Mask)) {
-                mSingleShader.DrawRandar(Shader.DefaultShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-                mShowMask.DrawRandar(Mask.Circle, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Circle_Mask_Cover)) {
-                mSingleShader.DrawRandar(Shader.CoverShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.HALF_RIGHT_Q);
-                mShowMask.DrawRandar(Mask.Circle, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Rotate)) {
-                mSingleShader.DrawRandar(Shader.RotateShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Rotate_Mask)) {
-                mSingleShader.DrawRandar(Shader.RotateShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-                mShowMask.DrawRandar(Mask.Circle, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.CMask)) {
-                mShowMask.DrawRandar(Mask.Circle, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            }  else if(mInfo.effect.getShader().equals(Shader.Line)) {
-                mSingleShader.DrawRandar(Shader.LineShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Filter)) {
-                mShowMask.DrawRandar(Mask.Filter, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, Mask.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Photo)) {
-                mSingleShader.DrawRandar(Shader.PhotoShader, mBitmapTextureID[mInfo.TextureId], mInfo,
-                        mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
-            } else if(mInfo.effect.getShader().equals(Shader.Slogan_TypeA)) {
-                mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
-            } else if(mInfo.effect.getShader().equals(Shader.Slogan_TypeB)) {
-                mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
-            } else if(mInfo.effect.getShader().equals(Shader.Slogan_TypeC)) {
-                mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
-            } else if(mInfo.effect.getShader().equals(Shader.Slogan_TypeD)) {
-                mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
-            } else if(mInfo.effect.getShader().equals(Shader.Slogan_TypeE)) {
-                mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
-            } else if(mInfo.effect.getShader().equals(Shader.Slogan_TypeF)) {
-                mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
+            if(mSignatureOnly) {
+                addSignature(slot, mInfo, elementElapse);
+                continue;
+            }
+
+            RenderPlan.Op op = getOp(mInfo);
+            int texture = op.source == RenderPlan.SOURCE_PHOTO ? bitmapTexture : mSpecialTextureID;
+            boolean hasString = op.source == RenderPlan.SOURCE_STRING &&
+                    mStringLoader.BindTexture(mSpecialTextureID, mInfo);
+
+            switch(op.code) {
+                case RenderPlan.OP_SHADER:
+                    mSingleShader.DrawRandar(op.program, texture, mInfo,
+                            mModelMatrix, mViewMatrix, mProjectionMatrix, op.mode);
+                    break;
+                case RenderPlan.OP_SHADER_MASK:
+                    mSingleShader.DrawRandar(op.program, texture, mInfo,
+                            mModelMatrix, mViewMatrix, mProjectionMatrix, op.mode);
+                    mShowMask.DrawRandar(op.mask, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, op.maskMode);
+                    break;
+                case RenderPlan.OP_MASK_SHADER:
+                    mShowMask.DrawRandar(op.mask, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, op.maskMode);
+                    mSingleShader.DrawRandar(op.program, texture, mInfo,
+                            mModelMatrix, mViewMatrix, mProjectionMatrix, op.mode);
+                    break;
+                case RenderPlan.OP_MASK:
+                    mShowMask.DrawRandar(op.mask, mModelMatrix, mViewMatrix, mProjectionMatrix, mInfo, mSpecialTextureID, op.maskMode);
+                    break;
+                case RenderPlan.OP_STRING:
+                    if(hasString) {
+                        mSingleShader.DrawRandar(op.program, texture, mInfo,
+                                mModelMatrix, mViewMatrix, mProjectionMatrix, op.mode);
+                    }
+                    break;
+                case RenderPlan.OP_TRANSITION:
+                    if(mInfo.effect.getTransition(mInfo.timer.getElapse())) {
+                        mSingleShader.DrawRandar(op.program, texture, mInfo,
+                                mModelMatrix, mViewMatrix, mProjectionMatrix, op.mode);
+                    } else {
+                        mSingleShader.DrawRandar(Shader.DefaultShader, texture, mInfo,
+                                mModelMatrix, mViewMatrix, mProjectionMatrix, Shader.NONE);
+                    }
+                    break;
+                case RenderPlan.OP_SLOGAN:
+                    mSlogan.DrawRandar(mViewMatrix, mProjectionMatrix, mSpecialTextureID, mScript, mInfo);
+                    break;
             }
 
             mInfo = null;
@@ -723,11 +701,89 @@ public class ProcessGL {
         }
 
         checkGlError("drawSingleBitmap");
+    }
+
+    /**
+     * Returns a signature of what doDraw(elapseTime) would draw for the export: the elements
+     * on screen, their matrices and the effect state their shaders read.  Frames with equal
+     * signatures look the same.  Returns SIGNATURE_NONE when that can't be told cheaply, e.g.
+     * at the start of an effect or while an animated shader is on screen.  Draws nothing
+     * and leaves the timers alone.
+     */
+    public long getSceneSignature(long elapseTime) {
+        if(elapseTime <= 0 || WaitBitmapTexture.size() > 0 || mBitmapUpdate || mShouldResetOpenGL)
+            return SIGNATURE_NONE;
 
-        if(mNeedAgain){
-            mNeedAgain = false;
-            drawSingleBitmap(elapseTime, true);
+        synchronized(mProcessData) {
+            mSignature = 17;
+            mSignatureStatic = true;
+            mSignatureOnly = true;
+            try {
+                addSignature(mBitmapinit ? 1 : 0);
+                addSignature(mSloganinit ? 1 : 0);
+
+                ElementInfo last = mProcessData[mProcessData.length-1];
+                if(mBitmapinit && last != null && last.effect.showBackground()) {
+                    float[] color = last.effect.getBGColor(last.timer.getElapse());
+                    for(int i=0; color != null && i<color.length; i++)
+                        addSignature(Float.floatToIntBits(color[i]));
+                }
+
+                if(mBitmapinit && !mSloganinit) {
+                    drawSingleBitmap(elapseTime);
+                }
+            } finally {
+                mSignatureOnly = false;
+            }
         }
+
+        if(!mSignatureStatic || mSignature == SIGNATURE_NONE)
+            return SIGNATURE_NONE;
+        return mSignature;
+    }
+
+    private void addSignature(long value) {
+        mSignature = mSignature * 31 + value;
+    }
+
+    private void addSignature(int slot, ElementInfo info, long elapse) {
+        Effect effect = info.effect.getEffect(elapse);
+        addSignature(slot);
+        addSignature(info.InfoId);
+        addSignature(info.Texture != null ? info.Texture.getName() : -1);
+        if(effect == null) // the shaders draw nothing
+            return;
+
+        long effectElapse = info.effect.getElapseTime(elapse);
+        RenderPlan.Op op = getOp(info);
+        addSignature(System.identityHashCode(effect));
+        addSignature(System.identityHashCode(op));
+        for(int i=0; i<mModelMatrix.length; i++)
+            addSignature(Float.floatToIntBits(mModelMatrix[i]));
+        addSignature(Float.floatToIntBits(effect.getAlpha(effectElapse)));
+        addSignature(effect.getMaskType(effectElapse));
+        addSignature(effect.getFixBound(effectElapse));
+        addSignature(effect.getCount(effectElapse));
+        addSignature(Float.floatToIntBits(info.effect.getScaleSize(elapse)));
+        float[] pos = effect.getRunPos(effectElapse);
+        for(int i=0; pos != null && i<pos.length; i++)
+            addSignature(Float.floatToIntBits(pos[i]));
+        float[] color = effect.getBGColor(effectElapse);
+        for(int i=0; color != null && i<color.length; i++)
+            addSignature(Float.floatToIntBits(color[i]));
+
+        // The other shaders, strings and slogans animate on the elapse time itself, or on
+        // the progress during a transition, which isn't part of the signature.
+        if(effect.getTransition(effectElapse) || !op.isStatic) {
+            mSignatureStatic = false;
+        }
+    }
+
+    // the script compiles its elements; this is for ones it didn't, or whose shader changed
+    private RenderPlan.Op getOp(ElementInfo info) {
+        if(info.Op == null || info.Op.shader != info.effect.getShader())
+            info.Op = RenderPlan.compile(info.effect.getShader());
+        return info.Op;
     }
 
     public boolean isEncode(){
@@ -744,11 +800,21 @@ public class ProcessGL {
 
     public void setTimerElapse(long elapse, ArrayList<ElementInfo> FOrder) {
         mTimer.setElapse(elapse);
-        ArrayList<ElementInfo> data = mScript.getElementInfoByElapseTime(elapse, FOrder);
+        if(mPreviewTimeline == null || !mPreviewTimeline.isFor(FOrder)) {
+            int[] sleeps = new int[mScript.geteffectsize()];
+            for(int i=0; i<sleeps.length; i++)
+                sleeps[i] = FOrder.get(i % FOrder.size()).time;
+            mPreviewTimeline = FrameTimeline.compile(FOrder, sleeps);
+        }
 
-        Log.e(TAG, "data.size():" + data.size());
-        for(int i=0; i<data.size(); i++) {
-            changeBitmap(data.get(i), true);
+        FrameTimeline.Step step = mPreviewTimeline.find(elapse);
+        if(step == null)
+            return;
+        for(FrameTimeline.Layer layer : step.layers) {
+            long elementElapse = layer.getElapse(elapse - step.startMs);
+            if(elementElapse < 0) continue;
+            layer.info.timer.setElapse(elementElapse);
+            changeBitmap(layer.info, true);
         }
     }
 
@@ -758,6 +824,16 @@ public class ProcessGL {
         mSloganinit = false;
     }
 
+    // back to the state of a new ProcessGL, to draw another movie with the same programs
+    // and texture names
+    public void resetForNextMovie() {
+        clearProcessData();
+        reset();
+        setTimeline(null);
+        mPreviewTimeline = null;
+        mSpecialHash = 0;
+    }
+
     public void setTimerForFilter(long timer){
         mFilter.setTimer(timer);
     }
@@ -784,6 +860,11 @@ public class ProcessGL {
         Matrix.setLookAtM(mViewMatrix, 0, eyeX, eyeY, eyeZ, lookX, lookY, lookZ, upX, upY, upZ);
     }
 
+    // only the ratio, the scripts need it to build their effects; no GL context required
+    public void setScreenRatio(int width, int height) {
+        ScreenRatio = (float) Math.ceil(((float)width/height)*10.0f)/10;
+    }
+
     public void setView(int width, int height) {
         GLES20.glViewport(0, 0, width, height);
 
@@ -798,7 +879,7 @@ public class ProcessGL {
         final float near = 1.0f;
         final float far = 10.0f;
 
-        ScreenRatio = (float) Math.ceil(((float)width/height)*10.0f)/10;
+        setScreenRatio(width, height);
 
         Log.e(TAG, "setView, width:" + width + ", height:" + height + ", ScreenRatio:" + ScreenRatio);
 
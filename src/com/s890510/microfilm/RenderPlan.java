@@ -0,0 +1,184 @@
+package com.s890510.microfilm;
+
+import java.util.HashMap;
+
+import android.util.Log;
+
+import com.s890510.microfilm.mask.Mask;
+import com.s890510.microfilm.shader.Shader;
+
+/**
+ * What ProcessGL draws for each shader type of the scripts, compiled once per element when
+ * the script is set up instead of looked up by name every frame.
+ * <p>
+ * An {@link Op} tells which program and mode draw the element, which mask goes over or
+ * under it, and where its texture comes from.  ProcessGL switches on {@link Op#code}.
+ * Unknown shader types compile to an {@link #OP_NONE} op, which draws nothing, as before.
+ */
+public class RenderPlan {
+    private static final String TAG = "RenderPlan";
+
+    // op codes
+    public static final int OP_NONE = 0;
+    public static final int OP_SHADER = 1;          // the texture through program/mode
+    public static final int OP_SHADER_MASK = 2;     // that, then the mask over it
+    public static final int OP_MASK_SHADER = 3;     // the mask, then the texture over it
+    public static final int OP_MASK = 4;            // only the mask
+    public static final int OP_STRING = 5;          // the string through program/mode, if there is one
+    public static final int OP_TRANSITION = 6;      // program/mode during the transition, Default after
+    public static final int OP_SLOGAN = 7;
+
+    // texture sources
+    public static final int SOURCE_PHOTO = 0;
+    public static final int SOURCE_SPECIAL = 1;
+    public static final int SOURCE_STRING = 2;      // the string, drawn into the special texture
+
+    public static class Op {
+        public final String shader;
+        public final int code;
+        public final int program;
+        public final int mode;
+        public final int mask;
+        public final int maskMode;
+        public final int source;
+        // draws the same picture for the same matrices and effect state, see
+        // ProcessGL.getSceneSignature
+        public final boolean isStatic;
+
+        Op(String shader, int code, int program, int mode, int mask, int maskMode, int source,
+                boolean isStatic) {
+            this.shader = shader;
+            this.code = code;
+            this.program = program;
+            this.mode = mode;
+            this.mask = mask;
+            this.maskMode = maskMode;
+            this.source = source;
+            this.isStatic = isStatic;
+        }
+
+        @Override
+        public String toString() {
+            return shader + ": op " + code + ", program " + program + "/" + mode + ", mask " +
+                    mask + "/" + maskMode + ", source " + source;
+        }
+    }
+
+    public static final Op NONE = new Op(null, OP_NONE, Shader.NONE, Shader.NONE, Mask.NONE,
+            Mask.NONE, SOURCE_PHOTO, false);
+
+    private static final HashMap<String, Op> sOps = new HashMap<String, Op>();
+
+    static {
+        shader(Shader.Default, Shader.DefaultShader, Shader.NONE, true);
+        shader(Shader.Scale_Fade, Shader.DefaultShader, Shader.NONE, true);
+        shader(Shader.Photo, Shader.PhotoShader, Shader.NONE, true);
+        shader(Shader.Rotate, Shader.RotateShader, Shader.NONE, false);
+        shader(Shader.Line, Shader.LineShader, Shader.NONE, false);
+        maskShader(Shader.Default_White, Mask.Filter, Shader.DefaultShader, Shader.NONE);
+        shaderMask(Shader.Scale_Mask, Shader.DefaultShader, Shader.NONE, Mask.Square, Mask.NONE);
+        shaderMask(Shader.Scale_Fade_Bar_TRANS_IN, Shader.DefaultShader, Shader.NONE, Mask.Bar, Mask.TRANS_IN);
+        shaderMask(Shader.Scale_Fade_Bar_SHOWN, Shader.DefaultShader, Shader.NONE, Mask.Bar, Mask.SHOWN);
+        shaderMask(Shader.Circle_Mask, Shader.DefaultShader, Shader.NONE, Mask.Circle, Mask.NONE);
+        shaderMask(Shader.Circle_Mask_Cover, Shader.CoverShader, Shader.HALF_RIGHT_Q, Mask.Circle, Mask.NONE);
+        shaderMask(Shader.Rotate_Mask, Shader.RotateShader, Shader.NONE, Mask.Circle, Mask.NONE);
+        mask(Shader.CMask, Mask.Circle);
+        mask(Shader.Filter, Mask.Filter);
+
+        add(new Op(Shader.String, OP_STRING, Shader.DefaultShader, Shader.STRING, Mask.NONE,
+                Mask.NONE, SOURCE_STRING, false));
+        add(new Op(Shader.String_Line, OP_SHADER, Shader.LineShader, Shader.STRING, Mask.NONE,
+                Mask.NONE, SOURCE_STRING, false));
+
+        shader(Shader.Cover_Left, Shader.CoverShader, Shader.LEFT, false);
+        shader(Shader.Cover_Right, Shader.CoverShader, Shader.RIGHT, false);
+        shader(Shader.Cover_Top, Shader.CoverShader, Shader.TOP, false);
+        shader(Shader.Cover_Bottom, Shader.CoverShader, Shader.BOTTOM, false);
+        shader(Shader.Cover_Half_Left, Shader.CoverShader, Shader.HALF_LEFT, false);
+        shader(Shader.Cover_Half_Left_Q, Shader.CoverShader, Shader.HALF_LEFT_Q, false);
+        shader(Shader.Cover_Half_Right, Shader.CoverShader, Shader.HALF_RIGHT, false);
+        shader(Shader.Cover_Half_Top, Shader.CoverShader, Shader.HALF_TOP, false);
+        shader(Shader.Cover_Half_Bottom, Shader.CoverShader, Shader.HALF_BOTTOM, false);
+        shader(Shader.Cover_Gfrag_Left, Shader.CoverShader, Shader.GFRAG_LEFT, false);
+        shader(Shader.Cover_Center_H, Shader.CoverShader, Shader.CENTER_H, false);
+        shader(Shader.Cover_Percent_L, Shader.CoverShader, Shader.PERCENT_L, false);
+        shader(Shader.Cover_Percent_L_Half, Shader.CoverShader, Shader.PERCENT_L_HALF, false);
+        shader(Shader.Cover_Percent_R, Shader.CoverShader, Shader.PERCENT_R, false);
+        shader(Shader.Cover_Percent_B, Shader.CoverShader, Shader.PERCENT_B, false);
+        add(new Op(Shader.Cover_Empty_Left, OP_SHADER, Shader.CoverShader, Shader.EMPTY_LEFT,
+                Mask.NONE, Mask.NONE, SOURCE_SPECIAL, false));
+        add(new Op(Shader.Cover_String_Left, OP_SHADER, Shader.CoverShader, Shader.STRING_LEFT,
+                Mask.NONE, Mask.NONE, SOURCE_STRING, false));
+
+        shader(Shader.Lattice_Vertical, Shader.LatticeShader, Shader.LATTICE_VERTICAL, false);
+        shader(Shader.Lattice_Horizontal, Shader.LatticeShader, Shader.LATTICE_HORIZONTAL, false);
+        shader(Shader.Lattice_Tilted_Left, Shader.LatticeShader, Shader.LATTICE_TILTED_LEFT, false);
+        shader(Shader.Lattice_Tilted_Left_T, Shader.LatticeShader, Shader.LATTICE_TILTED_LEFT_T, false);
+        shader(Shader.Lattice_Tilted_Right, Shader.LatticeShader, Shader.LATTICE_TILTED_RIGHT, false);
+        shader(Shader.Lattice_Tilted_Right_R, Shader.LatticeShader, Shader.LATTICE_TILTED_RIGHT_R, false);
+        shader(Shader.Lattice_Cross_2, Shader.LatticeShader, Shader.LATTICE_CROSS_2, false);
+        shader(Shader.Lattice_Cross_4, Shader.LatticeShader, Shader.LATTICE_CROSS_4, false);
+        shader(Shader.Lattice_Blue_Bar, Shader.LatticeShader, Shader.LATTICE_BLUE_BAR, false);
+        shaderMask(Shader.Lattice_Blue_Bar_Mask, Shader.LatticeShader, Shader.LATTICE_BLUE_BAR, Mask.Circle, Mask.NONE);
+        add(new Op(Shader.Lattice_Blue_Bar_String, OP_STRING, Shader.LatticeShader,
+                Shader.LATTICE_BLUE_BAR_GONE_STRING, Mask.NONE, Mask.NONE, SOURCE_STRING, false));
+
+        shader(Shader.Mirror_Vertical, Shader.MirrorShader, Shader.MIRROR_VERTICAL, false);
+        shader(Shader.Mirror_Vertical_TB, Shader.MirrorShader, Shader.MIRROR_VERTICAL_TB, false);
+        shader(Shader.Mirror_Tilted_Left, Shader.MirrorShader, Shader.MIRROR_TILTED_LEFT, false);
+        shaderMask(Shader.Mirror_Tilted_Mask, Shader.MirrorShader, Shader.MIRROR_TILTED_MASK, Mask.Square, Mask.NONE);
+        add(new Op(Shader.Mirror_Tilted, OP_TRANSITION, Shader.MirrorShader, Shader.MIRROR_TILTED,
+                Mask.NONE, Mask.NONE, SOURCE_PHOTO, false));
+
+        slogan(Shader.Slogan_TypeA);
+        slogan(Shader.Slogan_TypeB);
+        slogan(Shader.Slogan_TypeC);
+        slogan(Shader.Slogan_TypeD);
+        slogan(Shader.Slogan_TypeE);
+        slogan(Shader.Slogan_TypeF);
+    }
+
+    private RenderPlan() {}
+
+    private static void add(Op op) {
+        sOps.put(op.shader, op);
+    }
+
+    private static void shader(String shader, int program, int mode, boolean isStatic) {
+        add(new Op(shader, OP_SHADER, program, mode, Mask.NONE, Mask.NONE, SOURCE_PHOTO, isStatic));
+    }
+
+    private static void shaderMask(String shader, int program, int mode, int mask, int maskMode) {
+        add(new Op(shader, OP_SHADER_MASK, program, mode, mask, maskMode, SOURCE_PHOTO, false));
+    }
+
+    private static void maskShader(String shader, int mask, int program, int mode) {
+        // the mask draws the same white every frame
+        add(new Op(shader, OP_MASK_SHADER, program, mode, mask, Mask.NONE, SOURCE_PHOTO, true));
+    }
+
+    private static void mask(String shader, int mask) {
+        add(new Op(shader, OP_MASK, Shader.NONE, Shader.NONE, mask, Mask.NONE, SOURCE_SPECIAL, false));
+    }
+
+    private static void slogan(String shader) {
+        add(new Op(shader, OP_SLOGAN, Shader.NONE, Shader.NONE, Mask.NONE, Mask.NONE,
+                SOURCE_SPECIAL, false));
+    }
+
+    /**
+     * Returns the op of a shader type, {@link #NONE} for null or unknown ones.
+     */
+    public static synchronized Op compile(String shader) {
+        if(shader == null)
+            return NONE;
+        Op op = sOps.get(shader);
+        if(op == null) {
+            Log.w(TAG, "no op for shader " + shader + ", drawing nothing");
+            op = new Op(shader, OP_NONE, Shader.NONE, Shader.NONE, Mask.NONE, Mask.NONE,
+                    SOURCE_PHOTO, false);
+            add(op);
+        }
+        return op;
+    }
+}
@@ -0,0 +1,173 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.s890510.microfilm.gles.EglCore;
+import com.s890510.microfilm.gles.FrameBuffer;
+import com.s890510.microfilm.gles.WindowSurface;
+
+/**
+ * An extra encoder and muxer fed from the main export's rendered frames.
+ * <p>
+ * Its input surface lives in the main export's EGL context.  Every frame the main export
+ * sends is scaled into it from the offscreen {@link FrameBuffer}, so the movie is rendered
+ * once no matter how many sizes are written.  Output is drained on its own
+ * {@link EncodeDrainThread} and muxed, with the music, into its own file.
+ */
+public class SecondaryOutput implements EncodeDrainThread.SampleListener {
+    private static final String TAG = "SecondaryOutput";
+    private static final boolean VERBOSE = false;
+
+    private final Context mContext;
+    private final OutputProfile mProfile;
+    private final String mPath;
+    private final int mMusicId;
+    private final int mDuration;
+
+    private MediaCodec mEncoder;
+    private WindowSurface mInputSurface;
+    private EncodeDrainThread mDrainThread;
+    private MovieMuxer mMuxer;
+    private AudioEncode mAudioEncode;
+    private int mVideoTrackIndex = -1;
+    private boolean mMuxerStarted = false;
+
+    /**
+     * @param duration movie length, in milliseconds, the music is trimmed to
+     */
+    public SecondaryOutput(Context context, OutputProfile profile, String path, int musicId,
+            int duration) {
+        mContext = context;
+        mProfile = profile;
+        mPath = path;
+        mMusicId = musicId;
+        mDuration = duration;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Creates and starts the encoder.  eglCore must be current on the calling thread, and
+     * stays current on the surface it was current on.
+     *
+     * @param codecName encoder to use, or null for the default one of the format's type
+     */
+    public void prepare(EglCore eglCore, String codecName, MediaFormat format) throws IOException {
+        if(codecName != null) {
+            mEncoder = MediaCodec.createByCodecName(codecName);
+        } else {
+            mEncoder = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        }
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = new WindowSurface(eglCore, mEncoder.createInputSurface(), true);
+        mEncoder.start();
+
+        mMuxer = new MovieMuxer.Mp4(mPath);
+        mAudioEncode = new AudioEncode();
+        mAudioEncode.setAudioSource(mContext, mMusicId);
+
+        mDrainThread = new EncodeDrainThread(mEncoder, this);
+        mDrainThread.start();
+        Log.d(TAG, "output " + mProfile.width + "x" + mProfile.height + " to " + mPath);
+    }
+
+    /**
+     * Scales the frame into this output's surface and submits it.  Leaves this output's
+     * surface current; the caller makes its own current again.
+     */
+    public void drawFrame(FrameBuffer frame, long presentationTimeNs) {
+        mDrainThread.checkError();
+        mInputSurface.makeCurrent();
+        GLES20.glViewport(0, 0, mProfile.width, mProfile.height);
+        frame.blit();
+        mInputSurface.setPresentationTime(presentationTimeNs);
+        if(!mInputSurface.swapBuffers()) mDrainThread.checkError();
+    }
+
+    /**
+     * Drains the rest of the video, adds the music and finishes the file.
+     */
+    public void finish() throws InterruptedException, IOException {
+        mDrainThread.finish();
+        mDrainThread = null;
+
+        mAudioEncode.doEncode(mContext, mMuxer);
+        mAudioEncode = null;
+        mMuxer.stop();
+        mMuxerStarted = false;
+    }
+
+    /**
+     * Releases everything.  The EGL context must still exist.
+     */
+    public void release() {
+        boolean encoderStopped = false;
+        if(mDrainThread != null) {
+            mDrainThread.quit();
+            encoderStopped = mDrainThread.isEncoderStopped();
+            mDrainThread = null;
+        }
+        if(mAudioEncode != null) {
+            mAudioEncode.release();
+            mAudioEncode = null;
+        }
+        if(mEncoder != null) {
+            if(!encoderStopped) mEncoder.stop();
+            mEncoder.release();
+            mEncoder = null;
+        }
+        if(mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        if(mMuxer != null) {
+            try {
+                if(mMuxerStarted) {
+                    mMuxer.stop();
+                }
+                mMuxer.release();
+            } catch(IllegalStateException e) {
+                Log.w(TAG, "muxer release failed", e);
+            }
+            mMuxer = null;
+        }
+    }
+
+    /**
+     * Deletes the output of an export that didn't finish.
+     */
+    public void delete() {
+        File file = new File(mPath);
+        if(file.exists()) {
+            file.delete();
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        mVideoTrackIndex = mMuxer.addTrack(format);
+        try {
+            mAudioEncode.setupAudioMuxer(mContext, mMuxer, mDuration);
+        } catch (IOException ioe) {
+            throw new RuntimeException("audio track setup failed", ioe);
+        }
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    @Override
+    public void onEncodedSample(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        mMuxer.writeSampleData(mVideoTrackIndex, encodedData, info);
+        if (VERBOSE) Log.d(TAG, "sent " + info.size + " bytes to " + mPath);
+    }
+}
@@ -0,0 +1,234 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Keeps encoded segments of earlier exports, by a hash of everything that went into them,
+ * so a re-export after a small edit only encodes the spans that changed.
+ * <p>
+ * Segments are plain video-only MP4 files named after their key.  Using one touches its
+ * modification time; when the cache grows past its budget the least recently used ones are
+ * deleted.  The cache also remembers the crop center picked for every photo: the face a
+ * photo is centered on is picked at random, and a segment can only be reused if the same
+ * one is picked again.
+ * <p>
+ * A segment handed out by {@link #get} is pinned until {@link #unpin}: an export opens its
+ * hits only after it encoded and cached its misses, and trimming must not delete them in
+ * between.
+ */
+public class SegmentCache {
+    private static final String TAG = "SegmentCache";
+    private static final boolean VERBOSE = false;
+
+    private static final String SEGMENT_SUFFIX = ".mp4";
+    private static final String CROP_INDEX = "crops.json";
+
+    private final File mDir;
+    private final long mBudgetBytes;
+    private HashMap<String, float[]> mCropCenters;
+    private final HashSet<String> mPinned = new HashSet<String>();
+
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    public SegmentCache(File dir, long budgetBytes) {
+        mDir = dir;
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the cached segment for key, or null.  A segment returned is pinned, and kept
+     * through trimming until it is unpinned.
+     */
+    public synchronized File get(String key) {
+        File file = new File(mDir, key + SEGMENT_SUFFIX);
+        if(!file.exists()) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mPinned.add(key);
+        file.setLastModified(System.currentTimeMillis());
+        if (VERBOSE) Log.d(TAG, "hit " + key);
+        return file;
+    }
+
+    /**
+     * Copies an encoded segment into the cache under key, and trims the cache to its budget.
+     */
+    public synchronized void put(String key, File segment) {
+        mDir.mkdirs();
+        File file = new File(mDir, key + SEGMENT_SUFFIX);
+        File tmp = new File(mDir, key + ".tmp");
+        try {
+            copy(segment, tmp);
+            if(!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "caching " + segment + " failed", e);
+            tmp.delete();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Lets trimming delete the segment of key again.
+     */
+    public synchronized void unpin(String key) {
+        mPinned.remove(key);
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the crop center remembered for a photo, or null.
+     */
+    public synchronized float[] getCropCenter(String media) {
+        loadCropCenters();
+        return mCropCenters.get(media);
+    }
+
+    public synchronized void putCropCenter(String media, float[] center) {
+        loadCropCenters();
+        mCropCenters.put(media, center);
+    }
+
+    /**
+     * Writes the remembered crop centers.
+     */
+    public synchronized void saveCropCenters() {
+        if(mCropCenters == null) return;
+        try {
+            JSONObject json = new JSONObject();
+            for(String media : mCropCenters.keySet()) {
+                float[] center = mCropCenters.get(media);
+                JSONArray value = new JSONArray();
+                value.put((double) center[0]);
+                value.put((double) center[1]);
+                json.put(media, value);
+            }
+            mDir.mkdirs();
+            File tmp = new File(mDir, CROP_INDEX + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(json.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(new File(mDir, CROP_INDEX))) {
+                throw new IOException("rename failed");
+            }
+        } catch(Exception e) {
+            Log.w(TAG, "saving crop centers failed", e);
+        }
+    }
+
+    private void loadCropCenters() {
+        if(mCropCenters != null) return;
+        mCropCenters = new HashMap<String, float[]>();
+
+        File file = new File(mDir, CROP_INDEX);
+        if(!file.exists()) return;
+        try {
+            InputStream in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            try {
+                int read = 0;
+                while(read < data.length) {
+                    int count = in.read(data, read, data.length - read);
+                    if(count < 0) break;
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+            JSONObject json = new JSONObject(new String(data, "UTF-8"));
+            Iterator<?> keys = json.keys();
+            while(keys.hasNext()) {
+                String media = (String) keys.next();
+                JSONArray value = json.getJSONArray(media);
+                mCropCenters.put(media, new float[]{(float) value.getDouble(0),
+                        (float) value.getDouble(1)});
+            }
+        } catch(Exception e) {
+            Log.w(TAG, "crop centers unreadable", e);
+            mCropCenters.clear();
+        }
+    }
+
+    /**
+     * Deletes the least recently used segments that aren't pinned until the cache fits its
+     * budget.
+     */
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if(files == null) return;
+
+        long total = 0;
+        for(int i=0; i<files.length; i++) {
+            if(files[i].getName().endsWith(SEGMENT_SUFFIX))
+                total += files[i].length();
+        }
+        if(total <= mBudgetBytes) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for(int i=0; i<files.length && total > mBudgetBytes; i++) {
+            String name = files[i].getName();
+            if(!name.endsWith(SEGMENT_SUFFIX)) continue;
+            if(mPinned.contains(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                continue;
+            long length = files[i].length();
+            if(files[i].delete()) {
+                total -= length;
+                if (VERBOSE) Log.d(TAG, "evicted " + files[i].getName());
+            }
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
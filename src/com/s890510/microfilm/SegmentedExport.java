@@ -0,0 +1,610 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import android.app.ProgressDialog;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Encodes a movie as several segments at once, then stitches them back together.
+ * <p>
+ * The timeline is cut at effect boundaries into segments of about the same number of
+ * frames.  Every segment is rendered by its own {@link EncodeAndMux} on a worker thread,
+ * with its own EGL context and encoder, into a temporary video-only MP4.  A new encoder
+ * starts with an IDR frame, so the segments can be concatenated sample by sample as long
+ * as all encoders produced the same codec config.
+ * <p>
+ * The number of segments running at once is limited by the instances the chosen encoder
+ * reports (see {@link EncoderSelector}) and by the number of cores.
+ * <p>
+ * With an {@link ExportJournal} the segments are checkpoints: they are cut every
+ * {@link #CHECKPOINT_SECONDS}, kept until the export succeeds, and recorded as they finish.
+ * An export of the same plan after an interruption only encodes the segments that are
+ * missing.
+ * <p>
+ * With a {@link SegmentCache} every segment is looked up by a hash of what it draws before
+ * it is encoded, and stored there after.  The cuts then depend on the effects, not on the
+ * movie length, so an edit late in the movie leaves the earlier cuts, and their segments, as
+ * they were.  The segments found stay pinned in the cache until {@link #release}; one that
+ * is gone anyway when the others are done is rendered after all.
+ */
+public class SegmentedExport {
+    private static final String TAG = "SegmentedExport";
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_SEGMENTS = 4;
+    // a segment has to be long enough to pay for its own EGL/encoder setup and warm-up
+    private static final int MIN_SEGMENT_SECONDS = 5;
+    // length of a checkpoint segment of a journaled export
+    private static final int CHECKPOINT_SECONDS = 10;
+    // a cached export cuts after effects whose key hashes to 0 modulo this, within these
+    // segment lengths
+    private static final int CUT_MODULUS = 4;
+    private static final int MAX_CACHED_SEGMENT_SECONDS = 20;
+    private static final int MAX_SAMPLE_SIZE = 2 * 1024 * 1024;
+
+    private final EncodeAndMux mParent;
+    private final int mMaxInstances;
+    private final ExportJournal mJournal;
+    private final SegmentCache mCache;
+    private String mSettings;
+    private String[] mEffectKeys;
+
+    private ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private int[] mFramePlan;
+    private float[][] mCropCenters;
+    private int mWorkerCount;
+    private int mNextSegment;
+    private boolean mFailed;
+
+    private static class Segment {
+        int index;
+        int first;
+        int last;
+        int frames;
+        String path;
+        String key;
+        boolean cached;
+        boolean done;
+        long startUs;
+        EncodeAndMux encoder;
+        volatile Throwable error;
+    }
+
+    /**
+     * @param maxInstances how many instances of the encoder can run at once
+     */
+    public SegmentedExport(EncodeAndMux parent, int maxInstances) {
+        this(parent, maxInstances, null);
+    }
+
+    /**
+     * @param journal where finished segments are recorded, or null for temporary segments
+     */
+    public SegmentedExport(EncodeAndMux parent, int maxInstances, ExportJournal journal) {
+        this(parent, maxInstances, journal, null);
+    }
+
+    /**
+     * @param cache where segments of earlier exports are looked up and new ones kept, or null
+     */
+    public SegmentedExport(EncodeAndMux parent, int maxInstances, ExportJournal journal,
+            SegmentCache cache) {
+        mParent = parent;
+        mMaxInstances = maxInstances;
+        mJournal = journal;
+        mCache = cache;
+    }
+
+    /**
+     * Splits the movie into segments.
+     *
+     * @param framePlan number of frames of every effect
+     * @return false if the movie should be encoded serially
+     */
+    public boolean plan(int[] framePlan, int frameRate) {
+        mFramePlan = framePlan;
+        int totalFrames = 0;
+        for(int i=0; i<framePlan.length; i++)
+            totalFrames += framePlan[i];
+
+        int workers = Math.min(mMaxInstances,
+                Runtime.getRuntime().availableProcessors());
+        workers = Math.min(workers, MAX_SEGMENTS);
+
+        if(mCache != null) {
+            mSettings = mParent.describeSegmentSettings();
+            mEffectKeys = mParent.describeEffects(framePlan);
+        }
+
+        ArrayList<int[]> ranges;
+        if(mJournal == null && mCache != null) {
+            ranges = splitAtContent(framePlan, frameRate);
+            if(ranges.size() < 2) {
+                return false;
+            }
+        } else if(mJournal == null) {
+            int count = Math.min(workers, totalFrames / (MIN_SEGMENT_SECONDS * frameRate));
+            if(count < 2) {
+                Log.d(TAG, "not splitting " + totalFrames + " frames");
+                return false;
+            }
+            ranges = splitAtEffects(framePlan, count);
+            if(ranges.size() < 2) {
+                return false;
+            }
+        } else if(mJournal.getRanges().isEmpty()) {
+            int count = totalFrames / (CHECKPOINT_SECONDS * frameRate);
+            if(count < 2) {
+                Log.d(TAG, "no checkpoints for " + totalFrames + " frames");
+                return false;
+            }
+            ranges = mCache != null ? splitAtContent(framePlan, frameRate) :
+                    splitAtEffects(framePlan, count);
+            if(ranges.size() < 2) {
+                return false;
+            }
+            mJournal.start(ranges);
+        } else {
+            ranges = mJournal.getRanges();
+        }
+        mWorkerCount = Math.max(1, Math.min(workers, ranges.size()));
+
+        mCropCenters = new float[framePlan.length][];
+        if(mJournal != null && mJournal.getCropCenters() != null &&
+                mJournal.getCropCenters().length == framePlan.length) {
+            mCropCenters = mJournal.getCropCenters();
+        }
+        if(mCache != null) {
+            // pick the faces picked last time, or the segments would never match
+            for(int i=0; i<mCropCenters.length; i++) {
+                if(mCropCenters[i] == null && mParent.isImageEffect(i)) {
+                    String media = mParent.getMediaPath(i);
+                    if(media != null)
+                        mCropCenters[i] = mCache.getCropCenter(media);
+                }
+            }
+        }
+        for(int i=0; i<ranges.size(); i++) {
+            Segment segment = new Segment();
+            segment.index = i;
+            segment.first = ranges.get(i)[0];
+            segment.last = ranges.get(i)[1];
+            for(int j=segment.first; j<=segment.last && j<framePlan.length; j++)
+                segment.frames += framePlan[j];
+            if(mJournal != null) {
+                segment.path = mJournal.getSegmentPath(i);
+                // the poster is captured while rendering, the last attempt's was deleted
+                segment.done = mJournal.isDone(i) && !holdsPoster(segment, framePlan);
+                segment.startUs = mJournal.getStartUs(i);
+            } else {
+                segment.path = getWorkingPath(i);
+            }
+            if(mCache != null && !segment.done) {
+                lookUp(segment, framePlan);
+            }
+            mSegments.add(segment);
+            Log.d(TAG, "segment " + i + ": effects " + segment.first + ".." + segment.last +
+                    (segment.done ? ", done" : ""));
+        }
+        return true;
+    }
+
+    /**
+     * Cuts the effects into at most count ranges of about the same number of frames.  Every
+     * range is {first, last}, both inclusive.
+     */
+    static ArrayList<int[]> splitAtEffects(int[] framePlan, int count) {
+        int totalFrames = 0;
+        for(int i=0; i<framePlan.length; i++)
+            totalFrames += framePlan[i];
+
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int first = 0;
+        int frames = 0;
+        for(int i=0; i<framePlan.length; i++) {
+            frames += framePlan[i];
+            // cut once this range reached its share of the movie
+            long target = (long) totalFrames * (ranges.size() + 1) / count;
+            if(frames >= target && ranges.size() < count - 1 && i < framePlan.length - 1) {
+                ranges.add(new int[]{first, i});
+                first = i + 1;
+            }
+        }
+        if(first < framePlan.length) {
+            ranges.add(new int[]{first, framePlan.length - 1});
+        }
+        return ranges;
+    }
+
+    /**
+     * Cuts the effects after every effect whose key hashes to 0 modulo {@link #CUT_MODULUS},
+     * keeping segments between {@link #MIN_SEGMENT_SECONDS} and
+     * {@link #MAX_CACHED_SEGMENT_SECONDS} long.  Where a cut is depends only on the effects
+     * before it.
+     */
+    private ArrayList<int[]> splitAtContent(int[] framePlan, int frameRate) {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int first = 0;
+        int frames = 0;
+        for(int i=0; i<framePlan.length - 1; i++) {
+            frames += framePlan[i];
+            if(frames < MIN_SEGMENT_SECONDS * frameRate) continue;
+            if(frames >= MAX_CACHED_SEGMENT_SECONDS * frameRate ||
+                    (mEffectKeys[i].hashCode() & 0x7fffffff) % CUT_MODULUS == 0) {
+                ranges.add(new int[]{first, i});
+                first = i + 1;
+                frames = 0;
+            }
+        }
+        if(first < framePlan.length) {
+            ranges.add(new int[]{first, framePlan.length - 1});
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the cache key of a segment: the settings, where it starts, and what it and the
+     * effects it warms up with draw.
+     */
+    private String getKey(Segment segment, int[] framePlan) {
+        StringBuilder sb = new StringBuilder(mSettings);
+        sb.append('@').append(EncodeAndMux.getEffectStartUs(framePlan, segment.first));
+        int from = Math.max(0, segment.first - EncodeAndMux.WARMUP_EFFECTS);
+        synchronized(mCropCenters) {
+            for(int i=from; i<=segment.last && i<mEffectKeys.length; i++) {
+                sb.append('|').append(i == segment.first ? "*" : "").append(mEffectKeys[i]);
+                if(mCropCenters[i] != null)
+                    sb.append(',').append(mCropCenters[i][0]).append(',').append(mCropCenters[i][1]);
+            }
+        }
+        return ExportJournal.hashPlan(sb.toString());
+    }
+
+    // whether the poster frame is in segment, which must then be rendered to capture it
+    private boolean holdsPoster(Segment segment, int[] framePlan) {
+        return mParent.hasPosterIn(EncodeAndMux.getEffectStartUs(framePlan, segment.first),
+                EncodeAndMux.getEffectStartUs(framePlan, segment.last + 1));
+    }
+
+    // where segment index is rendered to
+    private String getWorkingPath(int index) {
+        if(mJournal != null)
+            return mJournal.getSegmentPath(index);
+        return EncodeAndMux.OUTPUT_DIR + ".MicroFilmSegment" + index + ".tmp";
+    }
+
+    private void lookUp(Segment segment, int[] framePlan) {
+        long startUs = EncodeAndMux.getEffectStartUs(framePlan, segment.first);
+        // the poster is captured while rendering, a cached segment would not give one
+        if(holdsPoster(segment, framePlan)) {
+            return;
+        }
+        String key = getKey(segment, framePlan);
+        File file = mCache.get(key);
+        if(file != null) {
+            segment.path = file.getPath();
+            segment.key = key;
+            segment.cached = true;
+            segment.done = true;
+            segment.startUs = startUs;
+        }
+    }
+
+    public int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Returns the frames all segments re-submitted without drawing.
+     */
+    public int getElidedFrames() {
+        int count = 0;
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).encoder != null)
+                count += mSegments.get(i).encoder.getElidedFrames();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the frames all segments did not send in variable frame rate mode.
+     */
+    public int getDroppedFrames() {
+        int count = 0;
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).encoder != null)
+                count += mSegments.get(i).encoder.getDroppedFrames();
+        }
+        return count;
+    }
+
+    /**
+     * Encodes all segments that aren't done yet and waits for them.  If the calling thread is
+     * interrupted, the segments are interrupted too and InterruptedException is thrown.
+     */
+    public void encode(ProgressDialog progressDialog) throws Exception {
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).done)
+                progressDialog.incrementProgressBy(mSegments.get(i).frames);
+        }
+        encodePending(progressDialog);
+
+        // pinned hits survive this export's trimming, but not someone clearing the cache
+        if(mCache != null && dropMissingHits(progressDialog)) {
+            encodePending(progressDialog);
+        }
+        if(mCache != null) {
+            rememberCropCenters();
+        }
+    }
+
+    /**
+     * Turns the cache hits whose file is gone back into segments to render.
+     *
+     * @return true if there were any
+     */
+    private boolean dropMissingHits(ProgressDialog progressDialog) {
+        boolean missing = false;
+        for(int i=0; i<mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            if(!segment.cached || new File(segment.path).exists()) continue;
+            Log.w(TAG, "cached segment " + i + " is gone, rendering it");
+            mCache.unpin(segment.key);
+            segment.cached = false;
+            segment.done = false;
+            segment.key = null;
+            segment.path = getWorkingPath(i);
+            progressDialog.incrementProgressBy(-segment.frames);
+            missing = true;
+        }
+        mNextSegment = 0;
+        return missing;
+    }
+
+    // renders every segment that isn't done on mWorkerCount threads
+    private void encodePending(final ProgressDialog progressDialog) throws Exception {
+        for(int i=0; i<mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            if(!segment.done) {
+                segment.encoder = new EncodeAndMux(mParent, segment.first, segment.last,
+                        segment.path, mCropCenters);
+            }
+        }
+
+        // every worker takes the next segment that isn't done, until none are left
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for(int i=0; i<mWorkerCount; i++) {
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Segment segment;
+                    while((segment = nextSegment()) != null) {
+                        try {
+                            segment.encoder.encodeSegment(progressDialog);
+                        } catch(Throwable t) {
+                            segment.error = t;
+                            synchronized(SegmentedExport.this) {
+                                mFailed = true;
+                            }
+                            return;
+                        }
+                        segment.startUs = segment.encoder.getSegmentStartUs();
+                        segment.done = true;
+                        if(mJournal != null)
+                            mJournal.markDone(segment.index, segment.startUs, mCropCenters);
+                        if(mCache != null)
+                            mCache.put(getKey(segment, mFramePlan), new File(segment.path));
+                    }
+                }
+            }, TAG + i));
+        }
+        for(int i=0; i<workers.size(); i++) {
+            workers.get(i).start();
+        }
+
+        try {
+            for(int i=0; i<workers.size(); i++) {
+                workers.get(i).join();
+            }
+        } catch(InterruptedException e) {
+            // user cancels encoding
+            synchronized(this) {
+                mFailed = true;
+            }
+            for(int i=0; i<workers.size(); i++) {
+                workers.get(i).interrupt();
+            }
+            for(int i=0; i<workers.size(); i++) {
+                joinQuietly(workers.get(i));
+            }
+            throw e;
+        }
+
+        for(int i=0; i<mSegments.size(); i++) {
+            Throwable error = mSegments.get(i).error;
+            if(error instanceof InterruptedException) {
+                throw (InterruptedException) error;
+            } else if(error != null) {
+                throw new RuntimeException("segment " + i + " failed", error);
+            }
+        }
+    }
+
+    private void rememberCropCenters() {
+        synchronized(mCropCenters) {
+            for(int i=0; i<mCropCenters.length; i++) {
+                if(mCropCenters[i] == null || !mParent.isImageEffect(i)) continue;
+                String media = mParent.getMediaPath(i);
+                if(media != null)
+                    mCache.putCropCenter(media, mCropCenters[i]);
+            }
+        }
+        mCache.saveCropCenters();
+        Log.d(TAG, "segment cache: " + mCache.getHits() + " hits, " + mCache.getMisses() +
+                " misses");
+    }
+
+    private synchronized Segment nextSegment() {
+        while(!mFailed && mNextSegment < mSegments.size()) {
+            Segment segment = mSegments.get(mNextSegment++);
+            if(!segment.done) return segment;
+        }
+        return null;
+    }
+
+    public void pauseEncode() {
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).encoder != null)
+                mSegments.get(i).encoder.pauseEncode();
+        }
+    }
+
+    public void resumeEncode() {
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).encoder != null)
+                mSegments.get(i).encoder.resumeEncode();
+        }
+    }
+
+    /**
+     * Returns the format of the stitched video track, or null if the segments don't share
+     * one codec config and can't be concatenated.
+     */
+    public MediaFormat getVideoFormat() throws IOException {
+        MediaFormat result = null;
+        for(int i=0; i<mSegments.size(); i++) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(mSegments.get(i).path);
+                MediaFormat format = extractor.getTrackFormat(0);
+                if(result == null) {
+                    result = format;
+                } else if(!sameConfig(result, format)) {
+                    Log.w(TAG, "segment " + i + " format " + format + " differs from " + result);
+                    return null;
+                }
+            } finally {
+                extractor.release();
+            }
+        }
+        return result;
+    }
+
+    private static boolean sameConfig(MediaFormat a, MediaFormat b) {
+        if(a.getInteger(MediaFormat.KEY_WIDTH) != b.getInteger(MediaFormat.KEY_WIDTH) ||
+                a.getInteger(MediaFormat.KEY_HEIGHT) != b.getInteger(MediaFormat.KEY_HEIGHT)) {
+            return false;
+        }
+        return sameBuffer(a, b, "csd-0") && sameBuffer(a, b, "csd-1");
+    }
+
+    private static boolean sameBuffer(MediaFormat a, MediaFormat b, String key) {
+        ByteBuffer bufA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+        ByteBuffer bufB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+        if(bufA == null || bufB == null)
+            return bufA == bufB;
+        return bufA.equals(bufB);
+    }
+
+    /**
+     * Feeds the samples of all segments, in order, to listener.  Timestamps are moved to
+     * where each segment starts in the movie, whatever the segment's muxer made of them.
+     * Samples are copied in decode order; with B-frames their presentation times go back
+     * and forth, so only the segments' start times are checked to go forward.
+     */
+    public void writeSamples(EncodeDrainThread.SampleListener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_SAMPLE_SIZE);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // the latest presentation time of the segments so far
+        long lastTimeUs = -1;
+
+        for(int i=0; i<mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            if(segment.startUs <= lastTimeUs) {
+                throw new RuntimeException("segment " + i + " starts at " + segment.startUs +
+                        " us, before the end of the last one at " + lastTimeUs + " us");
+            }
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(segment.path);
+                extractor.selectTrack(0);
+
+                long offsetUs = 0;
+                boolean firstSample = true;
+                long segmentEndUs = lastTimeUs;
+                int count = 0;
+                while(true) {
+                    buffer.clear();
+                    int size = extractor.readSampleData(buffer, 0);
+                    if(size < 0) break;
+
+                    long timeUs = extractor.getSampleTime();
+                    if(firstSample) {
+                        // the first sample is the segment's key frame, shown first too
+                        offsetUs = segment.startUs - timeUs;
+                        firstSample = false;
+                    }
+
+                    info.offset = 0;
+                    info.size = size;
+                    info.presentationTimeUs = timeUs + offsetUs;
+                    // MediaExtractor.SAMPLE_FLAG_SYNC has the same value as BUFFER_FLAG_SYNC_FRAME
+                    info.flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ?
+                            MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+
+                    buffer.position(0);
+                    buffer.limit(size);
+                    listener.onEncodedSample(buffer, info);
+                    segmentEndUs = Math.max(segmentEndUs, info.presentationTimeUs);
+                    count++;
+                    extractor.advance();
+                }
+                lastTimeUs = segmentEndUs;
+                if (VERBOSE) Log.d(TAG, "segment " + i + ": " + count + " samples, offset " + offsetUs);
+            } finally {
+                extractor.release();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary segment files.  A journal's segments are kept for the next
+     * attempt; {@link ExportJournal#clear} removes them.  Cached segments belong to the cache,
+     * and are unpinned.
+     */
+    public void release() {
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).cached)
+                mCache.unpin(mSegments.get(i).key);
+        }
+        if(mJournal != null) return;
+        for(int i=0; i<mSegments.size(); i++) {
+            if(mSegments.get(i).cached) continue;
+            File file = new File(mSegments.get(i).path);
+            if(file.exists()) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while(true) {
+            try {
+                thread.join();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,277 @@
+package com.s890510.microfilm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import com.s890510.microfilm.gles.FenceSync;
+
+/**
+ * The photo textures on the GPU, by what is in them: the media and the size it was decoded
+ * at.  The crop of a photo is applied through its texture coordinates and the color
+ * conversion of its effect by the shaders, so one texture serves every crop and conversion
+ * of the same decode.
+ * <p>
+ * Elements entering the screen {@link #acquire} a texture and {@link #release} it when they
+ * leave.  Textures nobody holds stay on the GPU and are reused when the same photo comes
+ * back; when the uploaded bytes grow past the budget, the least recently used of them are
+ * deleted.  Textures in use are never deleted, even over budget.
+ * <p>
+ * {@link #acquire}, {@link #release} and {@link #isReady} need no GL context and may be
+ * called from any thread; {@link #upload}, {@link #trim} and {@link #clear} must run on the
+ * thread of a context the textures live in.  A texture uploaded in another, shared context
+ * (see {@link TextureUploader}) is only ready for drawing once its fence has signaled.
+ */
+public class TextureCache {
+    private static final String TAG = "TextureCache";
+    private static final boolean VERBOSE = false;
+
+    /**
+     * A texture of the cache.  Its name is 0 until it is uploaded.
+     */
+    public static class Entry {
+        public final String media;
+        public final int width;
+        public final int height;
+
+        private int mName = 0;
+        private int mBytes = 0;
+        private int mRefCount = 0;
+        private boolean mDead = false;
+        // queued for, or being uploaded by, another context, and the fence of that upload
+        private boolean mQueued = false;
+        private Object mFence;
+
+        Entry(String media, int width, int height) {
+            this.media = media;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getName() {
+            return mName;
+        }
+
+        public boolean isUploaded() {
+            return mName != 0;
+        }
+
+        String getKey() {
+            return getKey(media, width, height);
+        }
+
+        static String getKey(String media, int width, int height) {
+            return media + ":" + width + "x" + height;
+        }
+    }
+
+    private final LoadTexture mLoadTexture;
+    // in access order, so the eldest is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mBudgetBytes;
+    private long mBytes = 0;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mUploads = 0;
+    private int mEvictions = 0;
+
+    public TextureCache(LoadTexture loadTexture, long budgetBytes) {
+        mLoadTexture = loadTexture;
+        mBudgetBytes = budgetBytes;
+    }
+
+    public synchronized void setBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the texture for a photo and holds it.  A new one isn't uploaded yet; the caller
+     * uploads it on the GL thread.
+     */
+    public synchronized Entry acquire(String media, int width, int height) {
+        String key = Entry.getKey(media, width, height);
+        Entry entry = mEntries.get(key);
+        if(entry != null && entry.isUploaded()) {
+            mHits++;
+        } else {
+            mMisses++;
+            if(entry == null) {
+                entry = new Entry(media, width, height);
+                mEntries.put(key, entry);
+            }
+        }
+        entry.mRefCount++;
+        if (VERBOSE) Log.d(TAG, "acquire " + key + ", refs " + entry.mRefCount);
+        return entry;
+    }
+
+    public synchronized void release(Entry entry) {
+        if(entry == null || entry.mDead || entry.mRefCount == 0)
+            return;
+        entry.mRefCount--;
+    }
+
+    /**
+     * Lets go of every texture; they stay cached.
+     */
+    public synchronized void releaseAll() {
+        for(Entry entry : mEntries.values()) {
+            entry.mRefCount = 0;
+        }
+    }
+
+    /**
+     * Uploads bitmap into the entry, unless it is uploaded already, then trims the cache.  The
+     * upload itself doesn't hold the cache's lock, so other threads aren't held up by it.
+     */
+    public void upload(Entry entry, Bitmap bitmap) {
+        synchronized(this) {
+            if(entry.mDead || entry.isUploaded())
+                return;
+        }
+
+        int name = mLoadTexture.GenTexture();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, name);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+
+        synchronized(this) {
+            if(entry.mDead || entry.isUploaded()) {
+                // cleared, or uploaded by the other context, meanwhile
+                mLoadTexture.DeleteTexture(name);
+                return;
+            }
+            entry.mName = name;
+            entry.mBytes = bitmap.getRowBytes() * bitmap.getHeight();
+            mBytes += entry.mBytes;
+            mUploads++;
+            trim();
+        }
+    }
+
+    /**
+     * Marks an entry as queued for upload in another context; it isn't ready until
+     * {@link #setFence} is called.  Returns false if it is queued already.
+     */
+    public synchronized boolean setQueued(Entry entry) {
+        if(entry.mQueued)
+            return false;
+        entry.mQueued = true;
+        return true;
+    }
+
+    /**
+     * Hands an entry uploaded in another context over, with the fence of the upload, or null
+     * if that context finished its commands.
+     */
+    public synchronized void setFence(Entry entry, Object fence) {
+        if(entry.mFence != null)
+            FenceSync.destroy(entry.mFence);
+        entry.mFence = fence;
+        entry.mQueued = false;
+    }
+
+    /**
+     * Returns false while the entry's upload in another context is queued or not done yet.
+     * Never blocks.
+     */
+    public synchronized boolean isReady(Entry entry) {
+        if(entry.mQueued)
+            return false;
+        if(entry.mFence != null) {
+            if(!FenceSync.isSignaled(entry.mFence))
+                return false;
+            FenceSync.destroy(entry.mFence);
+            entry.mFence = null;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used textures nobody holds until the cache fits its budget.
+     */
+    public synchronized void trim() {
+        if(mBytes <= mBudgetBytes) return;
+
+        Iterator<Entry> it = mEntries.values().iterator();
+        while(it.hasNext() && mBytes > mBudgetBytes) {
+            Entry entry = it.next();
+            if(entry.mRefCount > 0) continue;
+            delete(entry);
+            it.remove();
+            mEvictions++;
+            if (VERBOSE) Log.d(TAG, "evicted " + entry.getKey());
+        }
+        if(mBytes > mBudgetBytes)
+            Log.w(TAG, "textures in use take " + mBytes + " bytes, over the budget of " + mBudgetBytes);
+    }
+
+    /**
+     * Deletes every texture.
+     */
+    public synchronized void clear() {
+        for(Entry entry : mEntries.values()) {
+            delete(entry);
+        }
+        mEntries.clear();
+    }
+
+    /**
+     * Forgets every texture without deleting it, for when their context is gone.
+     */
+    public synchronized void abandon() {
+        for(Entry entry : mEntries.values()) {
+            entry.mName = 0;
+            entry.mFence = null;
+            entry.mDead = true;
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    private void delete(Entry entry) {
+        if(entry.isUploaded()) {
+            mLoadTexture.DeleteTexture(entry.mName);
+            mBytes -= entry.mBytes;
+        }
+        if(entry.mFence != null) {
+            FenceSync.destroy(entry.mFence);
+            entry.mFence = null;
+        }
+        entry.mName = 0;
+        entry.mBytes = 0;
+        entry.mDead = true;
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    public synchronized int getUploads() {
+        return mUploads;
+    }
+
+    public synchronized int getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "textures " + mEntries.size() + ", " + mBytes + "/" + mBudgetBytes + " bytes, hits " +
+                mHits + ", misses " + mMisses + ", uploads " + mUploads + ", evictions " + mEvictions;
+    }
+}
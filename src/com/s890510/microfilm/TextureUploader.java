@@ -0,0 +1,207 @@
+package com.s890510.microfilm;
+
+import java.util.ArrayList;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.s890510.microfilm.gles.EglCore;
+import com.s890510.microfilm.gles.FenceSync;
+
+/**
+ * Uploads photo textures on its own thread, in an EGL context shared with the preview's, so
+ * the preview never waits for a texImage2D when a slide changes.
+ * <p>
+ * Two kinds of work come in: the next slides of the timeline, set with
+ * {@link #setLookahead}, and the photos that are already on screen without a texture, queued
+ * with {@link #upload}, which go first.  The cache entries of the lookahead are held until
+ * the next lookahead replaces them, so they aren't evicted before their slide shows.
+ * <p>
+ * Every upload is followed by a fence, which the drawing thread polls with
+ * {@link TextureCache#isReady}; where there are no fences this thread glFinish()es instead.
+ * <p>
+ * Once the uploader stops, it takes no more work, and the jobs it had not done, or failed
+ * at, are handed back to the drawing thread with {@link ProcessGL#returnUpload}.
+ */
+public class TextureUploader extends Thread {
+    private static final String TAG = "TextureUploader";
+    private static final boolean VERBOSE = false;
+
+    private static class Job {
+        TextureCache.Entry entry;
+        ElementInfo info;
+
+        Job(TextureCache.Entry entry, ElementInfo info) {
+            this.entry = entry;
+            this.info = info;
+        }
+    }
+
+    private final ProcessGL mProcessGL;
+    private final TextureCache mCache;
+    private final EGLContext mSharedContext;
+    // the GLES version of mSharedContext, which the uploader's context has to match
+    private final int mSharedVersion;
+
+    private final ArrayList<Job> mUrgent = new ArrayList<Job>();
+    private final ArrayList<Job> mLookahead = new ArrayList<Job>();
+    private final ArrayList<TextureCache.Entry> mHeld = new ArrayList<TextureCache.Entry>();
+    private boolean mQuit = false;
+
+    /**
+     * @param sharedContext the context drawing with the textures, current on the calling thread
+     */
+    public TextureUploader(ProcessGL processGL, TextureCache cache, EGLContext sharedContext) {
+        super(TAG);
+        mProcessGL = processGL;
+        mCache = cache;
+        mSharedContext = sharedContext;
+
+        int[] values = new int[1];
+        EGL14.eglQueryContext(EGL14.eglGetCurrentDisplay(), sharedContext,
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, values, 0);
+        mSharedVersion = values[0];
+    }
+
+    /**
+     * Uploads the texture of an element on screen, before any lookahead.
+     *
+     * @return false if the uploader has stopped; the caller uploads the texture itself
+     */
+    public synchronized boolean upload(TextureCache.Entry entry, ElementInfo info) {
+        if(mQuit)
+            return false;
+        if(mCache.setQueued(entry)) {
+            mUrgent.add(new Job(entry, info));
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the slides to upload ahead of time.  The entries are held by this uploader
+     * until the next call, or released at once if it has stopped; the caller has acquired
+     * them.
+     */
+    public void setLookahead(ArrayList<TextureCache.Entry> entries, ArrayList<ElementInfo> infos) {
+        ArrayList<TextureCache.Entry> released;
+        synchronized(this) {
+            if(mQuit) {
+                released = entries;
+            } else {
+                released = new ArrayList<TextureCache.Entry>(mHeld);
+                mHeld.clear();
+                mHeld.addAll(entries);
+                // the slides that aren't next any more are no longer queued
+                for(Job job : mLookahead) mCache.setFence(job.entry, null);
+                mLookahead.clear();
+                for(int i=0; i<entries.size(); i++) {
+                    if(!entries.get(i).isUploaded() && mCache.setQueued(entries.get(i)))
+                        mLookahead.add(new Job(entries.get(i), infos.get(i)));
+                }
+                notifyAll();
+            }
+        }
+        for(TextureCache.Entry entry : released) {
+            mCache.release(entry);
+        }
+    }
+
+    /**
+     * Stops the thread and waits until it has let go of its context and the cache, even if
+     * the caller is interrupted.
+     */
+    public void quit() {
+        synchronized(this) {
+            mQuit = true;
+            notifyAll();
+        }
+        if(Thread.currentThread() == this)
+            return;
+        boolean interrupted = false;
+        while(isAlive()) {
+            try {
+                join();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private synchronized Job nextJob() throws InterruptedException {
+        while(!mQuit) {
+            if(!mUrgent.isEmpty())
+                return mUrgent.remove(0);
+            if(!mLookahead.isEmpty())
+                return mLookahead.remove(0);
+            wait();
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        EglCore eglCore = null;
+        EGLSurface surface = null;
+        Job failed = null;
+        try {
+            eglCore = new EglCore(mSharedContext, mSharedVersion >= 3 ? EglCore.FLAG_TRY_GLES3 : 0);
+            // the context needs a surface to be current; nothing is drawn to it
+            surface = eglCore.createOffscreenSurface(1, 1);
+            eglCore.makeCurrent(surface);
+            boolean fences = FenceSync.isSupported();
+            Log.d(TAG, "started, " + (fences ? "fences" : "glFinish"));
+
+            Job job;
+            while((job = nextJob()) != null) {
+                long start = System.nanoTime();
+                failed = job;
+                try {
+                    mProcessGL.uploadTexture(job.entry, job.info);
+                    failed = null;
+                } finally {
+                    Object fence = fences ? FenceSync.create() : null;
+                    if(fence == null) GLES20.glFinish();
+                    mCache.setFence(job.entry, fence);
+                }
+                if (VERBOSE) Log.d(TAG, "uploaded " + job.info.InfoId + " in " +
+                        (System.nanoTime() - start) / 1000 + " us");
+            }
+        } catch(InterruptedException e) {
+            // quit
+        } catch(RuntimeException e) {
+            // the preview falls back to uploading on its own thread
+            Log.e(TAG, "uploader failed", e);
+        } finally {
+            ArrayList<Job> returned = new ArrayList<Job>();
+            synchronized(this) {
+                mQuit = true;
+                if(failed != null) returned.add(failed);
+                returned.addAll(mUrgent);
+                returned.addAll(mLookahead);
+                mUrgent.clear();
+                mLookahead.clear();
+                for(TextureCache.Entry entry : mHeld) mCache.release(entry);
+                mHeld.clear();
+            }
+            for(Job job : returned) {
+                mCache.setFence(job.entry, null);
+                mProcessGL.returnUpload(job.info);
+            }
+            if(eglCore != null) {
+                if(surface != null) eglCore.releaseSurface(surface);
+                eglCore.release();
+            }
+            Log.d(TAG, "stopped");
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return !mQuit;
+    }
+}
@@ -0,0 +1,255 @@
+package com.s890510.microfilm.draw;
+
+import android.opengl.GLES20;
+import android.util.SparseArray;
+
+/**
+ * A shadow of the GL state ProcessGL's shaders and masks set: the program in use, the 2D
+ * textures bound to each unit, blending, and the uniform values of every program.  A call
+ * that would set what is set already is skipped.
+ * <p>
+ * Uniform values live in their program, so they are remembered across frames, until
+ * {@link #invalidate} or until the program is deleted; whoever deletes one reports it with
+ * {@link #forgetProgram}.  The program, bindings and blend state are also changed by code
+ * that doesn't go through here (the frame buffers, texture uploads), so
+ * {@link #beginFrame} forgets them at the start of every frame.  Code that binds a texture on its own between
+ * tracked calls reports it with {@link #textureBound}.
+ * <p>
+ * Not thread-safe; use it on the thread of the context only.
+ */
+public class GLState {
+    private static final String TAG = "GLState";
+
+    private static final int UNKNOWN = -1;
+    private static final int TEXTURE_UNITS = 8;
+
+    private int mProgram = UNKNOWN;
+    private int mActiveTexture = UNKNOWN;
+    private final int[] mTextures = new int[TEXTURE_UNITS];
+    private int mBlend = UNKNOWN;
+    private final int[] mBlendFunc = new int[4];
+    private boolean mBlendFuncSet = false;
+    // program -> location -> the raw bits of the values last sent
+    private final SparseArray<SparseArray<int[]>> mUniforms = new SparseArray<SparseArray<int[]>>();
+    private int[] mScratch = new int[16];
+
+    private long mIssued = 0;
+    private long mSkipped = 0;
+
+    public GLState() {
+        beginFrame();
+    }
+
+    /**
+     * Forgets the program, bindings and blend state, which code around this may have changed.
+     * The uniform values are kept.
+     */
+    public void beginFrame() {
+        mProgram = UNKNOWN;
+        mActiveTexture = UNKNOWN;
+        for(int i=0; i<TEXTURE_UNITS; i++)
+            mTextures[i] = UNKNOWN;
+        mBlend = UNKNOWN;
+        mBlendFuncSet = false;
+    }
+
+    /**
+     * Forgets everything, for a new context.
+     */
+    public void invalidate() {
+        beginFrame();
+        mUniforms.clear();
+    }
+
+    /**
+     * Forgets program, which is being deleted.  GL hands its name out again, to a program
+     * that has none of its uniform values.
+     */
+    public void forgetProgram(int program) {
+        if(program == mProgram)
+            mProgram = UNKNOWN;
+        mUniforms.remove(program);
+    }
+
+    public void useProgram(int program) {
+        if(program == mProgram) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        mProgram = program;
+        mIssued++;
+    }
+
+    /**
+     * @param texture GL_TEXTURE0 + the unit
+     */
+    public void activeTexture(int texture) {
+        if(texture == mActiveTexture) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glActiveTexture(texture);
+        mActiveTexture = texture;
+        mIssued++;
+    }
+
+    public void bindTexture(int target, int texture) {
+        int unit = mActiveTexture - GLES20.GL_TEXTURE0;
+        if(target == GLES20.GL_TEXTURE_2D && unit >= 0 && unit < TEXTURE_UNITS &&
+                mTextures[unit] == texture) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glBindTexture(target, texture);
+        textureBound(target, texture);
+        mIssued++;
+    }
+
+    /**
+     * Records a texture bound to the active unit without going through here, e.g. by
+     * LoadTexture.BindTexture.
+     */
+    public void textureBound(int target, int texture) {
+        if(target != GLES20.GL_TEXTURE_2D)
+            return;
+        int unit = mActiveTexture - GLES20.GL_TEXTURE0;
+        if(unit >= 0 && unit < TEXTURE_UNITS) {
+            mTextures[unit] = texture;
+        } else {
+            // the unit isn't known, neither is what is bound where
+            for(int i=0; i<TEXTURE_UNITS; i++)
+                mTextures[i] = UNKNOWN;
+        }
+    }
+
+    public void setBlend(boolean enabled) {
+        int blend = enabled ? 1 : 0;
+        if(blend == mBlend) {
+            mSkipped++;
+            return;
+        }
+        if(enabled)
+            GLES20.glEnable(GLES20.GL_BLEND);
+        else
+            GLES20.glDisable(GLES20.GL_BLEND);
+        mBlend = blend;
+        mIssued++;
+    }
+
+    public void blendFuncSeparate(int srcRGB, int dstRGB, int srcAlpha, int dstAlpha) {
+        if(mBlendFuncSet && mBlendFunc[0] == srcRGB && mBlendFunc[1] == dstRGB &&
+                mBlendFunc[2] == srcAlpha && mBlendFunc[3] == dstAlpha) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glBlendFuncSeparate(srcRGB, dstRGB, srcAlpha, dstAlpha);
+        mBlendFunc[0] = srcRGB;
+        mBlendFunc[1] = dstRGB;
+        mBlendFunc[2] = srcAlpha;
+        mBlendFunc[3] = dstAlpha;
+        mBlendFuncSet = true;
+        mIssued++;
+    }
+
+    public void uniform1f(int location, float x) {
+        mScratch[0] = Float.floatToRawIntBits(x);
+        if(isSet(location, 1)) return;
+        GLES20.glUniform1f(location, x);
+    }
+
+    public void uniform1i(int location, int x) {
+        mScratch[0] = x;
+        if(isSet(location, 1)) return;
+        GLES20.glUniform1i(location, x);
+    }
+
+    public void uniform2f(int location, float x, float y) {
+        mScratch[0] = Float.floatToRawIntBits(x);
+        mScratch[1] = Float.floatToRawIntBits(y);
+        if(isSet(location, 2)) return;
+        GLES20.glUniform2f(location, x, y);
+    }
+
+    public void uniform4f(int location, float x, float y, float z, float w) {
+        mScratch[0] = Float.floatToRawIntBits(x);
+        mScratch[1] = Float.floatToRawIntBits(y);
+        mScratch[2] = Float.floatToRawIntBits(z);
+        mScratch[3] = Float.floatToRawIntBits(w);
+        if(isSet(location, 4)) return;
+        GLES20.glUniform4f(location, x, y, z, w);
+    }
+
+    public void uniform1fv(int location, int count, float[] v, int offset) {
+        if(isSet(location, v, offset, count)) return;
+        GLES20.glUniform1fv(location, count, v, offset);
+    }
+
+    public void uniformMatrix3fv(int location, int count, boolean transpose, float[] value, int offset) {
+        // transposed or not isn't remembered; nothing transposes
+        if(!transpose && isSet(location, value, offset, count * 9)) return;
+        GLES20.glUniformMatrix3fv(location, count, transpose, value, offset);
+    }
+
+    public void uniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        if(!transpose && isSet(location, value, offset, count * 16)) return;
+        GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    private boolean isSet(int location, float[] v, int offset, int count) {
+        if(mScratch.length < count)
+            mScratch = new int[count];
+        for(int i=0; i<count; i++)
+            mScratch[i] = Float.floatToRawIntBits(v[offset + i]);
+        return isSet(location, count);
+    }
+
+    // returns true if the current program has the first count of mScratch at location
+    // already; remembers them if not
+    private boolean isSet(int location, int count) {
+        if(location < 0) {
+            // GL ignores those
+            mSkipped++;
+            return true;
+        }
+        if(mProgram == UNKNOWN) {
+            mIssued++;
+            return false;
+        }
+
+        SparseArray<int[]> uniforms = mUniforms.get(mProgram);
+        if(uniforms == null) {
+            uniforms = new SparseArray<int[]>();
+            mUniforms.put(mProgram, uniforms);
+        }
+        int[] old = uniforms.get(location);
+        if(old != null && old.length == count) {
+            boolean same = true;
+            for(int i=0; i<count && same; i++)
+                same = old[i] == mScratch[i];
+            if(same) {
+                mSkipped++;
+                return true;
+            }
+        } else {
+            old = new int[count];
+            uniforms.put(location, old);
+        }
+        System.arraycopy(mScratch, 0, old, 0, count);
+        mIssued++;
+        return false;
+    }
+
+    public long getIssued() {
+        return mIssued;
+    }
+
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    @Override
+    public String toString() {
+        return "GL state calls issued " + mIssued + ", skipped " + mSkipped;
+    }
+}
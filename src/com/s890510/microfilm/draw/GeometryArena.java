@@ -0,0 +1,257 @@
+package com.s890510.microfilm.draw;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * The vertex data of everything ProcessGL draws, in one vertex buffer object.
+ * <p>
+ * Owners {@link #put} their floats once, when they are computed, and get a {@link Region} of
+ * the arena back; drawing only points the attributes at offsets of the buffer with
+ * {@link #setAttrib}, instead of handing the driver client-side arrays to copy every draw.
+ * Putting into a region of the same size overwrites it in place.
+ * <p>
+ * The floats are kept on the CPU too.  Changes are uploaded when the buffer is next bound,
+ * so {@link #put} may be called from any thread; {@link #setAttrib} and {@link #release} must
+ * run on the thread of the GL context.  {@link #clear} compacts the arena, for when the screen
+ * size, and with it most of the geometry, changes: every region is put back at the end when
+ * it is next drawn, unless its owner puts new data first.
+ * <p>
+ * Regions are never freed by their owners; elements leaving the movie just stop being drawn.
+ * So that the arena doesn't grow with every new set of elements, {@link #beginFrame} counts
+ * frames in epochs of {@link #EPOCH_FRAMES}, and at the end of an epoch in which less than
+ * half the arena was drawn, compacts it to the regions that were.  The others are put back
+ * at the end, as after {@link #clear}, if they are ever drawn again.
+ */
+public class GeometryArena {
+    private static final String TAG = "GeometryArena";
+    private static final boolean VERBOSE = false;
+
+    public static final int FLOAT_SIZE_BYTES = 4;
+    private static final int INITIAL_FLOATS = 16 * 1024;
+    // frames between checks for compaction
+    private static final int EPOCH_FRAMES = 300;
+
+    public static class Region {
+        // the arena the region was put in; a region may move to another one
+        private GeometryArena mArena;
+        private int mOffset;
+        private int mGeneration;
+        // the last epoch of mArena it was drawn in
+        private int mEpoch;
+        private float[] mData;
+
+        public int getLength() {
+            return mData.length;
+        }
+    }
+
+    private FloatBuffer mData = allocate(INITIAL_FLOATS);
+    private int mSize = 0;
+    private int mGeneration = 0;
+    // the regions put since the last clear() or compaction
+    private ArrayList<Region> mRegions = new ArrayList<Region>();
+
+    // frames of the current epoch, and the floats of the regions drawn in it
+    private int mEpoch = 1;
+    private int mEpochFrames = 0;
+    private int mDrawnFloats = 0;
+
+    // the buffer object, the floats it has room for, and the range it is behind in
+    private int mBuffer = 0;
+    private int mBufferFloats = 0;
+    private int mDirtyStart = 0;
+    private int mDirtyEnd = 0;
+
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(floats * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Puts data into the arena, in place of region's data if region isn't null.  The arena
+     * keeps data; don't change it afterwards.
+     *
+     * @return the region of data
+     */
+    public synchronized Region put(Region region, float[] data) {
+        if(region == null)
+            region = new Region();
+        boolean inPlace = isValid(region) && region.mData.length == data.length;
+        region.mData = data;
+        if(!inPlace)
+            append(region);
+        write(region);
+        return region;
+    }
+
+    private void append(Region region) {
+        if(!isValid(region))
+            mRegions.add(region);
+        int length = region.mData.length;
+        if(mSize + length > mData.capacity()) {
+            int capacity = mData.capacity();
+            while(capacity < mSize + length)
+                capacity *= 2;
+            FloatBuffer grown = allocate(capacity);
+            mData.position(0).limit(mSize);
+            grown.put(mData);
+            mData = grown;
+            mData.clear();
+            if (VERBOSE) Log.d(TAG, "grown to " + capacity + " floats");
+        }
+        region.mArena = this;
+        region.mOffset = mSize;
+        region.mGeneration = mGeneration;
+        mSize += length;
+    }
+
+    private void write(Region region) {
+        mData.position(region.mOffset);
+        mData.put(region.mData);
+        mData.position(0);
+        markDirty(region.mOffset, region.mOffset + region.mData.length);
+    }
+
+    private void markDirty(int start, int end) {
+        if(mDirtyStart == mDirtyEnd) {
+            mDirtyStart = start;
+            mDirtyEnd = end;
+        } else {
+            mDirtyStart = Math.min(mDirtyStart, start);
+            mDirtyEnd = Math.max(mDirtyEnd, end);
+        }
+    }
+
+    // whether region was put in this arena since the last clear() or compaction
+    private boolean isValid(Region region) {
+        return region.mArena == this && region.mData != null &&
+                region.mGeneration == mGeneration;
+    }
+
+    /**
+     * Empties the arena; the regions are put back as they are drawn.  The buffer object is
+     * kept and reused.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mSize = 0;
+        mRegions.clear();
+        mDrawnFloats = 0;
+        mDirtyStart = mDirtyEnd = 0;
+    }
+
+    /**
+     * Counts a frame, and compacts the arena at the end of an epoch in which most of it wasn't
+     * drawn.  Call before the frame's first {@link #setAttrib}: compacting moves regions.
+     */
+    public synchronized void beginFrame() {
+        if(++mEpochFrames < EPOCH_FRAMES)
+            return;
+        if(mSize > INITIAL_FLOATS && mDrawnFloats * 2 < mSize)
+            compact();
+        mEpochFrames = 0;
+        mEpoch++;
+        mDrawnFloats = 0;
+    }
+
+    // moves the regions drawn in this epoch to the start of the arena, and drops the others
+    private void compact() {
+        int before = mSize;
+        mGeneration++;
+        ArrayList<Region> kept = new ArrayList<Region>();
+        mSize = 0;
+        for(Region region : mRegions) {
+            // listed twice if it went to another arena and came back
+            if(region.mArena != this || region.mEpoch != mEpoch || region.mData == null ||
+                    region.mGeneration == mGeneration)
+                continue;
+            region.mOffset = mSize;
+            region.mGeneration = mGeneration;
+            mSize += region.mData.length;
+            kept.add(region);
+        }
+        mRegions = kept;
+        for(Region region : kept)
+            write(region);
+        if (VERBOSE) Log.d(TAG, "compacted " + before + " to " + mSize + " floats, " +
+                kept.size() + " regions");
+    }
+
+    /**
+     * Points vertex attribute handle at the floats of region from offset on, size floats a
+     * vertex and stride bytes apart (0 if packed), and enables it.  Leaves no buffer bound, so
+     * client-side arrays keep working for the others.
+     */
+    public synchronized void setAttrib(int handle, int size, int stride, Region region, int offset) {
+        if(region == null) {
+            Log.w(TAG, "no geometry, not drawn");
+            GLES20.glDisableVertexAttribArray(handle);
+            return;
+        }
+        if(!isValid(region)) {
+            append(region);
+            write(region);
+        }
+        if(region.mEpoch != mEpoch) {
+            region.mEpoch = mEpoch;
+            mDrawnFloats += region.mData.length;
+        }
+        bind();
+        GLES20.glVertexAttribPointer(handle, size, GLES20.GL_FLOAT, false, stride,
+                (region.mOffset + offset) * FLOAT_SIZE_BYTES);
+        GLES20.glEnableVertexAttribArray(handle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    // binds the buffer object, with whatever was put since the last upload
+    private void bind() {
+        if(mBuffer == 0) {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            mBuffer = buffers[0];
+            mBufferFloats = 0;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+
+        if(mBufferFloats < mSize) {
+            mData.position(0);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mData.capacity() * FLOAT_SIZE_BYTES, mData,
+                    GLES20.GL_STATIC_DRAW);
+            mBufferFloats = mData.capacity();
+            mDirtyStart = mDirtyEnd = 0;
+            if (VERBOSE) Log.d(TAG, "uploaded " + mBufferFloats + " floats");
+        } else if(mDirtyStart < mDirtyEnd) {
+            mData.position(mDirtyStart);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mDirtyStart * FLOAT_SIZE_BYTES,
+                    (mDirtyEnd - mDirtyStart) * FLOAT_SIZE_BYTES, mData);
+            mData.position(0);
+            mDirtyStart = mDirtyEnd = 0;
+        }
+    }
+
+    /**
+     * Forgets the buffer object without deleting it, for when its context is gone.  The
+     * regions stay, and are uploaded again in the next context.
+     */
+    public synchronized void abandon() {
+        mBuffer = 0;
+        mBufferFloats = 0;
+        mDirtyStart = mDirtyEnd = 0;
+    }
+
+    /**
+     * Deletes the buffer object.  Call in the GL context, before it is released.
+     */
+    public synchronized void release() {
+        if(mBuffer != 0) {
+            GLES20.glDeleteBuffers(1, new int[] { mBuffer }, 0);
+        }
+        abandon();
+    }
+}
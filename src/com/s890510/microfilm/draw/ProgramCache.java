@@ -0,0 +1,222 @@
+package com.s890510.microfilm.draw;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.s890510.microfilm.util.BlobCache;
+import com.s890510.microfilm.util.CacheManager;
+
+/**
+ * Linked shader programs kept on disk, so a new preview surface or export doesn't compile
+ * every shader from source again.
+ * <p>
+ * A program is stored as the driver's binary of it (glGetProgramBinary), under a key made of
+ * the shader sources and the GL vendor, renderer and version strings; a new driver or a
+ * changed shader simply misses.  Java has no binding for OES_get_program_binary on GLES 2,
+ * so this works in ES 3 contexts only, through GLES30.  Elsewhere, and whenever the driver
+ * rejects a binary, the program is compiled from source, as before.
+ * <p>
+ * {@link #createProgram} must be called on the thread of a current context.  Threads only
+ * take turns at the cache file; compiling and linking, on a miss, happen outside the lock,
+ * so the preview and an export don't wait for each other's shaders.
+ */
+public class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final boolean VERBOSE = false;
+
+    private static final String CACHE_FILE = "microfilm_programs";
+    private static final int CACHE_MAX_ENTRIES = 64;
+    private static final int CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int CACHE_VERSION = 1;
+    // check, format and length ahead of the binary
+    private static final int BLOB_HEADER_SIZE = 12;
+
+    private static ProgramCache sInstance;
+
+    // null when there is no cache directory; BlobCache isn't thread safe, lock it to use it
+    private final BlobCache mCache;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mRejected = new AtomicInteger();
+
+    private ProgramCache(BlobCache cache) {
+        mCache = cache;
+    }
+
+    public static synchronized ProgramCache getInstance(Context context) {
+        if(sInstance == null) {
+            BlobCache cache = null;
+            // CacheManager can't do without external storage
+            if(context.getExternalCacheDir() != null) {
+                cache = CacheManager.getCache(context, CACHE_FILE, CACHE_MAX_ENTRIES,
+                        CACHE_MAX_BYTES, CACHE_VERSION);
+            }
+            sInstance = new ProgramCache(cache);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a linked program of the two shaders, the cached binary if there is a good one.
+     * Throws a RuntimeException, as GLUtil does, if they don't compile or link.
+     *
+     * @param glState the state of the current context, told of programs deleted here
+     */
+    public int createProgram(String vertexSource, String fragmentSource,
+            GLState glState) {
+        if(mCache == null || !isSupported())
+            return compile(vertexSource, fragmentSource);
+
+        String driver = GLES20.glGetString(GLES20.GL_VENDOR) + "\n" +
+                GLES20.glGetString(GLES20.GL_RENDERER) + "\n" + GLES20.glGetString(GLES20.GL_VERSION);
+        String key = vertexSource + "\0" + fragmentSource + "\0" + driver;
+        long hash = hash64(key);
+
+        int program = load(hash, key.hashCode(), glState);
+        if(program != 0) {
+            mHits.incrementAndGet();
+            return program;
+        }
+
+        mMisses.incrementAndGet();
+        program = compile(vertexSource, fragmentSource);
+        save(program, hash, key.hashCode());
+        return program;
+    }
+
+    private static boolean isSupported() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if(version == null || !version.startsWith("OpenGL ES ") || version.startsWith("OpenGL ES 2"))
+            return false;
+        int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        GLES20.glGetError();
+        return formats[0] > 0;
+    }
+
+    private static int compile(String vertexSource, String fragmentSource) {
+        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        return GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
+    }
+
+    // returns the cached program, or 0 if there is none or the driver won't take it
+    private int load(long hash, int check, GLState glState) {
+        byte[] blob;
+        try {
+            synchronized(mCache) {
+                blob = mCache.lookup(hash);
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "lookup failed", e);
+            return 0;
+        }
+        if(blob == null)
+            return 0;
+
+        int format;
+        byte[] binary;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+            if(in.readInt() != check)
+                return 0;   // another program with the same hash
+            format = in.readInt();
+            int length = in.readInt();
+            if(length <= 0 || length > blob.length)
+                return 0;
+            binary = new byte[length];
+            in.readFully(binary);
+        } catch(IOException e) {
+            Log.w(TAG, "bad cache entry", e);
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary).position(0);
+        while(GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            // not ours
+        }
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, buffer, binary.length);
+
+        final int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if(GLES20.glGetError() != GLES20.GL_NO_ERROR || linkStatus[0] == 0) {
+            // the driver has changed in a way its strings don't show; compile it again
+            Log.w(TAG, "binary rejected, compiling");
+            GLES20.glDeleteProgram(program);
+            glState.forgetProgram(program);
+            mRejected.incrementAndGet();
+            return 0;
+        }
+        if (VERBOSE) Log.d(TAG, "loaded program " + program + ", " + binary.length + " bytes");
+        return program;
+    }
+
+    private void save(int program, long hash, int check) {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if(length[0] <= 0)
+            return;
+        if(length[0] + BLOB_HEADER_SIZE > CACHE_MAX_BYTES / 2) {
+            Log.w(TAG, "program of " + length[0] + " bytes too large to cache");
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        final int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+        if(GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "glGetProgramBinary failed");
+            return;
+        }
+        byte[] binary = new byte[length[0]];
+        buffer.position(0);
+        buffer.get(binary);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(binary.length + BLOB_HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(check);
+            out.writeInt(format[0]);
+            out.writeInt(binary.length);
+            out.write(binary);
+            out.flush();
+            byte[] blob = bytes.toByteArray();
+            synchronized(mCache) {
+                mCache.insert(hash, blob);
+                mCache.syncIndex();
+            }
+            if (VERBOSE) Log.d(TAG, "saved program " + program + ", " + binary.length + " bytes");
+        } catch(IOException e) {
+            Log.w(TAG, "insert failed", e);
+        }
+    }
+
+    // FNV-1a, 64 bits, over the chars of s
+    private static long hash64(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i=0; i<s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "programs cached " + mHits + ", compiled " + mMisses + ", rejected " + mRejected;
+    }
+}
@@ -0,0 +1,38 @@
+package com.s890510.microfilm.draw;
+
+/**
+ * Specializes shader sources for a combination of modes.
+ * <p>
+ * A shader that picks its path per pixel by comparing a uniform that stays the same for a
+ * whole draw can instead be compiled once per value: {@link #define} puts a #define of each
+ * mode ahead of the source, and the shader uses the constant in place of its uniform, so the
+ * compiler drops the branches that are never taken.  Callers compile the variants they need
+ * as they meet them, and pick one per draw.
+ */
+public class ShaderVariant {
+    private ShaderVariant() {}
+
+    /**
+     * Returns source with "#define names[i] values[i]" for every mode, after its #version
+     * line if it has one, which has to come first.
+     */
+    public static String define(String source, String[] names, float[] values) {
+        StringBuilder defines = new StringBuilder();
+        for(int i=0; i<names.length; i++) {
+            // Float.toString always writes a point, as GLSL ES wants of a float
+            defines.append("#define ").append(names[i]).append(' ')
+                    .append(Float.toString(values[i])).append('\n');
+        }
+
+        int start = 0;
+        String trimmed = source.trim();
+        if(trimmed.startsWith("#version")) {
+            start = source.indexOf('\n', source.indexOf("#version")) + 1;
+            if(start == 0) {
+                // nothing but the #version line
+                return source + "\n" + defines;
+            }
+        }
+        return source.substring(0, start) + defines + source.substring(start);
+    }
+}
@@ -1,8 +1,5 @@
 package com.s890510.microfilm.draw;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.text.DateFormat;
 import java.util.Date;
 
@@ -39,7 +36,7 @@ public class Slogan {
     private int mMVPMatrixHandle;
     private int mSamplerHandle;
     private int mAlphaHandle;
-    private FloatBuffer mTriangleVertices;
+    private GeometryArena.Region mTriangleVertices;
     private float[] mMVPMatrix = new float[16];
     private float[] mModelMatrix = new float[16];
     private int mWidth;
@@ -51,6 +48,7 @@ public class Slogan {
     private Script mScript;
     private MicroMovieActivity mActivity;
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public static int SLOGAN_LINE   = 1;
     public static int SLOGAN_TEXT   = 2;
@@ -61,6 +59,7 @@ public class Slogan {
         mActivity = activity;
         mContext = mActivity.getApplicationContext();
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
         mLogoBBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.asus_micromovie_logo_b);
         mLogoWBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.asus_micromovie_logo_w);
@@ -83,50 +82,43 @@ public class Slogan {
 
         generateSlogan(progress, transition, mType, mElementInfo.effect.getShader());
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureID);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
         mActivity.mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, mTextureID);
+        mGLState.textureBound(GLES20.GL_TEXTURE_2D, mTextureID);
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        GLES20.glUniform1i(mSamplerHandle, mTextureID);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureID);
+        mGLState.uniform1i(mSamplerHandle, 0);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-                20, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(mTextureHandle, 3, GLES20.GL_FLOAT, false,
-                20, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mTextureHandle);
+        mProcessGL.getGeometryArena().setAttrib(mTextureHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
 
         Matrix.setIdentityM(mModelMatrix, 0);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("SloganPage");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("Sloganshader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -152,10 +144,7 @@ public class Slogan {
         };
 
         // Initialize the buffers.
-        mTriangleVertices = ByteBuffer.allocateDirect(mTriangleVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices = mProcessGL.getGeometryArena().put(mTriangleVertices, mTriangleVerticesData);
     }
 
     private String VertexShader() {
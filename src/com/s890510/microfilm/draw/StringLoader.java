@@ -1,8 +1,5 @@
 package com.s890510.microfilm.draw;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -38,9 +35,10 @@ public class StringLoader {
     private ArrayList<String> mString;
     private ArrayList<String> mString_Past;
     private int LType = 0;
-    public FloatBuffer mStringVertices;
-    public FloatBuffer mStringTextureCoords;
+    //the vertices, then the texture coords
+    private GeometryArena.Region mStringQuad;
     private ProcessGL mProcessGL;
+    private GLState mGLState;
     private MicroMovieActivity mActivity;
 
     public static int STRING_NONE                   = 0;
@@ -81,6 +79,7 @@ public class StringLoader {
         mActivity = activity;
         mContext = mActivity.getApplicationContext();
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
     }
 
     public boolean BindTexture(int mTextureId, ElementInfo mElementInfo) {
@@ -150,8 +149,9 @@ public class StringLoader {
         }
 
         //Bind Texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
         mActivity.mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.textureBound(GLES20.GL_TEXTURE_2D, mTextureId);
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
 
         LType = mType;
@@ -654,14 +654,15 @@ public class StringLoader {
                 1.0f, 1.0f
         };
 
-        mStringVertices = ByteBuffer.allocateDirect(
-                mVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mStringVertices.put(mVerticesData).position(0);
+        float[] data = new float[mVerticesData.length + mTextCoordsData.length];
+        System.arraycopy(mVerticesData, 0, data, 0, mVerticesData.length);
+        System.arraycopy(mTextCoordsData, 0, data, mVerticesData.length, mTextCoordsData.length);
+        mStringQuad = mProcessGL.getGeometryArena().put(mStringQuad, data);
+    }
 
-        mStringTextureCoords = ByteBuffer.allocateDirect(
-                mTextCoordsData.length * ProcessGL.FLOAT_SIZE_BYTES)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mStringTextureCoords.put(mTextCoordsData).position(0);
+    public void setAttribs(int positionHandle, int textureHandle) {
+        GeometryArena arena = mProcessGL.getGeometryArena();
+        arena.setAttrib(textureHandle, 2, 0, mStringQuad, 12);
+        arena.setAttrib(positionHandle, 3, 0, mStringQuad, 0);
     }
 }
@@ -0,0 +1,108 @@
+package com.s890510.microfilm.gles;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+/**
+ * EGL setup for a GLSurfaceView that gets a GLES 3 context where the device has one, and a
+ * GLES 2 context elsewhere, as EglCore does with FLAG_TRY_GLES3.
+ * <p>
+ * The config is the one GLSurfaceView picks by default for GLES 2 (RGB 888, no alpha, at
+ * least a 16-bit depth buffer), from the configs that can also do GLES 3 if there are any.
+ */
+public class ContextFactory implements GLSurfaceView.EGLConfigChooser,
+        GLSurfaceView.EGLContextFactory {
+    private static final String TAG = GlUtil.TAG;
+
+    // from EGL 1.3 and EGL_KHR_create_context, which EGL10 doesn't have
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private static final int EGL_OPENGL_ES2_BIT = 0x0004;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x0040;
+
+    @Override
+    public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+        EGLConfig config = chooseConfig(egl, display, EGL_OPENGL_ES2_BIT | EGL_OPENGL_ES3_BIT_KHR);
+        if (config == null) {
+            config = chooseConfig(egl, display, EGL_OPENGL_ES2_BIT);
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("No config chosen");
+        }
+        return config;
+    }
+
+    private EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, int renderableType) {
+        int[] attribList = {
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_DEPTH_SIZE, 16,
+                EGL10.EGL_RENDERABLE_TYPE, renderableType,
+                EGL10.EGL_NONE
+        };
+        int[] numConfigs = new int[1];
+        if (!egl.eglChooseConfig(display, attribList, null, 0, numConfigs) ||
+                numConfigs[0] <= 0) {
+            return null;
+        }
+        EGLConfig[] configs = new EGLConfig[numConfigs[0]];
+        if (!egl.eglChooseConfig(display, attribList, configs, configs.length, numConfigs)) {
+            return null;
+        }
+
+        // the sizes above are minimums; take the first exact match, as GLSurfaceView does
+        int[] value = new int[1];
+        for (EGLConfig config : configs) {
+            if (getAttrib(egl, display, config, EGL10.EGL_RED_SIZE, value) == 8 &&
+                    getAttrib(egl, display, config, EGL10.EGL_GREEN_SIZE, value) == 8 &&
+                    getAttrib(egl, display, config, EGL10.EGL_BLUE_SIZE, value) == 8 &&
+                    getAttrib(egl, display, config, EGL10.EGL_ALPHA_SIZE, value) == 0) {
+                return config;
+            }
+        }
+        return null;
+    }
+
+    private static int getAttrib(EGL10 egl, EGLDisplay display, EGLConfig config, int attrib,
+            int[] value) {
+        return egl.eglGetConfigAttrib(display, config, attrib, value) ? value[0] : -1;
+    }
+
+    @Override
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        EGLContext context = createContext(egl, display, config, 3);
+        if (context == EGL10.EGL_NO_CONTEXT) {
+            context = createContext(egl, display, config, 2);
+        }
+        return context;
+    }
+
+    private EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config,
+            int version) {
+        int[] attribList = {
+                EGL_CONTEXT_CLIENT_VERSION, version,
+                EGL10.EGL_NONE
+        };
+        EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                attribList);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            Log.d(TAG, "no GLES " + version + " context: 0x" +
+                    Integer.toHexString(egl.eglGetError()));
+            return EGL10.EGL_NO_CONTEXT;
+        }
+        Log.d(TAG, "GLSurfaceView context created, client version " + version);
+        return context;
+    }
+
+    @Override
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        if (!egl.eglDestroyContext(display, context)) {
+            Log.e(TAG, "eglDestroyContext failed: 0x" + Integer.toHexString(egl.eglGetError()));
+        }
+    }
+}
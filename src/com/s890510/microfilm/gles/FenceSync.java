@@ -0,0 +1,101 @@
+package com.s890510.microfilm.gles;
+
+import java.lang.reflect.Method;
+
+import android.opengl.EGL14;
+import android.opengl.EGLDisplay;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * EGL fence syncs, for handing work from one context to another that shares it.
+ * <p>
+ * The Java bindings of EGL_KHR_fence_sync only arrived with EGL15 (API 29), so they are
+ * reached by reflection.  Where they are missing, {@link #isSupported()} is false and the
+ * producer has to glFinish() before it hands its work over.
+ */
+public class FenceSync {
+    private static final String TAG = GlUtil.TAG;
+
+    // from EGL15
+    private static final int EGL_SYNC_FENCE = 0x30F9;
+    private static final int EGL_TIMEOUT_EXPIRED = 0x30F5;
+
+    private static boolean sLoaded = false;
+    private static Method sCreateSync;
+    private static Method sClientWaitSync;
+    private static Method sDestroySync;
+
+    private FenceSync() {}
+
+    private static synchronized void load() {
+        if (sLoaded) return;
+        sLoaded = true;
+        if (Build.VERSION.SDK_INT < 29) return;
+
+        try {
+            Class<?> egl15 = Class.forName("android.opengl.EGL15");
+            Class<?> eglSync = Class.forName("android.opengl.EGLSync");
+            sCreateSync = egl15.getMethod("eglCreateSync", EGLDisplay.class, int.class,
+                    long[].class, int.class);
+            sClientWaitSync = egl15.getMethod("eglClientWaitSync", EGLDisplay.class, eglSync,
+                    int.class, long.class);
+            sDestroySync = egl15.getMethod("eglDestroySync", EGLDisplay.class, eglSync);
+        } catch (Exception e) {
+            Log.w(TAG, "no EGL fence syncs", e);
+            sCreateSync = null;
+        }
+    }
+
+    /**
+     * Returns true if fences can be created.
+     */
+    public static boolean isSupported() {
+        load();
+        return sCreateSync != null;
+    }
+
+    /**
+     * Inserts a fence into the current context's command stream and flushes it, so other
+     * contexts can wait for it.  Returns null if fences aren't supported or creating one
+     * failed.
+     */
+    public static Object create() {
+        if (!isSupported()) return null;
+
+        try {
+            long[] attribs = { EGL14.EGL_NONE };
+            Object sync = sCreateSync.invoke(null, EGL14.eglGetCurrentDisplay(), EGL_SYNC_FENCE,
+                    attribs, 0);
+            GLES20.glFlush();
+            return sync;
+        } catch (Exception e) {
+            Log.w(TAG, "eglCreateSync failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the commands before the fence are done.  Never blocks.
+     */
+    public static boolean isSignaled(Object sync) {
+        try {
+            int status = (Integer) sClientWaitSync.invoke(null, EGL14.eglGetCurrentDisplay(),
+                    sync, 0, 0L);
+            // EGL_FALSE, a failed wait, won't succeed later either; don't wait for it forever
+            return status != EGL_TIMEOUT_EXPIRED;
+        } catch (Exception e) {
+            Log.w(TAG, "eglClientWaitSync failed", e);
+            return true;
+        }
+    }
+
+    public static void destroy(Object sync) {
+        try {
+            sDestroySync.invoke(null, EGL14.eglGetCurrentDisplay(), sync);
+        } catch (Exception e) {
+            Log.w(TAG, "eglDestroySync failed", e);
+        }
+    }
+}
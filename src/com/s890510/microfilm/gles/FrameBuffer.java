@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.s890510.microfilm.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.s890510.microfilm.draw.GLState;
+
+import java.nio.FloatBuffer;
+
+/**
+ * An offscreen color buffer that can be copied to the current surface.
+ * <p>
+ * Rendering a frame here instead of into the window surface keeps the frame around after
+ * swapBuffers(), whose back buffer contents are undefined afterwards.  The same frame can
+ * then be shown again with a single textured quad.
+ */
+public class FrameBuffer {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;" +
+            "attribute vec2 aTextureCoord;" +
+            "varying vec2 vTextureCoord;" +
+            "void main() {" +
+            "    gl_Position = aPosition;" +
+            "    vTextureCoord = aTextureCoord;" +
+            "}";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;" +
+            "uniform sampler2D sTexture;" +
+            "varying vec2 vTextureCoord;" +
+            "void main() {" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);" +
+            "}";
+
+    private static final FloatBuffer FULL_RECTANGLE_COORDS = GlUtil.createFloatBuffer(new float[] {
+            -1.0f, -1.0f,   // 0 bottom left
+             1.0f, -1.0f,   // 1 bottom right
+            -1.0f,  1.0f,   // 2 top left
+             1.0f,  1.0f,   // 3 top right
+    });
+    private static final FloatBuffer FULL_RECTANGLE_TEX_COORDS = GlUtil.createFloatBuffer(new float[] {
+            0.0f, 0.0f,     // 0 bottom left
+            1.0f, 0.0f,     // 1 bottom right
+            0.0f, 1.0f,     // 2 top left
+            1.0f, 1.0f      // 3 top right
+    });
+
+    private final GLState mGLState;
+    private int mWidth;
+    private int mHeight;
+    private int mFramebuffer = -1;
+    private int mTexture = -1;
+
+    private int mProgramHandle = -1;
+    private int maPositionLoc = -1;
+    private int maTextureCoordLoc = -1;
+    private int muTextureLoc = -1;
+
+    /**
+     * Creates the framebuffer and its texture in the current EGL context.
+     *
+     * @param glState the state of that context, told when the program is deleted
+     */
+    public FrameBuffer(int width, int height, GLState glState) {
+        mGLState = glState;
+        mWidth = width;
+        mHeight = height;
+
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTexture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+
+        mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        if (mProgramHandle == 0) {
+            release();
+            throw new RuntimeException("Unable to create program");
+        }
+        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        GlUtil.checkLocation(maPositionLoc, "aPosition");
+        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
+        GlUtil.checkLocation(maTextureCoordLoc, "aTextureCoord");
+        muTextureLoc = GLES20.glGetUniformLocation(mProgramHandle, "sTexture");
+        GlUtil.checkLocation(muTextureLoc, "sTexture");
+        Log.d(TAG, "Created framebuffer " + mFramebuffer + " (" + width + "x" + height + ")");
+    }
+
+    /**
+     * Releases the GL objects.  The EGL context must be current.
+     */
+    public void release() {
+        int[] values = new int[1];
+        if (mFramebuffer > 0) {
+            values[0] = mFramebuffer;
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            mFramebuffer = -1;
+        }
+        if (mTexture > 0) {
+            values[0] = mTexture;
+            GLES20.glDeleteTextures(1, values, 0);
+            mTexture = -1;
+        }
+        if (mProgramHandle > 0) {
+            GLES20.glDeleteProgram(mProgramHandle);
+            mGLState.forgetProgram(mProgramHandle);
+            mProgramHandle = -1;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Directs rendering into this framebuffer.
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+    }
+
+    /**
+     * Directs rendering back to the current EGL surface.
+     */
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Copies the contents to the current viewport, scaling them to fit.
+     */
+    public void blit() {
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glUniform1i(muTextureLoc, 0);
+
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, 0,
+                FULL_RECTANGLE_COORDS);
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, 0,
+                FULL_RECTANGLE_TEX_COORDS);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GlUtil.checkGlError("glDrawArrays");
+
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+    }
+}
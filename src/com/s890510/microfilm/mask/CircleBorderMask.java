@@ -1,9 +1,5 @@
 package com.s890510.microfilm.mask;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -17,7 +13,9 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.util.Easing;
 
 public class CircleBorderMask extends Mask {
@@ -29,7 +27,7 @@ public class CircleBorderMask extends Mask {
     private int mPositionHandle;
     private int mSamplerHandle;
     private int mMVPMatrixHandle;
-    private FloatBuffer mTriangleVertices;
+    private GeometryArena.Region mTriangleVertices;
     private float[] mMVPMatrix = new float[16];
     private float[] mModelMatrix = new float[16];
     private Bitmap mBitmap = null;
@@ -37,10 +35,12 @@ public class CircleBorderMask extends Mask {
 
     private int mTextureHandle;
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public CircleBorderMask(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -62,47 +62,40 @@ public class CircleBorderMask extends Mask {
             generateMask(progress, elapse, duration, transition, mMask);
         }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
         mActivity.mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.textureBound(GLES20.GL_TEXTURE_2D, mTextureId);
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        GLES20.glUniform1i(mSamplerHandle, mTextureId);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+        mGLState.uniform1i(mSamplerHandle, 0);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-                20, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(mTextureHandle, 3, GLES20.GL_FLOAT, false,
-                20, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mTextureHandle);
+        mProcessGL.getGeometryArena().setAttrib(mTextureHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
 
         Matrix.setIdentityM(mModelMatrix, 0);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("BorderMask");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -128,10 +121,7 @@ public class CircleBorderMask extends Mask {
         };
 
         // Initialize the buffers.
-        mTriangleVertices = ByteBuffer.allocateDirect(mTriangleVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices = mProcessGL.getGeometryArena().put(mTriangleVertices, mTriangleVerticesData);
 
     }
 
@@ -1,9 +1,5 @@
 package com.s890510.microfilm.mask;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
@@ -11,7 +7,9 @@ import android.util.Log;
 import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.script.effects.Effect;
 
 public class FilterMask extends Mask {
@@ -24,12 +22,14 @@ public class FilterMask extends Mask {
     private int mMVPMatrixHandle;
     private float[] mMVPMatrix = new float[16];
 
-    public FloatBuffer mVertices = null;
+    public GeometryArena.Region mVertices = null;
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public FilterMask(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -41,37 +41,33 @@ public class FilterMask extends Mask {
         if(mEffect == null) return;
         else mElapseTime = mElementInfo.effect.getElapseTime(timer);
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        mVertices.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 0, mVertices, 0);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
 
         float[] mBGColor = mEffect.getBGColor(mElapseTime);
 
-        GLES20.glUniform4f(mColorHandle, mBGColor[0], mBGColor[1], mBGColor[2], mBGColor[3]);
+        mGLState.uniform4f(mColorHandle, mBGColor[0], mBGColor[1], mBGColor[2], mBGColor[3]);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("BorderMask");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -95,10 +91,7 @@ public class FilterMask extends Mask {
                  mRatio,  1.0f, 0.0f
         };
 
-        mVertices = ByteBuffer.allocateDirect(
-                mVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mVertices.put(mVerticesData).position(0);
+        mVertices = mProcessGL.getGeometryArena().put(mVertices, mVerticesData);
     }
 
     private String VertexShader() {
@@ -8,11 +8,14 @@ public class ShowMask {
     private final String TAG = "ShowMask";
     private MicroMovieActivity mActivity;
 
+    // compiled on first use, or by prepare() ahead of playback
     private SquareBorderMask mSquareBorderMask;
     private CircleBorderMask mCircleBorderMask;
     private TopBottomBarMask mTopBottomBarMask;
     private FilterMask mFilterMask;
     private ProcessGL mProcessGL;
+    // whether the screen size is known, for the vertices
+    private boolean mHasScreen = false;
 
     public ShowMask(MicroMovieActivity activity, ProcessGL processGL) {
         mActivity = activity;
@@ -20,29 +23,79 @@ public class ShowMask {
     }
 
     public void initMask() {
-        mSquareBorderMask = new SquareBorderMask(mActivity, mProcessGL);
-        mCircleBorderMask = new CircleBorderMask(mActivity, mProcessGL);
-        mTopBottomBarMask = new TopBottomBarMask(mActivity, mProcessGL);
-        mFilterMask = new FilterMask(mActivity, mProcessGL);
+        // a new context; the programs of the last one are gone
+        mSquareBorderMask = null;
+        mCircleBorderMask = null;
+        mTopBottomBarMask = null;
+        mFilterMask = null;
+    }
+
+    /**
+     * Compiles the program of ShaderMode now, if it isn't already, so that its first frame
+     * doesn't wait for it.
+     */
+    public void prepare(int ShaderMode) {
+        if(ShaderMode == Mask.Square) {
+            getSquareBorderMask();
+        } else if(ShaderMode == Mask.Circle) {
+            getCircleBorderMask();
+        } else if(ShaderMode == Mask.Bar) {
+            getTopBottomBarMask();
+        } else if(ShaderMode == Mask.Filter) {
+            getFilterMask();
+        }
+    }
+
+    private SquareBorderMask getSquareBorderMask() {
+        if(mSquareBorderMask == null) {
+            mSquareBorderMask = new SquareBorderMask(mActivity, mProcessGL);
+            if(mHasScreen) mSquareBorderMask.CalcVertices();
+        }
+        return mSquareBorderMask;
+    }
+
+    private CircleBorderMask getCircleBorderMask() {
+        if(mCircleBorderMask == null) {
+            mCircleBorderMask = new CircleBorderMask(mActivity, mProcessGL);
+            if(mHasScreen) mCircleBorderMask.CalcVertices();
+        }
+        return mCircleBorderMask;
+    }
+
+    private TopBottomBarMask getTopBottomBarMask() {
+        if(mTopBottomBarMask == null) {
+            mTopBottomBarMask = new TopBottomBarMask(mActivity, mProcessGL);
+            if(mHasScreen) mTopBottomBarMask.CalcVertices();
+        }
+        return mTopBottomBarMask;
+    }
+
+    private FilterMask getFilterMask() {
+        if(mFilterMask == null) {
+            mFilterMask = new FilterMask(mActivity, mProcessGL);
+            if(mHasScreen) mFilterMask.CalcVertices();
+        }
+        return mFilterMask;
     }
 
     public void CalcVertices() {
-        mSquareBorderMask.CalcVertices();
-        mCircleBorderMask.CalcVertices();
-        mTopBottomBarMask.CalcVertices();
-        mFilterMask.CalcVertices();
+        mHasScreen = true;
+        if(mSquareBorderMask != null) mSquareBorderMask.CalcVertices();
+        if(mCircleBorderMask != null) mCircleBorderMask.CalcVertices();
+        if(mTopBottomBarMask != null) mTopBottomBarMask.CalcVertices();
+        if(mFilterMask != null) mFilterMask.CalcVertices();
     }
 
     public void DrawRandar(int ShaderMode, float[] mModelMatrix, float[] mViewMatrix, float[] mProjectionMatrix,
             ElementInfo mElementInfo, int mTextureId, int mType) {
         if(ShaderMode == Mask.Square) {
-            mSquareBorderMask.DrawRandar(mViewMatrix, mProjectionMatrix, mElementInfo);
+            getSquareBorderMask().DrawRandar(mViewMatrix, mProjectionMatrix, mElementInfo);
         } else if(ShaderMode == Mask.Circle) {
-            mCircleBorderMask.DrawRandar(mViewMatrix, mProjectionMatrix, mElementInfo, mTextureId);
+            getCircleBorderMask().DrawRandar(mViewMatrix, mProjectionMatrix, mElementInfo, mTextureId);
         } else if(ShaderMode == Mask.Bar) {
-            mTopBottomBarMask.DrawRandar(mViewMatrix, mProjectionMatrix, mElementInfo, mType);
+            getTopBottomBarMask().DrawRandar(mViewMatrix, mProjectionMatrix, mElementInfo, mType);
         } else if(ShaderMode == Mask.Filter) {
-            mFilterMask.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mElementInfo);
+            getFilterMask().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mElementInfo);
         }
     }
 
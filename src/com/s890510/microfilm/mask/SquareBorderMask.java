@@ -1,9 +1,5 @@
 package com.s890510.microfilm.mask;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
@@ -11,7 +7,9 @@ import android.util.Log;
 import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.util.Easing;
 
 public class SquareBorderMask extends Mask {
@@ -25,16 +23,18 @@ public class SquareBorderMask extends Mask {
     private int mMVPMatrixHandle;
     private int mSizeHandle;
     private int mRatioHandle;
-    private FloatBuffer mTriangleVertices;
+    private GeometryArena.Region mTriangleVertices;
     private float[] mMVPMatrix = new float[16];
     private float[] mModelMatrix = new float[16];
 
     private float mScale = 0.0f;
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public SquareBorderMask(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -47,17 +47,11 @@ public class SquareBorderMask extends Mask {
         long timer = mElementInfo.timer.getElapse();
         float duration = mElementInfo.effect.getDuration(timer);
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-            28, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 28, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(mColorHandle, 4, GLES20.GL_FLOAT, false,
-                28, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mColorHandle);
+        mProcessGL.getGeometryArena().setAttrib(mColorHandle, 4, 28, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
 
         if(mElementInfo.effect.getMaskType(timer) == Mask.TRANS_OUT) {
             float mProgress = mElementInfo.effect.getProgressByElapse(timer);
@@ -66,35 +60,33 @@ public class SquareBorderMask extends Mask {
             } else {
                 mScale = Easing.easeInExpo((mProgress*10/5)*duration, 0.0f, 0.45f, duration);
             }
-            GLES20.glUniform1f(mSizeHandle, 0.75f + mScale);
+            mGLState.uniform1f(mSizeHandle, 0.75f + mScale);
         } else {
-            GLES20.glUniform1f(mSizeHandle, 0.75f);
+            mGLState.uniform1f(mSizeHandle, 0.75f);
         }
 
-        GLES20.glUniform1f(mRatioHandle, mProcessGL.ScreenRatio);
+        mGLState.uniform1f(mRatioHandle, mProcessGL.ScreenRatio);
 
         Matrix.setIdentityM(mModelMatrix, 0);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("BorderMask");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -129,10 +121,7 @@ public class SquareBorderMask extends Mask {
         };
 
         // Initialize the buffers.
-        mTriangleVertices = ByteBuffer.allocateDirect(mTriangleVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices = mProcessGL.getGeometryArena().put(mTriangleVertices, mTriangleVerticesData);
     }
 
     private String VertexShader() {
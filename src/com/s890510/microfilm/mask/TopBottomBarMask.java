@@ -1,9 +1,5 @@
 package com.s890510.microfilm.mask;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
@@ -11,7 +7,9 @@ import android.util.Log;
 import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 
 public class TopBottomBarMask extends Mask {
     private static final String TAG = "TopBottomBarMask";
@@ -22,30 +20,26 @@ public class TopBottomBarMask extends Mask {
     private int mPositionHandle;
     private int mColorHandle;
     private int mMVPMatrixHandle;
-    private FloatBuffer mTriangleVertices;
+    private GeometryArena.Region mTriangleVertices;
     private float[] mMVPMatrix = new float[16];
     private float[] mModelMatrix = new float[16];
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public TopBottomBarMask(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
     void DrawRandar(float[] mViewMatrix, float[] mProjectionMatrix, ElementInfo mElementInfo, int mType) {
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-            28, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 28, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(mColorHandle, 4, GLES20.GL_FLOAT, false,
-                28, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mColorHandle);
+        mProcessGL.getGeometryArena().setAttrib(mColorHandle, 4, 28, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
 
         Matrix.setIdentityM(mModelMatrix, 0);
 
@@ -62,27 +56,21 @@ public class TopBottomBarMask extends Mask {
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
         //-----
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-            28, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 28, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-        mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(mColorHandle, 4, GLES20.GL_FLOAT, false,
-                28, mTriangleVertices);
-        GLES20.glEnableVertexAttribArray(mColorHandle);
+        mProcessGL.getGeometryArena().setAttrib(mColorHandle, 4, 28, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
 
         Matrix.invertM(mModelMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
@@ -90,12 +78,10 @@ public class TopBottomBarMask extends Mask {
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("TopBottomBarMask");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -128,10 +114,7 @@ public class TopBottomBarMask extends Mask {
         };
 
         // Initialize the buffers.
-        mTriangleVertices = ByteBuffer.allocateDirect(mTriangleVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices = mProcessGL.getGeometryArena().put(mTriangleVertices, mTriangleVerticesData);
     }
 
     private String VertexShader() {
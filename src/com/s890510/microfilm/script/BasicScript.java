@@ -8,6 +8,7 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.MusicManager;
 import com.s890510.microfilm.ProcessGL;
+import com.s890510.microfilm.RenderPlan;
 import com.s890510.microfilm.filter.FilterChooser;
 import com.s890510.microfilm.script.effects.Effect;
 
@@ -20,6 +21,8 @@ public class BasicScript extends Script {
     protected int mNoItem = 0;
     protected int mNoCount = 0;
     ArrayList<Effect> mEffects = new ArrayList<Effect>();
+    // the ops of the effects, each once, for ProcessGL to compile their programs ahead
+    private ArrayList<RenderPlan.Op> mOps = new ArrayList<RenderPlan.Op>();
     public MicroMovieActivity mActivity;
     private ProcessGL mProcessGL;
 
@@ -56,6 +59,16 @@ public class BasicScript extends Script {
         return mEffects.size();
     }
 
+    @Override
+    public Effect getEffect(int index) {
+        return mEffects.get(index);
+    }
+
+    @Override
+    public ArrayList<RenderPlan.Op> getOps() {
+        return mOps;
+    }
+
     @Override
     public int getNoItemSize() {
         return mNoItem;
@@ -100,6 +113,10 @@ public class BasicScript extends Script {
             if(!mEffects.get(i).getIsInCount()) {
                 mNoCount++;
             }
+            RenderPlan.Op op = RenderPlan.compile(mEffects.get(i).getShader());
+            if(!mOps.contains(op)) {
+                mOps.add(op);
+            }
         }
     }
 
@@ -108,6 +125,7 @@ public class BasicScript extends Script {
         int effNum = mEffects.size();
         for(int i = 0; i < info.size() ; i++) {
             info.get(i).effect = mEffects.get(i % effNum);
+            info.get(i).Op = RenderPlan.compile(info.get(i).effect.getShader());
             info.get(i).time = mEffects.get(i % effNum).getSleep();
             info.get(i).timer = new Timer(mEffects.get(i % effNum).getDuration(), mActivity, mProcessGL);
             info.get(i).scaleH = mEffects.get(i % effNum).getTextureHightScaleRatio();
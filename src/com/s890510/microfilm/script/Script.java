@@ -3,6 +3,8 @@ package com.s890510.microfilm.script;
 import java.util.ArrayList;
 
 import com.s890510.microfilm.ElementInfo;
+import com.s890510.microfilm.RenderPlan;
+import com.s890510.microfilm.script.effects.Effect;
 
 public abstract class Script
 {
@@ -17,6 +19,7 @@ public abstract class Script
     abstract public int getFilterId();
     abstract public void updateTextureScaleRatio(ElementInfo info, int i);
     abstract public int geteffectsize();
+    abstract public Effect getEffect(int index);
     abstract public void resetItemElapse(long elapse, ArrayList<ElementInfo> info);
     abstract public int getFilterNumber();
     abstract public float ColorRed();
@@ -33,4 +36,5 @@ public abstract class Script
     abstract public int getNoCountSize();
     abstract public float[] getFilterLeft();
     abstract public float[] getFilterRight();
+    abstract public ArrayList<RenderPlan.Op> getOps();
 }
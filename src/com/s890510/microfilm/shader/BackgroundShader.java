@@ -1,9 +1,5 @@
 package com.s890510.microfilm.shader;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
@@ -11,7 +7,9 @@ import android.util.Log;
 import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 
 public class BackgroundShader extends Shader {
     private static final String TAG = "BackgroundShader";
@@ -24,13 +22,15 @@ public class BackgroundShader extends Shader {
     private float[] mMVPMatrix = new float[16];
     private float[] mModelMatrix = new float[16];
 
-    private FloatBuffer mVertices = null;
+    private GeometryArena.Region mVertices = null;
     
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public BackgroundShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -38,20 +38,18 @@ public class BackgroundShader extends Shader {
 
         long timer = mElementInfo.timer.getElapse();
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        mVertices.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 0, mVertices, 0);
 
-        GLES20.glUniform1fv(mColorHandle, mElementInfo.effect.getBGColor(timer).length, mElementInfo.effect.getBGColor(timer), 0);
+        mGLState.uniform1fv(mColorHandle, mElementInfo.effect.getBGColor(timer).length, mElementInfo.effect.getBGColor(timer), 0);
 
         Matrix.setIdentityM(mModelMatrix, 0);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
@@ -59,12 +57,10 @@ public class BackgroundShader extends Shader {
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("BackgroundShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -108,11 +104,7 @@ public class BackgroundShader extends Shader {
                  mRatio,  1.0f, 0.0f
         };
 
-        // Initialize the buffers.
-        mVertices = ByteBuffer.allocateDirect(mVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mVertices.put(mVerticesData).position(0);
+        mVertices = mProcessGL.getGeometryArena().put(mVertices, mVerticesData);
     }
 
     @Override
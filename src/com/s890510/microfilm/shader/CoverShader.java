@@ -1,9 +1,5 @@
 package com.s890510.microfilm.shader;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -16,7 +12,9 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.mask.Mask;
 import com.s890510.microfilm.script.effects.Effect;
 import com.s890510.microfilm.util.Easing;
@@ -31,6 +29,7 @@ public class CoverShader extends Shader {
     private int mPositionHandle;
     private int mTextureHandle;
     private int mSamplerHandle;
+    private int mSaturationHandle;
     private int mAlphaHandle;
     private int mMVPMatrixHandle;
     private int mMVMMatrixHandle;
@@ -45,17 +44,19 @@ public class CoverShader extends Shader {
     private int mSetBoundHandle;
     private int mLeftFilterHandle;
     private int mRightFilterHandle;
-    private FloatBuffer mTriangleVertices;
+    private GeometryArena.Region mTriangleVertices;
     private float[] mMVPMatrix = new float[16];
 
     private Bitmap mBitmap = null;
     private int mColor = Color.WHITE;
 
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public CoverShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -72,64 +73,51 @@ public class CoverShader extends Shader {
         float[] mLeft = mProcessGL.getLeftFilter();
         float[] mRight = mProcessGL.getRightFilter();
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
         if(mCoverType == Shader.EMPTY_LEFT) {
 
             if(mBitmap == null)
                 CreateBitmap();
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
             mActivity.mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            mGLState.textureBound(GLES20.GL_TEXTURE_2D, mTextureId);
             GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
 
-            GLES20.glUniform1i(mSamplerHandle, mTextureId);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+            mGLState.uniform1i(mSamplerHandle, 0);
+            mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
 
-            mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-                    20, mTriangleVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
+            mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-            mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-            GLES20.glVertexAttribPointer(mTextureHandle, 3, GLES20.GL_FLOAT, false,
-                    20, mTriangleVertices);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
+            mProcessGL.getGeometryArena().setAttrib(mTextureHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
 
-            GLES20.glUniform1f(mIsEmptyHandle, 1.0f);
+            mGLState.uniform1f(mIsEmptyHandle, 1.0f);
 
             mCoverType = Shader.LEFT;
         } else {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-            GLES20.glUniform1i(mSamplerHandle, mTextureId);
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
+            mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            mGLState.uniform1i(mSamplerHandle, 0);
+            mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
 
             if(mCoverType == Shader.STRING_LEFT) {
-            	mProcessGL.mStringLoader.mStringTextureCoords.position(0);
-                GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringTextureCoords);
-                GLES20.glEnableVertexAttribArray(mTextureHandle);
-
-                mProcessGL.mStringLoader.mStringVertices.position(0);
-                GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringVertices);
-                GLES20.glEnableVertexAttribArray(mPositionHandle);
+                mProcessGL.mStringLoader.setAttribs(mPositionHandle, mTextureHandle);
 
                 mCoverType = Shader.LEFT;
             } else {
-                mElementInfo.mSTextureCoords.position(0);
-                GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-                GLES20.glEnableVertexAttribArray(mTextureHandle);
+                mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-                mElementInfo.mVertices.position(0);
-                GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-                GLES20.glEnableVertexAttribArray(mPositionHandle);
+                mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
             }
 
-            GLES20.glUniform1f(mIsEmptyHandle, 0.0f);
+            mGLState.uniform1f(mIsEmptyHandle, 0.0f);
         }
 
-        GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
-        GLES20.glUniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
-        GLES20.glUniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
+        mGLState.uniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+        mGLState.uniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
+        mGLState.uniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
         if(mEffect.getTransition(mElapseTime)) {
             float duration = mEffect.getDuration(mElapseTime);
             float progress = mEffect.getProgressByElapse(mElapseTime);
@@ -139,77 +127,77 @@ public class CoverShader extends Shader {
                     mCoverType == Shader.RIGHT || mCoverType == Shader.HALF_RIGHT ||
                     mCoverType == Shader.GFRAG_LEFT || mCoverType == Shader.HALF_LEFT_Q || mCoverType == Shader.HALF_RIGHT_Q) {
                 if(mCoverType == Shader.LEFT || mCoverType == Shader.HALF_LEFT || mCoverType == Shader.HALF_LEFT_Q) {
-                    GLES20.glUniform1f(mDirectHandle, 0.0f);
+                    mGLState.uniform1f(mDirectHandle, 0.0f);
                 } else if(mCoverType == Shader.GFRAG_LEFT) {
-                    GLES20.glUniform1f(mDirectHandle, 4.0f);
+                    mGLState.uniform1f(mDirectHandle, 4.0f);
                 } else {
-                    GLES20.glUniform1f(mDirectHandle, 1.0f);
+                    mGLState.uniform1f(mDirectHandle, 1.0f);
                 }
 
                 if(mCoverType == Shader.LEFT || mCoverType == Shader.GFRAG_LEFT) {
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio*2, duration) - mProcessGL.ScreenRatio);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio*2, duration) - mProcessGL.ScreenRatio);
                 } else if(mCoverType == Shader.RIGHT) {
-                    GLES20.glUniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio*2, duration) - mProcessGL.ScreenRatio));
+                    mGLState.uniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio*2, duration) - mProcessGL.ScreenRatio));
                 } else if(mCoverType == Shader.HALF_LEFT) {
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio, duration) - mProcessGL.ScreenRatio/2.0f);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio, duration) - mProcessGL.ScreenRatio/2.0f);
                 } else if(mCoverType == Shader.HALF_LEFT_Q) {
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeOutCubic(elapse, 0, mElementInfo.x*2, duration) - mElementInfo.x);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeOutCubic(elapse, 0, mElementInfo.x*2, duration) - mElementInfo.x);
                 } else if(mCoverType == Shader.HALF_RIGHT) {
-                    GLES20.glUniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio, duration) - mProcessGL.ScreenRatio/2.0f));
+                    mGLState.uniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, mProcessGL.ScreenRatio, duration) - mProcessGL.ScreenRatio/2.0f));
                 } else if(mCoverType == Shader.HALF_RIGHT_Q) {
-                    GLES20.glUniform1f(mSizeHandle, -(Easing.easeOutCubic(elapse, 0, mElementInfo.x*2, duration) - mElementInfo.x));
+                    mGLState.uniform1f(mSizeHandle, -(Easing.easeOutCubic(elapse, 0, mElementInfo.x*2, duration) - mElementInfo.x));
                 }
             } else if(mCoverType == Shader.TOP || mCoverType == Shader.HALF_TOP ||
                     mCoverType == Shader.BOTTOM || mCoverType == Shader.HALF_BOTTOM) {
                 if(mCoverType == Shader.TOP || mCoverType == Shader.HALF_TOP) {
-                    GLES20.glUniform1f(mDirectHandle, 2.0f);
+                    mGLState.uniform1f(mDirectHandle, 2.0f);
                 } else {
-                    GLES20.glUniform1f(mDirectHandle, 3.0f);
+                    mGLState.uniform1f(mDirectHandle, 3.0f);
                 }
 
                 if(mCoverType == Shader.TOP) {
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, 2, duration) - 1);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, 2, duration) - 1);
                 } else if(mCoverType == Shader.BOTTOM) {
-                    GLES20.glUniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, 2, duration) - 1));
+                    mGLState.uniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, 2, duration) - 1));
                 } else if(mCoverType == Shader.HALF_TOP) {
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, 1, duration) - 0.5f);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, 1, duration) - 0.5f);
                 } else if(mCoverType == Shader.HALF_BOTTOM) {
-                    GLES20.glUniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, 1, duration) - 0.5f));
+                    mGLState.uniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, 1, duration) - 0.5f));
                 }
             } else if(mCoverType == Shader.CENTER_H) {
-                GLES20.glUniform1f(mDirectHandle, 5.0f);
-                GLES20.glUniform1f(mSizeHandle, 1-Easing.easeInOutCubic(elapse, 0, 1, duration));
+                mGLState.uniform1f(mDirectHandle, 5.0f);
+                mGLState.uniform1f(mSizeHandle, 1-Easing.easeInOutCubic(elapse, 0, 1, duration));
             } else if(mCoverType == Shader.PERCENT_L) {
-                GLES20.glUniform1f(mDirectHandle, 0.0f);
+                mGLState.uniform1f(mDirectHandle, 0.0f);
                 float[] mPos = mEffect.getRunPos(mElapseTime);
-                GLES20.glUniform1f(mSizeHandle, (mPos[0] + ((mPos[1] - mPos[0])*Easing.easeInOutCubic(elapse, 0, 1, duration)))*mProcessGL.ScreenRatio*2 - mPos[1]*mProcessGL.ScreenRatio);
+                mGLState.uniform1f(mSizeHandle, (mPos[0] + ((mPos[1] - mPos[0])*Easing.easeInOutCubic(elapse, 0, 1, duration)))*mProcessGL.ScreenRatio*2 - mPos[1]*mProcessGL.ScreenRatio);
             } else if(mCoverType == Shader.PERCENT_B) {
-                GLES20.glUniform1f(mDirectHandle, 3.0f);
+                mGLState.uniform1f(mDirectHandle, 3.0f);
                 float[] mPos = mEffect.getRunPos(mElapseTime);
-                GLES20.glUniform1f(mSizeHandle, -((mPos[0] + ((mPos[1] - mPos[0])*Easing.easeInOutCubic(elapse, 0, 1, duration)))*2 - mPos[1]));
+                mGLState.uniform1f(mSizeHandle, -((mPos[0] + ((mPos[1] - mPos[0])*Easing.easeInOutCubic(elapse, 0, 1, duration)))*2 - mPos[1]));
             } else if(mCoverType == Shader.PERCENT_R) {
-                GLES20.glUniform1f(mDirectHandle, 1.0f);
+                mGLState.uniform1f(mDirectHandle, 1.0f);
             }
 
-            GLES20.glUniform1f(mTransHandle, 1.0f);
+            mGLState.uniform1f(mTransHandle, 1.0f);
 
             if(mEffect.getMaskType(mElapseTime) == Mask.GONE) {
-                GLES20.glUniform1f(mReverseHandle, 1.0f);
+                mGLState.uniform1f(mReverseHandle, 1.0f);
             } else {
-                GLES20.glUniform1f(mReverseHandle, 0.0f);
+                mGLState.uniform1f(mReverseHandle, 0.0f);
             }
         } else if(mCoverType == Shader.PERCENT_B) {
-            GLES20.glUniform1f(mDirectHandle, 3.0f);
-            GLES20.glUniform1f(mTransHandle, 1.0f);
+            mGLState.uniform1f(mDirectHandle, 3.0f);
+            mGLState.uniform1f(mTransHandle, 1.0f);
             float[] mPos = mEffect.getRunPos(mElapseTime);
-            GLES20.glUniform1f(mSizeHandle, -(mPos[0]*2 - mPos[1]));
+            mGLState.uniform1f(mSizeHandle, -(mPos[0]*2 - mPos[1]));
         } else if(mCoverType == Shader.PERCENT_L) {
-            GLES20.glUniform1f(mDirectHandle, 0.0f);
-            GLES20.glUniform1f(mTransHandle, 1.0f);
+            mGLState.uniform1f(mDirectHandle, 0.0f);
+            mGLState.uniform1f(mTransHandle, 1.0f);
             float[] mPos = mEffect.getRunPos(mElapseTime);
-            GLES20.glUniform1f(mSizeHandle, mPos[0]*mProcessGL.ScreenRatio*2 - mPos[1]*mProcessGL.ScreenRatio);
+            mGLState.uniform1f(mSizeHandle, mPos[0]*mProcessGL.ScreenRatio*2 - mPos[1]*mProcessGL.ScreenRatio);
         } else {
-            GLES20.glUniform1f(mTransHandle, 0.0f);
+            mGLState.uniform1f(mTransHandle, 0.0f);
         }
 
         //Set show bound
@@ -218,45 +206,43 @@ public class CoverShader extends Shader {
             float[] bound = new float[2]; //0: X, 1: Y
             bound[0] = mElementInfo.x;
             bound[1] = mElementInfo.y;
-            GLES20.glUniform1f(mSetBoundHandle, 1.0f);
-            GLES20.glUniform1fv(mBoundHandle, bound.length, bound, 0);
+            mGLState.uniform1f(mSetBoundHandle, 1.0f);
+            mGLState.uniform1fv(mBoundHandle, bound.length, bound, 0);
         } else if(mBound == Shader.LIMIT_COVER_X) {
             float[] mPos = mEffect.getRunPos(mElapseTime);
             float[] bound = new float[2];
             bound[0] = mPos[0]*mProcessGL.ScreenRatio*2 - mProcessGL.ScreenRatio;
             bound[1] = 0;
-            GLES20.glUniform1f(mSetBoundHandle, 4.0f);
-            GLES20.glUniform1fv(mBoundHandle, bound.length, bound, 0);
+            mGLState.uniform1f(mSetBoundHandle, 4.0f);
+            mGLState.uniform1fv(mBoundHandle, bound.length, bound, 0);
         } else {
-            GLES20.glUniform1f(mSetBoundHandle, 0.0f);
+            mGLState.uniform1f(mSetBoundHandle, 0.0f);
         }
 
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
-        GLES20.glUniform1f(mThemeHandle, mProcessGL.getScriptFilter());
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniform1f(mThemeHandle, mProcessGL.getScriptFilter());
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVMMatrixHandle, 1, false, mModelMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVMMatrixHandle, 1, false, mModelMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("CoverShader");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("CoverShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -266,6 +252,7 @@ public class CoverShader extends Shader {
         mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
         mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
+        mSaturationHandle = GLES20.glGetUniformLocation(mProgram, "mSaturation");
 
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
         mMVMMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVMMatrix");
@@ -297,10 +284,7 @@ public class CoverShader extends Shader {
         };
 
         // Initialize the buffers.
-        mTriangleVertices = ByteBuffer.allocateDirect(mTriangleVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices = mProcessGL.getGeometryArena().put(mTriangleVertices, mTriangleVerticesData);
     }
 
     private void CreateBitmap() {
@@ -3,12 +3,15 @@ package com.s890510.microfilm.shader;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.ProgramCache;
+import com.s890510.microfilm.draw.ShaderVariant;
 import com.s890510.microfilm.draw.StringLoader;
 import com.s890510.microfilm.script.effects.Effect;
 
@@ -16,32 +19,45 @@ public class DefaultShader extends Shader {
     private static final String TAG = "DefaultShader";
     public static final int FLOAT_SIZE_BYTES = 4; //float = 4bytes
 
-    private int mProgram;
-    private int mPositionHandle;
-    private int mTextureHandle;
-    private int mSamplerHandle;
-    private int mAlphaHandle;
-    private int mMVPMatrixHandle;
-    private int mMVMMatrixHandle;
-    private int mResolutionHandle;
-    private int mThemeHandle;
-    private int mStringBKHandle;
-    private int mStringBKRHandle;
-    private int mStringBKGHandle;
-    private int mStringBKBHandle;
-    private int mBoundHandle;
-    private int mSetBoundHandle;
-    private int mLeftFilterHandle;
-    private int mRightFilterHandle;
+    // the modes the fragment shader is specialized for, see ShaderVariant
+    private static final String[] VARIANT_MODES = { "THEME", "STRING_BK", "SET_BOUND" };
+
+    // a program of the shader for one combination of modes
+    private static class Variant {
+        int mProgram;
+        int mPositionHandle;
+        int mTextureHandle;
+        int mSamplerHandle;
+        int mSaturationHandle;
+        int mAlphaHandle;
+        int mMVPMatrixHandle;
+        int mMVMMatrixHandle;
+        int mResolutionHandle;
+        int mStringBKRHandle;
+        int mStringBKGHandle;
+        int mStringBKBHandle;
+        int mBoundHandle;
+        int mLeftFilterHandle;
+        int mRightFilterHandle;
+    }
+
+    // variant key -> variant, compiled as they are first drawn
+    private SparseArray<Variant> mVariants = new SparseArray<Variant>();
+    private String mVertexSource;
+    private String mFragmentSource;
+    private float[] mVariantValues = new float[VARIANT_MODES.length];
     private float[] mMVPMatrix = new float[16];
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     private float mAlpha = 1.0f;
 
     public DefaultShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
-        CreateProgram();
+        mGLState = processGL.getGLState();
+        // the script's own variant, the one drawn most
+        getVariant(mProcessGL.getScriptFilter(), 0, 0);
     }
 
     public void DrawRandar(float[] mModelMatrix, float[] mViewMatrix, float[] mProjectionMatrix,
@@ -57,37 +73,12 @@ public class DefaultShader extends Shader {
         float[] mLeft = mProcessGL.getLeftFilter();
         float[] mRight = mProcessGL.getRightFilter();
 
-        GLES20.glUseProgram(mProgram);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        GLES20.glUniform1i(mSamplerHandle, mTextureId);
-
-        if(mType == Shader.STRING) {
-        	mProcessGL.mStringLoader.mStringTextureCoords.position(0);
-            GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringTextureCoords);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
-
-            mProcessGL.mStringLoader.mStringVertices.position(0);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
-        } else {
-            mElementInfo.mSTextureCoords.position(0);
-            GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
-
-            mElementInfo.mVertices.position(0);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
-        }
-
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
-        GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
-        GLES20.glUniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
-        GLES20.glUniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
-
+        //Pick the modes of the variant
+        int mTheme;
+        int mStringBK = 0;
+        boolean mStringColor = false;
         if(mType == Shader.STRING) {
-            GLES20.glUniform1f(mThemeHandle, 0);
+            mTheme = 0;
 
             int SType = mEffect.getMaskType(mElapseTime);
             if(SType == StringLoader.STRING_NOBK || SType == StringLoader.STRING_WHITE_NOBK || SType == StringLoader.STRING_WHITE_NOBK_ANIM ||
@@ -99,103 +90,148 @@ public class DefaultShader extends Shader {
                         SType == StringLoader.STRING_YEAR_COUNTRY || SType == StringLoader.STRING_YEAR_COUNTRY_FADEIN || SType == StringLoader.STRING_YEAR_COUNTRY_FADEOUT ||
                         SType == StringLoader.STRING_WHITE_NOBK_LINE || SType == StringLoader.STRING_WHITE_NOBK_LOVER || SType == StringLoader.STRING_DATE_CITY_TRANS ||
                         SType == StringLoader.STRING_KIDS_ICON_A || SType == StringLoader.STRING_KIDS_ICON_B) {
-                    GLES20.glUniform1f(mStringBKHandle, 2);
+                    mStringBK = 2;
                 } else if(SType == StringLoader.STRING_DATE_LOVER || SType == StringLoader.STRING_KIDS_CIRCLE_DATE) {
-                    GLES20.glUniform1f(mStringBKHandle, 3);
+                    mStringBK = 3;
                 } else {
-                    GLES20.glUniform1f(mStringBKHandle, 1);
+                    mStringBK = 1;
                 }
-
-                GLES20.glUniform1f(mStringBKRHandle, mProcessGL.mScript.ColorRed());
-                GLES20.glUniform1f(mStringBKGHandle, mProcessGL.mScript.ColorGreen());
-                GLES20.glUniform1f(mStringBKBHandle, mProcessGL.mScript.ColorBlue());
+                mStringColor = true;
             } else if(SType == StringLoader.STRING_FADE || SType == StringLoader.STRING_FADE_LIGHT) {
-                GLES20.glUniform1f(mStringBKHandle, 4);
-            } else {
-                GLES20.glUniform1f(mStringBKHandle, 0);
+                mStringBK = 4;
             }
-            Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         } else {
-            GLES20.glUniform1f(mThemeHandle, mProcessGL.getScriptFilter());
-            GLES20.glUniform1f(mStringBKHandle, 0);
-            Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
+            mTheme = mProcessGL.getScriptFilter();
         }
 
         //Set show bound
+        int mSetBound = 0;
+        float[] mPos = null;
         int mBound = mEffect.getFixBound(mElapseTime);
         if(mBound == Shader.BOUNDING) {
-            float[] bound = new float[2]; //0: X, 1: Y
-            bound[0] = mElementInfo.x;
-            bound[1] = mElementInfo.y;
-            GLES20.glUniform1f(mSetBoundHandle, 1.0f);
-            GLES20.glUniform1fv(mBoundHandle, bound.length, bound, 0);
+            mSetBound = 1;
+            mPos = new float[2]; //0: X, 1: Y
+            mPos[0] = mElementInfo.x;
+            mPos[1] = mElementInfo.y;
         } else if(mBound == Shader.LIMIT_X) {
-            float[] mPos = mEffect.getRunPos(mElapseTime);
-            GLES20.glUniform1f(mSetBoundHandle, 2.0f);
-            GLES20.glUniform1fv(mBoundHandle, mPos.length, mPos, 0);
+            mSetBound = 2;
+            mPos = mEffect.getRunPos(mElapseTime);
         } else if(mBound == Shader.LIMIT_Y) {
-            float[] mPos = mEffect.getRunPos(mElapseTime);
-            GLES20.glUniform1f(mSetBoundHandle, 3.0f);
-            GLES20.glUniform1fv(mBoundHandle, mPos.length, mPos, 0);
+            mSetBound = 3;
+            mPos = mEffect.getRunPos(mElapseTime);
         } else if(mBound == Shader.LIMIT_Y_TOP) {
-            float[] mPos = mEffect.getRunPos(mElapseTime);
-            GLES20.glUniform1f(mSetBoundHandle, 4.0f);
-            GLES20.glUniform1fv(mBoundHandle, mPos.length, mPos, 0);
+            mSetBound = 4;
+            mPos = mEffect.getRunPos(mElapseTime);
         } else if(mBound == Shader.LIMIT_Y_TB) {
-            float[] mPos = mEffect.getRunPos(mElapseTime);
-            GLES20.glUniform1f(mSetBoundHandle, 5.0f);
-            GLES20.glUniform1fv(mBoundHandle, mPos.length, mPos, 0);
+            mSetBound = 5;
+            mPos = mEffect.getRunPos(mElapseTime);
+        }
+
+        Variant mVariant = getVariant(mTheme, mStringBK, mSetBound);
+        if(mVariant == null) return;
+
+        mGLState.useProgram(mVariant.mProgram);
+
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
+        mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.uniform1i(mVariant.mSamplerHandle, 0);
+        mGLState.uniform1f(mVariant.mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
+
+        if(mType == Shader.STRING) {
+            mProcessGL.mStringLoader.setAttribs(mVariant.mPositionHandle, mVariant.mTextureHandle);
         } else {
-            GLES20.glUniform1f(mSetBoundHandle, 0.0f);
+            mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mVariant.mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
+
+            mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mVariant.mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
+        }
+
+        mGLState.uniform1f(mVariant.mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniform2f(mVariant.mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+        mGLState.uniform4f(mVariant.mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
+        mGLState.uniform4f(mVariant.mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
+
+        if(mStringColor) {
+            mGLState.uniform1f(mVariant.mStringBKRHandle, mProcessGL.mScript.ColorRed());
+            mGLState.uniform1f(mVariant.mStringBKGHandle, mProcessGL.mScript.ColorGreen());
+            mGLState.uniform1f(mVariant.mStringBKBHandle, mProcessGL.mScript.ColorBlue());
+        }
+        if(mPos != null) {
+            mGLState.uniform1fv(mVariant.mBoundHandle, mPos.length, mPos, 0);
         }
 
+        Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVMMatrixHandle, 1, false, mModelMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mVariant.mMVMMatrixHandle, 1, false, mModelMatrix, 0);
+        mGLState.uniformMatrix4fv(mVariant.mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("DefaultShader");
     }
 
-    private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
+    // returns the variant of the modes, compiling it the first time; the modes that don't
+    // matter for a string are left out of it
+    private Variant getVariant(int theme, int stringBK, int setBound) {
+        if(stringBK != 0) {
+            theme = 0;
+            setBound = 0;
+        }
+        int key = (theme << 16) | (stringBK << 8) | setBound;
+        Variant variant = mVariants.get(key);
+        if(variant == null) {
+            variant = CreateProgram(theme, stringBK, setBound);
+            mVariants.put(key, variant);
+        }
+        return variant.mProgram != 0 ? variant : null;
+    }
+
+    private Variant CreateProgram(int theme, int stringBK, int setBound) {
+        Variant variant = new Variant();
+        if(mVertexSource == null) {
+            mVertexSource = VertexShader();
+            mFragmentSource = FragmentShader();
+        }
+        mVariantValues[0] = theme;
+        mVariantValues[1] = stringBK;
+        mVariantValues[2] = setBound;
 
+        //Create the new program, or load it from the program cache
+        variant.mProgram = ProgramCache.getInstance(mActivity).createProgram(mVertexSource,
+                ShaderVariant.define(mFragmentSource, VARIANT_MODES, mVariantValues), mGLState);
         checkGlError("DefaultShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
-        if (mProgram == 0) {
+        if (variant.mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
-            return;
+            return variant;
         }
 
         // Set program handles. These will later be used to pass in values to the program.
-        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-        mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
-        mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
-
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        mMVMMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVMMatrix");
-        mAlphaHandle = GLES20.glGetUniformLocation(mProgram, "mAlpha");
-        mResolutionHandle = GLES20.glGetUniformLocation(mProgram, "resolution");
-        mThemeHandle = GLES20.glGetUniformLocation(mProgram, "mTheme");
-        mStringBKHandle = GLES20.glGetUniformLocation(mProgram, "mString_BK");
-        mStringBKRHandle = GLES20.glGetUniformLocation(mProgram, "mString_BKR");
-        mStringBKGHandle = GLES20.glGetUniformLocation(mProgram, "mString_BKG");
-        mStringBKBHandle = GLES20.glGetUniformLocation(mProgram, "mString_BKB");
-        mSetBoundHandle = GLES20.glGetUniformLocation(mProgram, "mSetBound");
-        mBoundHandle = GLES20.glGetUniformLocation(mProgram, "mBound");
-        mLeftFilterHandle = GLES20.glGetUniformLocation(mProgram, "mLeft");
-        mRightFilterHandle = GLES20.glGetUniformLocation(mProgram, "mRight");
+        int mProgram = variant.mProgram;
+        variant.mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        variant.mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        variant.mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
+        variant.mSaturationHandle = GLES20.glGetUniformLocation(mProgram, "mSaturation");
+
+        variant.mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        variant.mMVMMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVMMatrix");
+        variant.mAlphaHandle = GLES20.glGetUniformLocation(mProgram, "mAlpha");
+        variant.mResolutionHandle = GLES20.glGetUniformLocation(mProgram, "resolution");
+        variant.mStringBKRHandle = GLES20.glGetUniformLocation(mProgram, "mString_BKR");
+        variant.mStringBKGHandle = GLES20.glGetUniformLocation(mProgram, "mString_BKG");
+        variant.mStringBKBHandle = GLES20.glGetUniformLocation(mProgram, "mString_BKB");
+        variant.mBoundHandle = GLES20.glGetUniformLocation(mProgram, "mBound");
+        variant.mLeftFilterHandle = GLES20.glGetUniformLocation(mProgram, "mLeft");
+        variant.mRightFilterHandle = GLES20.glGetUniformLocation(mProgram, "mRight");
 
         checkGlError("DefaultCreateProgram");
+        Log.d(TAG, "variant theme " + theme + ", string " + stringBK + ", bound " + setBound +
+                " is program " + mProgram);
+        return variant;
     }
 
     private String VertexShader() {
@@ -10,7 +10,8 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.script.effects.Effect;
 
 public class FadeShader extends Shader {
@@ -32,10 +33,12 @@ public class FadeShader extends Shader {
 
     private float mAlpha = 1.0f;
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public FadeShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -46,50 +49,44 @@ public class FadeShader extends Shader {
             mAlpha =  (float)((1-(float)(mEffect.getDuration() - mElementInfo.get(0).timer.getElapse()) / (mEffect.getDuration() - mEffect.getSleep())));
         }
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
         for(int i=0; i<mElementInfo.size(); i++) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId.get(i));
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId.get(i));
-            GLES20.glUniform1i(mSamplerHandle[i], mTextureId.get(i));
+            mGLState.activeTexture(GLES20.GL_TEXTURE0+i);
+            mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId.get(i));
+            mGLState.uniform1i(mSamplerHandle[i], i);
 
-            mElementInfo.get(i).mSTextureCoords.position(0);
-            GLES20.glVertexAttribPointer(mTextureHandle[i], 2, GLES20.GL_FLOAT, false, 0, mElementInfo.get(i).mSTextureCoords);
-            GLES20.glEnableVertexAttribArray(mTextureHandle[i]);
+            mElementInfo.get(i).setAttrib(mProcessGL.getGeometryArena(), mTextureHandle[i], 2, ElementInfo.GEOMETRY_SQUARE);
         }
 
-        mElementInfo.get(0).mVertices.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.get(0).mVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mElementInfo.get(0).setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
 
-        GLES20.glUniform1f(mNumTexture, (float)mElementInfo.size());
+        mGLState.uniform1f(mNumTexture, (float)mElementInfo.size());
 
-        GLES20.glUniform1f(mAlphaHandle, mAlpha);
+        mGLState.uniform1f(mAlphaHandle, mAlpha);
 
         Matrix.setIdentityM(mModelMatrix, 0);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("FadeShader");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("FadeShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
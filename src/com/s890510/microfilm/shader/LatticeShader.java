@@ -8,7 +8,8 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.script.effects.Effect;
 import com.s890510.microfilm.util.Easing;
 
@@ -20,6 +21,7 @@ public class LatticeShader extends Shader {
     private int mPositionHandle;
     private int mTextureHandle;
     private int mSamplerHandle;
+    private int mSaturationHandle;
     private int mAlphaHandle;
     private int mSizeHandle;
     private int mMVPMatrixHandle;
@@ -31,10 +33,12 @@ public class LatticeShader extends Shader {
     private int mRightFilterHandle;
     private float[] mMVPMatrix = new float[16];
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public LatticeShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -55,100 +59,89 @@ public class LatticeShader extends Shader {
             mType = mEffect.getMaskType(mElapseTime);
         }
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        GLES20.glUniform1i(mSamplerHandle, mTextureId);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
+        mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.uniform1i(mSamplerHandle, 0);
+        mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
 
         if(mType == Shader.LATTICE_BLUE_BAR_GONE_STRING) {
-        	mProcessGL.mStringLoader.mStringTextureCoords.position(0);
-            GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringTextureCoords);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
-
-            mProcessGL.mStringLoader.mStringVertices.position(0);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
+            mProcessGL.mStringLoader.setAttribs(mPositionHandle, mTextureHandle);
 
             mType = Shader.LATTICE_BLUE_BAR_GONE;
         } else {
-            mElementInfo.mSTextureCoords.position(0);
-            GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
+            mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-            mElementInfo.mVertices.position(0);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
+            mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
         }
 
-        GLES20.glUniform1f(mSizeHandle, 0);
-        GLES20.glUniform1f(mThemeHandle, mProcessGL.getScriptFilter());
+        mGLState.uniform1f(mSizeHandle, 0);
+        mGLState.uniform1f(mThemeHandle, mProcessGL.getScriptFilter());
         GLES20.glVertexAttrib2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
-        GLES20.glUniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
-        GLES20.glUniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
+        mGLState.uniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
+        mGLState.uniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
 
         if(mEffect.getTransition(mElapseTime)) {
             float progress = mEffect.getProgressByElapse(mElapseTime);
             float duration = mEffect.getDuration(mElapseTime);
 
             if(mType == Shader.LATTICE_TILTED_RIGHT_R) {
-                GLES20.glUniform1f(mRadiusHandle, (mProcessGL.ScreenWidth+mProcessGL.ScreenHeight)/8);
+                mGLState.uniform1f(mRadiusHandle, (mProcessGL.ScreenWidth+mProcessGL.ScreenHeight)/8);
                 if(progress < 0.45) {
-                    GLES20.glUniform1f(mMotionHandle, 1);
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeOutCubic(progress*10/4.5f*duration, 0, 4, duration) - 2.0f);
+                    mGLState.uniform1f(mMotionHandle, 1);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeOutCubic(progress*10/4.5f*duration, 0, 4, duration) - 2.0f);
                 } else if(progress > 0.55) {
-                    GLES20.glUniform1f(mMotionHandle, 2);
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeOutCubic((progress-0.55f)*10/4.5f*duration, 0, 4, duration) - 2.0f);
+                    mGLState.uniform1f(mMotionHandle, 2);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeOutCubic((progress-0.55f)*10/4.5f*duration, 0, 4, duration) - 2.0f);
                 } else {
-                    GLES20.glUniform1f(mMotionHandle, 3);
+                    mGLState.uniform1f(mMotionHandle, 3);
                 }
             } else if(mType == Shader.LATTICE_CROSS_4) {
-                GLES20.glUniform1f(mRadiusHandle, (mProcessGL.ScreenWidth+mProcessGL.ScreenHeight)/4);
-                GLES20.glUniform1f(mMotionHandle, 4);
-                GLES20.glUniform1f(mSizeHandle, Easing.easeOutCubic(progress*duration, 0, 4, duration) - 2.0f);
+                mGLState.uniform1f(mRadiusHandle, (mProcessGL.ScreenWidth+mProcessGL.ScreenHeight)/4);
+                mGLState.uniform1f(mMotionHandle, 4);
+                mGLState.uniform1f(mSizeHandle, Easing.easeOutCubic(progress*duration, 0, 4, duration) - 2.0f);
             } else if(mType == Shader.LATTICE_CROSS_2) {
-                GLES20.glUniform1f(mRadiusHandle, (mProcessGL.ScreenWidth+mProcessGL.ScreenHeight)/2);
-                GLES20.glUniform1f(mMotionHandle, 5);
-                GLES20.glUniform1f(mSizeHandle,  Easing.easeOutCubic(progress*duration, 0, 4, duration) - 2.0f);
+                mGLState.uniform1f(mRadiusHandle, (mProcessGL.ScreenWidth+mProcessGL.ScreenHeight)/2);
+                mGLState.uniform1f(mMotionHandle, 5);
+                mGLState.uniform1f(mSizeHandle,  Easing.easeOutCubic(progress*duration, 0, 4, duration) - 2.0f);
             } else if(mType == Shader.LATTICE_BLUE_BAR) {
-                GLES20.glUniform1f(mMotionHandle, 7);
-                GLES20.glUniform1f(mSizeHandle, progress * 6.0f - 3.0f);
+                mGLState.uniform1f(mMotionHandle, 7);
+                mGLState.uniform1f(mSizeHandle, progress * 6.0f - 3.0f);
             } else if(mType == Shader.LATTICE_BLUE_BAR_GONE) {
-                GLES20.glUniform1f(mMotionHandle, 8);
-                GLES20.glUniform1f(mSizeHandle, progress * 6.0f - 3.0f);
+                mGLState.uniform1f(mMotionHandle, 8);
+                mGLState.uniform1f(mSizeHandle, progress * 6.0f - 3.0f);
             } else {
-                GLES20.glUniform1f(mMotionHandle, 6);
-                GLES20.glUniform1f(mSizeHandle, (1-progress) * 2.0f);
-                GLES20.glUniform1f(mRadiusHandle, mProcessGL.ScreenHeight/20);
+                mGLState.uniform1f(mMotionHandle, 6);
+                mGLState.uniform1f(mSizeHandle, (1-progress) * 2.0f);
+                mGLState.uniform1f(mRadiusHandle, mProcessGL.ScreenHeight/20);
             }
         } else {
-            GLES20.glUniform1f(mMotionHandle, 0);
+            mGLState.uniform1f(mMotionHandle, 0);
         }
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("LatticeShader");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("LatticeShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -158,6 +151,7 @@ public class LatticeShader extends Shader {
         mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
         mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
+        mSaturationHandle = GLES20.glGetUniformLocation(mProgram, "mSaturation");
 
         mSizeHandle = GLES20.glGetUniformLocation(mProgram, "mSize");
         mAlphaHandle = GLES20.glGetUniformLocation(mProgram, "mAlpha");
@@ -1,9 +1,5 @@
 package com.s890510.microfilm.shader;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -16,7 +12,9 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.GeometryArena;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.mask.Mask;
 import com.s890510.microfilm.script.effects.Effect;
 
@@ -30,6 +28,7 @@ public class LineShader extends Shader {
     private int mPositionHandle;
     private int mTextureHandle;
     private int mSamplerHandle;
+    private int mSaturationHandle;
     private int mAlphaHandle;
     private int mMVPMatrixHandle;
     private int mResolutionHandle;
@@ -44,7 +43,7 @@ public class LineShader extends Shader {
     private int mIsStringHandle;
     private int mLeftFilterHandle;
     private int mRightFilterHandle;
-    private FloatBuffer mTriangleVertices;
+    private GeometryArena.Region mTriangleVertices;
     private float[] mMVPMatrix = new float[16];
 
     private Bitmap mBitmap = null;
@@ -65,10 +64,12 @@ public class LineShader extends Shader {
     private float[] mStartPos = new float[10];
     private float[] mEndPos = new float[10];
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public LineShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -127,61 +128,48 @@ public class LineShader extends Shader {
 
         if(!mIsGone && progress < 0.05f && mIsTrans) return;
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
         if(mType == Shader.EMPTY) {
             if(mBitmap == null)
                 CreateBitmap();
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
             mActivity.mLoadTexture.BindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            mGLState.textureBound(GLES20.GL_TEXTURE_2D, mTextureId);
             GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
 
-            GLES20.glUniform1i(mSamplerHandle, mTextureId);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
+            mGLState.uniform1i(mSamplerHandle, 0);
+            mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
 
-            mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-                    20, mTriangleVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
+            mProcessGL.getGeometryArena().setAttrib(mPositionHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_POS_OFFSET);
 
-            mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-            GLES20.glVertexAttribPointer(mTextureHandle, 3, GLES20.GL_FLOAT, false,
-                    20, mTriangleVertices);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
+            mProcessGL.getGeometryArena().setAttrib(mTextureHandle, 3, 20, mTriangleVertices, TRIANGLE_VERTICES_DATA_UV_OFFSET);
         } else {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-            GLES20.glUniform1i(mSamplerHandle, mTextureId);
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
+            mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            mGLState.uniform1i(mSamplerHandle, 0);
+            mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
 
             if(mType == Shader.STRING) {
-            	mProcessGL.mStringLoader.mStringTextureCoords.position(0);
-                GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringTextureCoords);
-                GLES20.glEnableVertexAttribArray(mTextureHandle);
-
-                mProcessGL.mStringLoader.mStringVertices.position(0);
-                GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mProcessGL.mStringLoader.mStringVertices);
-                GLES20.glEnableVertexAttribArray(mPositionHandle);
+                mProcessGL.mStringLoader.setAttribs(mPositionHandle, mTextureHandle);
 
-                GLES20.glUniform1f(mIsStringHandle, 1.0f);
+                mGLState.uniform1f(mIsStringHandle, 1.0f);
             } else {
-                mElementInfo.mSTextureCoords.position(0);
-                GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-                GLES20.glEnableVertexAttribArray(mTextureHandle);
+                mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-                mElementInfo.mVertices.position(0);
-                GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-                GLES20.glEnableVertexAttribArray(mPositionHandle);
+                mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
 
-                GLES20.glUniform1f(mIsStringHandle, 0.0f);
+                mGLState.uniform1f(mIsStringHandle, 0.0f);
             }
         }
 
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
-        GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
-        GLES20.glUniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
-        GLES20.glUniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
-        GLES20.glUniform1f(mThemeHandle, mProcessGL.getScriptFilter());
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+        mGLState.uniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
+        mGLState.uniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
+        mGLState.uniform1f(mThemeHandle, mProcessGL.getScriptFilter());
 
         if(mIsTrans && ((mIsGone && progress > 0.05f) || !mIsGone)) {
             progress = progress*10/9.5f;
@@ -211,20 +199,20 @@ public class LineShader extends Shader {
             }
 
             if(IsGone) {
-                GLES20.glUniform1f(mNPosHandle, -mPos);
-                GLES20.glUniform1f(mReverseHandle, 1.0f);
+                mGLState.uniform1f(mNPosHandle, -mPos);
+                mGLState.uniform1f(mReverseHandle, 1.0f);
             } else {
-                GLES20.glUniform1f(mNPosHandle, mPos);
-                GLES20.glUniform1f(mReverseHandle, 0.0f);
+                mGLState.uniform1f(mNPosHandle, mPos);
+                mGLState.uniform1f(mReverseHandle, 0.0f);
             }
-            GLES20.glUniform1i(mStartHandle, mStart);
+            mGLState.uniform1i(mStartHandle, mStart);
 
             if(mEnd == 0) mEnd = 10;
-            GLES20.glUniform1i(mEndHandle, mEnd);
+            mGLState.uniform1i(mEndHandle, mEnd);
 
-            GLES20.glUniform1f(mTransHandle, 1.0f);
-            GLES20.glUniform1fv(mXPosHandle, mXPos.length, mXPos, 0);
-            GLES20.glUniform1fv(mAreaHandle, mArea.length, mArea, 0);
+            mGLState.uniform1f(mTransHandle, 1.0f);
+            mGLState.uniform1fv(mXPosHandle, mXPos.length, mXPos, 0);
+            mGLState.uniform1fv(mAreaHandle, mArea.length, mArea, 0);
 
             mIsInit = false;
         }
@@ -232,14 +220,14 @@ public class LineShader extends Shader {
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("LineShader");
     }
@@ -247,13 +235,12 @@ public class LineShader extends Shader {
     private void CreateProgram() {
         if(mProgram != 0) {
             GLES20.glDeleteProgram(mProgram);
+            mGLState.forgetProgram(mProgram);
         }
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("DefaultShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -263,6 +250,7 @@ public class LineShader extends Shader {
         mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
         mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
+        mSaturationHandle = GLES20.glGetUniformLocation(mProgram, "mSaturation");
 
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
         mAlphaHandle = GLES20.glGetUniformLocation(mProgram, "mAlpha");
@@ -298,10 +286,7 @@ public class LineShader extends Shader {
         };
 
         // Initialize the buffers.
-        mTriangleVertices = ByteBuffer.allocateDirect(mTriangleVerticesData.length * ProcessGL.FLOAT_SIZE_BYTES)
-        .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices = mProcessGL.getGeometryArena().put(mTriangleVertices, mTriangleVerticesData);
     }
 
     private void CreateBitmap() {
@@ -8,7 +8,8 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.script.effects.Effect;
 import com.s890510.microfilm.util.Easing;
 
@@ -23,6 +24,7 @@ public class MirrorShader extends Shader {
     private int mPositionHandle;
     private int mTextureHandle;
     private int mSamplerHandle;
+    private int mSaturationHandle;
     private int mAlphaHandle;
     private int mMVPMatrixHandle;
     private int mResolutionHandle;
@@ -35,10 +37,12 @@ public class MirrorShader extends Shader {
     private int mRightFilterHandle;
     private float[] mMVPMatrix = new float[16];
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public MirrorShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -60,130 +64,121 @@ public class MirrorShader extends Shader {
         float elapse = progress*duration;
         boolean mTrans = mEffect.getTransition(mElapseTime);
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        GLES20.glUniform1i(mSamplerHandle, mTextureId);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
+        mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.uniform1i(mSamplerHandle, 0);
+        mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
 
         //First
-        mElementInfo.mSTextureCoords.position(0);
-        GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-        GLES20.glEnableVertexAttribArray(mTextureHandle);
+        mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-        mElementInfo.mVertices.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
 
-        GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
-        GLES20.glUniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
-        GLES20.glUniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
+        mGLState.uniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
+        mGLState.uniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
 
-        GLES20.glUniform1f(mSizeHandle, 0);
+        mGLState.uniform1f(mSizeHandle, 0);
 
         if(mMirrorType == Shader.MIRROR_VERTICAL) { //Left
-            GLES20.glUniform1f(mDirectHandle, 0.0f);
-            GLES20.glUniform1f(mTransHandle, 0.0f);
+            mGLState.uniform1f(mDirectHandle, 0.0f);
+            mGLState.uniform1f(mTransHandle, 0.0f);
         } else if(mMirrorType == Shader.MIRROR_VERTICAL_TB) {
-            GLES20.glUniform1f(mDirectHandle, 0.0f);
+            mGLState.uniform1f(mDirectHandle, 0.0f);
 
             if(mEffect.getTransition(mElapseTime) && progress < 0.6) {
-                GLES20.glUniform1f(mTransHandle, 1.0f);
+                mGLState.uniform1f(mTransHandle, 1.0f);
 
-                GLES20.glUniform1f(mCoverHandle, 3.0f);
-                GLES20.glUniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, 2, duration*0.6f) - 1));
+                mGLState.uniform1f(mCoverHandle, 3.0f);
+                mGLState.uniform1f(mSizeHandle, -(Easing.easeInOutCubic(elapse, 0, 2, duration*0.6f) - 1));
             } else {
-                GLES20.glUniform1f(mTransHandle, 0.0f);
+                mGLState.uniform1f(mTransHandle, 0.0f);
             }
         } else if(mMirrorType == Shader.MIRROR_TILTED_LEFT) {
-            GLES20.glUniform1f(mDirectHandle, 3.0f);
-            GLES20.glUniform1f(mTransHandle, 0.0f);
+            mGLState.uniform1f(mDirectHandle, 3.0f);
+            mGLState.uniform1f(mTransHandle, 0.0f);
         } else if(mMirrorType == Shader.MIRROR_TILTED_MASK || mMirrorType == Shader.MIRROR_TILTED) {
             if(mTrans) {
-                GLES20.glUniform1f(mDirectHandle, 4.0f);
-                GLES20.glUniform1f(mTransHandle, 0.0f);
+                mGLState.uniform1f(mDirectHandle, 4.0f);
+                mGLState.uniform1f(mTransHandle, 0.0f);
             } else {
-                GLES20.glUniform1f(mDirectHandle, -1.0f);
-                GLES20.glUniform1f(mTransHandle, 0.0f);
+                mGLState.uniform1f(mDirectHandle, -1.0f);
+                mGLState.uniform1f(mTransHandle, 0.0f);
             }
         }
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         if((mMirrorType == Shader.MIRROR_TILTED_MASK && mTrans) || mMirrorType != Shader.MIRROR_TILTED_MASK) {
             //Second
-            mElementInfo.mSTextureCoords.position(0);
-            GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-            GLES20.glEnableVertexAttribArray(mTextureHandle);
+            mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-            mElementInfo.mVertices.position(0);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
+            mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
 
-            GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
-            GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
-            GLES20.glUniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
-            GLES20.glUniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
-            GLES20.glUniform1f(mSizeHandle, 0);
-            GLES20.glUniform1f(mThemeHandle, mProcessGL.getScriptFilter());
+            mGLState.uniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+            mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+            mGLState.uniform4f(mLeftFilterHandle, mLeft[0], mLeft[1], mLeft[2], mLeft[3]);
+            mGLState.uniform4f(mRightFilterHandle, mRight[0], mRight[1], mRight[2], mRight[3]);
+            mGLState.uniform1f(mSizeHandle, 0);
+            mGLState.uniform1f(mThemeHandle, mProcessGL.getScriptFilter());
 
             if(mMirrorType == Shader.MIRROR_VERTICAL) {
-                GLES20.glUniform1f(mDirectHandle, 1.0f);
-                GLES20.glUniform1f(mTransHandle, 0.0f);
+                mGLState.uniform1f(mDirectHandle, 1.0f);
+                mGLState.uniform1f(mTransHandle, 0.0f);
             } else if(mMirrorType == Shader.MIRROR_VERTICAL_TB) {
-                GLES20.glUniform1f(mDirectHandle, 1.0f);
+                mGLState.uniform1f(mDirectHandle, 1.0f);
 
                 if(mEffect.getTransition(mElapseTime) && progress < 0.6) {
-                    GLES20.glUniform1f(mTransHandle, 1.0f);
+                    mGLState.uniform1f(mTransHandle, 1.0f);
 
-                    GLES20.glUniform1f(mCoverHandle, 2.0f);
-                    GLES20.glUniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, 2, duration*0.6f) - 1);
+                    mGLState.uniform1f(mCoverHandle, 2.0f);
+                    mGLState.uniform1f(mSizeHandle, Easing.easeInOutCubic(elapse, 0, 2, duration*0.6f) - 1);
                 } else {
-                    GLES20.glUniform1f(mTransHandle, 0.0f);
+                    mGLState.uniform1f(mTransHandle, 0.0f);
                 }
             } else if(mMirrorType == Shader.MIRROR_TILTED_LEFT) {
-                GLES20.glUniform1f(mDirectHandle, 2.0f);
-                GLES20.glUniform1f(mTransHandle, 0.0f);
+                mGLState.uniform1f(mDirectHandle, 2.0f);
+                mGLState.uniform1f(mTransHandle, 0.0f);
             } else if(mMirrorType == Shader.MIRROR_TILTED_MASK || mMirrorType == Shader.MIRROR_TILTED) {
-                GLES20.glUniform1f(mDirectHandle, 5.0f);
-                GLES20.glUniform1f(mTransHandle, 0.0f);
+                mGLState.uniform1f(mDirectHandle, 5.0f);
+                mGLState.uniform1f(mTransHandle, 0.0f);
             }
 
             Matrix.invertM(mModelMatrix, 0, mModelMatrix, 0);
             Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
             Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-            GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+            mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-            GLES20.glEnable(GLES20.GL_BLEND);
-            GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+            mGLState.setBlend(true);
+            mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
             GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-            GLES20.glDisable(GLES20.GL_BLEND);
+            mGLState.setBlend(false);
         }
 
         checkGlError("MirrorShader");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("MirrorShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -193,6 +188,7 @@ public class MirrorShader extends Shader {
         mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
         mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
+        mSaturationHandle = GLES20.glGetUniformLocation(mProgram, "mSaturation");
 
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
         mAlphaHandle = GLES20.glGetUniformLocation(mProgram, "mAlpha");
@@ -10,7 +10,8 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.ProgramCache;
 
 public class OldfilmShader extends Shader {
     private static final String TAG = "OldfilmShader";
@@ -40,62 +41,58 @@ public class OldfilmShader extends Shader {
     private Random mRandom = new Random();
     
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public OldfilmShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
     public void DrawRandar(float[] mModelMatrix, float[] mViewMatrix, float[] mProjectionMatrix,
             int mTextureId, ElementInfo mElementInfo) {
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        GLES20.glUniform1i(mSamplerHandle, mTextureId);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
+        mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.uniform1i(mSamplerHandle, 0);
 
-        mElementInfo.mSTextureCoords.position(0);
-        GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-        GLES20.glEnableVertexAttribArray(mTextureHandle);
+        mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-        mElementInfo.mVertices.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
 
-        GLES20.glUniform1f(mAlphaHandle, mAlpha);
-        GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+        mGLState.uniform1f(mAlphaHandle, mAlpha);
+        mGLState.uniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
         setRandomValues();
 
-        GLES20.glUniform1f(mSepiaValueHandle,SEPIA);
-        GLES20.glUniform1f(mInnerVignettingHandle,IVIGNETTING);
-        GLES20.glUniform1f(mOuterVignettingHandle,OVIGNETTING);
-        GLES20.glUniform1f(mRandomValueHandle, mRandomVaule);
+        mGLState.uniform1f(mSepiaValueHandle,SEPIA);
+        mGLState.uniform1f(mInnerVignettingHandle,IVIGNETTING);
+        mGLState.uniform1f(mOuterVignettingHandle,OVIGNETTING);
+        mGLState.uniform1f(mRandomValueHandle, mRandomVaule);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("DefaultShader");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("OldfilmShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -8,7 +8,8 @@ import com.s890510.microfilm.ElementInfo;
 import com.s890510.microfilm.MicroMovieActivity;
 import com.s890510.microfilm.ProcessGL;
 import com.s890510.microfilm.R;
-import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.GLState;
+import com.s890510.microfilm.draw.ProgramCache;
 import com.s890510.microfilm.script.effects.Effect;
 
 public class PhotoShader extends Shader {
@@ -18,6 +19,7 @@ public class PhotoShader extends Shader {
     private int mPositionHandle;
     private int mTextureHandle;
     private int mSamplerHandle;
+    private int mSaturationHandle;
     private int mAlphaHandle;
     private int mMVPMatrixHandle;
     private int mMVMMatrixHandle;
@@ -28,10 +30,12 @@ public class PhotoShader extends Shader {
     private float[] mMVPMatrix = new float[16];
     
     private ProcessGL mProcessGL;
+    private GLState mGLState;
 
     public PhotoShader(MicroMovieActivity activity, ProcessGL processGL) {
         super(activity);
         mProcessGL = processGL;
+        mGLState = processGL.getGLState();
         CreateProgram();
     }
 
@@ -45,22 +49,19 @@ public class PhotoShader extends Shader {
         if(mEffect == null) return;
         else mElapseTime = mElementInfo.effect.getElapseTime(timer);
 
-        GLES20.glUseProgram(mProgram);
+        mGLState.useProgram(mProgram);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0+mTextureId);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        GLES20.glUniform1i(mSamplerHandle, mTextureId);
+        mGLState.activeTexture(GLES20.GL_TEXTURE0);
+        mGLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        mGLState.uniform1i(mSamplerHandle, 0);
+        mGLState.uniform1f(mSaturationHandle, mProcessGL.getSaturation(mTextureId, mElementInfo));
 
-        mElementInfo.mSTextureCoords.position(0);
-        GLES20.glVertexAttribPointer(mTextureHandle, 2, GLES20.GL_FLOAT, false, 0, mElementInfo.mSTextureCoords);
-        GLES20.glEnableVertexAttribArray(mTextureHandle);
+        mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mTextureHandle, 2, ElementInfo.GEOMETRY_SQUARE);
 
-        mElementInfo.mVertices.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 0, mElementInfo.mVertices);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mElementInfo.setAttrib(mProcessGL.getGeometryArena(), mPositionHandle, 3, ElementInfo.GEOMETRY_VERTICES);
 
-        GLES20.glUniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
-        GLES20.glUniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
+        mGLState.uniform1f(mAlphaHandle, mEffect.getAlpha(mElapseTime));
+        mGLState.uniform2f(mResolutionHandle, mProcessGL.ScreenWidth, mProcessGL.ScreenHeight);
 
         float scale = mElementInfo.effect.getScaleSize(mElementInfo.timer.getElapse());
         float ratio_a = (float)mProcessGL.ScreenHeight/(float)mProcessGL.ScreenWidth;
@@ -69,13 +70,13 @@ public class PhotoShader extends Shader {
             float[] mGap = new float[2]; //0: X, 1: Y
             mGap[0] = mElementInfo.x*(1.0f-0.04f*ratio_a);
             mGap[1] = mElementInfo.y*(1.0f-0.04f);
-            GLES20.glUniform1fv(mGapHandle, mGap.length, mGap, 0);
+            mGLState.uniform1fv(mGapHandle, mGap.length, mGap, 0);
 
             float[] bound = new float[2]; //0: X, 1: Y
             bound[0] = mElementInfo.x;
             bound[1] = mElementInfo.y;
-            GLES20.glUniform1f(mSetBoundHandle, 1.0f);
-            GLES20.glUniform1fv(mBoundHandle, bound.length, bound, 0);
+            mGLState.uniform1f(mSetBoundHandle, 1.0f);
+            mGLState.uniform1fv(mBoundHandle, bound.length, bound, 0);
         } else {
             float[] mGap = new float[2]; //0: X, 1: Y
             if(mElementInfo.x*ratio_a < mElementInfo.y) {
@@ -85,33 +86,31 @@ public class PhotoShader extends Shader {
                 mGap[0] = mElementInfo.x*(1.0f-0.04f*ratio_a)*scale;
                 mGap[1] = mElementInfo.y*(1.0f-0.04f)*scale;
             }
-            GLES20.glUniform1f(mSetBoundHandle, 0.0f);
-            GLES20.glUniform1fv(mGapHandle, mGap.length, mGap, 0);
+            mGLState.uniform1f(mSetBoundHandle, 0.0f);
+            mGLState.uniform1fv(mGapHandle, mGap.length, mGap, 0);
         }
 
         Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
 
-        GLES20.glUniformMatrix4fv(mMVMMatrixHandle, 1, false, mModelMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVMMatrixHandle, 1, false, mModelMatrix, 0);
+        mGLState.uniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
+        mGLState.setBlend(true);
+        mGLState.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+        mGLState.setBlend(false);
 
         checkGlError("PhotoShader");
     }
 
     private void CreateProgram() {
-        final int vertexShaderHandle = GLUtil.compileShader(GLES20.GL_VERTEX_SHADER, VertexShader());
-        final int fragmentShaderHandle = GLUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShader());
-
+        //Create the new program, or load it from the program cache
+        mProgram = ProgramCache.getInstance(mActivity).createProgram(VertexShader(), FragmentShader(),
+                mGLState);
         checkGlError("PhotoShader");
-        //Create the new program
-        mProgram = GLUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle);
         if (mProgram == 0) {
             Log.e(TAG, "mProgram is 0");
             return;
@@ -121,6 +120,7 @@ public class PhotoShader extends Shader {
         mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
         mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "Texture");
+        mSaturationHandle = GLES20.glGetUniformLocation(mProgram, "mSaturation");
 
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
         mMVMMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVMMatrix");
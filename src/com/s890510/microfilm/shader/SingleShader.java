@@ -8,6 +8,7 @@ public class SingleShader {
     private static final String TAG = "SingleShader";
     private MicroMovieActivity mActivity;
 
+    // compiled on first use, or by prepare() ahead of playback
     private DefaultShader mDefaultShader;
     private CoverShader mCoverShader;
     private LatticeShader mLatticeShader;
@@ -16,6 +17,8 @@ public class SingleShader {
     private LineShader mLineShader;
     private PhotoShader mPhotoShader;
     private ProcessGL mProcessGL;
+    // whether the screen size is known, for the shaders whose vertices depend on it
+    private boolean mHasScreen = false;
 
     public SingleShader(MicroMovieActivity activity, ProcessGL processGL) {
         mActivity = activity;
@@ -23,31 +26,100 @@ public class SingleShader {
     }
 
     public void initSingleShader() {
-        mDefaultShader = new DefaultShader(mActivity, mProcessGL);
-        mCoverShader = new CoverShader(mActivity, mProcessGL);
-        mLatticeShader = new LatticeShader(mActivity, mProcessGL);
-        mMirrorShader = new MirrorShader(mActivity, mProcessGL);
-        mRotateShader = new RotateShader(mActivity, mProcessGL);
-        mLineShader = new LineShader(mActivity, mProcessGL);
-        mPhotoShader = new PhotoShader(mActivity, mProcessGL);
+        // a new context; the programs of the last one are gone
+        mDefaultShader = null;
+        mCoverShader = null;
+        mLatticeShader = null;
+        mMirrorShader = null;
+        mRotateShader = null;
+        mLineShader = null;
+        mPhotoShader = null;
+    }
+
+    /**
+     * Compiles the program of ShaderMode now, if it isn't already, so that its first frame
+     * doesn't wait for it.
+     */
+    public void prepare(int ShaderMode) {
+        if(ShaderMode == Shader.DefaultShader) {
+            getDefaultShader();
+        } else if(ShaderMode == Shader.CoverShader) {
+            getCoverShader();
+        } else if(ShaderMode == Shader.LatticeShader) {
+            getLatticeShader();
+        } else if(ShaderMode == Shader.MirrorShader) {
+            getMirrorShader();
+        } else if(ShaderMode == Shader.RotateShader) {
+            getRotateShader();
+        } else if(ShaderMode == Shader.LineShader) {
+            getLineShader();
+        } else if(ShaderMode == Shader.PhotoShader) {
+            getPhotoShader();
+        }
+    }
+
+    private DefaultShader getDefaultShader() {
+        if(mDefaultShader == null)
+            mDefaultShader = new DefaultShader(mActivity, mProcessGL);
+        return mDefaultShader;
+    }
+
+    private CoverShader getCoverShader() {
+        if(mCoverShader == null) {
+            mCoverShader = new CoverShader(mActivity, mProcessGL);
+            if(mHasScreen) mCoverShader.CalcVertices();
+        }
+        return mCoverShader;
+    }
+
+    private LatticeShader getLatticeShader() {
+        if(mLatticeShader == null)
+            mLatticeShader = new LatticeShader(mActivity, mProcessGL);
+        return mLatticeShader;
+    }
+
+    private MirrorShader getMirrorShader() {
+        if(mMirrorShader == null)
+            mMirrorShader = new MirrorShader(mActivity, mProcessGL);
+        return mMirrorShader;
+    }
+
+    private RotateShader getRotateShader() {
+        if(mRotateShader == null)
+            mRotateShader = new RotateShader(mActivity, mProcessGL);
+        return mRotateShader;
+    }
+
+    private LineShader getLineShader() {
+        if(mLineShader == null) {
+            mLineShader = new LineShader(mActivity, mProcessGL);
+            if(mHasScreen) mLineShader.init();
+        }
+        return mLineShader;
+    }
+
+    private PhotoShader getPhotoShader() {
+        if(mPhotoShader == null)
+            mPhotoShader = new PhotoShader(mActivity, mProcessGL);
+        return mPhotoShader;
     }
 
     public void DrawRandar(int ShaderMode, int mTextureId, ElementInfo mElementInfo,
             float[] mModelMatrix, float[] mViewMatrix, float[] mProjectionMatrix, int mType) {
         if(ShaderMode == Shader.DefaultShader) {
-            mDefaultShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
+            getDefaultShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
         } else if(ShaderMode == Shader.CoverShader) {
-            mCoverShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
+            getCoverShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
         } else if(ShaderMode == Shader.LatticeShader) {
-            mLatticeShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
+            getLatticeShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
         } else if(ShaderMode == Shader.MirrorShader) {
-            mMirrorShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
+            getMirrorShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
         } else if(ShaderMode == Shader.RotateShader) {
-            mRotateShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo);
+            getRotateShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo);
         } else if(ShaderMode == Shader.LineShader) {
-            mLineShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
+            getLineShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
         } else if(ShaderMode == Shader.PhotoShader) {
-            mPhotoShader.DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
+            getPhotoShader().DrawRandar(mModelMatrix, mViewMatrix, mProjectionMatrix, mTextureId, mElementInfo, mType);
         }
 
     }
@@ -59,7 +131,9 @@ public class SingleShader {
     }
 
     public void init() {
-        mLineShader.init();
-        mCoverShader.CalcVertices();
+        // the others get their vertices when they are created
+        mHasScreen = true;
+        if(mLineShader != null) mLineShader.init();
+        if(mCoverShader != null) mCoverShader.CalcVertices();
     }
 }
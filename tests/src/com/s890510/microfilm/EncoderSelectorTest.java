@@ -0,0 +1,133 @@
+package com.s890510.microfilm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+/**
+ * Ranks fake codec lists with EncoderSelector.
+ */
+public class EncoderSelectorTest extends TestCase {
+    private static final int HEVC_LEVEL_41 = 0x1000;   // HEVCMainTierLevel41, not in our SDK
+
+    private static EncoderSelector.CodecDescription avc(String name, int[] profiles, int[] levels) {
+        return new EncoderSelector.CodecDescription(name, EncoderSelector.MIME_AVC, profiles,
+                levels, 2, false);
+    }
+
+    private static EncoderSelector.CodecDescription hevc(String name) {
+        return new EncoderSelector.CodecDescription(name, EncoderSelector.MIME_HEVC,
+                new int[] { EncoderSelector.HEVC_PROFILE_MAIN }, new int[] { HEVC_LEVEL_41 }, 1,
+                true);
+    }
+
+    private static EncoderSelector.CodecDescription avcHigh(String name) {
+        return avc(name,
+                new int[] { CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCProfileHigh },
+                new int[] { CodecProfileLevel.AVCLevel31, CodecProfileLevel.AVCLevel41 });
+    }
+
+    private static EncoderSelector.CodecDescription avcBaseline(String name) {
+        return avc(name, new int[] { CodecProfileLevel.AVCProfileBaseline },
+                new int[] { CodecProfileLevel.AVCLevel31 });
+    }
+
+    private static List<String> names(List<EncoderSelector.Choice> choices) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (EncoderSelector.Choice choice : choices) {
+            names.add(choice.codecName + "/" + choice.profile);
+        }
+        return names;
+    }
+
+    public void testHevcFirstWhereTheMuxerTakesIt() {
+        List<EncoderSelector.CodecDescription> encoders = Arrays.asList(
+                avcHigh("OMX.qcom.video.encoder.avc"), hevc("OMX.qcom.video.encoder.hevc"));
+
+        List<EncoderSelector.Choice> choices = EncoderSelector.rank(encoders, 24);
+        assertEquals(Arrays.asList(
+                "OMX.qcom.video.encoder.hevc/" + EncoderSelector.HEVC_PROFILE_MAIN,
+                "OMX.qcom.video.encoder.avc/" + CodecProfileLevel.AVCProfileHigh,
+                "OMX.qcom.video.encoder.avc/0"), names(choices));
+    }
+
+    public void testNoHevcBeforeN() {
+        List<EncoderSelector.CodecDescription> encoders = Arrays.asList(
+                hevc("OMX.qcom.video.encoder.hevc"), avcHigh("OMX.qcom.video.encoder.avc"));
+
+        for (EncoderSelector.Choice choice : EncoderSelector.rank(encoders, 23)) {
+            assertEquals(EncoderSelector.MIME_AVC, choice.mimeType);
+        }
+    }
+
+    public void testHardwareBeforeSoftwareInEachTier() {
+        List<EncoderSelector.CodecDescription> encoders = Arrays.asList(
+                avcHigh("OMX.google.h264.encoder"), avcHigh("OMX.Exynos.AVC.Encoder"),
+                avcBaseline("c2.android.avc.encoder"), avcBaseline("OMX.MTK.VIDEO.ENCODER.AVC"));
+
+        List<EncoderSelector.Choice> choices = EncoderSelector.rank(encoders, 19);
+        assertEquals(Arrays.asList(
+                "OMX.Exynos.AVC.Encoder/" + CodecProfileLevel.AVCProfileHigh,
+                "OMX.google.h264.encoder/" + CodecProfileLevel.AVCProfileHigh,
+                "OMX.Exynos.AVC.Encoder/0",
+                "OMX.MTK.VIDEO.ENCODER.AVC/0",
+                "OMX.google.h264.encoder/0",
+                "c2.android.avc.encoder/0"), names(choices));
+    }
+
+    public void testProfileComesWithItsHighestLevel() {
+        EncoderSelector.CodecDescription codec = avc("OMX.qcom.video.encoder.avc",
+                new int[] { CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCProfileHigh },
+                new int[] { CodecProfileLevel.AVCLevel31, CodecProfileLevel.AVCLevel42 });
+
+        List<EncoderSelector.Choice> choices = EncoderSelector.rank(Arrays.asList(codec), 19);
+        assertEquals(CodecProfileLevel.AVCProfileHigh, choices.get(0).profile);
+        assertEquals(CodecProfileLevel.AVCLevel42, choices.get(0).level);
+        // Baseline is left to the codec, profile and level both
+        assertEquals(0, choices.get(1).profile);
+        assertEquals(0, choices.get(1).level);
+    }
+
+    public void testNoEncoders() {
+        assertTrue(EncoderSelector.rank(new ArrayList<EncoderSelector.CodecDescription>(), 24)
+                .isEmpty());
+    }
+
+    public void testCandidatesFromSource() {
+        EncoderSelector.CodecSource source = new EncoderSelector.CodecSource() {
+            @Override
+            public List<EncoderSelector.CodecDescription> getEncoders() {
+                return Arrays.asList(hevc("OMX.qcom.video.encoder.hevc"),
+                        avcBaseline("OMX.qcom.video.encoder.avc"));
+            }
+        };
+        EncoderSelector selector = new EncoderSelector(source, null, "test", 24);
+
+        assertEquals(2, selector.getCandidates().size());
+        List<EncoderSelector.Choice> avc = selector.getCandidates(EncoderSelector.MIME_AVC);
+        assertEquals(1, avc.size());
+        assertEquals("OMX.qcom.video.encoder.avc", avc.get(0).codecName);
+    }
+
+    public void testChoiceRoundTrip() {
+        EncoderSelector.Choice choice = new EncoderSelector.Choice("OMX.qcom.video.encoder.avc",
+                EncoderSelector.MIME_AVC, CodecProfileLevel.AVCProfileHigh,
+                CodecProfileLevel.AVCLevel41, 4, true);
+
+        EncoderSelector.Choice read = EncoderSelector.Choice.unflatten(choice.flatten());
+        assertEquals(choice.codecName, read.codecName);
+        assertEquals(choice.mimeType, read.mimeType);
+        assertEquals(choice.profile, read.profile);
+        assertEquals(choice.level, read.level);
+        assertEquals(choice.maxInstances, read.maxInstances);
+        assertEquals(choice.useVbr, read.useVbr);
+    }
+
+    public void testChoiceWithoutLevelIsDropped() {
+        assertNull(EncoderSelector.Choice.unflatten("OMX.qcom.video.encoder.avc|video/avc|0|4|true"));
+    }
+}
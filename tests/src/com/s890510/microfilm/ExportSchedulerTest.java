@@ -0,0 +1,161 @@
+package com.s890510.microfilm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives ExportScheduler with a fake clock and a fake thermal source.
+ */
+public class ExportSchedulerTest extends TestCase {
+    private static final long MS = 1000000L;
+    private static final long FAST_NS = 10 * MS;
+    private static final long SLOW_NS = 30 * MS;
+
+    private static class FakeClock implements ExportScheduler.Clock {
+        long now = 5000 * MS;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private static class FakeThermalSource implements ExportScheduler.ThermalSource {
+        int status = ExportScheduler.THERMAL_NONE;
+        int polls = 0;
+
+        @Override
+        public int getThermalStatus() {
+            polls++;
+            return status;
+        }
+    }
+
+    private FakeClock mClock;
+    private FakeThermalSource mThermal;
+    private ExportScheduler mScheduler;
+    // strategy changes, and the clock at each
+    private List<Integer> mChanges;
+    private List<Long> mChangeTimes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mThermal = new FakeThermalSource();
+        mScheduler = new ExportScheduler(mClock, mThermal);
+        mChanges = new ArrayList<Integer>();
+        mChangeTimes = new ArrayList<Long>();
+    }
+
+    // submits frames of frameNs each, back to back, for durationNs
+    private int run(long frameNs, long durationNs) {
+        long end = mClock.now + durationNs;
+        int strategy = mScheduler.getStrategy();
+        while(mClock.now < end) {
+            mClock.now += frameNs;
+            int next = mScheduler.onFrame(frameNs);
+            if(next != strategy) {
+                mChanges.add(next);
+                mChangeTimes.add(mClock.now);
+            }
+            strategy = next;
+        }
+        return strategy;
+    }
+
+    private void runBaseline() {
+        run(FAST_NS, ExportScheduler.BASELINE_FRAMES * FAST_NS);
+        assertEquals(ExportScheduler.STRATEGY_FULL, mScheduler.getStrategy());
+    }
+
+    private void assertChanges(Integer... strategies) {
+        assertEquals(Arrays.asList(strategies), mChanges);
+    }
+
+    public void testSteadyExportStaysFull() {
+        runBaseline();
+        assertEquals(ExportScheduler.STRATEGY_FULL, run(FAST_NS, 60000 * MS));
+        assertEquals(0, mScheduler.getDelayNs());
+        assertChanges();
+    }
+
+    public void testThermalSourceIsPolledOncePerPeriod() {
+        run(FAST_NS, 10 * ExportScheduler.THERMAL_POLL_NS);
+        assertEquals(10, mThermal.polls);
+    }
+
+    public void testSlowFramesStepUpOneAtATime() {
+        runBaseline();
+        run(SLOW_NS, 20000 * MS);
+
+        assertChanges(ExportScheduler.STRATEGY_ELIDE, ExportScheduler.STRATEGY_REDUCED,
+                ExportScheduler.STRATEGY_PACED);
+        for(int i=1; i<mChangeTimes.size(); i++) {
+            assertTrue(mChangeTimes.get(i) - mChangeTimes.get(i - 1) >= ExportScheduler.ESCALATE_NS);
+        }
+    }
+
+    public void testSingleSlowFrameChangesNothing() {
+        runBaseline();
+        run(FAST_NS, 5000 * MS);
+        run(100 * MS, 1);
+        assertEquals(ExportScheduler.STRATEGY_FULL, run(FAST_NS, 5000 * MS));
+        assertChanges();
+    }
+
+    public void testModerateHeatStepsUpWhileFramesAreFast() {
+        runBaseline();
+        mThermal.status = ExportScheduler.THERMAL_MODERATE;
+        assertEquals(ExportScheduler.STRATEGY_FULL, run(FAST_NS, 1000 * MS));
+        assertEquals(ExportScheduler.STRATEGY_ELIDE, run(FAST_NS, 2000 * MS));
+    }
+
+    public void testSevereHeatPacesAtOnce() {
+        runBaseline();
+        mThermal.status = ExportScheduler.THERMAL_SEVERE;
+        run(FAST_NS, ExportScheduler.THERMAL_POLL_NS);
+        assertChanges(ExportScheduler.STRATEGY_PACED);
+
+        // paced to PACE_FACTOR times the 10 ms baseline, from the last submit
+        long interval = (long) (FAST_NS * ExportScheduler.PACE_FACTOR);
+        assertEquals(interval, mScheduler.getDelayNs());
+        mClock.now += 4 * MS;
+        assertEquals(interval - 4 * MS, mScheduler.getDelayNs());
+        mClock.now += interval;
+        assertEquals(0, mScheduler.getDelayNs());
+    }
+
+    public void testCoolDeviceStepsDownSlowly() {
+        runBaseline();
+        mThermal.status = ExportScheduler.THERMAL_SEVERE;
+        run(FAST_NS, ExportScheduler.THERMAL_POLL_NS);
+        mThermal.status = ExportScheduler.THERMAL_NONE;
+        mChanges.clear();
+        mChangeTimes.clear();
+        long cooled = mClock.now;
+
+        assertEquals(ExportScheduler.STRATEGY_PACED, run(FAST_NS, 9000 * MS));
+        run(FAST_NS, 30000 * MS);
+        assertChanges(ExportScheduler.STRATEGY_REDUCED, ExportScheduler.STRATEGY_ELIDE,
+                ExportScheduler.STRATEGY_FULL);
+        long last = cooled;
+        for(long time : mChangeTimes) {
+            assertTrue(time - last >= ExportScheduler.RELAX_NS);
+            last = time;
+        }
+        assertEquals(0, mScheduler.getDelayNs());
+    }
+
+    public void testUnknownHeatFallsBackToFrameTimes() {
+        mThermal.status = ExportScheduler.THERMAL_UNKNOWN;
+        runBaseline();
+        assertEquals(ExportScheduler.STRATEGY_ELIDE, run(SLOW_NS, 4000 * MS));
+        // still slow under the cheaper strategy: not cool, so no step down
+        assertEquals(ExportScheduler.STRATEGY_PACED, run(SLOW_NS, 20000 * MS));
+        assertEquals(ExportScheduler.STRATEGY_FULL, run(FAST_NS, 40000 * MS));
+    }
+}
@@ -0,0 +1,234 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.test.InstrumentationTestCase;
+
+import com.s890510.microfilm.gles.EglCore;
+import com.s890510.microfilm.gles.WindowSurface;
+
+/**
+ * Writes a fragmented MP4 of a short encoded clip and the music, the way a fragmented
+ * export does, and reads it back with MediaExtractor.
+ */
+public class FragmentedMp4MuxerTest extends InstrumentationTestCase {
+    private static final String MIME_TYPE = "video/avc";
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int BIT_RATE = 1000000;
+    private static final int FRAME_RATE = 30;
+    private static final int IFRAME_INTERVAL = 1;
+    private static final int NUM_FRAMES = 75;              // 2.5 seconds, three fragments
+    private static final int DURATION_MS = NUM_FRAMES * 1000 / FRAME_RATE;
+    private static final int TIMEOUT_USEC = 10000;
+    // the muxer's timescales round every time to less than this
+    private static final long TIME_TOLERANCE_US = 100;
+
+    /**
+     * Passes samples on, and remembers the times written to each track.
+     */
+    private static class RecordingMuxer implements MovieMuxer {
+        final MovieMuxer muxer;
+        final ArrayList<MediaFormat> formats = new ArrayList<MediaFormat>();
+        final ArrayList<ArrayList<Long>> times = new ArrayList<ArrayList<Long>>();
+
+        RecordingMuxer(MovieMuxer muxer) {
+            this.muxer = muxer;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            formats.add(format);
+            times.add(new ArrayList<Long>());
+            return muxer.addTrack(format);
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+            muxer.setOrientationHint(degrees);
+        }
+
+        @Override
+        public void start() {
+            muxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+                MediaCodec.BufferInfo bufferInfo) {
+            times.get(trackIndex).add(bufferInfo.presentationTimeUs);
+            muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        }
+
+        @Override
+        public void stop() {
+            muxer.stop();
+        }
+
+        @Override
+        public void release() {
+            muxer.release();
+        }
+    }
+
+    private Context mContext;
+    private File mOutput;
+    private MediaCodec mEncoder;
+    private EglCore mEglCore;
+    private WindowSurface mInputSurface;
+    private AudioEncode mAudioEncode;
+    private RecordingMuxer mMuxer;
+    private int mVideoTrack = -1;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mOutput = new File(mContext.getCacheDir(), "fragmented-test.mp4");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if(mInputSurface != null) mInputSurface.release();
+        if(mEglCore != null) mEglCore.release();
+        if(mEncoder != null) mEncoder.release();
+        if(mAudioEncode != null) mAudioEncode.release();
+        mOutput.delete();
+        super.tearDown();
+    }
+
+    public void testPlaysBackThroughMediaExtractor() throws Exception {
+        mMuxer = new RecordingMuxer(new FragmentedMp4Muxer(mOutput.getPath()));
+        mAudioEncode = new AudioEncode();
+        mAudioEncode.setAudioSource(mContext, MusicManager.MUISC_ASUS_CITY);
+        encode();
+
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mOutput.getPath());
+            assertEquals(mMuxer.formats.size(), extractor.getTrackCount());
+
+            for(int i=0; i<mMuxer.formats.size(); i++) {
+                String mime = mMuxer.formats.get(i).getString(MediaFormat.KEY_MIME);
+                int track = findTrack(extractor, mime);
+                assertTrue("no " + mime + " track", track >= 0);
+                checkSamples(extractor, track, mime, mMuxer.times.get(i));
+            }
+        } finally {
+            extractor.release();
+        }
+    }
+
+    // reads track back, and compares its samples to the written ones
+    private void checkSamples(MediaExtractor extractor, int track, String mime,
+            ArrayList<Long> written) {
+        for(int i=0; i<extractor.getTrackCount(); i++)
+            extractor.unselectTrack(i);
+        extractor.selectTrack(track);
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+
+        ArrayList<Long> read = new ArrayList<Long>();
+        while(extractor.getSampleTrackIndex() >= 0) {
+            read.add(extractor.getSampleTime());
+            extractor.advance();
+        }
+
+        assertEquals(mime + " sample count", written.size(), read.size());
+        for(int i=0; i<read.size(); i++) {
+            assertNear(mime + " sample " + i + " time", written.get(i), read.get(i),
+                    TIME_TOLERANCE_US);
+        }
+        long writtenDuration = written.get(written.size() - 1) - written.get(0);
+        long readDuration = read.get(read.size() - 1) - read.get(0);
+        assertNear(mime + " duration", writtenDuration, readDuration, TIME_TOLERANCE_US);
+    }
+
+    private static void assertNear(String message, long expected, long actual, long delta) {
+        assertTrue(message + ": expected " + expected + ", was " + actual,
+                Math.abs(expected - actual) <= delta);
+    }
+
+    private static int findTrack(MediaExtractor extractor, String mime) {
+        for(int i=0; i<extractor.getTrackCount(); i++) {
+            if(mime.equals(extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME)))
+                return i;
+        }
+        return -1;
+    }
+
+    // renders NUM_FRAMES frames of changing color into the encoder, and muxes them with the
+    // music as EncodeAndMux does for a fragmented export
+    private void encode() throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, WIDTH, HEIGHT);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+        mInputSurface = new WindowSurface(mEglCore, mEncoder.createInputSurface(), true);
+        mEncoder.start();
+        mInputSurface.makeCurrent();
+
+        for(int i=0; i<NUM_FRAMES; i++) {
+            drain(false);
+            float shade = (float) i / NUM_FRAMES;
+            GLES20.glClearColor(shade, 1.0f - shade, 0.5f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            mInputSurface.setPresentationTime(i * 1000000000L / FRAME_RATE);
+            mInputSurface.swapBuffers();
+        }
+        drain(true);
+
+        mAudioEncode.doEncode(mContext, mMuxer);
+        mMuxer.stop();
+        mMuxer.release();
+    }
+
+    private void drain(boolean endOfStream) throws IOException {
+        if(endOfStream) mEncoder.signalEndOfInputStream();
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
+        while(true) {
+            int status = mEncoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+            if(status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if(!endOfStream) break;
+            } else if(status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mEncoder.getOutputBuffers();
+            } else if(status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mVideoTrack = mMuxer.addTrack(mEncoder.getOutputFormat());
+                mAudioEncode.setupAudioMuxer(mContext, mMuxer, DURATION_MS);
+                mMuxer.start();
+            } else if(status >= 0) {
+                ByteBuffer data = outputBuffers[status];
+                if((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+                    info.size = 0;
+                if(info.size != 0) {
+                    assertTrue("sample before the format", mVideoTrack >= 0);
+                    // the music of a fragment goes before the sync frame that closes it
+                    if((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)
+                        mAudioEncode.writeSamplesUntil(mContext, mMuxer, info.presentationTimeUs);
+                    data.position(info.offset);
+                    data.limit(info.offset + info.size);
+                    mMuxer.writeSampleData(mVideoTrack, data, info);
+                }
+                mEncoder.releaseOutputBuffer(status, false);
+                if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.s890510.microfilm;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import com.s890510.microfilm.script.effects.EffectNotShow;
+
+/**
+ * Checks that FrameTimeline draws every export frame of the shipped scripts as ProcessGL's
+ * per-frame bookkeeping did before it.
+ */
+public class FrameTimelineTest extends TestCase {
+    private static final int FRAME_RATE = 50;               // as EncodeAndMux
+
+    // {duration, sleep} of each effect of the scripts, their EffectLib durations added up
+    private static final int[][] CARNIVAL = {
+            {2200, 2400}, {2200, 1900}, {2600, 2300}, {2200, 1900}, {2200, 1900}, {2200, 1700},
+            {2200, 1700}, {2400, 1700}, {3400, 100}, {3300, 100}, {3200, 2700}, {1200, 500},
+            {3500, 0}, {800, 700}, {2800, 2100}, {1900, 1600}, {2000, 1700}, {2000, 1700},
+            {2300, 2000}, {2300, 2300}, {3800, 3700}
+    };
+    private static final int[][] CITY = {
+            {2800, 2300}, {4600, 0}, {4200, 4200}, {3100, 0}, {2700, 2700}, {3000, 0},
+            {2600, 2600}, {2800, 0}, {2600, 0}, {2600, 2600}, {1900, 1500}, {2400, 2000},
+            {2400, 2000}, {1900, 1600}, {1400, 1400}, {400, 400}, {400, 400}, {400, 400},
+            {1500, 400}, {2300, 1900}, {2000, 2000}, {1000, 700}, {1000, 700}, {1000, 700},
+            {1200, 900}, {900, 600}, {2000, 1000}, {4900, 4800}
+    };
+    private static final int[][] COUNTRY = {
+            {8100, 500}, {9600, 0}, {11600, 0}, {11600, 0}, {6800, 7700}, {6200, 4000},
+            {6800, 1600}, {7300, 3700}, {6700, 1300}, {10800, 3600}, {5100, 3600}, {6100, 2100},
+            {4000, 2500}, {3900, 3800}
+    };
+    private static final int[][] KIDS = {
+            {2100, 2000}, {2900, 2400}, {1500, 1000}, {1500, 800}, {2200, 1700}, {2900, 700},
+            {2200, 1200}, {3000, 0}, {3000, 2000}, {3000, 0}, {3000, 2000}, {2300, 0},
+            {1800, 2300}, {4100, 400}, {3500, 3300}, {4400, 0}, {4200, 4000}, {3900, 0},
+            {3700, 3500}, {3500, 0}, {3300, 3300}, {3700, 3300}, {500, 500}, {3800, 3700}
+    };
+    private static final int[][] LIFE = {
+            {6000, 0}, {6000, 5000}, {8300, 1000}, {7300, 2600}, {7800, 2200}, {7800, 2100},
+            {3700, 1100}, {3400, 1400}, {4500, 0}, {8600, 5200}, {5700, 1200}, {5700, 1200},
+            {5400, 2300}, {5300, 1200}, {4100, 1200}, {2900, 2600}, {4700, 4600}
+    };
+    private static final int[][] LOVER = {
+            {5000, 0}, {4000, 1000}, {2700, 4000}, {1800, 1800}, {1200, 1200}, {2800, 2800},
+            {3900, 500}, {3400, 3400}, {3600, 500}, {3100, 3100}, {3200, 500}, {2700, 2700},
+            {3500, 1200}, {2300, 2300}, {5900, 2200}, {3700, 3700}, {3400, 1400}, {1500, 1000},
+            {3500, 3400}
+    };
+    private static final int[][] MEMORY = {
+            {6900, 0}, {13500, 0}, {7400, 10600}, {5500, 900}, {3000, 2000}, {3900, 3300},
+            {10900, 0}, {12300, 0}, {4000, 6200}, {8100, 1600}, {6500, 2200}, {4300, 2800},
+            {4700, 3200}, {4100, 2600}, {4700, 2700}, {5000, 3000}, {1500, 1000}, {4200, 4100}
+    };
+    private static final int[][] SPORTS = {
+            {2100, 0}, {2200, 2000}, {2200, 1700}, {1600, 1100}, {1600, 1100}, {2600, 2300},
+            {1200, 0}, {1200, 900}, {1100, 0}, {1100, 800}, {1200, 0}, {1200, 900}, {2600, 0},
+            {1400, 2100}, {1700, 1200}, {1700, 1200}, {1700, 1700}, {2900, 0}, {3000, 2000},
+            {2000, 1500}, {1500, 1500}, {1600, 0}, {1600, 0}, {1600, 0}, {1600, 1600},
+            {1500, 1500}, {3400, 0}, {3400, 2400}, {1900, 1600}, {4900, 4800}
+    };
+
+    /**
+     * ProcessGL's export path before FrameTimeline: the window shifted by changeBitmap, the
+     * slot bookkeeping on the first frame of each effect and setSleepZero.
+     */
+    private static class LegacyDrawer {
+        final ElementInfo[] mProcessData = new ElementInfo[FrameTimeline.WINDOW];
+        final int[] mRemainTime = new int[FrameTimeline.WINDOW];
+        final int[] mStartTime = new int[FrameTimeline.WINDOW];
+        int mTextureNum = 1;
+        boolean mNeedAgain = false;
+        int mPreSleep = 0;
+
+        void changeBitmap(ElementInfo eInfo) {
+            for(int i=0; i<mProcessData.length; i++) {
+                if(i+1 < mProcessData.length)
+                    mProcessData[i] = mProcessData[i+1];
+                else
+                    mProcessData[i] = eInfo;
+            }
+        }
+
+        void setSleepZero(int duration) {
+            for(int i=0; i < mRemainTime.length - 1; i++)
+                mRemainTime[i] = mRemainTime[i+1];
+            mRemainTime[mRemainTime.length - 1] = duration;
+            for(int j=0; j < mStartTime.length - 1; j++)
+                mStartTime[j] = mStartTime[j+1];
+            mStartTime[mStartTime.length - 1] = -1;
+        }
+
+        void draw(long elapseTime, boolean isSecondTime, ArrayList<String> drawn) {
+            for(int i=0; i<mProcessData.length; i++) {
+                if(mProcessData[i] == null) continue;
+                ElementInfo mInfo = mProcessData[i];
+                if(i < mProcessData.length - mTextureNum) continue;
+
+                if(i == mProcessData.length - 1) {
+                    if(elapseTime == 0 && !isSecondTime) {
+                        int sleep = mInfo.effect.getSleep();
+                        int duration = mInfo.effect.getDuration();
+
+                        for(int j=0; j < mRemainTime.length - 1; j++) {
+                            if(mStartTime[j+1] == -1)
+                                mRemainTime[j] = mRemainTime[j+1];
+                            else mRemainTime[j] = Math.max(0, mRemainTime[j+1] - mPreSleep);
+                        }
+                        mRemainTime[mRemainTime.length-1] = duration;
+
+                        for(int j=0; j < mStartTime.length - 1; j++) {
+                            if(mStartTime[j+1] == -1)
+                                mStartTime[j] = 0;
+                            else mStartTime[j] = mStartTime[j+1] + mPreSleep;
+                        }
+                        mStartTime[mStartTime.length-1] = 0;
+
+                        for(int j=0; j < mRemainTime.length; j++) {
+                            if(mRemainTime[j] > 0) {
+                                mTextureNum = mRemainTime.length - j;
+                                break;
+                            }
+                        }
+
+                        if(mTextureNum > 1)
+                            mNeedAgain = true;
+
+                        mPreSleep = sleep;
+                    }
+
+                    if(!mNeedAgain) {
+                        if(elapseTime > Math.min(mRemainTime[i], mPreSleep))
+                            continue;
+                        drawn.add(describe(i, mInfo, elapseTime));
+                    } else {
+                        break;
+                    }
+                } else {
+                    if(elapseTime == 0 && !isSecondTime)
+                        continue;
+                    if(elapseTime > Math.min(mPreSleep, mRemainTime[i]) || mRemainTime[i] == 0)
+                        continue;
+                    drawn.add(describe(i, mInfo, mStartTime[i] + elapseTime));
+                }
+            }
+
+            if(mNeedAgain) {
+                mNeedAgain = false;
+                draw(elapseTime, true, drawn);
+            }
+        }
+    }
+
+    private static String describe(int slot, ElementInfo info, long elapse) {
+        return "slot " + slot + ": element " + info.InfoId + " at " + elapse;
+    }
+
+    private static ArrayList<ElementInfo> order(int[][] script) {
+        ArrayList<ElementInfo> order = new ArrayList<ElementInfo>();
+        for(int i=0; i<script.length; i++) {
+            ElementInfo info = new ElementInfo();
+            info.Type = MediaInfo.MEDIA_TYPE_IMAGE;
+            info.InfoId = i;
+            info.effect = new EffectNotShow(script[i][0]);
+            info.effect.setSleep(script[i][1]);
+            info.time = script[i][1];
+            order.add(info);
+        }
+        return order;
+    }
+
+    // frames of each effect, as EncodeAndMux.getEffectFrames with the slogan running to its end
+    private static int[] framePlan(ArrayList<ElementInfo> order) {
+        int[] plan = new int[order.size()];
+        for(int i=0; i<plan.length; i++) {
+            ElementInfo info = order.get(i);
+            plan[i] = (i == plan.length - 1 ? info.effect.getDuration() : info.time) *
+                    FRAME_RATE / 1000;
+        }
+        return plan;
+    }
+
+    private static void assertSameFrames(int[][] script) {
+        ArrayList<ElementInfo> order = order(script);
+        int[] plan = framePlan(order);
+        int[] lengthMs = new int[plan.length];
+        for(int i=0; i<plan.length; i++)
+            lengthMs[i] = (plan[i]*1000)/FRAME_RATE;
+        FrameTimeline timeline = FrameTimeline.compile(order, lengthMs);
+        LegacyDrawer legacy = new LegacyDrawer();
+
+        int frames = 0;
+        for(int i=0; i<order.size(); i++) {
+            ElementInfo eInfo = order.get(i);
+            if(eInfo.Type == MediaInfo.MEDIA_TYPE_IMAGE)
+                legacy.changeBitmap(eInfo);
+            if(eInfo.time == 0)
+                legacy.setSleepZero(eInfo.effect.getDuration());
+
+            FrameTimeline.Step step = timeline.getStep(i);
+            for(int j=0; j<plan[i]; j++) {
+                long elapseTime = j * 1000L / FRAME_RATE;
+                ArrayList<String> expected = new ArrayList<String>();
+                legacy.draw(elapseTime, false, expected);
+
+                ArrayList<String> actual = new ArrayList<String>();
+                for(FrameTimeline.Layer layer : step.layers) {
+                    long elapse = layer.getElapse(elapseTime);
+                    if(elapse >= 0)
+                        actual.add(describe(layer.slot, layer.info, elapse));
+                }
+                assertEquals("effect " + i + ", frame " + j, expected, actual);
+                frames++;
+            }
+        }
+        assertTrue(frames > 0);
+    }
+
+    public void testCarnival() {
+        assertSameFrames(CARNIVAL);
+    }
+
+    public void testCity() {
+        assertSameFrames(CITY);
+    }
+
+    public void testCountry() {
+        assertSameFrames(COUNTRY);
+    }
+
+    public void testKids() {
+        assertSameFrames(KIDS);
+    }
+
+    public void testLife() {
+        assertSameFrames(LIFE);
+    }
+
+    public void testLover() {
+        assertSameFrames(LOVER);
+    }
+
+    public void testMemory() {
+        assertSameFrames(MEMORY);
+    }
+
+    public void testSports() {
+        assertSameFrames(SPORTS);
+    }
+
+    public void testZeroSleepsStack() {
+        // three elements with no sleep start together with the fourth
+        assertSameFrames(new int[][] {{3000, 1000}, {5000, 0}, {4000, 0}, {2000, 0},
+                {3000, 2000}, {1000, 1000}});
+    }
+
+    public void testFindReturnsTheStepShown() {
+        ArrayList<ElementInfo> order = order(CITY);
+        int[] sleeps = new int[order.size()];
+        for(int i=0; i<sleeps.length; i++)
+            sleeps[i] = order.get(i).time;
+        FrameTimeline timeline = FrameTimeline.compile(order, sleeps);
+
+        long start = 0;
+        for(int i=0; i<sleeps.length; i++) {
+            if(sleeps[i] > 0) {
+                assertSame(timeline.getStep(i), timeline.find(start));
+                assertSame(timeline.getStep(i), timeline.find(start + sleeps[i] - 1));
+            }
+            start += sleeps[i];
+        }
+        assertEquals(start, timeline.getDurationMs());
+        assertNull(timeline.find(-1));
+        assertNull(timeline.find(start + 1));
+    }
+}
@@ -0,0 +1,93 @@
+package com.s890510.microfilm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Fills a SegmentCache past its budget and checks what trimming leaves.
+ */
+public class SegmentCacheTest extends AndroidTestCase {
+    private static final int SEGMENT_BYTES = 60;
+    // room for one segment, not two
+    private static final long BUDGET_BYTES = 100;
+
+    private File mDir;
+    private File mSegment;
+    private SegmentCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "segment-cache-test");
+        deleteAll();
+        mSegment = new File(getContext().getCacheDir(), "segment-cache-test.mp4");
+        FileOutputStream out = new FileOutputStream(mSegment);
+        try {
+            out.write(new byte[SEGMENT_BYTES]);
+        } finally {
+            out.close();
+        }
+        mCache = new SegmentCache(mDir, BUDGET_BYTES);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mSegment.delete();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        File[] files = mDir.listFiles();
+        if(files != null) {
+            for(File file : files)
+                file.delete();
+        }
+        mDir.delete();
+    }
+
+    // puts a segment under key, as if it was used minutesAgo
+    private void put(String key, int minutesAgo) {
+        mCache.put(key, mSegment);
+        new File(mDir, key + ".mp4").setLastModified(
+                System.currentTimeMillis() - minutesAgo * 60000L);
+    }
+
+    private boolean cached(String key) {
+        return new File(mDir, key + ".mp4").exists();
+    }
+
+    public void testLeastRecentlyUsedIsTrimmed() {
+        put("a", 10);
+        put("b", 5);
+        assertFalse(cached("a"));
+        assertTrue(cached("b"));
+    }
+
+    public void testHitIsKeptUntilUnpinned() {
+        put("a", 10);
+        File hit = mCache.get("a");
+        assertNotNull(hit);
+        hit.setLastModified(System.currentTimeMillis() - 10 * 60000L);
+
+        // an export caching its misses while it still has to read its hits
+        put("b", 5);
+        assertTrue(cached("a"));
+        assertFalse(cached("b"));
+
+        mCache.unpin("a");
+        put("c", 5);
+        assertFalse(cached("a"));
+        assertTrue(cached("c"));
+    }
+
+    public void testMissPinsNothing() {
+        assertNull(mCache.get("a"));
+        put("a", 10);
+        put("b", 5);
+        assertFalse(cached("a"));
+        assertEquals(1, mCache.getHits() + mCache.getMisses());
+    }
+}
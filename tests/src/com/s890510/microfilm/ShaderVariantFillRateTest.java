@@ -0,0 +1,238 @@
+package com.s890510.microfilm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.content.Context;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.s890510.microfilm.draw.GLUtil;
+import com.s890510.microfilm.draw.ShaderVariant;
+import com.s890510.microfilm.gles.EglCore;
+import com.s890510.microfilm.gles.GlUtil;
+
+/**
+ * Draws bitmap_fragment_shader full screen at 1280x720, once with its modes as uniforms and
+ * once as DefaultShader's compiled variants.  The two have to give the same pixels; the
+ * fill rate of each is logged under {@link #TAG} for comparing devices.
+ */
+public class ShaderVariantFillRateTest extends InstrumentationTestCase {
+    private static final String TAG = "ShaderVariantFillRate";
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    // full-screen draws timed per program, after WARMUP_FILLS untimed ones
+    private static final int FILLS = 120;
+    private static final int WARMUP_FILLS = 10;
+    // mediump may round a constant and a uniform differently by a step
+    private static final int TOLERANCE = 1;
+
+    private static final String[] MODE_NAMES = { "THEME", "STRING_BK", "SET_BOUND" };
+    // {theme, string background, bound}, as DefaultShader picks them
+    private static final int[][] MODES = {
+        { 0, 0, 0 }, { 1, 0, 0 }, { 2, 0, 0 }, { 3, 0, 0 },
+        { 1, 0, 1 }, { 1, 0, 2 }, { 1, 0, 3 }, { 1, 0, 4 }, { 1, 0, 5 },
+        { 0, 1, 0 }, { 0, 2, 0 }, { 0, 3, 0 },
+    };
+
+    private static final float[] QUAD = {
+        -1.0f, -1.0f, 0.0f,
+         1.0f, -1.0f, 0.0f,
+        -1.0f,  1.0f, 0.0f,
+         1.0f,  1.0f, 0.0f,
+    };
+    private static final float[] QUAD_TEXTURE = {
+        0.0f, 0.0f,
+        1.0f, 0.0f,
+        0.0f, 1.0f,
+        1.0f, 1.0f,
+    };
+
+    private EglCore mEglCore;
+    private EGLSurface mSurface;
+    private String mVertexSource;
+    private String mFragmentSource;
+    private int mTexture;
+    private FloatBuffer mQuad;
+    private FloatBuffer mQuadTexture;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getTargetContext();
+        mVertexSource = GLUtil.readTextFileFromRawResource(context, R.raw.bitmap_vertex_shader);
+        mFragmentSource = GLUtil.readTextFileFromRawResource(context, R.raw.bitmap_fragment_shader);
+
+        mEglCore = new EglCore(null, 0);
+        mSurface = mEglCore.createOffscreenSurface(WIDTH, HEIGHT);
+        mEglCore.makeCurrent(mSurface);
+        GLES20.glViewport(0, 0, WIDTH, HEIGHT);
+
+        // a photo-like gradient, with black and white corners for the string modes
+        ByteBuffer pixels = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        for(int y=0; y<HEIGHT; y++) {
+            for(int x=0; x<WIDTH; x++) {
+                boolean black = x < 64 && y < 64;
+                boolean white = x >= WIDTH - 64 && y < 64;
+                pixels.put((byte) (black ? 0 : white ? 255 : x * 255 / WIDTH));
+                pixels.put((byte) (black ? 0 : white ? 255 : y * 255 / HEIGHT));
+                pixels.put((byte) (black ? 0 : white ? 255 : 128));
+                pixels.put((byte) 255);
+            }
+        }
+        pixels.position(0);
+        mTexture = GlUtil.createImageTexture(pixels, WIDTH, HEIGHT, GLES20.GL_RGBA);
+        mQuad = GlUtil.createFloatBuffer(QUAD);
+        mQuadTexture = GlUtil.createFloatBuffer(QUAD_TEXTURE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if(mTexture != 0) GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+        if(mEglCore != null) {
+            if(mSurface != null) mEglCore.releaseSurface(mSurface);
+            mEglCore.release();
+        }
+        super.tearDown();
+    }
+
+    public void testVariantsDrawLikeUniforms() {
+        int uniforms = GlUtil.createProgram(mVertexSource, mFragmentSource);
+        assertTrue("uniform program", uniforms != 0);
+        try {
+            for(int[] mode : MODES) {
+                int variant = createVariant(mode);
+                try {
+                    ByteBuffer expected = drawOnce(uniforms, mode);
+                    ByteBuffer actual = drawOnce(variant, mode);
+                    assertSamePixels(describe(mode), expected, actual);
+                } finally {
+                    GLES20.glDeleteProgram(variant);
+                }
+            }
+        } finally {
+            GLES20.glDeleteProgram(uniforms);
+        }
+    }
+
+    public void testFillRate() {
+        int uniforms = GlUtil.createProgram(mVertexSource, mFragmentSource);
+        assertTrue("uniform program", uniforms != 0);
+        try {
+            for(int[] mode : MODES) {
+                int variant = createVariant(mode);
+                try {
+                    double uniformMs = timeFills(uniforms, mode);
+                    double variantMs = timeFills(variant, mode);
+                    Log.i(TAG, describe(mode) + ": uniforms " + format(uniformMs) +
+                            ", variant " + format(variantMs));
+                } finally {
+                    GLES20.glDeleteProgram(variant);
+                }
+            }
+        } finally {
+            GLES20.glDeleteProgram(uniforms);
+        }
+    }
+
+    private int createVariant(int[] mode) {
+        float[] values = { mode[0], mode[1], mode[2] };
+        int program = GlUtil.createProgram(mVertexSource,
+                ShaderVariant.define(mFragmentSource, MODE_NAMES, values));
+        assertTrue(describe(mode) + " variant", program != 0);
+        return program;
+    }
+
+    // ms per full-screen draw, and the megapixels per second that makes
+    private static String format(double ms) {
+        return String.format("%.3f ms (%.0f Mpix/s)", ms, WIDTH * HEIGHT / ms / 1000.0);
+    }
+
+    private static String describe(int[] mode) {
+        return "theme " + mode[0] + ", string " + mode[1] + ", bound " + mode[2];
+    }
+
+    private double timeFills(int program, int[] mode) {
+        for(int i=0; i<WARMUP_FILLS; i++)
+            draw(program, mode);
+        GLES20.glFinish();
+
+        long start = System.nanoTime();
+        for(int i=0; i<FILLS; i++)
+            draw(program, mode);
+        GLES20.glFinish();
+        return (System.nanoTime() - start) / 1000000.0 / FILLS;
+    }
+
+    private ByteBuffer drawOnce(int program, int[] mode) {
+        draw(program, mode);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        pixels.order(ByteOrder.LITTLE_ENDIAN);
+        GLES20.glReadPixels(0, 0, WIDTH, HEIGHT, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        GlUtil.checkGlError("glReadPixels");
+        return pixels;
+    }
+
+    // draws the texture over the whole surface with the uniforms DefaultShader sets; a
+    // variant has no mode uniforms, and glUniform ignores their location of -1
+    private void draw(int program, int[] mode) {
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glUseProgram(program);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "Texture"), 0);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mSaturation"), 0.8f);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mAlpha"), 0.9f);
+        GLES20.glUniform2f(GLES20.glGetUniformLocation(program, "resolution"), WIDTH, HEIGHT);
+        GLES20.glUniform4f(GLES20.glGetUniformLocation(program, "mLeft"), 0.9f, 0.4f, 0.2f, 1.0f);
+        GLES20.glUniform4f(GLES20.glGetUniformLocation(program, "mRight"), 0.2f, 0.4f, 0.9f, 1.0f);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mString_BKR"), 0.5f);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mString_BKG"), 0.5f);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mString_BKB"), 0.5f);
+        // the bound cuts through the middle of the quad in every bound mode
+        GLES20.glUniform1fv(GLES20.glGetUniformLocation(program, "mBound"), 2,
+                new float[] { -0.5f, 0.5f }, 0);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mTheme"), mode[0]);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mString_BK"), mode[1]);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "mSetBound"), mode[2]);
+
+        float[] identity = GlUtil.IDENTITY_MATRIX;
+        GLES20.glUniformMatrix4fv(GLES20.glGetUniformLocation(program, "uMVPMatrix"), 1, false,
+                identity, 0);
+        GLES20.glUniformMatrix4fv(GLES20.glGetUniformLocation(program, "uMVMMatrix"), 1, false,
+                identity, 0);
+
+        int position = GLES20.glGetAttribLocation(program, "aPosition");
+        int textureCoord = GLES20.glGetAttribLocation(program, "aTextureCoord");
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glVertexAttribPointer(position, 3, GLES20.GL_FLOAT, false, 0, mQuad);
+        GLES20.glEnableVertexAttribArray(textureCoord);
+        GLES20.glVertexAttribPointer(textureCoord, 2, GLES20.GL_FLOAT, false, 0, mQuadTexture);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(position);
+        GLES20.glDisableVertexAttribArray(textureCoord);
+        GlUtil.checkGlError("draw");
+    }
+
+    private static void assertSamePixels(String message, ByteBuffer expected, ByteBuffer actual) {
+        int different = 0;
+        int first = -1;
+        for(int i=0; i<expected.capacity(); i++) {
+            if(Math.abs((expected.get(i) & 0xff) - (actual.get(i) & 0xff)) > TOLERANCE) {
+                if(first < 0) first = i;
+                different++;
+            }
+        }
+        assertTrue(message + ": " + different + " channels differ, first at pixel " +
+                (first / 4) + " (" + (first / 4 % WIDTH) + ", " + (first / 4 / WIDTH) + ")",
+                different == 0);
+    }
+}
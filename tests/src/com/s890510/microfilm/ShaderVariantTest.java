@@ -0,0 +1,41 @@
+package com.s890510.microfilm;
+
+import junit.framework.TestCase;
+
+import com.s890510.microfilm.draw.ShaderVariant;
+
+/**
+ * Checks where ShaderVariant puts its #defines.
+ */
+public class ShaderVariantTest extends TestCase {
+    private static final String[] MODES = { "THEME", "SET_BOUND" };
+    private static final float[] VALUES = { 2, 0 };
+    private static final String DEFINES = "#define THEME 2.0\n#define SET_BOUND 0.0\n";
+
+    public void testDefinesGoAfterVersion() {
+        String source = "#version 100\n\nprecision mediump float;\n";
+        assertEquals("#version 100\n" + DEFINES + "\nprecision mediump float;\n",
+                ShaderVariant.define(source, MODES, VALUES));
+    }
+
+    public void testVersionAfterBlankLines() {
+        String source = "\n  #version 100\nvoid main() {}\n";
+        assertEquals("\n  #version 100\n" + DEFINES + "void main() {}\n",
+                ShaderVariant.define(source, MODES, VALUES));
+    }
+
+    public void testDefinesGoFirstWithoutVersion() {
+        String source = "precision mediump float;\n";
+        assertEquals(DEFINES + source, ShaderVariant.define(source, MODES, VALUES));
+    }
+
+    public void testSourceOfOnlyVersion() {
+        assertEquals("#version 100\n" + DEFINES,
+                ShaderVariant.define("#version 100", MODES, VALUES));
+    }
+
+    public void testNoModesLeavesSource() {
+        String source = "#version 100\nvoid main() {}\n";
+        assertEquals(source, ShaderVariant.define(source, new String[0], new float[0]));
+    }
+}